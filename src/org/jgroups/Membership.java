@@ -14,7 +14,10 @@ import java.util.*;
  */
 public class Membership {
     /* private vector to hold all the addresses */
-    private final List<Address> members=new LinkedList<Address>();
+    private final List<Address> members=new ArrayList<Address>();
+
+    /* the same addresses as members, for O(1) lookups in large clusters. Guarded by members */
+    private final Set<Address>  member_set=new HashSet<Address>();
 
     
    /**
@@ -59,7 +62,7 @@ public class Membership {
     */
     public void add(Address new_member) {
         synchronized(members) {
-            if(new_member != null && !members.contains(new_member)) {
+            if(new_member != null && member_set.add(new_member)) {
                 members.add(new_member);
             }
         }
@@ -80,9 +83,12 @@ public class Membership {
     * 
     */
     public final void add(Collection<Address> v) {
-        if(v != null)
-            for(Address addr: v)
-                add(addr);
+        if(v != null) {
+            synchronized(members) {
+                for(Address addr: v)
+                    add(addr);
+            }
+        }
     }
 
 
@@ -96,7 +102,8 @@ public class Membership {
     public void remove(Address old_member) {
         if(old_member != null) {
             synchronized(members) {
-                members.remove(old_member);
+                if(member_set.remove(old_member))
+                    members.remove(old_member);
             }
         }
     }
@@ -110,7 +117,9 @@ public class Membership {
     public void remove(Collection<Address> v) {
         if(v != null) {
             synchronized(members) {
-                members.removeAll(v);
+                Set<Address> tmp=asSet(v);
+                members.removeAll(tmp);
+                member_set.removeAll(tmp);
             }
         }
     }
@@ -119,7 +128,9 @@ public class Membership {
     public void retainAll(Collection<Address> v) {
         if(v != null) {
             synchronized(members) {
-                members.retainAll(v);
+                Set<Address> tmp=asSet(v);
+                members.retainAll(tmp);
+                member_set.retainAll(tmp);
             }
         }
     }
@@ -131,6 +142,7 @@ public class Membership {
     public void clear() {
         synchronized(members) {
             members.clear();
+            member_set.clear();
         }
     }
 
@@ -189,7 +201,7 @@ public class Membership {
     public boolean contains(Address member) {
         if(member == null) return false;
         synchronized(members) {
-            return members.contains(member);
+            return member_set.contains(member);
         }
     }
 
@@ -246,5 +258,10 @@ public class Membership {
         }
     }
 
+    /** Removing or retaining the members of a large list would be O(n^2) */
+    protected static Set<Address> asSet(Collection<Address> v) {
+        return v instanceof Set? (Set<Address>)v : new HashSet<Address>(v);
+    }
+
 
 }
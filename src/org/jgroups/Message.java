@@ -724,7 +724,7 @@ public class Message implements Streamable {
     * @param excluded_headers Don't marshal headers that are part of excluded_headers
     * @throws Exception
     */
-    public void writeToNoAddrs(Address src, DataOutputStream out, short ... excluded_headers) throws Exception {
+    public void writeToNoAddrs(Address src, DataOutput out, short ... excluded_headers) throws Exception {
         byte leading=0;
 
         boolean write_src_addr=src == null || src_addr != null && !src_addr.equals(src);
@@ -881,11 +881,9 @@ public class Message implements Streamable {
 
     protected static Header readHeader(DataInput in) throws Exception {
         short magic_number=in.readShort();
-        Class clazz=ClassConfigurator.get(magic_number);
-        if(clazz == null)
+        Header hdr=ClassConfigurator.create(magic_number);
+        if(hdr == null)
             throw new IllegalArgumentException("magic number " + magic_number + " is not available in magic map");
-
-        Header hdr=(Header)clazz.newInstance();
         hdr.readFrom(in);
         return hdr;
     }
@@ -4,6 +4,7 @@ package org.jgroups;
 
 import org.jgroups.annotations.Immutable;
 import org.jgroups.util.ArrayIterator;
+import org.jgroups.util.MemberIndex;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
@@ -38,6 +39,9 @@ public class View implements Comparable<View>, Streamable, Iterable<Address> {
     */
     protected Address[] members;
 
+    /** Index of the ranks of the members, created on first use. Not serialized */
+    protected volatile MemberIndex index;
+
     protected static final boolean suppress_view_size=Boolean.getBoolean(Global.SUPPRESS_VIEW_SIZE);
 
 
@@ -111,10 +115,10 @@ public class View implements Comparable<View>, Streamable, Iterable<Address> {
 
     /**
      * Returns the member list
-     * @return an unmodifiable list
+     * @return an unmodifiable list. Its contains() and indexOf() methods use the index of this view, so they're O(1)
      */
     public List<Address> getMembers() {
-        return Collections.unmodifiableList(Arrays.asList(members));
+        return new MemberList(this);
     }
 
     /** Returns the underlying array. The caller <em>must not</em> modify the contents. Should not be used by
@@ -130,12 +134,24 @@ public class View implements Comparable<View>, Streamable, Iterable<Address> {
      * @return true if this view contains the member, false if it doesn't
      */
     public boolean containsMember(Address mbr) {
-        if(mbr == null || members == null)
-            return false;
-        for(Address member: members)
-            if(member != null && member.equals(mbr))
-                return true;
-        return false;
+        return mbr != null && members != null && getIndex().contains(mbr);
+    }
+
+    /**
+     * Returns the rank of a member, ie. its index in the member list (the coordinator has rank 0)
+     * @param mbr the address of the member
+     * @return the rank, or -1 if mbr is not a member
+     */
+    public int getRank(Address mbr) {
+        return mbr != null && members != null? getIndex().indexOf(mbr) : -1;
+    }
+
+    /** Returns the index of the members' ranks; it is created on the first call and shared with digests of this view */
+    public MemberIndex getIndex() {
+        MemberIndex tmp=index;
+        if(tmp == null || tmp.members() != members)
+            index=tmp=new MemberIndex(members);
+        return tmp;
     }
 
 
@@ -267,4 +283,19 @@ public class View implements Comparable<View>, Streamable, Iterable<Address> {
         return new ArrayIterator(this.members);
     }
 
+
+    /** An unmodifiable list of the members, which looks up members with the index of the view */
+    protected static class MemberList extends AbstractList<Address> implements RandomAccess, java.io.Serializable {
+        private static final long serialVersionUID=3516383564284919374L;
+        protected final View view;
+
+        protected MemberList(View view)       {this.view=view;}
+        public Address get(int index)         {return view.members[index];}
+        public int     size()                 {return view.members.length;}
+        public boolean contains(Object obj)   {return obj instanceof Address && view.containsMember((Address)obj);}
+        public int     indexOf(Object obj)    {return obj instanceof Address? view.getRank((Address)obj) : -1;}
+        public Object[] toArray()             {return Arrays.copyOf(view.members, view.members.length, Object[].class);}
+        /** Serialized as a plain list, as the view is not serializable */
+        protected Object writeReplace()       {return new ArrayList<Address>(this);}
+    }
 }
@@ -6,6 +6,9 @@ import org.jgroups.annotations.Experimental;
 import org.jgroups.annotations.Unsupported;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.ExposedByteArrayOutputStream;
 import org.jgroups.util.Util;
 
 import java.util.concurrent.*;
@@ -22,8 +25,8 @@ import java.io.*;
 @Unsupported
 public class Cache<K,V> {
     private static final Log log=LogFactory.getLog(Cache.class);
-    private final ConcurrentMap<K,Value<V>> map=Util.createConcurrentMap();
-    private ScheduledThreadPoolExecutor timer=new ScheduledThreadPoolExecutor(1);
+    private final ConcurrentMap<K,Value<V>> map;
+    protected ScheduledThreadPoolExecutor timer=new ScheduledThreadPoolExecutor(1);
     private Future task=null;
     private final AtomicBoolean is_reaping=new AtomicBoolean(false);
 
@@ -35,6 +38,18 @@ public class Cache<K,V> {
     @ManagedAttribute(writable=true)
     private int max_num_entries=0;
 
+    public Cache() {
+        this(Util.<K,Value<V>>createConcurrentMap());
+    }
+
+    /**
+     * Creates a cache which stores its entries in map, e.g. an {@link OffHeapMap} (which should then use
+     * {@link ValueMarshaller} to preserve the insertion times)
+     */
+    public Cache(ConcurrentMap<K,Value<V>> map) {
+        this.map=map;
+    }
+
     public int getMaxNumberOfEntries() {
         return max_num_entries;
     }
@@ -246,7 +261,7 @@ public class Cache<K,V> {
             notifyChangeListeners();
     }
 
-    private void notifyChangeListeners() {
+    protected void notifyChangeListeners() {
         for(ChangeListener l: change_listeners) {
             try {
                 l.changed();
@@ -295,6 +310,33 @@ public class Cache<K,V> {
     }
     
 
+    /**
+     * Marshals a {@link Value} including its insertion time, as opposed to serialization, which resets the insertion
+     * time to the time of deserialization
+     */
+    public static class ValueMarshaller implements RpcDispatcher.Marshaller {
+
+        public Buffer objectToBuffer(Object obj) throws Exception {
+            Value<?> val=(Value<?>)obj;
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(64);
+            DataOutputStream out=new DataOutputStream(out_stream);
+            out.writeLong(val.insertion_time);
+            out.writeLong(val.timeout);
+            Util.objectToStream(val.value, out);
+            return out_stream.getBuffer();
+        }
+
+        public Object objectFromBuffer(byte[] buf, int offset, int length) throws Exception {
+            DataInputStream in=new DataInputStream(new ExposedByteArrayInputStream(buf, offset, length));
+            Value<Object> val=new Value<Object>();
+            val.insertion_time=in.readLong();
+            val.timeout=in.readLong();
+            val.value=Util.objectFromStream(in);
+            return val;
+        }
+    }
+    
+
     private class Reaper implements Runnable {
 
         public void run() {
@@ -0,0 +1,201 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.MembershipListener;
+import org.jgroups.View;
+import org.jgroups.util.Util;
+
+import java.util.*;
+
+/**
+ * Consistent hash function for {@link ReplCache} and {@link PartitionedHashMap}. Every member is placed on the ring
+ * {@link #getVirtualNodes()} times (virtual nodes), which spreads the keys evenly across the members and makes a view
+ * change move only the keys of the members which joined or left.<p/>
+ * The ring is a sorted array of hashes and an array of owners; a lookup is a binary search over the hashes. The ring
+ * is immutable and replaced on every view change, so lookups don't need any locking.<p/>
+ * The primary owner of a key is picked from the ring. Additional replicas (replication count &gt; 1) are picked with
+ * rendezvous (highest random weight) hashing among the remaining members, so that a view change only moves the
+ * replicas whose weight was highest on a member that left or is lowest compared to a member that joined.
+ * @since 3.5
+ */
+public class ConsistentHashRing<K> implements ReplCache.HashFunction<K>, PartitionedHashMap.HashFunction<K>,
+                                              MembershipListener {
+    public static final int DEFAULT_VIRTUAL_NODES=160;
+
+    protected final int           virtual_nodes;
+    protected volatile Ring       ring=new Ring(Collections.<Address>emptyList(), 1);
+    /** The ring for the last membership passed to {@link #hash(Object,List)} which wasn't the installed one */
+    protected volatile Ring       last_ring;
+
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtual_nodes) {
+        if(virtual_nodes <= 0)
+            throw new IllegalArgumentException("number of virtual nodes (" + virtual_nodes + ") must be > 0");
+        this.virtual_nodes=virtual_nodes;
+    }
+
+    public int getVirtualNodes() {return virtual_nodes;}
+
+    public List<Address> getNodes() {return Collections.unmodifiableList(Arrays.asList(ring.members));}
+
+
+    /** Returns the primary owner of key, or null if no nodes have been installed */
+    public Address owner(K key) {
+        return ring.owner(hash(key));
+    }
+
+    /** PartitionedHashMap: returns the owner of key in membership, or in the installed nodes if membership is null */
+    public Address hash(K key, List<Address> membership) {
+        return ring(membership).owner(hash(key));
+    }
+
+    /** ReplCache: returns replication_count different owners for key; all nodes if replication_count is -1 */
+    public List<Address> hash(K key, short replication_count) {
+        return ring.owners(hash(key), replication_count);
+    }
+
+    public void installNodes(List<Address> nodes) {
+        ring=new Ring(nodes != null? nodes : Collections.<Address>emptyList(), virtual_nodes);
+    }
+
+    public void viewAccepted(View new_view) {
+        installNodes(new_view.getMembers());
+    }
+
+    public void suspect(Address suspected_mbr) {
+    }
+
+    public void block() {
+    }
+
+    public void unblock() {
+    }
+
+    public String toString() {
+        return ring.members.length + " nodes, " + ring.hashes.length + " virtual nodes";
+    }
+
+
+    /**
+     * Returns the installed ring if membership is null, empty or the same as the installed nodes. Otherwise the ring
+     * for membership is created once and reused until a different membership is passed, as callers like
+     * {@link PartitionedHashMap} look up many keys with the same membership
+     */
+    protected Ring ring(List<Address> membership) {
+        Ring tmp=ring;
+        if(membership == null || membership.isEmpty() || tmp.nodes.equals(membership))
+            return tmp;
+        tmp=last_ring;
+        if(tmp != null && tmp.nodes.equals(membership))
+            return tmp;
+        return last_ring=new Ring(membership, virtual_nodes);
+    }
+
+    protected static long hash(Object key) {
+        return Util.mix(key.hashCode());
+    }
+
+
+    /** An immutable ring of virtual nodes */
+    protected static class Ring {
+        protected final List<Address> nodes; // the nodes the ring was created from
+        protected final Address[] members;
+        protected final long[]    member_hashes;
+        protected final long[]    hashes; // sorted
+        protected final Address[] owners; // owners[i] is the owner of hashes[i]
+
+        protected Ring(List<Address> nodes, int virtual_nodes) {
+            this.nodes=new ArrayList<Address>(nodes);
+            members=new LinkedHashSet<Address>(nodes).toArray(new Address[0]);
+            member_hashes=new long[members.length];
+            for(int i=0; i < members.length; i++)
+                member_hashes[i]=Util.hash(members[i]);
+
+            // sort the virtual nodes by hash
+            int size=members.length * virtual_nodes;
+            long[] tmp_hashes=new long[size];
+            int[]  tmp_owners=new int[size];
+            Integer[] order=new Integer[size];
+            for(int i=0, index=0; i < members.length; i++) {
+                for(int j=0; j < virtual_nodes; j++, index++) {
+                    tmp_hashes[index]=Util.mix(member_hashes[i] + j * 0x9e3779b97f4a7c15L);
+                    tmp_owners[index]=i;
+                    order[index]=index;
+                }
+            }
+            final long[] h=tmp_hashes;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    long l1=h[o1], l2=h[o2];
+                    return l1 < l2? -1 : l1 > l2? 1 : 0;
+                }
+            });
+            hashes=new long[size];
+            owners=new Address[size];
+            for(int i=0; i < size; i++) {
+                hashes[i]=tmp_hashes[order[i]];
+                owners[i]=members[tmp_owners[order[i]]];
+            }
+        }
+
+        protected Address owner(long key_hash) {
+            if(hashes.length == 0)
+                return null;
+            int index=Arrays.binarySearch(hashes, key_hash);
+            if(index < 0)
+                index=-index - 1;
+            if(index >= hashes.length)
+                index=0;
+            return owners[index];
+        }
+
+        protected List<Address> owners(long key_hash, short replication_count) {
+            Address primary=owner(key_hash);
+            if(primary == null)
+                return new ArrayList<Address>(0);
+            if(replication_count == -1 || replication_count >= members.length) {
+                List<Address> retval=new ArrayList<Address>(members.length);
+                retval.add(primary);
+                for(Address mbr: members)
+                    if(!mbr.equals(primary))
+                        retval.add(mbr);
+                return retval;
+            }
+            List<Address> retval=new ArrayList<Address>(Math.max(1, (int)replication_count));
+            retval.add(primary);
+            if(replication_count <= 1)
+                return retval;
+
+            // rendezvous hashing: pick the replication_count-1 non-primary members with the highest weight
+            int num=replication_count - 1;
+            long[]    top_weights=new long[num];
+            Address[] top=new Address[num];
+            int found=0;
+            for(int i=0; i < members.length; i++) {
+                Address mbr=members[i];
+                if(mbr.equals(primary))
+                    continue;
+                long weight=Util.mix(key_hash ^ member_hashes[i]);
+                int pos=found;
+                while(pos > 0 && top_weights[pos-1] < weight)
+                    pos--;
+                if(pos >= num)
+                    continue;
+                int last=Math.min(found, num - 1);
+                System.arraycopy(top_weights, pos, top_weights, pos + 1, last - pos);
+                System.arraycopy(top, pos, top, pos + 1, last - pos);
+                top_weights[pos]=weight;
+                top[pos]=mbr;
+                if(found < num)
+                    found++;
+            }
+            for(int i=0; i < found; i++)
+                retval.add(top[i]);
+            return retval;
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package org.jgroups.blocks;
 
 import org.jgroups.annotations.Experimental;
+import org.jgroups.util.DefaultThreadFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Entry point for GridFile and GridInputStream / GridOutputStream
+ * Entry point for GridFile and GridInputStream / GridOutputStream.<p/>
+ * The streams keep up to window_size chunk operations in flight: an output stream sends full chunks in the background
+ * (write-behind) and an input stream fetches the next chunks ahead of the reader (read-ahead). The chunks of a window
+ * are grouped by owner, so every owner gets a single request per batch of chunks.
  * @author Bela Ban
  */
 @Experimental
@@ -14,6 +23,10 @@ public class GridFilesystem {
     protected final ReplCache<String,GridFile.Metadata>  metadata;
     protected final int                                  default_chunk_size;
     protected final short                                default_repl_count;
+    protected int                                        window_size=16; // max number of chunks in flight per stream
+    protected Executor                                   transfer_pool;  // runs the background chunk operations
+    protected int                                        max_transfer_threads=10; // size of the default transfer pool
+    protected ThreadPoolExecutor                         default_transfer_pool; // created by us, shut down by close()
 
 
 
@@ -35,6 +48,56 @@ public class GridFilesystem {
         this(data, metadata, (short)1, 8000);
     }
 
+    public int getWindowSize() {
+        return window_size;
+    }
+
+    /** Sets the max number of chunks read ahead or written behind by a stream. 1 disables read-ahead and write-behind */
+    public GridFilesystem setWindowSize(int window_size) {
+        this.window_size=Math.max(1, window_size);
+        return this;
+    }
+
+    public GridFilesystem setTransferPool(Executor transfer_pool) {
+        this.transfer_pool=transfer_pool;
+        return this;
+    }
+
+    public int getMaxTransferThreads() {
+        return max_transfer_threads;
+    }
+
+    /** Sets the max number of threads of the default transfer pool. Needs to be called before the pool is created */
+    public GridFilesystem setMaxTransferThreads(int max_transfer_threads) {
+        this.max_transfer_threads=Math.max(1, max_transfer_threads);
+        return this;
+    }
+
+    /** Returns the transfer pool. If none was set, a pool of max_transfer_threads threads is created */
+    public synchronized Executor getTransferPool() {
+        if(transfer_pool == null) {
+            default_transfer_pool=new ThreadPoolExecutor(max_transfer_threads, max_transfer_threads,
+                                                         30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                                                         new DefaultThreadFactory("GridFilesystem", true));
+            default_transfer_pool.allowCoreThreadTimeOut(true);
+            transfer_pool=default_transfer_pool;
+        }
+        return transfer_pool;
+    }
+
+    /**
+     * Shuts down the transfer pool created by this instance (a pool set with {@link #setTransferPool(Executor)} is
+     * left alone). Streams should be closed before; the data and metadata caches are not stopped
+     */
+    public synchronized void close() {
+        if(default_transfer_pool != null) {
+            default_transfer_pool.shutdown();
+            if(transfer_pool == default_transfer_pool)
+                transfer_pool=null;
+            default_transfer_pool=null;
+        }
+    }
+
     public File getFile(String pathname) {
         return getFile(pathname, default_chunk_size);
     }
@@ -72,13 +135,14 @@ public class GridFilesystem {
         if(!file.createNewFile())
             throw new IOException("creation of " + pathname + " failed");
 
-        return new GridOutputStream(file, append, data, repl_count, chunk_size);
+        return new GridOutputStream(file, append, data, repl_count, chunk_size, window_size, getTransferPool());
     }
 
     public OutputStream getOutput(GridFile file) throws IOException {
         if(!file.createNewFile())
             throw new IOException("creation of " + file + " failed");
-        return new GridOutputStream(file, false, data, default_repl_count, default_chunk_size);
+        return new GridOutputStream(file, false, data, default_repl_count, default_chunk_size, window_size,
+                                    getTransferPool());
     }
     
 
@@ -87,13 +151,56 @@ public class GridFilesystem {
         GridFile file=(GridFile)getFile(pathname);
         if(!file.exists())
             throw new FileNotFoundException(pathname);
-        return new GridInputStream(file, data, default_chunk_size);
+        return new GridInputStream(file, data, default_chunk_size, window_size, getTransferPool());
     }
 
     public InputStream getInput(File pathname) throws FileNotFoundException {
         return pathname != null? getInput(pathname.getPath()) : null;
     }
 
+    /**
+     * Copies a grid file to a local file. The chunks are fetched in parallel and written to the local file with
+     * {@link GridInputStream#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * @return The number of bytes copied
+     */
+    public long copyToLocal(String pathname, File local) throws IOException {
+        GridInputStream in=(GridInputStream)getInput(pathname);
+        FileOutputStream out=new FileOutputStream(local);
+        try {
+            FileChannel channel=out.getChannel();
+            long length=in.length(), count=in.transferTo(0, length, channel);
+            channel.force(false);
+            return count;
+        }
+        finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Copies a local file to a grid file (replacing its contents), reading the local file a window of chunks at a time
+     * @return The number of bytes copied
+     */
+    public long copyFromLocal(File local, String pathname) throws IOException {
+        FileInputStream in=new FileInputStream(local);
+        OutputStream out=getOutput(pathname);
+        try {
+            byte[] buf=new byte[default_chunk_size * window_size];
+            long count=0;
+            int len;
+            while((len=in.read(buf, 0, buf.length)) != -1) {
+                out.write(buf, 0, len);
+                count+=len;
+            }
+            return count;
+        }
+        finally {
+            out.close();
+            in.close();
+        }
+    }
+
 
     public void remove(String path, boolean synchronous) {
         if(path == null)
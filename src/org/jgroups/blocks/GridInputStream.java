@@ -5,8 +5,17 @@ import org.jgroups.logging.LogFactory;
 import org.jgroups.annotations.Experimental;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
+ * Input stream which reads a file from the chunks stored in a {@link ReplCache}. The chunks following the current
+ * position are read ahead: up to window_size chunks are fetched in batches by threads of the transfer pool.<p/>
+ * Besides sequential reads, the stream supports positional reads ({@link #read(long, byte[], int, int)}) and bulk
+ * transfers to a channel ({@link #transferTo(long, long, java.nio.channels.WritableByteChannel)}), similar to
+ * {@link java.nio.channels.FileChannel}.
  * @author Bela Ban
  */
 @Experimental
@@ -19,15 +28,30 @@ public class GridInputStream extends InputStream {
     int                            local_index=0;
     byte[]                         current_buffer=null;
     boolean                        end_reached=false;
+    protected final int            window_size;  // max number of chunks read ahead
+    protected final int            batch_size;   // number of chunks fetched in one go
+    protected final Executor       pool;         // fetches the chunks read ahead; null: no read-ahead
+    protected int                  num_chunks=-1; // number of chunks of the file when the first chunk was read
+    protected int                  next_chunk;   // the next chunk to be read ahead
+    /** The chunks read ahead, keyed by chunk number. Chunks fetched in the same batch share the future */
+    protected final Map<Integer,Future<Map<String,byte[]>>> read_ahead=new HashMap<Integer,Future<Map<String,byte[]>>>();
     final static Log               log=LogFactory.getLog(GridInputStream.class);
 
 
 
     GridInputStream(GridFile file, ReplCache<String, byte[]> cache, int chunk_size) throws FileNotFoundException {
+        this(file, cache, chunk_size, 1, null);
+    }
+
+    GridInputStream(GridFile file, ReplCache<String, byte[]> cache, int chunk_size,
+                    int window_size, Executor pool) throws FileNotFoundException {
         this.file=file;
         this.name=file.getPath();
         this.cache=cache;
         this.chunk_size=chunk_size;
+        this.window_size=pool != null? Math.max(1, window_size) : 1;
+        this.batch_size=Math.max(1, this.window_size / 4);
+        this.pool=this.window_size > 1? pool : null;
     }
 
 
@@ -38,12 +62,14 @@ public class GridInputStream extends InputStream {
             if(end_reached)
                 return -1;
             current_buffer=fetchNextChunk();
-            local_index=0;
+            local_index=index % chunk_size;
             if(current_buffer == null)
                 return -1;
             else if(current_buffer.length < chunk_size)
                 end_reached=true;
             bytes_remaining_to_read=getBytesRemainingInChunk();
+            if(bytes_remaining_to_read == 0)
+                return -1;
         }
         int retval=current_buffer[local_index++];
         index++;
@@ -62,12 +88,14 @@ public class GridInputStream extends InputStream {
                 if(end_reached)
                     return bytes_read > 0? bytes_read : -1;
                 current_buffer=fetchNextChunk();
-                local_index=0;
+                local_index=index % chunk_size;
                 if(current_buffer == null)
                     return bytes_read > 0? bytes_read : -1;
                 else if(current_buffer.length < chunk_size)
                     end_reached=true;
                 bytes_remaining_to_read=getBytesRemainingInChunk();
+                if(bytes_remaining_to_read == 0)
+                    return bytes_read > 0? bytes_read : -1;
             }
             int bytes_to_read=Math.min(len, bytes_remaining_to_read);
             // bytes_to_read=Math.min(bytes_to_read, current_buffer.length - local_index);
@@ -82,28 +110,121 @@ public class GridInputStream extends InputStream {
         return bytes_read;
     }
 
+    /**
+     * Reads up to len bytes starting at position in the file, without changing the position of the stream. The chunks
+     * are fetched in parallel
+     * @return The number of bytes read, or -1 if position is at or beyond the end of the file
+     */
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        long length=length();
+        if(position >= length)
+            return -1;
+        len=(int)Math.min(len, length - position);
+        int first=(int)(position / chunk_size), last=(int)((position + len - 1) / chunk_size);
+        List<Future<Map<String,byte[]>>> futures=fetch(first, last - first + 1);
+        int bytes_read=0;
+        for(int chunk=first; chunk <= last && len > 0; chunk++) {
+            byte[] buf=get(futures.get((chunk - first) / batch_size), chunk);
+            int offset=(int)(position % chunk_size);
+            if(buf == null || buf.length <= offset)
+                break;
+            int bytes_to_read=Math.min(len, buf.length - offset);
+            System.arraycopy(buf, offset, b, off, bytes_to_read);
+            position+=bytes_to_read;
+            off+=bytes_to_read;
+            len-=bytes_to_read;
+            bytes_read+=bytes_to_read;
+        }
+        return bytes_read > 0? bytes_read : -1;
+    }
+
+    /**
+     * Transfers up to count bytes starting at position to target, without changing the position of the stream. The
+     * next window of chunks is fetched while the current one is written to the target
+     * @return The number of bytes transferred
+     */
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long length=length(), transferred=0;
+        count=Math.min(count, length - position);
+        if(count <= 0)
+            return 0;
+        int chunk=(int)(position / chunk_size), last=(int)((position + count - 1) / chunk_size);
+        int window_chunks=Math.max(1, window_size);
+        List<Future<Map<String,byte[]>>> current=fetch(chunk, Math.min(window_chunks, last - chunk + 1)), next;
+        while(chunk <= last) {
+            int num=Math.min(window_chunks, last - chunk + 1), next_chunk=chunk + num;
+            next=next_chunk <= last? fetch(next_chunk, Math.min(window_chunks, last - next_chunk + 1)) : null;
+            for(int i=0; i < num && transferred < count; i++, chunk++) {
+                byte[] buf=get(current.get(i / batch_size), chunk);
+                int offset=(int)(position % chunk_size);
+                if(buf == null || buf.length <= offset)
+                    return transferred;
+                int len=(int)Math.min(count - transferred, buf.length - offset);
+                ByteBuffer tmp=ByteBuffer.wrap(buf, offset, len);
+                while(tmp.hasRemaining())
+                    target.write(tmp);
+                position+=len;
+                transferred+=len;
+            }
+            current=next;
+        }
+        return transferred;
+    }
+
+    /** Returns the length of the file */
+    public long length() {
+        return file.length();
+    }
+
     public long skip(long n) throws IOException {
-        throw new UnsupportedOperationException();
+        if(n <= 0)
+            return 0;
+        long length=length();
+        long new_index=Math.min(index + n, Math.max(length, index));
+        long skipped=new_index - index;
+        if(skipped <= 0)
+            return 0;
+        index=(int)new_index;
+        if(current_buffer != null && local_index + skipped < current_buffer.length)
+            local_index+=skipped;
+        else { // the next read fetches the chunk containing index
+            current_buffer=null;
+            local_index=0;
+            end_reached=false;
+        }
+        return skipped;
     }
 
     public int available() throws IOException {
-        throw new UnsupportedOperationException();
+        return getBytesRemainingInChunk();
     }
 
     public void close() throws IOException {
         local_index=index=0;
         end_reached=false;
+        current_buffer=null;
+        for(Future<Map<String,byte[]>> future: read_ahead.values())
+            future.cancel(false);
+        read_ahead.clear();
+        next_chunk=0;
     }
 
     private int getBytesRemainingInChunk() {
         // return chunk_size - local_index;
-        return current_buffer == null? 0 : current_buffer.length - local_index;
+        return current_buffer == null? 0 : Math.max(0, current_buffer.length - local_index);
     }
 
-    private byte[] fetchNextChunk() {
+    private byte[] fetchNextChunk() throws IOException {
         int chunk_number=getChunkNumber();
         String key=name + ".#" + chunk_number;
-        byte[] val= cache.get(key);
+        byte[] val;
+        if(pool == null)
+            val=cache.get(key);
+        else {
+            readAhead(chunk_number);
+            Future<Map<String,byte[]>> future=read_ahead.remove(chunk_number);
+            val=future != null? get(future, chunk_number) : cache.get(key);
+        }
         if(log.isTraceEnabled())
             log.trace("fetching index=" + index + ", key=" + key +": " + (val != null? val.length + " bytes" : "null"));
         return val;
@@ -113,4 +234,59 @@ public class GridInputStream extends InputStream {
         return index / chunk_size;
     }
 
+    /** Makes sure that the chunks from chunk_number on (up to window_size chunks) are being fetched */
+    protected void readAhead(int chunk_number) {
+        if(num_chunks < 0)
+            num_chunks=(int)((length() + chunk_size - 1) / chunk_size);
+        for(Iterator<Integer> it=read_ahead.keySet().iterator(); it.hasNext();) {
+            if(it.next() < chunk_number) // skipped chunks
+                it.remove();
+        }
+        next_chunk=Math.max(next_chunk, chunk_number);
+        int limit=Math.min(chunk_number + window_size, num_chunks);
+        while(next_chunk < limit) {
+            int num=Math.min(batch_size, limit - next_chunk);
+            Future<Map<String,byte[]>> future=fetch(next_chunk, num).get(0);
+            for(int i=0; i < num; i++)
+                read_ahead.put(next_chunk++, future);
+        }
+    }
+
+    /**
+     * Fetches num chunks starting at first, in batches of batch_size chunks. The batches are fetched in parallel by
+     * the transfer pool (or by the caller if there is no pool)
+     */
+    protected List<Future<Map<String,byte[]>>> fetch(int first, int num) {
+        List<Future<Map<String,byte[]>>> futures=new ArrayList<Future<Map<String,byte[]>>>(num / batch_size + 1);
+        for(int i=0; i < num; i+=batch_size) {
+            final List<String> keys=new ArrayList<String>(batch_size);
+            for(int j=i; j < Math.min(i + batch_size, num); j++)
+                keys.add(name + ".#" + (first + j));
+            FutureTask<Map<String,byte[]>> task=new FutureTask<Map<String,byte[]>>(new Callable<Map<String,byte[]>>() {
+                public Map<String,byte[]> call() throws Exception {
+                    return cache.getAll(keys);
+                }
+            });
+            if(pool != null)
+                pool.execute(task);
+            else
+                task.run();
+            futures.add(task);
+        }
+        return futures;
+    }
+
+    protected byte[] get(Future<Map<String,byte[]>> future, int chunk_number) throws IOException {
+        try {
+            return future.get().get(name + ".#" + chunk_number);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted fetching chunk " + chunk_number + " of " + name);
+        }
+        catch(ExecutionException e) {
+            throw new IOException("failed fetching chunk " + chunk_number + " of " + name, e.getCause());
+        }
+    }
+
 }
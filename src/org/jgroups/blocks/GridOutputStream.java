@@ -5,8 +5,15 @@ import org.jgroups.logging.LogFactory;
 import org.jgroups.annotations.Experimental;
 
 import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 
 /**
+ * Output stream which writes a file as chunks to a {@link ReplCache}. Full chunks are written behind: they are sent
+ * in batches by a thread of the transfer pool, and up to window_size chunks can be in flight before a writer blocks.
+ * {@link #flush()} and {@link #close()} wait until all chunks have been stored.
  * @author Bela Ban
  */
 @Experimental
@@ -18,18 +25,33 @@ public class GridOutputStream extends OutputStream {
     protected final GridFile       file; // file representing this output stream
     int                            index=0;                // index into the file for writing
     int                            local_index=0;
-    final byte[]                   current_buffer;
+    byte[]                         current_buffer;
+    protected final int            window_size;  // max number of chunks in flight
+    protected final int            batch_size;   // number of chunks sent in one go
+    protected final Executor       pool;         // sends the chunks; null: chunks are sent by the writer
+    protected final Semaphore      window;       // one permit per chunk that may be in flight
+    protected Map<String,byte[]>   batch;        // full chunks which haven't been sent yet
+    protected volatile Throwable   error;        // the first failure of a background put
     static final Log               log=LogFactory.getLog(GridOutputStream.class);
-    
 
-    
+
+
     GridOutputStream(GridFile file, boolean append, ReplCache<String,byte[]> cache,
                      short repl_count, int chunk_size) throws FileNotFoundException {
+        this(file, append, cache, repl_count, chunk_size, 1, null);
+    }
+
+    GridOutputStream(GridFile file, boolean append, ReplCache<String,byte[]> cache,
+                     short repl_count, int chunk_size, int window_size, Executor pool) throws FileNotFoundException {
         this.file=file;
         this.name=file.getPath();
         this.cache=cache;
         this.repl_count=repl_count;
         this.chunk_size=chunk_size;
+        this.window_size=pool != null? Math.max(1, window_size) : 1;
+        this.batch_size=Math.max(1, this.window_size / 4);
+        this.pool=this.window_size > 1? pool : null;
+        this.window=new Semaphore(this.window_size);
         current_buffer=new byte[chunk_size];
     }
 
@@ -39,8 +61,7 @@ public class GridOutputStream extends OutputStream {
     public void write(int b) throws IOException {
         int remaining=getBytesRemainingInChunk();
         if(remaining == 0) {
-            flush();
-            local_index=0;
+            sendFullChunk();
             remaining=chunk_size;
         }
         current_buffer[local_index]=(byte)b;
@@ -60,8 +81,7 @@ public class GridOutputStream extends OutputStream {
         while(len > 0) {
             int remaining=getBytesRemainingInChunk();
             if(remaining == 0) {
-                flush();
-                local_index=0;
+                sendFullChunk();
                 remaining=chunk_size;
             }
             int bytes_to_write=Math.min(remaining, len);
@@ -79,14 +99,23 @@ public class GridOutputStream extends OutputStream {
         reset();
     }
 
+    /** Stores the current (possibly partial) chunk and waits until all chunks in flight have been stored */
     public void flush() throws IOException {
-        int chunk_number=getChunkNumber();
-        String key=name + ".#" + chunk_number;
-        byte[] val=new byte[local_index];
-        System.arraycopy(current_buffer, 0, val, 0, local_index);
-        cache.put(key, val, repl_count, 0);
-        if(log.isTraceEnabled())
-            log.trace("put(): index=" + index + ", key=" + key + ": " + val.length + " bytes");
+        if(pool == null) {
+            put(getChunkNumber(), copyOfCurrentBuffer());
+            file.setLength(index);
+            return;
+        }
+        checkError();
+        if(local_index == chunk_size)
+            sendFullChunk();
+        else if(local_index > 0 || index == 0) // local_index == 0: the last chunk is full and was already sent
+            addToBatch(getChunkNumber(), copyOfCurrentBuffer());
+        sendBatch();
+        // all permits are available again when all chunks have been stored
+        window.acquireUninterruptibly(window_size);
+        window.release(window_size);
+        checkError();
         file.setLength(index);
     }
 
@@ -104,6 +133,70 @@ public class GridOutputStream extends OutputStream {
         index=local_index=0;
     }
 
+    protected byte[] copyOfCurrentBuffer() {
+        byte[] val=new byte[local_index];
+        System.arraycopy(current_buffer, 0, val, 0, local_index);
+        return val;
+    }
 
- 
+    /** Hands the full current buffer over to be sent (without copying it) and starts a new chunk */
+    protected void sendFullChunk() throws IOException {
+        if(pool == null) {
+            put(getChunkNumber(), copyOfCurrentBuffer());
+            file.setLength(index);
+        }
+        else {
+            checkError();
+            addToBatch(getChunkNumber(), current_buffer);
+            if(batch.size() >= batch_size)
+                sendBatch();
+            current_buffer=new byte[chunk_size];
+        }
+        local_index=0;
+    }
+
+    protected void put(int chunk_number, byte[] val) {
+        String key=name + ".#" + chunk_number;
+        cache.put(key, val, repl_count, 0);
+        if(log.isTraceEnabled())
+            log.trace("put(): index=" + index + ", key=" + key + ": " + val.length + " bytes");
+    }
+
+    /** Adds a chunk to the current batch, blocking while window_size chunks are in flight */
+    protected void addToBatch(int chunk_number, byte[] val) {
+        window.acquireUninterruptibly();
+        if(batch == null)
+            batch=new LinkedHashMap<String,byte[]>(batch_size);
+        batch.put(name + ".#" + chunk_number, val);
+    }
+
+    /** Stores the current batch of chunks in a thread of the pool. The puts to the different owners run in parallel */
+    protected void sendBatch() {
+        if(batch == null || batch.isEmpty())
+            return;
+        final Map<String,byte[]> chunks=batch;
+        batch=null;
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    cache.putAll(chunks, repl_count, 0, true);
+                    if(log.isTraceEnabled())
+                        log.trace("putAll(): " + chunks.size() + " chunks of " + name);
+                }
+                catch(Throwable t) {
+                    if(error == null)
+                        error=t;
+                }
+                finally {
+                    window.release(chunks.size());
+                }
+            }
+        });
+    }
+
+    protected void checkError() throws IOException {
+        Throwable t=error;
+        if(t != null)
+            throw new IOException("failed storing chunks of " + name, t);
+    }
 }
@@ -0,0 +1,854 @@
+package org.jgroups.blocks;
+
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking version of {@link MemcachedConnector}: a number of selector threads serve all client connections, so
+ * the number of connections is not limited by the number of threads.<p/>
+ * Both the memcached text protocol and the binary protocol
+ * (http://code.google.com/p/memcached/wiki/BinaryProtocolRevamped) are supported; the protocol is detected from the
+ * first byte sent by a client. Clients can pipeline requests: all complete requests read from a connection are
+ * processed (in order) by a thread of the thread pool, and the responses are sent with a single gathering write.
+ * Values are written directly from the cache without copying.<p/>
+ * Consecutive gets of a pipeline (e.g. the GETKQ requests followed by a NOOP which binary clients use for multi-gets,
+ * or a text get with multiple keys) are fetched with one {@link PartitionedHashMap#getAll(java.util.Collection)},
+ * which asks the owners of the keys in parallel.<p/>
+ * Supported commands: get, gets, set, delete, stats, version and quit (text), and GET(K)(Q), SET(Q), DELETE(Q), NOOP,
+ * VERSION, STAT and QUIT(Q) (binary). Flags are not stored (gets return 0), other commands are rejected.
+ * @since 3.5
+ */
+public class NioMemcachedConnector {
+    @ManagedAttribute(writable=false)
+    protected int         port=11211;
+
+    @ManagedAttribute(writable=false)
+    protected InetAddress bind_addr;
+
+    @ManagedAttribute(description="Number of selector threads",writable=false)
+    protected int         num_selectors=Runtime.getRuntime().availableProcessors();
+
+    @ManagedAttribute(description="Max number of threads processing requests",writable=false)
+    protected int         max_threads=100;
+
+    @ManagedAttribute(description="Time (ms) after which an idle processing thread is terminated",writable=false)
+    protected long        idle_time=5000L;
+
+    @ManagedAttribute(description="Max size of a request in bytes, including the value",writable=true)
+    protected int         max_request_size=(1 << 20) + 1024;
+
+    @ManagedAttribute(description="Max number of bytes of responses queued for a client. When exceeded, requests of " +
+      "the client are neither read nor processed until half of the queued bytes have been written",writable=true)
+    protected long        max_pending_bytes=4 << 20;
+
+    protected PartitionedHashMap<String,byte[]> cache;
+    protected ServerSocketChannel srv_channel;
+    protected EventLoop[]         loops;
+    protected Executor            thread_pool;
+    protected volatile boolean    running;
+    protected long                start_time;
+    protected final AtomicInteger next_loop=new AtomicInteger();
+    protected final Set<Connection> connections=Collections.newSetFromMap(new ConcurrentHashMap<Connection,Boolean>());
+
+    protected final AtomicLong    num_connections_accepted=new AtomicLong(), num_requests=new AtomicLong(),
+                                  num_gets=new AtomicLong(), num_multi_gets=new AtomicLong(),
+                                  num_batches=new AtomicLong(), num_bytes_written=new AtomicLong();
+
+    protected static final Log     log=LogFactory.getLog(NioMemcachedConnector.class);
+    protected static final Charset CHARSET=Charset.forName("ISO-8859-1");
+    protected static final int     MAX_LINE=2048;
+    protected static final int     MAX_BATCH=100; // max number of requests processed before checking max_pending_bytes
+    protected static final String  VERSION="JGroups-NioMemcachedConnector-1.0";
+
+    // binary protocol
+    protected static final byte  REQ_MAGIC=(byte)0x80, RSP_MAGIC=(byte)0x81;
+    protected static final int   HEADER_SIZE=24;
+    protected static final byte  GET=0x00, SET=0x01, DELETE=0x04, QUIT=0x07, GETQ=0x09, NOOP=0x0a, VERSION_OP=0x0b,
+                                 GETK=0x0c, GETKQ=0x0d, STAT=0x10, SETQ=0x11, DELETEQ=0x14, QUITQ=0x17;
+    protected static final short OK=0x0000, KEY_NOT_FOUND=0x0001, INVALID_ARGS=0x0004, UNKNOWN_COMMAND=0x0081;
+
+    // text protocol
+    protected static final byte[] STORED="STORED\r\n".getBytes(), DELETED="DELETED\r\n".getBytes(),
+      END="END\r\n".getBytes(), RN="\r\n".getBytes(), ERROR="ERROR\r\n".getBytes();
+
+
+    public NioMemcachedConnector(InetAddress bind_addr, int port, PartitionedHashMap<String,byte[]> cache) {
+        this.bind_addr=bind_addr;
+        this.port=port;
+        this.cache=cache;
+    }
+
+    public InetAddress                        getBindAddress()                 {return bind_addr;}
+    public int                                getPort()                        {return port;}
+    public PartitionedHashMap<String,byte[]>  getCache()                       {return cache;}
+    public void                               setCache(PartitionedHashMap<String,byte[]> cache) {this.cache=cache;}
+    public int                                getNumSelectors()                {return num_selectors;}
+    public NioMemcachedConnector              setNumSelectors(int num)         {this.num_selectors=num; return this;}
+    public int                                getMaxThreads()                  {return max_threads;}
+    public NioMemcachedConnector              setMaxThreads(int max)           {this.max_threads=max; return this;}
+    public Executor                           getThreadPool()                  {return thread_pool;}
+    public NioMemcachedConnector              setThreadPool(Executor pool)     {this.thread_pool=pool; return this;}
+    public long                               getMaxPendingBytes()             {return max_pending_bytes;}
+    public NioMemcachedConnector              setMaxPendingBytes(long max)     {this.max_pending_bytes=max; return this;}
+
+    /** The address the server socket is bound to (the port is the actual port if 0 was passed to the constructor) */
+    public InetSocketAddress getLocalAddress() {
+        return srv_channel != null? (InetSocketAddress)srv_channel.socket().getLocalSocketAddress() : null;
+    }
+
+    @ManagedAttribute(description="Number of open client connections")
+    public int getNumConnections() {return connections.size();}
+
+    @ManagedAttribute(description="Number of accepted client connections")
+    public long getNumConnectionsAccepted() {return num_connections_accepted.get();}
+
+    @ManagedAttribute(description="Number of requests received")
+    public long getNumRequests() {return num_requests.get();}
+
+    @ManagedAttribute(description="Number of keys looked up")
+    public long getNumGets() {return num_gets.get();}
+
+    @ManagedAttribute(description="Number of lookups of multiple keys which were fanned out to the owners in parallel")
+    public long getNumMultiGets() {return num_multi_gets.get();}
+
+    @ManagedAttribute(description="Number of batches of pipelined requests processed")
+    public long getNumBatches() {return num_batches.get();}
+
+    @ManagedAttribute(description="Average number of pipelined requests processed in one go")
+    public double getAverageBatchSize() {
+        long batches=num_batches.get();
+        return batches > 0? num_requests.get() / (double)batches : 0;
+    }
+
+    @ManagedAttribute(description="Number of bytes sent to clients")
+    public long getNumBytesWritten() {return num_bytes_written.get();}
+
+    @ManagedAttribute(description="Number of bytes of responses queued for all clients")
+    public long getNumPendingBytes() {
+        long retval=0;
+        for(Connection conn: connections)
+            retval+=conn.pending_bytes;
+        return retval;
+    }
+
+    @ManagedOperation
+    public void resetStats() {
+        for(AtomicLong num: Arrays.asList(num_connections_accepted, num_requests, num_gets, num_multi_gets,
+                                          num_batches, num_bytes_written))
+            num.set(0);
+    }
+
+    public Map<String,Object> getStats() {
+        Map<String,Object> stats=new LinkedHashMap<String,Object>();
+        stats.put("time", System.currentTimeMillis() / 1000L);
+        stats.put("uptime", (System.currentTimeMillis() - start_time) / 1000L);
+        stats.put("curr_connections", getNumConnections());
+        stats.put("total_connections", getNumConnectionsAccepted());
+        stats.put("cmd_total", getNumRequests());
+        stats.put("cmd_get", getNumGets());
+        stats.put("bytes_written", getNumBytesWritten());
+        return stats;
+    }
+
+
+    @ManagedOperation
+    public void start() throws IOException {
+        if(running)
+            return;
+        if(thread_pool == null) {
+            ThreadPoolExecutor pool=new ThreadPoolExecutor(max_threads, max_threads, idle_time, TimeUnit.MILLISECONDS,
+                                                           new LinkedBlockingQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true);
+            thread_pool=pool;
+        }
+        srv_channel=ServerSocketChannel.open();
+        srv_channel.socket().setReuseAddress(true);
+        srv_channel.socket().bind(new InetSocketAddress(bind_addr, port), 1024);
+        srv_channel.configureBlocking(false);
+        running=true;
+        start_time=System.currentTimeMillis();
+        loops=new EventLoop[Math.max(1, num_selectors)];
+        for(int i=0; i < loops.length; i++)
+            loops[i]=new EventLoop(i);
+        srv_channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for(EventLoop loop: loops)
+            loop.thread.start();
+        if(log.isDebugEnabled())
+            log.debug("listening on " + getLocalAddress() + " with " + loops.length + " selectors");
+    }
+
+    @ManagedOperation
+    public void stop() throws IOException {
+        running=false;
+        close(srv_channel);
+        if(loops != null) {
+            for(EventLoop loop: loops)
+                loop.stop();
+        }
+        for(Connection conn: connections)
+            conn.close();
+        if(thread_pool instanceof ExecutorService)
+            ((ExecutorService)thread_pool).shutdown();
+        thread_pool=null;
+    }
+
+
+    protected void accept() {
+        SocketChannel client;
+        try {
+            while((client=srv_channel.accept()) != null) {
+                try {
+                    client.configureBlocking(false);
+                    client.socket().setTcpNoDelay(true);
+                    num_connections_accepted.incrementAndGet();
+                    EventLoop loop=loops[(next_loop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                    loop.register(new Connection(client, loop));
+                }
+                catch(IOException e) {
+                    close(client);
+                }
+            }
+        }
+        catch(IOException e) {
+            if(running && log.isWarnEnabled())
+                log.warn("failed accepting a connection", e);
+        }
+    }
+
+    protected static void close(java.nio.channels.Channel ch) {
+        try {
+            if(ch != null)
+                ch.close();
+        }
+        catch(IOException e) {
+        }
+    }
+
+    protected static ByteBuffer wrap(String s) {
+        return ByteBuffer.wrap(s.getBytes(CHARSET));
+    }
+
+    /** Creates the header of a binary response, with room for extras_len bytes of extras and the key */
+    protected static ByteBuffer binaryHeader(Request req, short status, byte[] key, int extras_len, int value_len) {
+        int key_len=key != null? key.length : 0;
+        ByteBuffer buf=ByteBuffer.allocate(HEADER_SIZE + extras_len + key_len);
+        buf.put(RSP_MAGIC).put(req.opcode).putShort((short)key_len).put((byte)extras_len).put((byte)0)
+          .putShort(status).putInt(extras_len + key_len + value_len).putInt(req.opaque).putLong(0);
+        for(int i=0; i < extras_len; i++)
+            buf.put((byte)0);
+        if(key != null)
+            buf.put(key);
+        buf.flip();
+        return buf;
+    }
+
+    protected static void addBinaryResponse(List<ByteBuffer> out, Request req, short status, String msg) {
+        byte[] val=msg != null? msg.getBytes(CHARSET) : null;
+        out.add(binaryHeader(req, status, null, 0, val != null? val.length : 0));
+        if(val != null)
+            out.add(ByteBuffer.wrap(val));
+    }
+
+
+
+    protected enum Op {GET, SET, DELETE, NOOP, VERSION, STATS, QUIT, ERROR}
+
+    /** A parsed request of either protocol */
+    protected static class Request {
+        protected Op           op;
+        protected boolean      binary;
+        protected byte         opcode;  // binary: the opcode, echoed in the response
+        protected int          opaque;  // binary: echoed in the response
+        protected boolean      quiet;   // binary quiet command, or text command with noreply
+        protected boolean      with_key;// GETK(Q): the key is returned with the value
+        protected String       key;
+        protected List<String> keys;    // text gets with multiple keys
+        protected byte[]       value;
+        protected long         caching_time;
+        protected String       error;
+        protected short        status=INVALID_ARGS; // binary: the status returned for an error
+
+        protected Request(Op op) {
+            this.op=op;
+        }
+
+        public String toString() {
+            return op + (key != null? ": " + key : keys != null? ": " + keys : "") + (error != null? " (" + error + ")" : "");
+        }
+    }
+
+
+    /** A selector with its own thread. Loop 0 also accepts connections */
+    protected class EventLoop implements Runnable {
+        protected final Selector        selector;
+        protected final Thread          thread;
+        protected final Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>(); // run by the selector thread
+
+        protected EventLoop(int index) throws IOException {
+            selector=Selector.open();
+            thread=new Thread(this, "NioMemcachedConnector-" + index);
+            thread.setDaemon(true);
+        }
+
+        protected void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        protected void register(final Connection conn) {
+            execute(new Runnable() {
+                public void run() {
+                    try {
+                        conn.key=conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                        connections.add(conn);
+                    }
+                    catch(IOException e) {
+                        conn.close();
+                    }
+                }
+            });
+        }
+
+        protected void stop() {
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+            thread.interrupt();
+        }
+
+        public void run() {
+            while(running && selector.isOpen()) {
+                try {
+                    Runnable task;
+                    while((task=tasks.poll()) != null)
+                        task.run();
+                    selector.select();
+                    for(Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        if(!key.isValid())
+                            continue;
+                        if(key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection conn=(Connection)key.attachment();
+                        if(key.isWritable())
+                            conn.writePending();
+                        if(key.isValid() && key.isReadable())
+                            conn.read();
+                    }
+                }
+                catch(ClosedSelectorException closed) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running)
+                        log.error("failure in selector loop", t);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * A client connection. Requests are read and parsed by the selector thread, and processed in order by (at most)
+     * one thread of the pool at a time. Responses are written by the processing thread; if the socket's send buffer
+     * is full, the remaining buffers are written by the selector thread when the socket becomes writable again.
+     * While more than max_pending_bytes are queued, the connection's requests are not read (OP_READ is cleared) and
+     * the requests which have already been read are not processed.
+     */
+    protected class Connection implements Runnable {
+        protected final SocketChannel    channel;
+        protected final EventLoop        loop;
+        protected SelectionKey           key;
+        protected ByteBuffer             in=ByteBuffer.allocate(4096);
+        protected Boolean                binary; // null until the first byte has been received
+        protected int                    needed; // bytes needed to complete the current request
+        protected final Queue<Request>   requests=new ConcurrentLinkedQueue<Request>();
+        protected final AtomicBoolean    processing=new AtomicBoolean(false);
+        protected final Deque<ByteBuffer> pending=new ArrayDeque<ByteBuffer>(); // guarded by this
+        protected volatile long          pending_bytes; // bytes in pending, modified under this
+        protected volatile boolean       reads_suspended; // modified under this
+        protected boolean                close_after_write; // guarded by this
+        protected volatile boolean       closed;
+
+        protected Connection(SocketChannel channel, EventLoop loop) {
+            this.channel=channel;
+            this.loop=loop;
+        }
+
+        /** Called by the selector thread when data is available */
+        protected void read() {
+            try {
+                int num=channel.read(in);
+                if(num < 0) {
+                    close();
+                    return;
+                }
+                in.flip();
+                if(binary == null) {
+                    if(!in.hasRemaining()) {
+                        in.compact();
+                        return;
+                    }
+                    binary=in.get(in.position()) == REQ_MAGIC;
+                }
+                boolean added=false;
+                Request req;
+                while((req=binary? parseBinary() : parseText()) != null) {
+                    requests.add(req);
+                    added=true;
+                    if(req.op == Op.QUIT)
+                        break;
+                }
+                in.compact();
+                if(needed > in.capacity()) {
+                    if(needed > max_request_size)
+                        throw new StreamCorruptedException("request of " + needed + " bytes exceeds max_request_size");
+                    ByteBuffer tmp=ByteBuffer.allocate(Math.max(needed, in.capacity() * 2));
+                    in.flip();
+                    in=tmp.put(in);
+                }
+                if(added && !reads_suspended && processing.compareAndSet(false, true))
+                    thread_pool.execute(this);
+            }
+            catch(Throwable t) {
+                if(log.isTraceEnabled())
+                    log.trace("closing connection to " + channel.socket().getRemoteSocketAddress() + ": " + t);
+                close();
+            }
+        }
+
+        /** Returns the next request of the binary protocol, or null if the input buffer doesn't contain it yet */
+        protected Request parseBinary() throws IOException {
+            int pos=in.position();
+            if(in.remaining() < HEADER_SIZE) {
+                needed=HEADER_SIZE;
+                return null;
+            }
+            if(in.get(pos) != REQ_MAGIC)
+                throw new StreamCorruptedException("invalid magic byte " + in.get(pos));
+            byte opcode=in.get(pos+1);
+            int key_len=in.getShort(pos+2) & 0xffff, extras_len=in.get(pos+4) & 0xff, body_len=in.getInt(pos+8);
+            if(body_len < 0 || body_len < key_len + extras_len)
+                throw new StreamCorruptedException("invalid body length " + body_len);
+            needed=HEADER_SIZE + body_len;
+            if(needed > max_request_size)
+                throw new StreamCorruptedException("request of " + needed + " bytes exceeds max_request_size");
+            if(in.remaining() < needed)
+                return null;
+
+            Request req=new Request(Op.ERROR);
+            req.binary=true;
+            req.opcode=opcode;
+            req.opaque=in.getInt(pos+12);
+            in.position(pos + HEADER_SIZE);
+            int expiration=extras_len >= 8? in.getInt(in.position() + 4) : 0;
+            in.position(in.position() + extras_len);
+            byte[] key=new byte[key_len];
+            in.get(key);
+            req.key=key_len > 0? new String(key, CHARSET) : null;
+            req.value=new byte[body_len - key_len - extras_len];
+            in.get(req.value);
+            needed=0;
+
+            switch(opcode) {
+                case GET: case GETQ: case GETK: case GETKQ:
+                    req.op=key_len > 0? Op.GET : Op.ERROR;
+                    req.quiet=opcode == GETQ || opcode == GETKQ;
+                    req.with_key=opcode == GETK || opcode == GETKQ;
+                    break;
+                case SET: case SETQ:
+                    req.op=key_len > 0 && extras_len == 8? Op.SET : Op.ERROR;
+                    req.quiet=opcode == SETQ;
+                    req.caching_time=expiration * 1000L;
+                    break;
+                case DELETE: case DELETEQ:
+                    req.op=key_len > 0? Op.DELETE : Op.ERROR;
+                    req.quiet=opcode == DELETEQ;
+                    break;
+                case NOOP:       req.op=Op.NOOP;    break;
+                case VERSION_OP: req.op=Op.VERSION; break;
+                case STAT:       req.op=Op.STATS;   break;
+                case QUIT: case QUITQ:
+                    req.op=Op.QUIT;
+                    req.quiet=opcode == QUITQ;
+                    break;
+                default:
+                    req.error="unknown command " + opcode;
+                    req.status=UNKNOWN_COMMAND;
+                    break;
+            }
+            if(req.op == Op.ERROR && req.error == null)
+                req.error="invalid arguments";
+            return req;
+        }
+
+        /** Returns the next request of the text protocol, or null if the input buffer doesn't contain it yet */
+        protected Request parseText() throws IOException {
+            int start=in.position(), end=-1;
+            for(int i=start; i < in.limit(); i++) {
+                if(in.get(i) == '\n') {
+                    end=i;
+                    break;
+                }
+            }
+            if(end < 0) {
+                if(in.remaining() >= MAX_LINE)
+                    throw new StreamCorruptedException("line too long");
+                needed=in.remaining() + 1;
+                return null;
+            }
+            byte[] tmp=new byte[end - start];
+            in.get(tmp);
+            String line=new String(tmp, CHARSET).trim();
+            String[] args=line.split(" +");
+            String cmd=args[0];
+            Request req;
+
+            if(cmd.equals("set") || cmd.equals("add") || cmd.equals("replace") || cmd.equals("append")
+              || cmd.equals("prepend") || cmd.equals("cas")) {
+                if(args.length < 5)
+                    return consumeLine(end, error("CLIENT_ERROR bad command line format"));
+                int num_bytes;
+                try {
+                    num_bytes=Integer.parseInt(args[4]);
+                }
+                catch(NumberFormatException e) {
+                    return consumeLine(end, error("CLIENT_ERROR bad command line format"));
+                }
+                needed=end + 1 - start + num_bytes + 2;
+                if(num_bytes < 0 || needed > max_request_size)
+                    throw new StreamCorruptedException("invalid data length " + num_bytes);
+                if(in.limit() - start < needed) {
+                    in.position(start);
+                    return null;
+                }
+                needed=0;
+                in.position(end + 1);
+                if(!cmd.equals("set")) {
+                    in.position(in.position() + num_bytes + 2);
+                    return error("SERVER_ERROR " + cmd + " is not supported");
+                }
+                req=new Request(Op.SET);
+                req.key=args[1];
+                try {
+                    req.caching_time=Long.parseLong(args[3]) * 1000L;
+                }
+                catch(NumberFormatException e) {
+                    in.position(in.position() + num_bytes + 2);
+                    return error("CLIENT_ERROR bad command line format");
+                }
+                req.value=new byte[num_bytes];
+                in.get(req.value);
+                in.position(in.position() + 2); // \r\n
+                req.quiet=args.length > 5 && args[5].equals("noreply");
+                return req;
+            }
+
+            in.position(end + 1);
+            needed=0;
+            if(cmd.equals("get") || cmd.equals("gets")) {
+                if(args.length < 2)
+                    return error("ERROR");
+                req=new Request(Op.GET);
+                if(args.length == 2)
+                    req.key=args[1];
+                else
+                    req.keys=Arrays.asList(args).subList(1, args.length);
+                return req;
+            }
+            if(cmd.equals("delete")) {
+                if(args.length < 2)
+                    return error("ERROR");
+                req=new Request(Op.DELETE);
+                req.key=args[1];
+                req.quiet=args[args.length-1].equals("noreply");
+                return req;
+            }
+            if(cmd.equals("stats"))
+                return new Request(Op.STATS);
+            if(cmd.equals("version"))
+                return new Request(Op.VERSION);
+            if(cmd.equals("quit"))
+                return new Request(Op.QUIT);
+            return error("ERROR");
+        }
+
+        protected Request consumeLine(int end, Request req) {
+            in.position(end + 1);
+            needed=0;
+            return req;
+        }
+
+        protected Request error(String msg) {
+            Request req=new Request(Op.ERROR);
+            req.error=msg;
+            return req;
+        }
+
+
+        /** Processes all queued requests, run by a thread of the pool */
+        public void run() {
+            do {
+                try {
+                    List<Request> batch=new ArrayList<Request>();
+                    Request req;
+                    while(batch.size() < MAX_BATCH && (req=requests.poll()) != null)
+                        batch.add(req);
+                    if(!batch.isEmpty())
+                        process(batch);
+                }
+                catch(Throwable t) {
+                    log.error("failed processing requests", t);
+                    close();
+                }
+                finally {
+                    processing.set(false);
+                }
+            }
+            while(!closed && !requests.isEmpty() && !reads_suspended && processing.compareAndSet(false, true));
+        }
+
+        protected void process(List<Request> batch) throws IOException {
+            num_requests.addAndGet(batch.size());
+            num_batches.incrementAndGet();
+            List<ByteBuffer> out=new ArrayList<ByteBuffer>(batch.size() * 2);
+            boolean quit=false;
+            for(int i=0; i < batch.size() && !quit;) {
+                Request req=batch.get(i);
+                if(req.op == Op.GET) {
+                    // all consecutive gets are looked up in one go
+                    int end=i;
+                    while(end < batch.size() && batch.get(end).op == Op.GET)
+                        end++;
+                    handleGets(batch.subList(i, end), out);
+                    i=end;
+                    continue;
+                }
+                switch(req.op) {
+                    case SET:
+                        cache.put(req.key, req.value, req.caching_time);
+                        if(!req.quiet) {
+                            if(req.binary)
+                                out.add(binaryHeader(req, OK, null, 0, 0));
+                            else
+                                out.add(ByteBuffer.wrap(STORED));
+                        }
+                        break;
+                    case DELETE:
+                        cache.remove(req.key);
+                        if(!req.quiet) {
+                            if(req.binary)
+                                out.add(binaryHeader(req, OK, null, 0, 0));
+                            else
+                                out.add(ByteBuffer.wrap(DELETED));
+                        }
+                        break;
+                    case NOOP:
+                        out.add(binaryHeader(req, OK, null, 0, 0));
+                        break;
+                    case VERSION:
+                        if(req.binary)
+                            addBinaryResponse(out, req, OK, VERSION);
+                        else
+                            out.add(wrap("VERSION " + VERSION + "\r\n"));
+                        break;
+                    case STATS:
+                        writeStats(req, out);
+                        break;
+                    case QUIT:
+                        if(req.binary && !req.quiet)
+                            out.add(binaryHeader(req, OK, null, 0, 0));
+                        quit=true;
+                        break;
+                    case ERROR:
+                        if(req.binary)
+                            addBinaryResponse(out, req, req.status, req.error);
+                        else
+                            out.add(req.error.equals("ERROR")? ByteBuffer.wrap(ERROR) : wrap(req.error + "\r\n"));
+                        break;
+                }
+                i++;
+            }
+            write(out, quit);
+        }
+
+        protected void handleGets(List<Request> gets, List<ByteBuffer> out) {
+            Set<String> keys=new LinkedHashSet<String>();
+            for(Request req: gets) {
+                if(req.key != null)
+                    keys.add(req.key);
+                else
+                    keys.addAll(req.keys);
+            }
+            num_gets.addAndGet(keys.size());
+            Map<String,byte[]> values;
+            if(keys.size() == 1) {
+                String key=keys.iterator().next();
+                byte[] val=cache.get(key);
+                values=val != null? Collections.singletonMap(key, val) : Collections.<String,byte[]>emptyMap();
+            }
+            else {
+                num_multi_gets.incrementAndGet();
+                values=cache.getAll(keys);
+            }
+
+            for(Request req: gets) {
+                if(req.binary) {
+                    byte[] val=values.get(req.key);
+                    if(val != null) {
+                        byte[] key=req.with_key? req.key.getBytes(CHARSET) : null;
+                        out.add(binaryHeader(req, OK, key, 4, val.length));
+                        out.add(ByteBuffer.wrap(val));
+                    }
+                    else if(!req.quiet)
+                        addBinaryResponse(out, req, KEY_NOT_FOUND, "Not found");
+                    continue;
+                }
+                for(String key: req.key != null? Collections.singletonList(req.key) : req.keys) {
+                    byte[] val=values.get(key);
+                    if(val != null) {
+                        out.add(wrap("VALUE " + key + " 0 " + val.length + "\r\n"));
+                        out.add(ByteBuffer.wrap(val));
+                        out.add(ByteBuffer.wrap(RN));
+                    }
+                }
+                out.add(ByteBuffer.wrap(END));
+            }
+        }
+
+        protected void writeStats(Request req, List<ByteBuffer> out) {
+            for(Map.Entry<String,Object> entry: getStats().entrySet()) {
+                if(req.binary) {
+                    byte[] key=entry.getKey().getBytes(CHARSET), val=String.valueOf(entry.getValue()).getBytes(CHARSET);
+                    out.add(binaryHeader(req, OK, key, 0, val.length));
+                    out.add(ByteBuffer.wrap(val));
+                }
+                else
+                    out.add(wrap("STAT " + entry.getKey() + " " + entry.getValue() + "\r\n"));
+            }
+            out.add(req.binary? binaryHeader(req, OK, null, 0, 0) : ByteBuffer.wrap(END));
+        }
+
+        /**
+         * Writes the buffers with gathering writes. Buffers which cannot be written because the socket's send buffer
+         * is full are written by the selector thread when the socket becomes writable
+         */
+        protected void write(List<ByteBuffer> out, boolean close_when_done) throws IOException {
+            boolean update=false;
+            synchronized(this) {
+                if(closed)
+                    return;
+                close_after_write|=close_when_done;
+                if(pending.isEmpty() && !out.isEmpty()) {
+                    ByteBuffer[] bufs=out.toArray(new ByteBuffer[out.size()]);
+                    writeBuffers(bufs);
+                    for(ByteBuffer buf: bufs)
+                        if(buf.hasRemaining())
+                            addPending(buf);
+                    update=!pending.isEmpty();
+                }
+                else
+                    for(ByteBuffer buf: out) // the selector thread writes them after the previously pending buffers
+                        addPending(buf);
+                if(pending.isEmpty() && close_after_write) {
+                    close();
+                    return;
+                }
+                if(!reads_suspended && pending_bytes > max_pending_bytes)
+                    update=reads_suspended=true;
+            }
+            if(update)
+                loop.execute(new Runnable() {
+                    public void run() {
+                        updateInterestOps();
+                    }
+                });
+        }
+
+        protected void addPending(ByteBuffer buf) {
+            pending.add(buf);
+            pending_bytes+=buf.remaining();
+        }
+
+        /** Sets OP_READ unless reads are suspended and OP_WRITE if buffers are pending. Called by the selector thread */
+        protected synchronized void updateInterestOps() {
+            if(key == null || !key.isValid())
+                return;
+            int ops=reads_suspended? 0 : SelectionKey.OP_READ;
+            if(!pending.isEmpty())
+                ops|=SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+
+        /** Called by the selector thread when the socket is writable */
+        protected void writePending() {
+            try {
+                synchronized(this) {
+                    pending_bytes-=writeBuffers(pending.toArray(new ByteBuffer[pending.size()]));
+                    while(!pending.isEmpty() && !pending.peekFirst().hasRemaining())
+                        pending.removeFirst();
+                    if(reads_suspended && pending_bytes <= max_pending_bytes / 2) {
+                        reads_suspended=false; // resume reading and processing requests
+                        if(!requests.isEmpty() && processing.compareAndSet(false, true))
+                            thread_pool.execute(this);
+                    }
+                    updateInterestOps();
+                    if(pending.isEmpty() && close_after_write)
+                        close();
+                }
+            }
+            catch(IOException e) {
+                close();
+            }
+        }
+
+        /** Writes bufs until the socket doesn't accept more data, and returns the number of bytes written */
+        protected long writeBuffers(ByteBuffer[] bufs) throws IOException {
+            int index=0;
+            long total=0;
+            while(index < bufs.length) {
+                long written=channel.write(bufs, index, bufs.length - index);
+                if(written < 0)
+                    throw new EOFException();
+                total+=written;
+                while(index < bufs.length && !bufs[index].hasRemaining())
+                    index++;
+                if(written == 0)
+                    break;
+            }
+            num_bytes_written.addAndGet(total);
+            return total;
+        }
+
+        protected void close() {
+            if(closed)
+                return;
+            closed=true;
+            connections.remove(this);
+            if(key != null)
+                key.cancel();
+            NioMemcachedConnector.close(channel);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * {@link ConcurrentMap} which keeps its keys on the heap, but its values serialized outside of the heap, in arenas of
+ * direct memory or of memory-mapped files. Values are deserialized on every read, so a read returns a copy.<p/>
+ * This keeps large data sets out of the way of the garbage collector, e.g. as the map of a {@link ReplicatedHashMap}
+ * ({@link ReplicatedHashMap#ReplicatedHashMap(ConcurrentMap, org.jgroups.Channel)}) or of the L2 cache of a
+ * {@link ReplCache} ({@link ReplCache#enableOffHeapStorage(int, File)}).<p/>
+ * The arenas are carved into blocks whose size is a power of 2. A freed block is added to the free list of its size
+ * and reused by the next value of that size. Arenas are never released, except by {@link #destroy()}.<p/>
+ * {@link #writeTo(DataOutput)} and {@link #readFrom(DataInput)} copy the serialized values between arena and stream
+ * without deserializing them, which is used for state transfer.
+ * @since 3.5
+ */
+@Experimental
+public class OffHeapMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+    public static final int     DEFAULT_ARENA_SIZE=64 * 1024 * 1024;
+    protected static final int  MIN_BLOCK_SIZE=16;
+
+    /** Key -> address of the block with the serialized value (index of the arena << 32 | offset in arena) */
+    protected final ConcurrentMap<K,Long>       index=Util.createConcurrentMap();
+    protected final List<ByteBuffer>            arenas=new ArrayList<ByteBuffer>();
+    protected final List<RandomAccessFile>      files=new ArrayList<RandomAccessFile>();
+    protected final List<File>                  paths=new ArrayList<File>();
+    protected final LongStack[]                 free_lists=new LongStack[32];
+    protected final int                         arena_size;
+    protected final File                        dir; // if non-null, the arenas are memory-mapped files in dir
+    protected final RpcDispatcher.Marshaller    marshaller;
+    protected final ReadWriteLock               lock=new ReentrantReadWriteLock();
+    protected int                               current=-1;   // the arena from which new blocks are carved
+    protected long                              used_bytes;   // size of the blocks in use
+
+
+    /** Creates a map whose values are stored in direct memory */
+    public OffHeapMap() {
+        this(DEFAULT_ARENA_SIZE, null, null);
+    }
+
+    /**
+     * Creates a new map
+     * @param arena_size The size of an arena. Values larger than this get an arena of their own
+     * @param dir The directory for the memory-mapped files. If null, direct memory is used
+     * @param marshaller Serializes the values. If null, {@link Util#objectToByteBuffer(Object)} is used
+     */
+    public OffHeapMap(int arena_size, File dir, RpcDispatcher.Marshaller marshaller) {
+        if(arena_size < MIN_BLOCK_SIZE)
+            throw new IllegalArgumentException("arena_size (" + arena_size + ") has to be >= " + MIN_BLOCK_SIZE);
+        this.arena_size=arena_size;
+        this.dir=dir;
+        this.marshaller=marshaller;
+        for(int i=0; i < free_lists.length; i++)
+            free_lists[i]=new LongStack();
+    }
+
+    /** Returns the marshaller of the values, or null if they are serialized with {@link Util#objectToByteBuffer(Object)} */
+    public RpcDispatcher.Marshaller getMarshaller() {
+        return marshaller;
+    }
+
+    @ManagedAttribute(description="Number of arenas")
+    public int getNumberOfArenas() {
+        lock.readLock().lock();
+        try {
+            return arenas.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @ManagedAttribute(description="Bytes allocated by all arenas")
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            long retval=0;
+            for(ByteBuffer arena: arenas)
+                retval+=arena.capacity();
+            return retval;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @ManagedAttribute(description="Bytes of the blocks holding values")
+    public long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return used_bytes;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    public V get(Object key) {
+        return deserialize(getRaw(key));
+    }
+
+    /** Returns the serialized value of key, or null if key is not present */
+    public byte[] getRaw(Object key) {
+        lock.readLock().lock();
+        try {
+            Long addr=index.get(key);
+            return addr != null? read(addr) : null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public V put(K key, V value) {
+        Buffer buf=serialize(value);
+        return deserialize(putRaw(key, buf.getBuf(), buf.getOffset(), buf.getLength()));
+    }
+
+    /** Adds the serialized value of key. Returns the previous serialized value, or null */
+    public byte[] putRaw(K key, byte[] buf, int offset, int length) {
+        lock.writeLock().lock();
+        try {
+            long addr=write(buf, offset, length);
+            Long old=index.put(key, addr);
+            return old != null? free(old) : null;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public V putIfAbsent(K key, V value) {
+        Buffer buf=serialize(value);
+        byte[] existing;
+        lock.writeLock().lock();
+        try {
+            Long addr=index.get(key);
+            if(addr != null)
+                existing=read(addr);
+            else {
+                index.put(key, write(buf.getBuf(), buf.getOffset(), buf.getLength()));
+                return null;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        return deserialize(existing);
+    }
+
+    public V remove(Object key) {
+        byte[] old;
+        lock.writeLock().lock();
+        try {
+            Long addr=index.remove(key);
+            if(addr == null)
+                return null;
+            old=free(addr);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        return deserialize(old);
+    }
+
+    public boolean remove(Object key, Object value) {
+        lock.writeLock().lock();
+        try {
+            Long addr=index.get(key);
+            if(addr == null || !equal(deserialize(read(addr)), value))
+                return false;
+            index.remove(key);
+            free(addr);
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean replace(K key, V old_value, V new_value) {
+        Buffer buf=serialize(new_value);
+        lock.writeLock().lock();
+        try {
+            Long addr=index.get(key);
+            if(addr == null || !equal(deserialize(read(addr)), old_value))
+                return false;
+            index.put(key, write(buf.getBuf(), buf.getOffset(), buf.getLength()));
+            free(addr);
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public V replace(K key, V value) {
+        Buffer buf=serialize(value);
+        byte[] old;
+        lock.writeLock().lock();
+        try {
+            Long addr=index.get(key);
+            if(addr == null)
+                return null;
+            index.put(key, write(buf.getBuf(), buf.getOffset(), buf.getLength()));
+            old=free(addr);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        return deserialize(old);
+    }
+
+    /** Removes all entries. The arenas are kept and reused */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            for(LongStack free_list: free_lists)
+                free_list.clear();
+            for(ByteBuffer arena: arenas)
+                arena.clear();
+            current=arenas.isEmpty()? -1 : 0;
+            used_bytes=0;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Removes all entries and releases the arenas. Memory-mapped files are closed and deleted */
+    public void destroy() {
+        lock.writeLock().lock();
+        try {
+            clear();
+            arenas.clear();
+            current=-1;
+            for(RandomAccessFile file: files)
+                close(file);
+            files.clear();
+            for(File path: paths)
+                path.delete();
+            paths.clear();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Returns a view whose values are deserialized when accessed */
+    public Set<Map.Entry<K,V>> entrySet() {
+        return new AbstractSet<Map.Entry<K,V>>() {
+            public Iterator<Map.Entry<K,V>> iterator() {
+                final Iterator<K> it=index.keySet().iterator();
+                return new Iterator<Map.Entry<K,V>>() {
+                    K last;
+                    public boolean hasNext() {return it.hasNext();}
+
+                    public Map.Entry<K,V> next() {
+                        final K key=last=it.next();
+                        return new Map.Entry<K,V>() {
+                            public K getKey()              {return key;}
+                            public V getValue()            {return get(key);}
+                            public V setValue(V value)     {return put(key, value);}
+                            public String toString()       {return key + "=" + getValue();}
+                        };
+                    }
+
+                    public void remove() {
+                        if(last == null)
+                            throw new IllegalStateException();
+                        OffHeapMap.this.remove(last);
+                        last=null;
+                    }
+                };
+            }
+
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Writes all entries to out: for every entry, a boolean (true), the key and the length and bytes of the
+     * serialized value, followed by a final false. The values are copied from the arenas without deserializing them
+     */
+    public void writeTo(DataOutput out) throws Exception {
+        byte[] buf=new byte[1024];
+        for(K key: index.keySet()) {
+            int length;
+            lock.readLock().lock();
+            try {
+                Long addr=index.get(key);
+                if(addr == null) // removed in the meantime
+                    continue;
+                ByteBuffer arena=arena(addr);
+                int offset=offset(addr);
+                length=arena.getInt(offset);
+                if(length > buf.length)
+                    buf=new byte[Math.max(length, buf.length * 2)];
+                read(arena, offset + Global.INT_SIZE, buf, length);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            out.writeBoolean(true);
+            Util.objectToStream(key, out);
+            out.writeInt(length);
+            out.write(buf, 0, length);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Reads the entries written by {@link #writeTo(DataOutput)} and copies the serialized values directly into
+     * the arenas. Returns the number of entries read
+     */
+    @SuppressWarnings("unchecked")
+    public int readFrom(DataInput in) throws Exception {
+        byte[] buf=new byte[1024];
+        int count=0;
+        while(in.readBoolean()) {
+            K key=(K)Util.objectFromStream(in);
+            int length=in.readInt();
+            if(length > buf.length)
+                buf=new byte[Math.max(length, buf.length * 2)];
+            in.readFully(buf, 0, length);
+            putRaw(key, buf, 0, length);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the entries written by {@link #writeTo(DataOutput)} into a regular map, deserializing the values with
+     * marshaller (or {@link Util#objectFromByteBuffer(byte[])} if null)
+     */
+    @SuppressWarnings("unchecked")
+    public static <K,V> Map<K,V> readEntries(DataInput in, RpcDispatcher.Marshaller marshaller) throws Exception {
+        Map<K,V> retval=new HashMap<K,V>();
+        while(in.readBoolean()) {
+            K key=(K)Util.objectFromStream(in);
+            byte[] buf=new byte[in.readInt()];
+            in.readFully(buf);
+            retval.put(key, (V)(marshaller != null? marshaller.objectFromBuffer(buf, 0, buf.length)
+              : Util.objectFromByteBuffer(buf)));
+        }
+        return retval;
+    }
+
+    public String toString() {
+        return size() + " entries, " + getNumberOfArenas() + " arenas, " + Util.printBytes(getUsedBytes()) + " used";
+    }
+
+
+    protected Buffer serialize(V value) {
+        try {
+            return marshaller != null? marshaller.objectToBuffer(value) : new Buffer(Util.objectToByteBuffer(value));
+        }
+        catch(Exception ex) {
+            throw new IllegalArgumentException("failed serializing " + value, ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected V deserialize(byte[] buf) {
+        if(buf == null)
+            return null;
+        try {
+            return (V)(marshaller != null? marshaller.objectFromBuffer(buf, 0, buf.length) : Util.objectFromByteBuffer(buf));
+        }
+        catch(Exception ex) {
+            throw new IllegalStateException("failed deserializing value", ex);
+        }
+    }
+
+    protected static boolean equal(Object a, Object b) {
+        return a == null? b == null : a.equals(b);
+    }
+
+    protected static void close(RandomAccessFile file) {
+        if(file != null) {
+            try {file.close();} catch(IOException ignored) {}
+        }
+    }
+
+    protected ByteBuffer arena(long addr) {
+        return arenas.get((int)(addr >>> 32));
+    }
+
+    protected static int offset(long addr) {
+        return (int)addr;
+    }
+
+    protected static int blockSize(int length) {
+        return Math.max(MIN_BLOCK_SIZE, Util.getNextHigherPowerOfTwo(length + Global.INT_SIZE));
+    }
+
+    /** Reads the value at addr. Needs to be called with the read or write lock held */
+    protected byte[] read(long addr) {
+        ByteBuffer arena=arena(addr);
+        int offset=offset(addr), length=arena.getInt(offset);
+        byte[] retval=new byte[length];
+        read(arena, offset + Global.INT_SIZE, retval, length);
+        return retval;
+    }
+
+    protected static void read(ByteBuffer arena, int offset, byte[] buf, int length) {
+        ByteBuffer tmp=arena.duplicate(); // concurrent readers must not change the position of the arena
+        tmp.position(offset);
+        tmp.get(buf, 0, length);
+    }
+
+    /** Allocates a block and copies the value into it. Needs to be called with the write lock held */
+    protected long write(byte[] buf, int offset, int length) {
+        long addr=allocate(blockSize(length));
+        ByteBuffer arena=arena(addr);
+        int off=offset(addr);
+        arena.putInt(off, length);
+        ByteBuffer tmp=arena.duplicate();
+        tmp.position(off + Global.INT_SIZE);
+        tmp.put(buf, offset, length);
+        return addr;
+    }
+
+    /** Frees the block at addr and returns its value. Needs to be called with the write lock held */
+    protected byte[] free(long addr) {
+        byte[] retval=read(addr);
+        int block_size=blockSize(retval.length);
+        free_lists[Integer.numberOfTrailingZeros(block_size)].push(addr);
+        used_bytes-=block_size;
+        return retval;
+    }
+
+    protected long allocate(int block_size) {
+        used_bytes+=block_size;
+        LongStack free_list=free_lists[Integer.numberOfTrailingZeros(block_size)];
+        if(!free_list.isEmpty())
+            return free_list.pop();
+
+        ByteBuffer arena=current >= 0? arenas.get(current) : null;
+        if(arena == null || arena.remaining() < block_size) {
+            if(arena != null)
+                addToFreeLists(current, arena);
+            current=findArena(block_size);
+            arena=arenas.get(current);
+        }
+        int offset=arena.position();
+        arena.position(offset + block_size);
+        return (long)current << 32 | offset;
+    }
+
+    /** Returns the index of the next arena which has block_size bytes left, creating a new arena if needed */
+    protected int findArena(int block_size) {
+        for(int i=current + 1; i < arenas.size(); i++) { // arenas reused after clear()
+            if(arenas.get(i).remaining() >= block_size)
+                return i;
+        }
+        arenas.add(createArena(Math.max(arena_size, block_size)));
+        return arenas.size() - 1;
+    }
+
+    /** Carves the remaining space of an arena into blocks and adds them to the free lists */
+    protected void addToFreeLists(int arena_index, ByteBuffer arena) {
+        while(arena.remaining() >= MIN_BLOCK_SIZE) {
+            int block_size=Integer.highestOneBit(arena.remaining()), offset=arena.position();
+            free_lists[Integer.numberOfTrailingZeros(block_size)].push((long)arena_index << 32 | offset);
+            arena.position(offset + block_size);
+        }
+    }
+
+    protected ByteBuffer createArena(int size) {
+        if(dir == null)
+            return ByteBuffer.allocateDirect(size);
+        RandomAccessFile file=null;
+        try {
+            File tmp=File.createTempFile("jgroups-arena-", ".dat", dir);
+            tmp.deleteOnExit();
+            file=new RandomAccessFile(tmp, "rw");
+            file.setLength(size);
+            ByteBuffer retval=file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            files.add(file);
+            paths.add(tmp);
+            return retval;
+        }
+        catch(IOException ex) {
+            close(file);
+            throw new IllegalStateException("failed creating memory-mapped arena in " + dir, ex);
+        }
+    }
+
+
+    /** Growable stack of longs, to avoid boxing the addresses of free blocks */
+    protected static class LongStack {
+        protected long[] elements=new long[16];
+        protected int    size;
+
+        protected void push(long element) {
+            if(size == elements.length)
+                elements=Arrays.copyOf(elements, size * 2);
+            elements[size++]=element;
+        }
+
+        protected long    pop()     {return elements[--size];}
+        protected boolean isEmpty() {return size == 0;}
+        protected void    clear()   {size=0;}
+    }
+}
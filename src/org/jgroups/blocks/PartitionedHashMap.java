@@ -19,6 +19,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /** Hashmap which distributes its keys and values across the cluster. A PUT/GET/REMOVE computes the cluster node to which
  * or from which to get/set the key/value from a hash of the key and then forwards the request to the remote cluster node.
@@ -27,7 +29,6 @@ import java.util.*;
  * <ol>
  * <li>Use MarshalledValue to keep track of byte[] buffers, and be able to compute the exact size of the cache. This is
  *     good for maintaining a bounded cache (rather than using the number of entries)
- * <li>Provide a better consistent hashing algorithm than ConsistentHashFunction as default
  * <li>GUI (showing at least the topology and L1 and L2 caches)
  * <li>Notifications (puts, removes, gets etc)
  * <li>Invalidation of L1 caches (if used) on removal/put of item
@@ -70,6 +71,7 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     private static final short PUT     = 1;
     private static final short GET     = 2;
     private static final short REMOVE  = 3;
+    private static final short GET_MANY= 4;
 
     protected static final Map<Short,Method> methods=Util.createConcurrentMap(8);
 
@@ -82,6 +84,7 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             methods.put(GET, PartitionedHashMap.class.getMethod("_get",
                                                                Object.class));
             methods.put(REMOVE, PartitionedHashMap.class.getMethod("_remove", Object.class));
+            methods.put(GET_MANY, PartitionedHashMap.class.getMethod("_getMany", Collection.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -208,8 +211,10 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
 
     @ManagedOperation
     public void start() throws Exception {
-        hash_function=new ConsistentHashFunction<K>();
-        addMembershipListener((MembershipListener)hash_function);
+        if(hash_function == null)
+            hash_function=new ConsistentHashRing<K>();
+        if(hash_function instanceof MembershipListener)
+            addMembershipListener((MembershipListener)hash_function);
         ch=new JChannel(props);
         disp=new RpcDispatcher(ch, null, this, this);
         RpcDispatcher.Marshaller marshaller=new CustomMarshaller();
@@ -314,6 +319,64 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         }
     }
 
+    /**
+     * Returns the values of keys. Keys which are not in the L1 cache are grouped by owner, and every owner is asked
+     * for all of its keys in a single RPC. The RPCs to the different owners are sent in parallel.
+     * @param keys The keys
+     * @return A map of the keys which have a value, and their values
+     */
+    public Map<K,V> getAll(Collection<K> keys) {
+        Map<K,V> retval=new HashMap<K,V>(keys.size());
+        Map<Address,List<K>> keys_per_owner=new HashMap<Address,List<K>>();
+        List<K> local_keys=null;
+        for(K key: keys) {
+            if(l1_cache != null) {
+                V val=l1_cache.get(key);
+                if(val != null) {
+                    retval.put(key, val);
+                    continue;
+                }
+            }
+            Address dest_node=getNode(key);
+            if(dest_node.equals(local_addr)) {
+                if(local_keys == null)
+                    local_keys=new ArrayList<K>();
+                local_keys.add(key);
+                continue;
+            }
+            List<K> tmp=keys_per_owner.get(dest_node);
+            if(tmp == null)
+                keys_per_owner.put(dest_node, tmp=new ArrayList<K>());
+            tmp.add(key);
+        }
+
+        // send all requests first and only then wait for the responses
+        List<Future<Map<K,Cache.Value<V>>>> futures=new ArrayList<Future<Map<K,Cache.Value<V>>>>(keys_per_owner.size());
+        for(Map.Entry<Address,List<K>> entry: keys_per_owner.entrySet()) {
+            try {
+                futures.add(disp.<Map<K,Cache.Value<V>>>callRemoteMethodWithFuture(entry.getKey(),
+                                                                                 new MethodCall(GET_MANY, entry.getValue()),
+                                                                                 new RequestOptions(ResponseMode.GET_FIRST, call_timeout)));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("getAll() from " + entry.getKey() + " failed", t);
+            }
+        }
+        if(local_keys != null)
+            addAll(retval, _getMany(local_keys));
+        for(Future<Map<K,Cache.Value<V>>> future: futures) {
+            try {
+                addAll(retval, future.get(call_timeout, TimeUnit.MILLISECONDS));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("getAll() failed", t);
+            }
+        }
+        return retval;
+    }
+
     @ManagedOperation
     public void remove(K key) {
         Address dest_node=getNode(key);
@@ -347,6 +410,18 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         return l2_cache.getEntry(key);
     }
 
+    public Map<K,Cache.Value<V>> _getMany(Collection<K> keys) {
+        if(log.isTraceEnabled())
+            log.trace("_getMany(): " + keys.size() + " keys");
+        Map<K,Cache.Value<V>> retval=new HashMap<K,Cache.Value<V>>(keys.size());
+        for(K key: keys) {
+            Cache.Value<V> val=l2_cache.getEntry(key);
+            if(val != null)
+                retval.put(key, val);
+        }
+        return retval;
+    }
+
     public V _remove(K key) {
         if(log.isTraceEnabled())
             log.trace("_remove(" + key + ")");
@@ -425,6 +500,20 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         }
     }
 
+    private void addAll(Map<K,V> retval, Map<K,Cache.Value<V>> values) {
+        if(values == null)
+            return;
+        for(Map.Entry<K,Cache.Value<V>> entry: values.entrySet()) {
+            Cache.Value<V> val=entry.getValue();
+            V real_value=val != null? val.getValue() : null;
+            if(real_value == null)
+                continue;
+            retval.put(entry.getKey(), real_value);
+            if(l1_cache != null && val.getTimeout() >= 0)
+                l1_cache.put(entry.getKey(), real_value, val.getTimeout());
+        }
+    }
+
     private Address getNode(K key) {
         return hash_function.hash(key, null);
     }
@@ -15,6 +15,8 @@ import org.jgroups.util.*;
 import java.io.*;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 
@@ -55,7 +57,7 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
 
     private HashFunctionFactory<K> hash_function_factory=new HashFunctionFactory<K>() {
         public HashFunction<K> create() {
-            return new ConsistentHashFunction<K>();
+            return new ConsistentHashRing<K>();
         }
     };
 
@@ -69,11 +71,21 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     @ManagedAttribute(writable=true)
     private boolean migrate_data=true;
 
+    /** If true, a GET for a key which is not in the local caches is sent to all nodes, otherwise it is only sent to
+     * the owners of the key (computed with the hash function and the default replication count). Only set this to
+     * false if all keys are stored with the default replication count and migrate_data is true, or else keys stored
+     * on other members will not be found */
+    @ManagedAttribute(writable=true)
+    private boolean broadcast_gets=true;
+
     private static final short PUT         = 1;
     private static final short PUT_FORCE   = 2;
     private static final short GET         = 3;
     private static final short REMOVE      = 4;
     private static final short REMOVE_MANY = 5;
+    private static final short GET_MANY    = 6;
+    private static final short PUT_MANY    = 7;
+    private static final short EVICT_MANY  = 8;
 
     protected static final Map<Short, Method> methods=Util.createConcurrentMap(8);
     private TimeScheduler timer;
@@ -97,6 +109,9 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                                                        Object.class));
             methods.put(REMOVE, ReplCache.class.getMethod("_remove", Object.class));
             methods.put(REMOVE_MANY, ReplCache.class.getMethod("_removeMany", Set.class));
+            methods.put(GET_MANY, ReplCache.class.getMethod("_getMany", Collection.class));
+            methods.put(PUT_MANY, ReplCache.class.getMethod("_putMany", Map.class, short.class, long.class));
+            methods.put(EVICT_MANY, ReplCache.class.getMethod("_evictMany", Set.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -197,6 +212,14 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         this.migrate_data=migrate_data;
     }
 
+    public boolean isBroadcastGets() {
+        return broadcast_gets;
+    }
+
+    public void setBroadcastGets(boolean broadcast_gets) {
+        this.broadcast_gets=broadcast_gets;
+    }
+
     public short getDefaultReplicationCount() {
         return default_replication_count;
     }
@@ -258,6 +281,18 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         }
     }
 
+    /**
+     * Replaces the L2 cache with one which keeps its values serialized outside of the heap ({@link OffHeapMap}).
+     * Should be called before {@link #start()}; the current contents of the L2 cache are discarded
+     * @param arena_size The size of a chunk of off-heap memory
+     * @param dir The directory for memory-mapped files, or null to use direct memory
+     */
+    public void enableOffHeapStorage(int arena_size, File dir) {
+        ConcurrentMap<K,Cache.Value<Value<V>>> map=
+          new OffHeapMap<K,Cache.Value<Value<V>>>(arena_size, dir, new Cache.ValueMarshaller());
+        setL2Cache(new Cache<K,Value<V>>(map));
+    }
+
 
     @ManagedOperation
     public void start() throws Exception {
@@ -265,7 +300,7 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
             hash_function=hash_function_factory.create();
         }
         if(hash_function == null)
-            hash_function=new ConsistentHashFunction<K>();
+            hash_function=new ConsistentHashRing<K>();
 
         ch=new JChannel(props);
         disp=new RpcDispatcher(ch, null, this, this);
@@ -389,6 +424,99 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     }
 
 
+    /**
+     * Places several key/value pairs into the cluster. The keys are grouped by owner (computed with the hash
+     * function), and every owner gets all of its keys in a single RPC. The RPCs to the different owners are sent in
+     * parallel. The other members only get the keys (not the values), to evict them from their L1 caches.
+     * @param map The keys and values, need to be serializable
+     * @param repl_count Number of replicas, see {@link #put(Object, Object, short, long, boolean)}
+     * @param timeout Expiration time for the keys/values, see {@link #put(Object, Object, short, long, boolean)}
+     * @param synchronous Whether or not to block until all owners have applied the change
+     */
+    public void putAll(Map<K,V> map, short repl_count, long timeout, boolean synchronous) {
+        if(repl_count == 0) {
+            if(log.isWarnEnabled())
+                log.warn("repl_count of 0 is invalid, data will not be stored in the cluster");
+            return;
+        }
+        if(map == null || map.isEmpty())
+            return;
+
+        if(repl_count == -1 || (view != null && repl_count >= view.size())) {
+            // every node stores every key: a single multicast is all we need
+            try {
+                ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
+                disp.callRemoteMethods(null, new MethodCall(PUT_MANY, new HashMap<K,V>(map), repl_count, timeout),
+                                       new RequestOptions(mode, call_timeout));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("putAll() failed", t);
+            }
+        }
+        else {
+            Map<Address,Map<K,V>> keys_per_owner=new HashMap<Address,Map<K,V>>();
+            for(Map.Entry<K,V> entry: map.entrySet()) {
+                List<Address> owners=hash_function.hash(entry.getKey(), repl_count);
+                for(Address owner: owners) {
+                    Map<K,V> tmp=keys_per_owner.get(owner);
+                    if(tmp == null)
+                        keys_per_owner.put(owner, tmp=new HashMap<K,V>());
+                    tmp.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            Map<K,V> local_keys=keys_per_owner.remove(local_addr);
+            List<Future<Object>> futures=new ArrayList<Future<Object>>(keys_per_owner.size());
+            for(Map.Entry<Address,Map<K,V>> entry: keys_per_owner.entrySet()) {
+                try {
+                    MethodCall call=new MethodCall(PUT_MANY, entry.getValue(), repl_count, timeout);
+                    if(synchronous)
+                        futures.add(disp.<Object>callRemoteMethodWithFuture(entry.getKey(), call,
+                                                                            new RequestOptions(ResponseMode.GET_ALL, call_timeout)));
+                    else
+                        disp.callRemoteMethod(entry.getKey(), call, new RequestOptions(ResponseMode.GET_NONE, call_timeout));
+                }
+                catch(Throwable t) {
+                    if(log.isWarnEnabled())
+                        log.warn("putAll() to " + entry.getKey() + " failed", t);
+                }
+            }
+            if(local_keys != null)
+                _putMany(local_keys, repl_count, timeout);
+
+            // the non-owners may have the keys in their L1 caches: evict them
+            try {
+                ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
+                disp.callRemoteMethods(null, new MethodCall(EVICT_MANY, new HashSet<K>(map.keySet())),
+                                       new RequestOptions(mode, call_timeout).setExclusionList(local_addr));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("putAll() failed evicting the keys from the L1 caches", t);
+            }
+            for(Future<Object> future: futures) {
+                try {
+                    future.get(call_timeout, TimeUnit.MILLISECONDS);
+                }
+                catch(Throwable t) {
+                    if(log.isWarnEnabled())
+                        log.warn("putAll() failed", t);
+                }
+            }
+        }
+
+        if(l1_cache != null && timeout >= 0)
+            for(Map.Entry<K,V> entry: map.entrySet())
+                l1_cache.put(entry.getKey(), entry.getValue(), timeout);
+    }
+
+
+    public void putAll(Map<K,V> map) {
+        putAll(map, default_replication_count, caching_time, false);
+    }
+
+
     
     /**
      * Returns the value associated with key
@@ -398,48 +526,26 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     @ManagedOperation
     public V get(K key) {
 
-        // 1. Try the L1 cache first
-        if(l1_cache != null) {
-            V val=l1_cache.get(key);
-            if(val != null) {
-                if(log.isTraceEnabled())
-                    log.trace("returned value " + val + " for " + key + " from L1 cache");
-                return val;
-            }
-        }
-
-        // 2. Try the local cache
-        Cache.Value<Value<V>> val=l2_cache.getEntry(key);
-        Value<V> tmp;
-        if(val != null) {
-            tmp=val.getValue();
-            if(tmp !=null) {
-                V real_value=tmp.getVal();
-                if(real_value != null && l1_cache != null && val.getTimeout() >= 0)
-                    l1_cache.put(key, real_value, val.getTimeout());
-                return tmp.getVal();
-            }
-        }
+        // 1. Try the L1 cache and the local cache first
+        V retval=getLocally(key);
+        if(retval != null)
+            return retval;
 
-        // 3. Execute a cluster wide GET
+        // 2. Get the value from the owners of key (or from all nodes if broadcast_gets is true)
+        Collection<Address> targets=broadcast_gets? null : getRemoteOwners(key);
+        if(targets != null && targets.isEmpty())
+            targets=null; // we're the only owner and we don't have the key: it may have been stored elsewhere
         try {
-            RspList<Object> rsps=disp.callRemoteMethods(null,
+            RspList<Object> rsps=disp.callRemoteMethods(targets,
                                                 new MethodCall(GET, key),
                                                 new RequestOptions(ResponseMode.GET_ALL, call_timeout));
             for(Rsp rsp: rsps.values()) {
                 Object obj=rsp.getValue();
                 if(obj == null || obj instanceof Throwable)
                     continue;
-                val=(Cache.Value<Value<V>>)rsp.getValue();
-                if(val != null) {
-                    tmp=val.getValue();
-                    if(tmp != null) {
-                        V real_value=tmp.getVal();
-                        if(real_value != null && l1_cache != null && val.getTimeout() >= 0)
-                            l1_cache.put(key, real_value, val.getTimeout());
-                        return real_value;
-                    }
-                }
+                V real_value=addToL1Cache(key, (Cache.Value<Value<V>>)obj);
+                if(real_value != null)
+                    return real_value;
             }
             return null;
         }
@@ -450,6 +556,89 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         }
     }
 
+
+    /**
+     * Returns the values associated with keys. Keys which are not in the local caches are fetched from all nodes with
+     * a single RPC. If broadcast_gets is false, they're grouped by owner instead, and every owner is asked for all of
+     * its keys in a single RPC. The RPCs to the different owners are sent in parallel.
+     * @param keys The keys, have to be serializable
+     * @return A map of the keys which have a value, and their values
+     */
+    public Map<K,V> getAll(Collection<K> keys) {
+        Map<K,V> retval=new HashMap<K,V>(keys.size());
+        Map<Address,List<K>> keys_per_owner=new HashMap<Address,List<K>>();
+        List<K> keys_for_all=null; // keys to be fetched from all nodes
+
+        for(K key: keys) {
+            V val=getLocally(key);
+            if(val != null) {
+                retval.put(key, val);
+                continue;
+            }
+            Collection<Address> owners=broadcast_gets? null : getRemoteOwners(key);
+            if(owners == null || owners.isEmpty()) {
+                if(keys_for_all == null)
+                    keys_for_all=new ArrayList<K>();
+                keys_for_all.add(key);
+                continue;
+            }
+            for(Address owner: owners) {
+                List<K> tmp=keys_per_owner.get(owner);
+                if(tmp == null)
+                    keys_per_owner.put(owner, tmp=new ArrayList<K>());
+                tmp.add(key);
+            }
+        }
+
+        // send all requests first and only then wait for the responses
+        List<Future<Map<K,Cache.Value<Value<V>>>>> futures=new ArrayList<Future<Map<K,Cache.Value<Value<V>>>>>(keys_per_owner.size());
+        for(Map.Entry<Address,List<K>> entry: keys_per_owner.entrySet()) {
+            try {
+                futures.add(disp.<Map<K,Cache.Value<Value<V>>>>callRemoteMethodWithFuture(entry.getKey(),
+                                                                                        new MethodCall(GET_MANY, entry.getValue()),
+                                                                                        new RequestOptions(ResponseMode.GET_ALL, call_timeout)));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("getAll() from " + entry.getKey() + " failed", t);
+            }
+        }
+        Future<RspList<Map<K,Cache.Value<Value<V>>>>> future_all=null;
+        if(keys_for_all != null) {
+            try {
+                future_all=disp.callRemoteMethodsWithFuture(null, new MethodCall(GET_MANY, keys_for_all),
+                                                            new RequestOptions(ResponseMode.GET_ALL, call_timeout));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("getAll() failed", t);
+            }
+        }
+
+        for(Future<Map<K,Cache.Value<Value<V>>>> future: futures) {
+            try {
+                addAll(retval, future.get(call_timeout, TimeUnit.MILLISECONDS));
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("getAll() failed", t);
+            }
+        }
+        if(future_all != null) {
+            try {
+                RspList<Map<K,Cache.Value<Value<V>>>> rsps=future_all.get(call_timeout, TimeUnit.MILLISECONDS);
+                for(Rsp<Map<K,Cache.Value<Value<V>>>> rsp: rsps.values())
+                    if(rsp.wasReceived() && !rsp.hasException())
+                        addAll(retval, rsp.getValue());
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("getAll() failed", t);
+            }
+        }
+        return retval;
+    }
+
     /**
      * Removes key in all nodes in the cluster, both from their local hashmaps and L1 caches
      * @param key The key, needs to be serializable
@@ -524,8 +713,11 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
                             }
                         }
                     }
-                    if(!accept)
+                    if(!accept) {
+                        if(l1_cache != null)
+                            l1_cache.remove(key); // we don't store key, but may have cached an old value
                         return null;
+                    }
                 }
             }
         }
@@ -561,6 +753,39 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     }
 
 
+    public Map<K,Cache.Value<Value<V>>> _getMany(Collection<K> keys) {
+        if(log.isTraceEnabled())
+            log.trace("_getMany(): " + keys.size() + " keys");
+        Map<K,Cache.Value<Value<V>>> retval=new HashMap<K,Cache.Value<Value<V>>>(keys.size());
+        for(K key: keys) {
+            Cache.Value<Value<V>> val=l2_cache.getEntry(key);
+            if(val != null)
+                retval.put(key, val);
+        }
+        return retval;
+    }
+
+    /** Adds all keys/values to the local cache: the sender already picked us as one of the owners */
+    public void _putMany(Map<K,V> map, short repl_count, long timeout) {
+        if(log.isTraceEnabled())
+            log.trace("_putMany(): " + map.size() + " entries, repl_count=" + repl_count + ", timeout=" + timeout);
+        for(Map.Entry<K,V> entry: map.entrySet()) {
+            l2_cache.put(entry.getKey(), new Value<V>(entry.getValue(), repl_count), timeout);
+            if(l1_cache != null)
+                l1_cache.remove(entry.getKey());
+        }
+        notifyChangeListeners();
+    }
+
+    /** Removes the keys from the L1 cache only: another member stored new values for them */
+    public void _evictMany(Set<K> keys) {
+        if(log.isTraceEnabled())
+            log.trace("_evictMany(): " + keys.size() + " entries");
+        if(l1_cache != null)
+            for(K key: keys)
+                l1_cache.remove(key);
+    }
+
     public void _removeMany(Set<K> keys) {
         if(log.isTraceEnabled())
             log.trace("_removeMany(): " + keys.size() + " entries");
@@ -629,6 +854,58 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         return sb.toString();
     }
 
+    /** Returns the value of key from the L1 or L2 cache, or null */
+    private V getLocally(K key) {
+        if(l1_cache != null) {
+            V val=l1_cache.get(key);
+            if(val != null) {
+                if(log.isTraceEnabled())
+                    log.trace("returned value " + val + " for " + key + " from L1 cache");
+                return val;
+            }
+        }
+        return addToL1Cache(key, l2_cache.getEntry(key));
+    }
+
+    /** Adds the value (if not null) to the L1 cache and returns the real value */
+    private V addToL1Cache(K key, Cache.Value<Value<V>> val) {
+        if(val == null)
+            return null;
+        Value<V> tmp=val.getValue();
+        if(tmp == null)
+            return null;
+        V real_value=tmp.getVal();
+        if(real_value != null && l1_cache != null && val.getTimeout() >= 0)
+            l1_cache.put(key, real_value, val.getTimeout());
+        return real_value;
+    }
+
+    private void addAll(Map<K,V> retval, Map<K,Cache.Value<Value<V>>> values) {
+        if(values == null)
+            return;
+        for(Map.Entry<K,Cache.Value<Value<V>>> entry: values.entrySet()) {
+            K key=entry.getKey();
+            if(retval.containsKey(key))
+                continue;
+            V real_value=addToL1Cache(key, entry.getValue());
+            if(real_value != null)
+                retval.put(key, real_value);
+        }
+    }
+
+    /**
+     * Returns the owners of key (except us), computed with the default replication count, or null if all nodes are
+     * owners
+     */
+    private Collection<Address> getRemoteOwners(K key) {
+        short repl_count=default_replication_count;
+        if(hash_function == null || repl_count == -1 || (view != null && repl_count >= view.size()))
+            return null;
+        List<Address> owners=new ArrayList<Address>(hash_function.hash(key, repl_count));
+        owners.remove(local_addr);
+        return owners;
+    }
+
     private void notifyChangeListeners() {
         for(ChangeListener l: change_listeners) {
             try {
@@ -4,6 +4,8 @@ import org.jgroups.*;
 import org.jgroups.annotations.Unsupported;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.DefaultThreadFactory;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -12,6 +14,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a {@link java.util.concurrent.ConcurrentMap} with replication of the contents across a cluster.
@@ -22,7 +26,14 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * across the network to all replicas of the group.<p/>
  * A <code>ReplicatedHashMap</code> allows one to implement a distributed naming service in just a couple of lines.
  * <p>
- * An instance of this class will contact an existing member of the group to fetch its initial state.
+ * An instance of this class will contact an existing member of the group to fetch its initial state. The state is
+ * streamed entry by entry; keys and values are written with {@link Util#objectToStream(Object, java.io.DataOutput)},
+ * or with the marshaller set by {@link #setStateMarshaller(RpcDispatcher.Marshaller)}.
+ * <p>
+ * If a batch interval is set ({@link #setBatchInterval(long)}), puts are not replicated one by one, but collected for
+ * up to batch_interval ms and then replicated in a single call. Multiple puts to the same key within a batch are
+ * coalesced into one. Puts are applied locally only when the batch is delivered, so until then a get() doesn't see
+ * them. Other updates (e.g. remove() or clear()) first send the pending batch, so they are applied in order.
  *
  * @author Bela Ban
  */
@@ -50,6 +61,13 @@ public class ReplicatedHashMap<K, V> extends
     private static final short REPLACE_IF_EXISTS=6;
     private static final short REPLACE_IF_EQUALS=7;
     private static final short CLEAR=8;
+    private static final short PUT_BATCH=9;
+
+    /** First byte of a state whose values are streamed in serialized form (an ObjectOutputStream starts with 0xAC) */
+    protected static final byte RAW_STATE=1;
+
+    /** First byte of a state which is streamed entry by entry */
+    protected static final byte STREAMED_STATE=2;
 
     protected static Map<Short,Method> methods;
 
@@ -75,6 +93,7 @@ public class ReplicatedHashMap<K, V> extends
                                                                              Object.class,
                                                                              Object.class));
             methods.put(CLEAR, ReplicatedHashMap.class.getMethod("_clear"));
+            methods.put(PUT_BATCH, ReplicatedHashMap.class.getMethod("_putBatch", Map.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -85,7 +104,7 @@ public class ReplicatedHashMap<K, V> extends
     protected RpcDispatcher disp=null;
     private String cluster_name=null;
     // to be notified when mbrship changes
-    private final Set<Notification> notifs=new CopyOnWriteArraySet<Notification>();
+    private final Set<Notification<K,V>> notifs=new CopyOnWriteArraySet<Notification<K,V>>();
     private final List<Address> members=new ArrayList<Address>(); // keeps track of all DHTs
 
     protected final RequestOptions call_options=new RequestOptions(ResponseMode.GET_NONE, 5000);
@@ -95,6 +114,41 @@ public class ReplicatedHashMap<K, V> extends
     /** wrapped map instance */
     protected ConcurrentMap<K,V> map=null;
 
+    /** Marshaller for the keys and values of the state. All members need to use the same marshaller */
+    protected RpcDispatcher.Marshaller state_marshaller;
+
+    /** Max time (in ms) puts are collected before they're replicated in one batch. 0 disables batching */
+    protected long batch_interval;
+
+    /** Max number of (distinct) keys in a batch. When reached, the batch is sent immediately */
+    protected int max_batch_size=1000;
+
+    /** Puts which haven't been replicated yet; a put to a key already in the batch replaces its value */
+    protected final Map<K,V> pending=new LinkedHashMap<K,V>();
+
+    protected final Object send_lock=new Object(); // sends batches in the order in which they were created
+
+    protected long num_batches, num_batched_puts, num_coalesced_puts;
+
+    /**
+     * Sends batches when the batch interval has elapsed; created when batching is enabled. Batches are not sent by
+     * the transport's timer, as a flush with blocking updates would block the timer (which is shared by all
+     * protocols) for up to the call timeout
+     */
+    protected volatile ScheduledThreadPoolExecutor flush_executor;
+
+    protected final Runnable flusher=new Runnable() {
+        public void run() {
+            try {
+                flush();
+            }
+            catch(Throwable t) {
+                log.error("failed sending batch of updates", t);
+            }
+        }
+        public String toString() {return ReplicatedHashMap.class.getSimpleName() + ": flusher";}
+    };
+
 
 
 
@@ -162,6 +216,62 @@ public class ReplicatedHashMap<K, V> extends
         call_options.setTimeout(timeout);
     }
 
+    public long getBatchInterval() {
+        return batch_interval;
+    }
+
+    /**
+     * Sets the max time (in ms) puts are collected before they are replicated in one batch. 0 (default) replicates
+     * every put immediately
+     */
+    public ReplicatedHashMap<K,V> setBatchInterval(long batch_interval) {
+        this.batch_interval=batch_interval;
+        if(batch_interval > 0) {
+            synchronized(this) {
+                if(flush_executor == null)
+                    flush_executor=new ScheduledThreadPoolExecutor(1, new DefaultThreadFactory("ReplicatedHashMap-flusher",
+                                                                                                true, true));
+            }
+        }
+        else
+            flush();
+        return this;
+    }
+
+    public int getMaxBatchSize() {
+        return max_batch_size;
+    }
+
+    public ReplicatedHashMap<K,V> setMaxBatchSize(int max_batch_size) {
+        this.max_batch_size=Math.max(1, max_batch_size);
+        return this;
+    }
+
+    public RpcDispatcher.Marshaller getStateMarshaller() {
+        return state_marshaller;
+    }
+
+    /** Sets the marshaller for keys and values of the state. Needs to be the same on all members */
+    public ReplicatedHashMap<K,V> setStateMarshaller(RpcDispatcher.Marshaller state_marshaller) {
+        this.state_marshaller=state_marshaller;
+        return this;
+    }
+
+    /** The number of batches of puts sent */
+    public synchronized long getNumBatches() {
+        return num_batches;
+    }
+
+    /** The number of puts sent in batches */
+    public synchronized long getNumBatchedPuts() {
+        return num_batched_puts;
+    }
+
+    /** The number of puts which replaced a pending put to the same key and were therefore not sent */
+    public synchronized long getNumCoalescedPuts() {
+        return num_coalesced_puts;
+    }
+
     /**
      * Fetches the state
      * @param state_timeout
@@ -183,6 +293,7 @@ public class ReplicatedHashMap<K, V> extends
     }
 
 
+    @SuppressWarnings("unchecked")
     public void addNotifier(Notification n) {
         if(n != null)
             notifs.add(n);
@@ -194,6 +305,16 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public void stop() {
+        try {
+            flush();
+        }
+        catch(Throwable t) {
+            log.error("failed sending batch of updates", t);
+        }
+        if(flush_executor != null) {
+            flush_executor.shutdownNow();
+            flush_executor=null;
+        }
         if(disp != null) {
             disp.stop();
             disp=null;
@@ -219,6 +340,8 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key or value is null
      */
     public V put(K key, V value) {
+        if(batch_interval > 0)
+            return addToBatch(key, value);
         V prev_val=get(key);
         try {
             MethodCall call=new MethodCall(PUT, key, value);
@@ -239,6 +362,7 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key or value is null
      */
     public V putIfAbsent(K key, V value) {
+        flush();
         V prev_val=get(key);
 
         try {
@@ -260,6 +384,7 @@ public class ReplicatedHashMap<K, V> extends
      *                mappings to be stored in this map
      */
     public void putAll(Map<? extends K,? extends V> m) {
+        flush();
         try {
             MethodCall call=new MethodCall(PUT_ALL, m);
             disp.callRemoteMethods(null, call, call_options);
@@ -273,12 +398,18 @@ public class ReplicatedHashMap<K, V> extends
      * Removes all of the mappings from this map.
      */
     public void clear() {
-        try {
-            MethodCall call=new MethodCall(CLEAR);
-            disp.callRemoteMethods(null, call, call_options);
-        }
-        catch(Exception e) {
-            throw new RuntimeException("clear() failed", e);
+        // a batch taken by a concurrent flush() must not be sent after the CLEAR, or it would re-add the cleared entries
+        synchronized(send_lock) {
+            synchronized(pending) {
+                pending.clear(); // the pending puts would be cleared anyway
+            }
+            try {
+                MethodCall call=new MethodCall(CLEAR);
+                disp.callRemoteMethods(null, call, call_options);
+            }
+            catch(Exception e) {
+                throw new RuntimeException("clear() failed", e);
+            }
         }
     }
 
@@ -294,6 +425,7 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key is null
      */
     public V remove(Object key) {
+        flush();
         V retval=get(key);
         try {
             MethodCall call=new MethodCall(REMOVE, key);
@@ -312,6 +444,7 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key is null
      */
     public boolean remove(Object key, Object value) {
+        flush();
         Object val=get(key);
         boolean removed=val != null && value != null && val.equals(value);
 
@@ -332,6 +465,7 @@ public class ReplicatedHashMap<K, V> extends
      *                 if any of the arguments are null
      */
     public boolean replace(K key, V oldValue, V newValue) {
+        flush();
         Object val=get(key);
         boolean replaced=val != null && oldValue != null && val.equals(oldValue);
 
@@ -359,6 +493,7 @@ public class ReplicatedHashMap<K, V> extends
      *                 if the specified key or value is null
      */
     public V replace(K key, V value) {
+        flush();
         V retval=get(key);
 
         try {
@@ -371,18 +506,73 @@ public class ReplicatedHashMap<K, V> extends
         return retval;
     }
 
+    /**
+     * Sends the pending batch of puts (if any). Called when the batch interval has elapsed, but can also be called
+     * by an application, e.g. to make sure all puts have been replicated
+     */
+    public void flush() {
+        synchronized(send_lock) {
+            Map<K,V> batch;
+            synchronized(pending) {
+                if(pending.isEmpty())
+                    return;
+                batch=new HashMap<K,V>(pending);
+                pending.clear();
+            }
+            try {
+                MethodCall call=new MethodCall(PUT_BATCH, batch);
+                disp.callRemoteMethods(null, call, call_options);
+            }
+            catch(Exception e) {
+                throw new RuntimeException("flush() of " + batch.size() + " puts failed", e);
+            }
+            synchronized(this) {
+                num_batches++;
+                num_batched_puts+=batch.size();
+            }
+        }
+    }
+
+    /** Adds a put to the pending batch and sends the batch when full, or schedules sending it when it was empty */
+    protected V addToBatch(K key, V value) {
+        V prev_val;
+        boolean first, full;
+        synchronized(pending) {
+            first=pending.isEmpty();
+            prev_val=pending.put(key, value);
+            if(prev_val != null) {
+                synchronized(this) {
+                    num_coalesced_puts++;
+                }
+            }
+            else
+                prev_val=get(key);
+            full=pending.size() >= max_batch_size;
+        }
+        if(full)
+            flush();
+        else if(first) {
+            ScheduledThreadPoolExecutor executor=flush_executor;
+            if(executor != null)
+                executor.schedule(flusher, batch_interval, TimeUnit.MILLISECONDS);
+            else // stopped
+                flush();
+        }
+        return prev_val;
+    }
+
     /*------------------------ Callbacks -----------------------*/
 
     public V _put(K key, V value) {
         V retval=map.put(key, value);
-        for(Notification notif:notifs)
+        for(Notification<K,V> notif: notifs)
             notif.entrySet(key, value);
         return retval;
     }
 
     public V _putIfAbsent(K key, V value) {
         V retval=map.putIfAbsent(key, value);
-        for(Notification notif:notifs)
+        for(Notification<K,V> notif: notifs)
             notif.entrySet(key, value);
         return retval;
     }
@@ -406,21 +596,29 @@ public class ReplicatedHashMap<K, V> extends
         }
 
         if(!map.isEmpty()) {
-            for(Notification notif:notifs)
-                notif.contentsSet(map);
+            for(Notification<K,V> notif: notifs)
+                notif.contentsSet(Collections.<K,V>unmodifiableMap(map));
         }
     }
 
+    /** Applies a batch of puts, notifying listeners of every entry */
+    public void _putBatch(Map<? extends K,? extends V> batch) {
+        if(batch == null)
+            return;
+        for(Map.Entry<? extends K,? extends V> entry: batch.entrySet())
+            _put(entry.getKey(), entry.getValue());
+    }
+
     public void _clear() {
         map.clear();
-        for(Notification notif:notifs)
+        for(Notification<K,V> notif: notifs)
             notif.contentsCleared();
     }
 
     public V _remove(Object key) {
         V retval=map.remove(key);
         if(retval != null) {
-            for(Notification notif:notifs)
+            for(Notification<K,V> notif: notifs)
                 notif.entryRemoved((K)key);
         }
 
@@ -430,7 +628,7 @@ public class ReplicatedHashMap<K, V> extends
     public boolean _remove(Object key, Object value) {
         boolean removed=map.remove(key, value);
         if(removed) {
-            for(Notification notif:notifs)
+            for(Notification<K,V> notif: notifs)
                 notif.entryRemoved((K)key);
         }
         return removed;
@@ -439,7 +637,7 @@ public class ReplicatedHashMap<K, V> extends
     public boolean _replace(K key, V oldValue, V newValue) {
         boolean replaced=map.replace(key, oldValue, newValue);
         if(replaced) {
-            for(Notification notif:notifs)
+            for(Notification<K,V> notif: notifs)
                 notif.entrySet(key, newValue);
         }
         return replaced;
@@ -447,7 +645,7 @@ public class ReplicatedHashMap<K, V> extends
 
     public V _replace(K key, V value) {
         V retval=map.replace(key, value);
-        for(Notification notif:notifs)
+        for(Notification<K,V> notif: notifs)
             notif.entrySet(key, value);
         return retval;
     }
@@ -460,31 +658,55 @@ public class ReplicatedHashMap<K, V> extends
 
     
 
+    /**
+     * If the map is an {@link OffHeapMap} whose values are serialized with the state marshaller, the serialized values
+     * are copied from its arenas to the stream, preceded by {@link #RAW_STATE}. Otherwise the entries are streamed one
+     * by one, preceded by {@link #STREAMED_STATE}
+     */
     public void getState(OutputStream ostream) throws Exception {
-        K key;
-        V val;
-        HashMap<K,V> copy=new HashMap<K,V>();
-        ObjectOutputStream oos=null;
-
-        for(Map.Entry<K,V> entry:entrySet()) {
-            key=entry.getKey();
-            val=entry.getValue();
-            copy.put(key, val);
+        if(map instanceof OffHeapMap && ((OffHeapMap<K,V>)map).getMarshaller() == state_marshaller) {
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(ostream, 8192));
+            try {
+                out.writeByte(RAW_STATE);
+                ((OffHeapMap<K,V>)map).writeTo(out);
+            }
+            finally {
+                Util.close(out);
+            }
+            return;
         }
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(ostream, 8192));
         try {
-            oos=new ObjectOutputStream(new BufferedOutputStream(ostream, 1024));
-            oos.writeObject(copy);
+            out.writeByte(STREAMED_STATE);
+            for(Map.Entry<K,V> entry: map.entrySet()) {
+                out.writeBoolean(true);
+                writeObject(entry.getKey(), out);
+                writeObject(entry.getValue(), out);
+            }
+            out.writeBoolean(false);
         }
         finally {
-            Util.close(oos);
+            Util.close(out);
         }
     }
 
     public void setState(InputStream istream) throws Exception {
         HashMap<K,V> new_copy=null;
         ObjectInputStream ois=null;
+        BufferedInputStream in=new BufferedInputStream(istream);
+        in.mark(1);
+        int type=in.read();
+        if(type == RAW_STATE) {
+            setRawState(new DataInputStream(in));
+            return;
+        }
+        if(type == STREAMED_STATE) {
+            setStreamedState(new DataInputStream(in));
+            return;
+        }
+        in.reset(); // a serialized map
         try {
-            ois=new ObjectInputStream(istream);
+            ois=new ObjectInputStream(in);
             new_copy=(HashMap<K,V>)ois.readObject();
         }
         finally {
@@ -497,6 +719,72 @@ public class ReplicatedHashMap<K, V> extends
             log.debug("state received successfully");
     }
 
+    /** Reads the entries one by one and adds them to the map, without creating an intermediate copy */
+    protected void setStreamedState(DataInputStream in) throws Exception {
+        int num=0;
+        try {
+            while(in.readBoolean()) {
+                K key=(K)readObject(in);
+                V val=(V)readObject(in);
+                map.put(key, val);
+                num++;
+            }
+        }
+        finally {
+            Util.close(in);
+        }
+        if(num > 0) {
+            for(Notification<K,V> notif: notifs)
+                notif.contentsSet(Collections.unmodifiableMap(map));
+        }
+        if(log.isDebugEnabled())
+            log.debug("state received successfully (" + num + " entries)");
+    }
+
+    protected void writeObject(Object obj, DataOutput out) throws Exception {
+        if(state_marshaller == null) {
+            Util.objectToStream(obj, out);
+            return;
+        }
+        Buffer buf=state_marshaller.objectToBuffer(obj);
+        out.writeInt(buf.getLength());
+        out.write(buf.getBuf(), buf.getOffset(), buf.getLength());
+    }
+
+    protected Object readObject(DataInput in) throws Exception {
+        if(state_marshaller == null)
+            return Util.objectFromStream(in);
+        byte[] buf=new byte[in.readInt()];
+        in.readFully(buf);
+        return state_marshaller.objectFromBuffer(buf, 0, buf.length);
+    }
+
+    /**
+     * Reads the state written by an {@link OffHeapMap}. The values were serialized with the state marshaller, so they
+     * are copied as they are if our map is an OffHeapMap using the same marshaller, and deserialized otherwise
+     */
+    protected void setRawState(DataInputStream in) throws Exception {
+        try {
+            if(map instanceof OffHeapMap && ((OffHeapMap<K,V>)map).getMarshaller() == state_marshaller) {
+                int num=((OffHeapMap<K,V>)map).readFrom(in);
+                if(num > 0) {
+                    for(Notification<K,V> notif: notifs)
+                        notif.contentsSet(Collections.unmodifiableMap(map));
+                }
+                if(log.isDebugEnabled())
+                    log.debug("state received successfully (" + num + " serialized entries)");
+                return;
+            }
+            Map<K,V> new_copy=OffHeapMap.readEntries(in, state_marshaller);
+            _putAll(new_copy);
+        }
+        finally {
+            Util.close(in);
+        }
+        if(log.isDebugEnabled())
+            log.debug("state received successfully");
+    }
+
     /*------------------- Membership Changes ----------------------*/
 
     public void viewAccepted(View new_view) {
@@ -542,7 +830,7 @@ public class ReplicatedHashMap<K, V> extends
             }
         }
 
-        for(Notification notif: notifs) {
+        for(Notification<K,V> notif: notifs) {
             notif.viewChange(view, joined, left);
         }
     }
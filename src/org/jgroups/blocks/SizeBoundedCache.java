@@ -0,0 +1,658 @@
+package org.jgroups.blocks;
+
+import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Unsupported;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.SizeStreamable;
+import org.jgroups.util.Util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache which is bounded by the (estimated) number of bytes of its keys and values rather than by the number of
+ * entries. Can be used wherever a {@link Cache} is used, e.g. as L1 or L2 cache of {@link ReplCache} or
+ * {@link PartitionedHashMap}.<p/>
+ * Admission and eviction follow W-TinyLFU: a new entry is added to a small LRU admission window. Entries evicted from
+ * the window compete with the least recently used entries of the main space (a segmented LRU of probation and
+ * protected entries); an entry only gets in if its access frequency is higher than that of all the entries which
+ * have to be evicted to make room for it. Frequencies are estimated with a count-min sketch of 4 bit counters which
+ * are halved periodically, so that old popularity fades.<p/>
+ * Expiration uses a hashed timing wheel: {@link #enableReaping(long)} advances the wheel every interval ms and only
+ * looks at the entries in the buckets which expired since the last tick, instead of scanning the entire map.<p/>
+ * Reads record accesses only if the policy lock can be acquired without blocking, so under contention some accesses
+ * are not counted. {@link #getMaxNumberOfEntries()} is ignored; the cache is bounded by {@link #getMaxBytes()}.
+ * @since 3.5
+ */
+@Experimental
+@Unsupported
+public class SizeBoundedCache<K,V> extends Cache<K,V> {
+    private static final Log log=LogFactory.getLog(SizeBoundedCache.class);
+
+    protected static final byte WINDOW=1, PROBATION=2, PROTECTED=3;
+
+    /** Estimates the number of bytes used by a key and its value */
+    public interface Sizer<K,V> {
+        long size(K key, V value);
+    }
+
+    /** The entries (the map of the superclass). Only modified under lock, so that it's always in sync with nodes */
+    protected final ConcurrentMap<K,Value<V>> entries;
+
+    /** The policy state of the entries, guarded by lock */
+    protected final Map<K,Node<K,V>>          nodes=new HashMap<K,Node<K,V>>();
+    protected final Lock                      lock=new ReentrantLock();
+
+    @ManagedAttribute(description="Max number of bytes of all keys and values",writable=true)
+    protected long                            max_bytes;
+
+    @ManagedAttribute(description="Percentage of max_bytes used by the admission window",writable=true)
+    protected double                          window_percentage=0.01;
+
+    @ManagedAttribute(description="Percentage of the main space used by protected (frequently accessed) entries",
+                      writable=true)
+    protected double                          protected_percentage=0.8;
+
+    protected Sizer<K,V>                      sizer=new DefaultSizer<K,V>();
+
+    protected final Deque<K,V>                window=new Deque<K,V>(), probation=new Deque<K,V>(),
+                                              protected_entries=new Deque<K,V>();
+    protected final FrequencySketch           sketch=new FrequencySketch(64);
+
+    // the timing wheel: bucket i holds the entries expiring in a tick t with t % wheel.length == i
+    protected final List<Node<K,V>>           wheel;
+    protected long                            tick_interval=1000;
+    protected long                            last_tick;
+    protected Future<?>                       wheel_task;
+
+    protected final AtomicLong                hits=new AtomicLong(), misses=new AtomicLong();
+    protected final AtomicLong                evictions=new AtomicLong(), evicted_bytes=new AtomicLong();
+    protected final AtomicLong                rejections=new AtomicLong(), expirations=new AtomicLong();
+
+
+    public SizeBoundedCache(long max_bytes) {
+        this(max_bytes, 512);
+    }
+
+    public SizeBoundedCache(long max_bytes, int wheel_size) {
+        this(max_bytes, wheel_size, Util.<K,Value<V>>createConcurrentMap());
+    }
+
+    protected SizeBoundedCache(long max_bytes, int wheel_size, ConcurrentMap<K,Value<V>> entries) {
+        super(entries);
+        if(max_bytes <= 0)
+            throw new IllegalArgumentException("max_bytes (" + max_bytes + ") has to be > 0");
+        this.max_bytes=max_bytes;
+        this.entries=entries;
+        int size=Util.getNextHigherPowerOfTwo(wheel_size);
+        wheel=new ArrayList<Node<K,V>>(size);
+        for(int i=0; i < size; i++)
+            wheel.add(Node.<K,V>sentinel());
+    }
+
+    public long                   getMaxBytes()                     {return max_bytes;}
+    public SizeBoundedCache<K,V>  setMaxBytes(long max_bytes)       {this.max_bytes=max_bytes; return this;}
+    public Sizer<K,V>             getSizer()                        {return sizer;}
+    public SizeBoundedCache<K,V>  setSizer(Sizer<K,V> sizer)        {this.sizer=sizer; return this;}
+    public double                 getWindowPercentage()             {return window_percentage;}
+    public SizeBoundedCache<K,V>  setWindowPercentage(double p)     {this.window_percentage=p; return this;}
+    public double                 getProtectedPercentage()          {return protected_percentage;}
+    public SizeBoundedCache<K,V>  setProtectedPercentage(double p)  {this.protected_percentage=p; return this;}
+
+    @ManagedAttribute(description="Estimated number of bytes of all keys and values")
+    public long getBytes() {
+        lock.lock();
+        try {
+            return window.bytes + probation.bytes + protected_entries.bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute public int    getSize()                {return entries.size();}
+    @ManagedAttribute public long   getHits()                {return hits.get();}
+    @ManagedAttribute public long   getMisses()              {return misses.get();}
+    @ManagedAttribute public long   getEvictions()           {return evictions.get();}
+    @ManagedAttribute public long   getEvictedBytes()        {return evicted_bytes.get();}
+    @ManagedAttribute public long   getRejections()          {return rejections.get();}
+    @ManagedAttribute public long   getExpirations()         {return expirations.get();}
+
+    @ManagedAttribute(description="Hits / (hits + misses)")
+    public double getHitRate() {
+        long h=hits.get(), total=h + misses.get();
+        return total == 0? 0 : h / (double)total;
+    }
+
+    @ManagedOperation
+    public void resetStats() {
+        hits.set(0); misses.set(0); evictions.set(0); evicted_bytes.set(0); rejections.set(0); expirations.set(0);
+    }
+
+    @ManagedAttribute
+    public boolean isReapingEnabled() {
+        return wheel_task != null && !wheel_task.isCancelled();
+    }
+
+    /** Advances the timing wheel every interval ms, removing the expired entries */
+    @ManagedOperation
+    public void enableReaping(long interval) {
+        disableReaping();
+        lock.lock();
+        try {
+            if(interval != tick_interval) {
+                tick_interval=interval;
+                // the bucket of an entry depends on the tick interval
+                for(Node<K,V> node: nodes.values()) {
+                    if(node.wheel_next != null) {
+                        unschedule(node);
+                        schedule(node);
+                    }
+                }
+            }
+            last_tick=System.currentTimeMillis() / tick_interval;
+        }
+        finally {
+            lock.unlock();
+        }
+        start();
+        wheel_task=timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                advanceWheel();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @ManagedOperation
+    public void disableReaping() {
+        if(wheel_task != null) {
+            wheel_task.cancel(false);
+            wheel_task=null;
+        }
+    }
+
+    @ManagedOperation
+    public void stop() {
+        disableReaping();
+        super.stop();
+    }
+
+    /**
+     * Adds a key and value. If they are larger than max_bytes, they're not added. If the cache is full, either the
+     * new entry or some of the least recently and frequently used entries are evicted.
+     * @param caching_time Number of milliseconds to keep an entry in the cache. -1 means don't cache (the entry is
+     *                     removed on the next access or tick of the timing wheel), 0 means never expire
+     */
+    @ManagedOperation
+    public V put(K key, V val, long caching_time) {
+        if(log.isTraceEnabled())
+            log.trace("put(" + key + ", " + val + ", " + caching_time + ")");
+        long weight=sizer.size(key, val);
+        Value<V> value=new Value<V>(val, caching_time);
+        Value<V> prev=null;
+        int num_evicted;
+
+        lock.lock();
+        try {
+            Node<K,V> old=nodes.remove(key);
+            if(old != null) {
+                unlink(old);
+                prev=old.value;
+            }
+            sketch.increment(hash(key));
+            if(weight > max_bytes) {
+                entries.remove(key);
+                rejections.incrementAndGet();
+                return prev != null? prev.getValue() : null;
+            }
+            Node<K,V> node=new Node<K,V>(key, value, weight);
+            nodes.put(key, node);
+            entries.put(key, value);
+            node.queue=WINDOW;
+            window.addFirst(node);
+            schedule(node);
+            sketch.ensureCapacity(nodes.size());
+            num_evicted=evict();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(num_evicted > 0)
+            notifyChangeListeners();
+        return prev != null? prev.getValue() : null;
+    }
+
+    @ManagedOperation
+    public V get(K key) {
+        Value<V> val=getEntry(key);
+        return val != null? val.getValue() : null;
+    }
+
+    public Value<V> getEntry(K key) {
+        if(log.isTraceEnabled())
+            log.trace("getEntry(" + key + ")");
+        Value<V> val=entries.get(key);
+        if(val == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if(isExpired(val, System.currentTimeMillis())) {
+            lock.lock();
+            try {
+                Node<K,V> node=nodes.get(key);
+                if(node != null && node.value == val) {
+                    remove(node);
+                    expirations.incrementAndGet();
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if(lock.tryLock()) {
+            try {
+                Node<K,V> node=nodes.get(key);
+                if(node != null)
+                    onAccess(node);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        return val;
+    }
+
+    public V remove(K key) {
+        if(log.isTraceEnabled())
+            log.trace("remove(" + key + ")");
+        lock.lock();
+        try {
+            Node<K,V> node=nodes.get(key);
+            if(node == null)
+                return null;
+            remove(node);
+            return node.value.getValue();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the entries. They should not be added or removed through this set, as this bypasses the eviction policy */
+    public Set<Map.Entry<K,Value<V>>> entrySet() {
+        return Collections.unmodifiableMap(entries).entrySet();
+    }
+
+    @ManagedOperation
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<K,Value<V>> entry: entries.entrySet()) {
+            Value<V> val=entry.getValue();
+            sb.append(entry.getKey()).append(": ").append(val.getValue());
+            sb.append(" (caching time: ").append(val.getTimeout()).append(")\n");
+        }
+        return sb.toString();
+    }
+
+    public String dump() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<K,Value<V>> entry: entries.entrySet()) {
+            sb.append(entry.getKey()).append(": ");
+            V val=entry.getValue().getValue();
+            if(val != null) {
+                if(val instanceof byte[])
+                    sb.append(" (" + ((byte[])val).length).append(" bytes)");
+                else
+                    sb.append(val);
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Prints the size of the admission window, the probation and the protected space")
+    public String printSegments() {
+        lock.lock();
+        try {
+            return String.format("window: %d entries (%s), probation: %d entries (%s), protected: %d entries (%s)",
+                                 window.size, Util.printBytes(window.bytes), probation.size, Util.printBytes(probation.bytes),
+                                 protected_entries.size, Util.printBytes(protected_entries.bytes));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    protected static boolean isExpired(Value<?> val, long now) {
+        long timeout=val.getTimeout();
+        return timeout == -1 || (timeout > 0 && now > val.getInsertionTime() + timeout);
+    }
+
+    protected static int hash(Object key) {
+        int h=key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /** Moves entries out of the window and admits or rejects them. Returns the number of evicted entries */
+    protected int evict() {
+        long window_max=(long)(max_bytes * window_percentage), main_max=max_bytes - window_max;
+        int num_evicted=0;
+        while(window.bytes > window_max) {
+            Node<K,V> candidate=window.removeLast();
+            candidate.queue=0;
+            num_evicted+=admit(candidate, main_max);
+        }
+        // max_bytes might have been reduced
+        while(probation.bytes + protected_entries.bytes > main_max) {
+            Node<K,V> victim=probation.last() != null? probation.last() : protected_entries.last();
+            evict(victim);
+            num_evicted++;
+        }
+        return num_evicted;
+    }
+
+    /** Adds a candidate from the window to the main space if its frequency is higher than the ones of all victims */
+    protected int admit(Node<K,V> candidate, long main_max) {
+        long needed=probation.bytes + protected_entries.bytes + candidate.weight - main_max;
+        if(needed > 0) {
+            int candidate_freq=sketch.frequency(hash(candidate.key));
+            List<Node<K,V>> victims=new ArrayList<Node<K,V>>();
+            long freed=0;
+            for(int i=0; i < 2; i++) {
+                Deque<K,V> deque=i == 0? probation : protected_entries;
+                for(Node<K,V> victim=deque.last(); victim != null && freed < needed; victim=deque.previous(victim)) {
+                    if(sketch.frequency(hash(victim.key)) >= candidate_freq) {
+                        evict(candidate);
+                        return 1;
+                    }
+                    victims.add(victim);
+                    freed+=victim.weight;
+                }
+            }
+            if(freed < needed) {
+                evict(candidate);
+                return 1;
+            }
+            for(Node<K,V> victim: victims)
+                evict(victim);
+            add(candidate, PROBATION);
+            return victims.size();
+        }
+        add(candidate, PROBATION);
+        return 0;
+    }
+
+    protected void onAccess(Node<K,V> node) {
+        sketch.increment(hash(node.key));
+        switch(node.queue) {
+            case WINDOW:
+                window.moveToFront(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                add(node, PROTECTED);
+                long protected_max=(long)((max_bytes - (long)(max_bytes * window_percentage)) * protected_percentage);
+                while(protected_entries.bytes > protected_max) {
+                    Node<K,V> demoted=protected_entries.removeLast();
+                    add(demoted, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                protected_entries.moveToFront(node);
+                break;
+        }
+    }
+
+    protected void add(Node<K,V> node, byte queue) {
+        node.queue=queue;
+        (queue == PROBATION? probation : protected_entries).addFirst(node);
+    }
+
+    protected void evict(Node<K,V> node) {
+        if(log.isTraceEnabled())
+            log.trace("evicting " + node.key + " (" + node.weight + " bytes)");
+        remove(node);
+        evictions.incrementAndGet();
+        evicted_bytes.addAndGet(node.weight);
+    }
+
+    protected void remove(Node<K,V> node) {
+        nodes.remove(node.key);
+        entries.remove(node.key, node.value);
+        unlink(node);
+    }
+
+    protected void unlink(Node<K,V> node) {
+        switch(node.queue) {
+            case WINDOW:    window.remove(node); break;
+            case PROBATION: probation.remove(node); break;
+            case PROTECTED: protected_entries.remove(node); break;
+        }
+        node.queue=0;
+        unschedule(node);
+    }
+
+    protected void schedule(Node<K,V> node) {
+        long timeout=node.value.getTimeout();
+        if(timeout == 0)
+            return;
+        node.expiration_time=timeout == -1? node.value.getInsertionTime() : node.value.getInsertionTime() + timeout;
+        Node<K,V> head=wheel.get((int)((node.expiration_time / tick_interval) & (wheel.size() - 1)));
+        node.wheel_prev=head;
+        node.wheel_next=head.wheel_next;
+        head.wheel_next.wheel_prev=node;
+        head.wheel_next=node;
+    }
+
+    protected static <K,V> void unschedule(Node<K,V> node) {
+        if(node.wheel_next == null)
+            return;
+        node.wheel_prev.wheel_next=node.wheel_next;
+        node.wheel_next.wheel_prev=node.wheel_prev;
+        node.wheel_prev=node.wheel_next=null;
+    }
+
+    /** Removes the expired entries in the buckets of all ticks since the last tick */
+    protected void advanceWheel() {
+        long now=System.currentTimeMillis();
+        int num_expired=0;
+        lock.lock();
+        try {
+            long current_tick=now / tick_interval;
+            long from=current_tick - last_tick >= wheel.size()? current_tick - wheel.size() + 1 : last_tick;
+            for(long tick=from; tick <= current_tick; tick++) {
+                Node<K,V> head=wheel.get((int)(tick & (wheel.size() - 1)));
+                for(Node<K,V> node=head.wheel_next; node != head;) {
+                    Node<K,V> next=node.wheel_next;
+                    if(node.expiration_time <= now) {
+                        remove(node);
+                        num_expired++;
+                    }
+                    node=next;
+                }
+            }
+            last_tick=current_tick;
+        }
+        finally {
+            lock.unlock();
+        }
+        if(num_expired > 0) {
+            expirations.addAndGet(num_expired);
+            if(log.isTraceEnabled())
+                log.trace("expired " + num_expired + " entries");
+            notifyChangeListeners();
+        }
+    }
+
+
+    protected static class Node<K,V> {
+        protected final K        key;
+        protected final Value<V> value;
+        protected final long     weight;
+        protected byte           queue;
+        protected Node<K,V>      prev, next;             // links in window, probation or protected
+        protected Node<K,V>      wheel_prev, wheel_next; // links in a bucket of the timing wheel
+        protected long           expiration_time;
+
+        protected Node(K key, Value<V> value, long weight) {
+            this.key=key;
+            this.value=value;
+            this.weight=weight;
+        }
+
+        protected static <K,V> Node<K,V> sentinel() {
+            Node<K,V> node=new Node<K,V>(null, null, 0);
+            node.prev=node.next=node.wheel_prev=node.wheel_next=node;
+            return node;
+        }
+    }
+
+
+    /** Doubly linked LRU list; the first element is the most recently used one */
+    protected static class Deque<K,V> {
+        protected final Node<K,V> head=Node.sentinel();
+        protected int             size;
+        protected long            bytes;
+
+        protected void addFirst(Node<K,V> node) {
+            node.prev=head;
+            node.next=head.next;
+            head.next.prev=node;
+            head.next=node;
+            size++;
+            bytes+=node.weight;
+        }
+
+        protected void remove(Node<K,V> node) {
+            node.prev.next=node.next;
+            node.next.prev=node.prev;
+            node.prev=node.next=null;
+            size--;
+            bytes-=node.weight;
+        }
+
+        protected Node<K,V> last() {
+            return head.prev != head? head.prev : null;
+        }
+
+        protected Node<K,V> previous(Node<K,V> node) {
+            return node.prev != head? node.prev : null;
+        }
+
+        protected Node<K,V> removeLast() {
+            Node<K,V> node=last();
+            if(node != null)
+                remove(node);
+            return node;
+        }
+
+        protected void moveToFront(Node<K,V> node) {
+            remove(node);
+            addFirst(node);
+        }
+    }
+
+
+    /**
+     * Count-min sketch with 4 hash functions and 4 bit counters, 16 of which are packed into a long. When the number
+     * of increments reaches 10 times the number of counters, all counters are halved.
+     */
+    protected static class FrequencySketch {
+        protected static final long[] SEEDS={0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        protected static final long   RESET_MASK=0x7777777777777777L;
+
+        protected long[] table;
+        protected int    increments, sample_size;
+
+        protected FrequencySketch(int capacity) {
+            ensureCapacity(capacity);
+        }
+
+        /** Grows the table if the number of entries exceeds the number of longs (never shrinks) */
+        protected void ensureCapacity(int capacity) {
+            int length=Util.getNextHigherPowerOfTwo(Math.max(capacity, 16));
+            if(table != null && table.length >= length)
+                return;
+            table=new long[length];
+            sample_size=10 * length;
+            increments=0;
+        }
+
+        protected int frequency(int hash) {
+            int frequency=Integer.MAX_VALUE;
+            for(int i=0; i < SEEDS.length; i++) {
+                long h=spread(hash, i);
+                int index=(int)(h >>> 32) & (table.length - 1), offset=((int)h & 15) << 2;
+                frequency=Math.min(frequency, (int)((table[index] >>> offset) & 15));
+            }
+            return frequency;
+        }
+
+        protected void increment(int hash) {
+            boolean added=false;
+            for(int i=0; i < SEEDS.length; i++) {
+                long h=spread(hash, i);
+                int index=(int)(h >>> 32) & (table.length - 1), offset=((int)h & 15) << 2;
+                if(((table[index] >>> offset) & 15) < 15) {
+                    table[index]+=1L << offset;
+                    added=true;
+                }
+            }
+            if(added && ++increments >= sample_size)
+                reset();
+        }
+
+        protected void reset() {
+            for(int i=0; i < table.length; i++)
+                table[i]=(table[i] >>> 1) & RESET_MASK;
+            increments/=2;
+        }
+
+        protected static long spread(int hash, int i) {
+            long h=(hash + SEEDS[i]) * SEEDS[i];
+            return h ^ (h >>> 29);
+        }
+    }
+
+
+    /**
+     * Estimates the size of byte[] arrays, strings, {@link Buffer}s, {@link SizeStreamable}s and {@link ReplCache.Value}s
+     * exactly, and the size of all other objects as a fixed overhead
+     */
+    public static class DefaultSizer<K,V> implements Sizer<K,V> {
+        protected static final int ENTRY_OVERHEAD=64, OBJECT_OVERHEAD=16;
+
+        public long size(K key, V value) {
+            return ENTRY_OVERHEAD + sizeOf(key) + sizeOf(value);
+        }
+
+        protected static long sizeOf(Object obj) {
+            if(obj == null)
+                return 0;
+            if(obj instanceof byte[])
+                return OBJECT_OVERHEAD + ((byte[])obj).length;
+            if(obj instanceof String)
+                return 2 * OBJECT_OVERHEAD + ((String)obj).length() * 2;
+            if(obj instanceof Buffer)
+                return 2 * OBJECT_OVERHEAD + ((Buffer)obj).getLength();
+            if(obj instanceof SizeStreamable)
+                return OBJECT_OVERHEAD + ((SizeStreamable)obj).size();
+            if(obj instanceof ReplCache.Value)
+                return OBJECT_OVERHEAD + sizeOf(((ReplCache.Value<?>)obj).getVal());
+            return OBJECT_OVERHEAD;
+        }
+    }
+}
@@ -12,7 +12,9 @@ import org.jgroups.util.Util;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -180,6 +182,76 @@ public class TCPConnectionMap {
         }
 
         // 1. Try to obtain correct Connection (or create one if not yet existent)
+        TCPConnection conn=getConnection(dest);
+
+        // 2. Send the message using that connection
+        if(conn != null) {
+            try {
+                conn.send(data, offset, length);
+            }
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest,conn);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Sends the same data to all destinations. With send queues, the data is copied only once and the copy is shared
+     * by the queues of all connections, whose sender threads then write it concurrently. Connections whose queue is
+     * full are served last, so that a slow member doesn't delay the others. Without send queues, the data is written
+     * to one connection after the other.
+     */
+    public void sendToAll(Collection<? extends Address> dests, byte[] data, int offset, int length) {
+        if(dests == null || data == null || !running.get())
+            return;
+        byte[] shared=null;
+        boolean send_to_self=false;
+        List<TCPConnection> full=null; // connections whose send queue is full
+        for(Address dest: dests) {
+            if(dest.equals(local_addr)) {
+                send_to_self=true;
+                continue;
+            }
+            TCPConnection conn=getConnection(dest);
+            if(conn == null)
+                continue;
+            try {
+                if(conn.sender == null) {
+                    conn.send(data, offset, length);
+                    continue;
+                }
+                if(shared == null) {
+                    shared=new byte[length];
+                    System.arraycopy(data, offset, shared, 0, length);
+                }
+                if(!conn.sender.offer(shared)) {
+                    if(full == null)
+                        full=new ArrayList<TCPConnection>();
+                    full.add(conn);
+                }
+            }
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest, conn);
+                log.error(local_addr + ": failed sending to " + dest, ex);
+            }
+        }
+        if(full != null) {
+            for(TCPConnection conn: full) {
+                try {
+                    conn.sender.addToQueue(shared);
+                }
+                catch(Exception ex) {
+                    log.error(local_addr + ": failed sending to " + conn.peer_addr, ex);
+                }
+            }
+        }
+        if(send_to_self)
+            receive(local_addr, data, offset, length);
+    }
+
+    /** Returns the connection to dest, creating it if absent, or null if it cannot be established */
+    protected TCPConnection getConnection(Address dest) {
         TCPConnection conn=null;
         try {
             conn=mapper.getConnection(dest);
@@ -187,7 +259,6 @@ public class TCPConnectionMap {
         catch(Throwable t) {
         }
 
-        // 2. Send the message using that connection
         if(conn != null && !conn.isConnected()) { // perhaps not connected because of concurrent connections (JGRP-1549)
             Util.sleepRandom(1, 50);
             try {
@@ -196,16 +267,7 @@ public class TCPConnectionMap {
             catch(Throwable t) {
             }
         }
-
-        if(conn != null) {
-            try {
-                conn.send(data, offset, length);
-            }
-            catch(Exception ex) {
-                mapper.removeConnectionIfPresent(dest,conn);
-                throw ex;
-            }
-        }
+        return conn;
     }
 
     public void start() throws Exception {        
@@ -610,6 +672,11 @@ public class TCPConnectionMap {
                         log.warn("Discarding message because TCP send_queue is full and hasn't been releasing for " + sock_conn_timeout + " ms");
             }
 
+            /** Adds data to the queue without blocking. Returns false if the queue is full or the sender not running */
+            public boolean offer(byte[] data) {
+                return canRun() && send_queue.offer(data);
+            }
+
             public Sender start() {
                 started=true;
                 runner.start();
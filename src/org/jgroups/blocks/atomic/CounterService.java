@@ -34,7 +34,19 @@ public class CounterService {
         return counter_prot.getOrCreateCounter(name, initial_value);
     }
 
-  
+    /**
+     * Returns a counter which reserves a range of range_size values at a time from the cluster-wide counter and hands
+     * them out locally. This is much faster than {@link #getOrCreateCounter(String,long)} when the counter is used to
+     * generate unique IDs, but values are only increasing per member, and unused values of a range are lost
+     * @param name Name of the cluster-wide counter
+     * @param initial_value The initial value of a new counter, ignored if the counter already exists
+     * @param range_size The number of values to reserve at a time
+     * @return The range counter
+     */
+    public RangeCounter getOrCreateRangeCounter(String name, long initial_value, long range_size) {
+        return counter_prot.getOrCreateRangeCounter(name, initial_value, range_size);
+    }
+
     /**
      * Deletes a counter instance (on the coordinator)
      * @param name The name of the counter. No-op if the counter doesn't exist
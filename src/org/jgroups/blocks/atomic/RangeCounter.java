@@ -0,0 +1,37 @@
+package org.jgroups.blocks.atomic;
+
+/**
+ * A counter which reserves ranges of values from a cluster-wide {@link Counter} and hands them out locally, e.g. to
+ * generate unique IDs. Values are unique across the cluster and increasing on a given member, but not across members.
+ * Values can only be added, so there is no decrementAndGet().
+ * @since 3.5
+ */
+public interface RangeCounter {
+
+    public String getName();
+
+    /**
+     * Gets the current value of the cluster-wide counter, which includes the values reserved by all members
+     * @return The current value
+     */
+    public long get();
+
+    /**
+     * Sets the cluster-wide counter to a new value and discards the values reserved by this range counter
+     * @param new_value The new value
+     */
+    public void set(long new_value);
+
+    /**
+     * Returns the next value
+     * @return The new value
+     */
+    public long incrementAndGet();
+
+    /**
+     * Takes the next delta values and returns the last one
+     * @param delta The number of values to take. Must not be negative
+     * @return The last of the values taken
+     */
+    public long addAndGet(long delta);
+}
@@ -77,6 +77,16 @@ public class LockService {
         return lock_prot.printLocks();
     }
 
+    /** Returns the number of locks acquired locally, e.g. from a lease held by this member (see CENTRAL_LOCK.use_leases) */
+    public long getNumLocalAcquisitions() {
+        return lock_prot.getNumLocalAcquisitions();
+    }
+
+    /** Returns the number of locks acquired by contacting the lock server(s) */
+    public long getNumRemoteAcquisitions() {
+        return lock_prot.getNumRemoteAcquisitions();
+    }
+
 
     /**
      * Implementation of {@link Lock}. This is a client stub communicates with a server equivalent. The semantics are
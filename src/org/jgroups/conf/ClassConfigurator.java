@@ -14,6 +14,8 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
 import java.util.*;
 
 /**
@@ -46,6 +48,12 @@ public class ClassConfigurator {
     // Magic map for user-defined IDs / classes
     private static final Map<Short,Class> magicMapUser=new HashMap<Short,Class>(); // key=magic number, value=Class
 
+    // Factories for the classes in magicMap; a class without factory is created with Class.newInstance()
+    private static final ObjectFactory<?>[] factories=new ObjectFactory<?>[MAX_MAGIC_VALUE];
+
+    // Factories for the classes in magicMapUser
+    private static final Map<Short,ObjectFactory<?>> factoriesUser=new HashMap<Short,ObjectFactory<?>>();
+
     /** Contains data read from jg-protocol-ids.xml */
     private static final Map<Class,Short> protocol_ids=new HashMap<Class,Short>(MAX_MAGIC_VALUE);
     private static final Map<Short,Class> protocol_names=new HashMap<Short,Class>(MAX_MAGIC_VALUE);
@@ -60,6 +68,14 @@ public class ClassConfigurator {
         }
     }
 
+    /**
+     * Creates an instance of the class registered for a magic number. Used instead of reflection when reading headers,
+     * addresses and other streamables.
+     */
+    public interface ObjectFactory<T> {
+        T create() throws Exception;
+    }
+
     public ClassConfigurator() {
     }
 
@@ -84,12 +100,13 @@ public class ClassConfigurator {
             if(m >= MAX_MAGIC_VALUE)
                 throw new IllegalArgumentException("ID " + m + " is bigger than MAX_MAGIC_VALUE (" +
                                                      MAX_MAGIC_VALUE + "); increase MAX_MAGIC_VALUE");
-            Class clazz=Util.loadClass(tuple.getVal2(), ClassConfigurator.class);
+            Class<?> clazz=Util.loadClass(tuple.getVal2(), ClassConfigurator.class);
             if(magicMap[m] != null)
                 throw new Exception("key " + m + " (" + clazz.getName() + ')' +
                                       " is already in magic map; please make sure that all keys are unique");
             magicMap[m]=clazz;
             classMap.put(clazz, m);
+            factories[m]=createFactory(clazz);
         }
 
         mapping=readMappings(protocol_id_file); // Read jg-protocol-ids.xml
@@ -126,6 +143,63 @@ public class ClassConfigurator {
     }
 
 
+    /**
+     * Registers a user-defined class with a factory, which is used instead of reflection to create instances
+     * @param magic The magic number. Needs to be > 1024
+     * @param clazz The class. Usually a subclass of Header
+     * @param factory Creates instances of clazz
+     * @throws IllegalArgumentException If the magic number is already taken, or the magic number is <= 1024
+     */
+    public static <T> void add(short magic, Class<T> clazz, ObjectFactory<? extends T> factory)
+      throws IllegalArgumentException {
+        add(magic, clazz);
+        if(factory != null)
+            factoriesUser.put(magic, factory);
+    }
+
+    /**
+     * Sets the factory for the class registered under a magic number, replacing an existing factory. A null factory
+     * reverts to reflection
+     * @throws IllegalArgumentException If no class is registered for the magic number
+     */
+    public static void setFactory(short magic, ObjectFactory<?> factory) throws IllegalArgumentException {
+        if(get(magic) == null)
+            throw new IllegalArgumentException("no class registered for magic number " + magic);
+        if(magic < MIN_CUSTOM_MAGIC_NUMBER)
+            factories[magic]=factory;
+        else if(factory != null)
+            factoriesUser.put(magic, factory);
+        else
+            factoriesUser.remove(magic);
+    }
+
+    public static ObjectFactory<?> getFactory(short magic) {
+        return magic < MIN_CUSTOM_MAGIC_NUMBER? factories[magic] : factoriesUser.get(magic);
+    }
+
+    /**
+     * Creates an instance of the class registered for a magic number, using its factory if one is registered, or
+     * {@link Class#newInstance()} otherwise
+     * @return The new instance, or null if no class is registered for the magic number
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T create(short magic) throws Exception {
+        ObjectFactory<?> factory;
+        Class<?> clazz;
+        if(magic < MIN_CUSTOM_MAGIC_NUMBER) {
+            factory=factories[magic];
+            clazz=magicMap[magic];
+        }
+        else {
+            factory=factoriesUser.get(magic);
+            clazz=magicMapUser.get(magic);
+        }
+        if(factory != null)
+            return (T)factory.create();
+        return clazz != null? (T)clazz.newInstance() : null;
+    }
+
+
     public static void addProtocol(short id, Class protocol) {
         if(id <= MIN_CUSTOM_PROTOCOL_ID)
             throw new IllegalArgumentException("protocol ID (" + id + ") needs to be greater than " + MIN_CUSTOM_PROTOCOL_ID);
@@ -184,6 +258,26 @@ public class ClassConfigurator {
     }
 
 
+    /**
+     * Creates a factory for a class in jg-magic-map.xml, which calls its no-arg constructor. The constructor is looked
+     * up (and made accessible) once, so {@link #create(short)} skips the lookup and access checks of
+     * {@link Class#newInstance()}. Returns null (reflection is used) for abstract classes, classes without a no-arg
+     * constructor, or if the constructor cannot be made accessible
+     */
+    protected static <T> ObjectFactory<T> createFactory(Class<T> clazz) {
+        if(clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()))
+            return null;
+        try {
+            Constructor<T> ctor=clazz.getDeclaredConstructor();
+            ctor.setAccessible(true);
+            return new ConstructorFactory<T>(ctor);
+        }
+        catch(Exception ex) { // NoSuchMethodException, SecurityException
+            return null;
+        }
+    }
+
+
     public String toString() {
         return printMagicMap();
     }
@@ -256,4 +350,19 @@ public class ClassConfigurator {
     }
 
 
+    protected static class ConstructorFactory<T> implements ObjectFactory<T> {
+        protected final Constructor<T> ctor;
+
+        public ConstructorFactory(Constructor<T> ctor) {
+            this.ctor=ctor;
+        }
+
+        public T create() throws Exception {
+            return ctor.newInstance();
+        }
+
+        public String toString() {
+            return ctor.getDeclaringClass().getName() + "()";
+        }
+    }
 }
@@ -2,6 +2,7 @@ package org.jgroups.demos;
 
 import org.jgroups.blocks.Cache;
 import org.jgroups.blocks.MemcachedConnector;
+import org.jgroups.blocks.NioMemcachedConnector;
 import org.jgroups.blocks.PartitionedHashMap;
 import org.jgroups.jmx.JmxConfigurator;
 
@@ -10,11 +11,12 @@ import java.net.InetAddress;
 import java.lang.management.ManagementFactory;
 
 /** Server process which listens for memcached requests and forwards them to an instance of PartitionedHashMap.
- * Uses MemcachedConnector and PartitionedHashMap.
+ * Uses MemcachedConnector (or NioMemcachedConnector with -nio) and PartitionedHashMap.
  * @author Bela Ban
  */
 public class MemcachedServer {
     private MemcachedConnector connector;
+    private NioMemcachedConnector nio_connector;
     private PartitionedHashMap<String, byte[]> cache;
     private static final String BASENAME="memcached";
 
@@ -22,12 +24,18 @@ public class MemcachedServer {
     private void start(String props, InetAddress bind_addr, int port, int min_threads, int max_threads,
                        long rpc_timeout, long caching_time, boolean migrate_data, boolean use_l1_cache,
                        int l1_max_entries, long l1_reaping_interval,
-                       int l2_max_entries, long l2_reaping_interval) throws Exception {
+                       int l2_max_entries, long l2_reaping_interval, boolean nio) throws Exception {
         MBeanServer server=ManagementFactory.getPlatformMBeanServer();
-        connector=new MemcachedConnector(bind_addr, port, null);
-        connector.setThreadPoolCoreThreads(min_threads);
-        connector.setThreadPoolMaxThreads(max_threads);
-        JmxConfigurator.register(connector, server, BASENAME + ":name=connector");
+        if(nio) {
+            nio_connector=new NioMemcachedConnector(bind_addr, port, null).setMaxThreads(max_threads);
+            JmxConfigurator.register(nio_connector, server, BASENAME + ":name=connector");
+        }
+        else {
+            connector=new MemcachedConnector(bind_addr, port, null);
+            connector.setThreadPoolCoreThreads(min_threads);
+            connector.setThreadPoolMaxThreads(max_threads);
+            JmxConfigurator.register(connector, server, BASENAME + ":name=connector");
+        }
 
         cache=new PartitionedHashMap(props, "memcached-cluster");
         cache.setCallTimeout(rpc_timeout);
@@ -54,17 +62,29 @@ public class MemcachedServer {
                 l2_cache.enableReaping(l2_reaping_interval);
         }
 
-        connector.setCache(cache);
+        if(connector != null)
+            connector.setCache(cache);
+        else
+            nio_connector.setCache(cache);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 cache.stop();
-                try {connector.stop();} catch(Exception e) {}
+                try {
+                    if(connector != null)
+                        connector.stop();
+                    else
+                        nio_connector.stop();
+                }
+                catch(Exception e) {}
             }
         });
 
         cache.start();
-        connector.start();
+        if(connector != null)
+            connector.start();
+        else
+            nio_connector.start();
     }
 
 
@@ -75,7 +95,7 @@ public class MemcachedServer {
         String props="udp.xml";
         int min_threads=1, max_threads=500;
         long rpc_timeout=1500L, caching_time=30000L;
-        boolean migrate_data=true, use_l1_cache=true;
+        boolean migrate_data=true, use_l1_cache=true, nio=false;
         int l1_max_entries=5000, l2_max_entries=-1;
         long l1_reaping_interval=-1, l2_reaping_interval=30000L;
 
@@ -132,13 +152,17 @@ public class MemcachedServer {
                 l2_reaping_interval=Long.parseLong(args[++i]);
                 continue;
             }
+            if(args[i].equals("-nio")) {
+                nio=true;
+                continue;
+            }
             
             help();
             return;
         }
         new MemcachedServer().start(props, bind_addr, port, min_threads, max_threads, rpc_timeout, caching_time,
                                     migrate_data, use_l1_cache, l1_max_entries, l1_reaping_interval,
-                                    l2_max_entries, l2_reaping_interval);
+                                    l2_max_entries, l2_reaping_interval, nio);
     }
 
     private static void help() {
@@ -146,6 +170,6 @@ public class MemcachedServer {
                 "[-min_threads <min>] [-max_threads <max>] [-rpc_timeout <ms>] [-caching_time <ms>] " +
                 "[-migrate_data <true|false>] [-use_l1_cache <true|false>] " +
                 "[-l1_max_entries <num>] [-l1_reaping_interval <ms>] " +
-                "[-l2_max_entries <num>] [-l2_reaping_interval <ms>] ");
+                "[-l2_max_entries <num>] [-l2_reaping_interval <ms>] [-nio]");
     }
 }
@@ -62,15 +62,14 @@ public class AuthHeader extends Header {
     protected static AuthToken readAuthToken(DataInput in) throws Exception {
         if(in.readByte() == 0) return null;
         short id=in.readShort();
-        Class<?> clazz;
+        AuthToken retval;
         if(id >= 0) {
-            clazz=ClassConfigurator.get(id);
+            retval=ClassConfigurator.create(id);
         }
         else {
             String classname=in.readUTF();
-            clazz=Class.forName(classname);
+            retval=(AuthToken)Class.forName(classname).newInstance();
         }
-        AuthToken retval=(AuthToken)clazz.newInstance();
         retval.readFrom(in);
         return retval;
     }
@@ -1,20 +1,36 @@
 package org.jgroups.protocols;
 
 import org.jgroups.Address;
+import org.jgroups.Event;
 import org.jgroups.View;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
+import org.jgroups.blocks.executor.ExecutionService.DistributedFuture;
+import org.jgroups.blocks.executor.ExecutorEvent;
+import org.jgroups.blocks.executor.ExecutorNotification;
+import org.jgroups.util.RequestBatcher;
+import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.*;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * This is a central executor service where each request is sent to the coordinator
  * for either a task or a current waiting thread.
+ * <p/>
+ * With work_stealing enabled, the coordinator is not involved: every task is hashed to a member and sent to it
+ * directly, submissions to the same member are sent in batches, and each member queues the tasks it received for
+ * its consumers. A member whose consumers are idle steals queued tasks from a random member, waiting longer after
+ * every unsuccessful steal. The results are sent from the member running a task directly to the client.
  * 
  * @author wburns
  * @since 2.12.0
@@ -24,6 +40,20 @@ public class CENTRAL_EXECUTOR extends Executing {
     @Property(description="Number of backups to the coordinator.  Queue State gets replicated to these nodes as well")
     protected int num_backups=1;
 
+    @Property(description="Hashes tasks to members instead of matching them with consumers through the " +
+      "coordinator. Idle members steal queued tasks from other members",writable=false)
+    protected boolean work_stealing=false;
+
+    @Property(description="Max number of tasks sent to a member in one message (work stealing only)",writable=false)
+    protected int max_batch_size=100;
+
+    @Property(description="Time (ms) an idle consumer waits for a task before trying to steal again (work stealing only)")
+    protected long steal_interval=50;
+
+    @Property(description="Max time (ms) between steal requests. The time after an unsuccessful steal is doubled up " +
+      "to this value, and reset to steal_interval when a task arrives (work stealing only)")
+    protected long max_steal_interval=5000;
+
     protected Address coord;
 
     @ManagedAttribute
@@ -31,6 +61,26 @@ public class CENTRAL_EXECUTOR extends Executing {
 
     protected final List<Address> backups=new ArrayList<Address>();
 
+    /** Tasks (from any client) queued for the consumers of this member. Consumers take from the head, thieves from the tail */
+    protected final BlockingDeque<Task> local_tasks=new LinkedBlockingDeque<Task>();
+
+    /** The members which (possibly) have our tasks, keyed by request-id. Guarded by synchronizing on it */
+    protected final Map<Long,List<Address>> task_locations=new HashMap<Long,List<Address>>();
+
+    /** Batches the tasks submitted to the same member */
+    protected RequestBatcher<Task> batcher;
+
+    protected final AtomicBoolean steal_pending=new AtomicBoolean(false);
+
+    protected volatile long       next_steal; // no steal requests before this time (after an unsuccessful steal)
+
+    protected volatile long       steal_backoff; // time between steal requests, 0 after a task arrived
+
+    protected final AtomicInteger idle_consumers=new AtomicInteger();
+
+    protected final AtomicLong    num_steal_requests=new AtomicLong(), num_tasks_stolen=new AtomicLong(),
+                                  num_tasks_given=new AtomicLong();
+
 
     public CENTRAL_EXECUTOR() {
         super();
@@ -62,6 +112,85 @@ public class CENTRAL_EXECUTOR extends Executing {
         return backups != null? backups.toString() : null;
     }
 
+    public boolean getWorkStealing() {
+        return work_stealing;
+    }
+
+    public CENTRAL_EXECUTOR setWorkStealing(boolean work_stealing) {
+        this.work_stealing=work_stealing;
+        return this;
+    }
+
+    @ManagedAttribute(description="Number of tasks queued for the consumers of this member (work stealing only)")
+    public int getNumQueuedTasks() {
+        return local_tasks.size();
+    }
+
+    @ManagedAttribute(description="Current time (ms) between steal requests, 0 if the last steal was successful")
+    public long getStealBackoff() {
+        return steal_backoff;
+    }
+
+    @ManagedAttribute(description="Number of steal requests sent to other members")
+    public long getNumStealRequests() {
+        return num_steal_requests.get();
+    }
+
+    @ManagedAttribute(description="Number of tasks stolen from other members")
+    public long getNumTasksStolen() {
+        return num_tasks_stolen.get();
+    }
+
+    @ManagedAttribute(description="Number of queued tasks handed over to other members")
+    public long getNumTasksGiven() {
+        return num_tasks_given.get();
+    }
+
+    @ManagedAttribute(description="Number of tasks sent to other members")
+    public long getNumTasksSent() {
+        return batcher != null? batcher.getNumRequests() : 0;
+    }
+
+    @ManagedAttribute(description="Average number of tasks per message sent to other members")
+    public double getAverageBatchSize() {
+        return batcher != null? batcher.getAverageBatchSize() : 0;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_steal_requests.set(0);
+        num_tasks_stolen.set(0);
+        num_tasks_given.set(0);
+        if(batcher != null)
+            batcher.resetStats();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        batcher=new RequestBatcher<Task>(new RequestBatcher.Sender<Task>() {
+            public void send(Address dest, List<Task> tasks) {
+                sendRequest(dest, Type.RUN_BATCH, -1, new TaskBatch(null, tasks, true));
+            }
+        }, max_batch_size);
+    }
+
+    public Object down(Event evt) {
+        if(work_stealing) {
+            switch(evt.getType()) {
+                case ExecutorEvent.TASK_SUBMIT:
+                    submit((Runnable)evt.getArg());
+                    return null;
+                case ExecutorEvent.CONSUMER_READY:
+                    return takeTask();
+                case ExecutorEvent.TASK_CANCEL:
+                    return cancel((Object[])evt.getArg());
+                case ExecutorEvent.ALL_TASK_CANCEL:
+                    return cancelAll((Object[])evt.getArg());
+            }
+        }
+        return super.down(evt);
+    }
+
     public void handleView(View view) {
         Address oldCoord = coord;
         if(view.size() > 0) {
@@ -79,7 +208,7 @@ public class CENTRAL_EXECUTOR extends Executing {
         // consumer is changing we may have duplicates.  But this is technically
         // okay in that an extra consumer will reject and an extra task will just
         // be ran and return nowhere, but at least we won't lose data.
-        if (oldCoord != coord) {
+        if (oldCoord != coord && !work_stealing) {
             for (Long requests : _requestId.values()) {
                 sendToCoordinator(Type.RUN_REQUEST, requests, local_addr);
             }
@@ -131,8 +260,312 @@ public class CENTRAL_EXECUTOR extends Executing {
             }
         }
         
+        List<Address> left=this.view != null? Util.leftMembers(this.view.getMembers(), view.getMembers()) : null;
+
         // Need to run this last so the backups are updated
         super.handleView(view);
+
+        if(work_stealing) {
+            steal_pending.set(false); // the response may never come if the member we asked left
+            if(left != null && !left.isEmpty())
+                handleLeftMembers(left);
+        }
+    }
+
+    protected void handleValueResponse(Address source, long requestId, Object value) {
+        if(work_stealing) {
+            removeLocations(requestId);
+            source=local_addr; // our tasks are registered under our own address, as any member may run them
+        }
+        super.handleValueResponse(source, requestId, value);
+    }
+
+    protected void handleExceptionResponse(Address source, long requestId, Throwable throwable) {
+        if(work_stealing) {
+            removeLocations(requestId);
+            source=local_addr;
+        }
+        super.handleExceptionResponse(source, requestId, throwable);
+    }
+
+    protected void handleTaskRejectedResponse(Address source, long requestId) {
+        if(!work_stealing) {
+            super.handleTaskRejectedResponse(source, requestId);
+            return;
+        }
+        Runnable runnable=_awaitingReturn.get(new Owner(local_addr, requestId));
+        if(runnable != null)
+            submit(new Task(new Owner(local_addr, requestId), runnable));
+    }
+
+    protected void handleInterruptRequest(Address source, long requestId) {
+        if(work_stealing && removeQueuedTask(new Owner(source, requestId)))
+            return;
+        super.handleInterruptRequest(source, requestId);
+    }
+
+    protected void handleWorkStealingRequest(Address sender, Request req) {
+        switch(req.type) {
+            case RUN_BATCH:
+                local_tasks.addAll(((TaskBatch)req.object).tasks);
+                resetStealBackoff();
+                break;
+            case STEAL_REQUEST:
+                handleStealRequest(sender, (int)req.request);
+                break;
+            case STEAL_RESPONSE:
+                List<Task> tasks=((TaskBatch)req.object).tasks;
+                if(tasks.isEmpty())
+                    stealFailed();
+                else {
+                    num_tasks_stolen.addAndGet(tasks.size());
+                    local_tasks.addAll(tasks);
+                    resetStealBackoff();
+                }
+                steal_pending.set(false);
+                break;
+            case TASKS_MOVED:
+                TaskBatch batch=(TaskBatch)req.object;
+                for(Task task: batch.tasks)
+                    addLocation(task.owner.getRequestId(), batch.location, false);
+                break;
+        }
+    }
+
+    /** Sends the task to the member it is hashed to (work stealing only) */
+    protected void submit(Runnable runnable) {
+        long request_id=nextRequestId();
+        Owner owner=new Owner(local_addr, request_id);
+        _requestId.put(runnable, request_id);
+        _awaitingReturn.put(owner, runnable);
+        submit(new Task(owner, runnable));
+    }
+
+    protected void submit(Task task) {
+        Address target=pickMember(task.owner.getRequestId());
+        addLocation(task.owner.getRequestId(), target, true);
+        if(target == null || target.equals(local_addr)) {
+            local_tasks.add(task);
+            resetStealBackoff();
+            return;
+        }
+        // sent by the submitting thread: tasks submitted by other threads while it is sending go into the next batch
+        batcher.send(target, task);
+    }
+
+    /** Blocks until a task is available locally, stealing tasks from other members while idle */
+    protected Runnable takeTask() {
+        Thread current=Thread.currentThread();
+        try {
+            for(;;) {
+                Task task=local_tasks.poll();
+                if(task == null) {
+                    idle_consumers.incrementAndGet();
+                    try {
+                        steal();
+                        task=local_tasks.poll(steal_interval, TimeUnit.MILLISECONDS);
+                    }
+                    finally {
+                        idle_consumers.decrementAndGet();
+                    }
+                }
+                if(task != null) {
+                    _running.put(task.runnable, task.owner);
+                    _runnableThreads.put(task.runnable, current);
+                    return task.runnable;
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            if(log.isDebugEnabled())
+                log.debug("Consumer " + current.getId() + " stopped via interrupt");
+            current.interrupt();
+            return null;
+        }
+    }
+
+    /** Asks a random member for some of its queued tasks, unless a steal request is already pending */
+    protected void steal() {
+        if(System.currentTimeMillis() < next_steal || !steal_pending.compareAndSet(false, true))
+            return;
+        View tmp=view;
+        List<Address> others=tmp != null? new ArrayList<Address>(tmp.getMembers()) : new ArrayList<Address>();
+        others.remove(local_addr);
+        if(others.isEmpty()) {
+            stealFailed();
+            steal_pending.set(false);
+            return;
+        }
+        num_steal_requests.incrementAndGet();
+        sendRequest(Util.pickRandomElement(others), Type.STEAL_REQUEST, Math.max(1, idle_consumers.get()), null);
+    }
+
+    /** Doubles the time until the next steal request (starting with steal_interval), up to max_steal_interval */
+    protected void stealFailed() {
+        long backoff=steal_backoff > 0? Math.min(steal_backoff * 2, max_steal_interval) : steal_interval;
+        steal_backoff=Math.max(backoff, steal_interval);
+        next_steal=System.currentTimeMillis() + steal_backoff;
+    }
+
+    /** Called when a task arrives: the next idle consumer may steal right away */
+    protected void resetStealBackoff() {
+        if(steal_backoff > 0) {
+            steal_backoff=0;
+            next_steal=0;
+        }
+    }
+
+    /** Hands over up to half of the queued tasks (from the tail of the queue) to an idle member */
+    protected void handleStealRequest(Address thief, int num_idle) {
+        int max=Math.min(num_idle, (local_tasks.size() + 1) / 2);
+        List<Task> stolen=new ArrayList<Task>(max);
+        Task task;
+        while(stolen.size() < max && (task=local_tasks.pollLast()) != null)
+            stolen.add(task);
+        if(!stolen.isEmpty()) {
+            num_tasks_given.addAndGet(stolen.size());
+            notifyTasksMoved(thief, stolen);
+        }
+        sendRequest(thief, Type.STEAL_RESPONSE, -1, new TaskBatch(null, stolen, true));
+    }
+
+    /**
+     * Tells the clients of stolen tasks where they went, so they can resubmit them if the thief crashes. This is
+     * done before the tasks are sent, so a client never misses the new location of a task
+     */
+    protected void notifyTasksMoved(Address thief, List<Task> stolen) {
+        Map<Address,List<Task>> clients=new HashMap<Address,List<Task>>();
+        for(Task task: stolen) {
+            Address client=task.owner.getAddress();
+            if(client.equals(local_addr)) {
+                addLocation(task.owner.getRequestId(), thief, false);
+                continue;
+            }
+            List<Task> list=clients.get(client);
+            if(list == null)
+                clients.put(client, list=new ArrayList<Task>());
+            list.add(task);
+        }
+        for(Map.Entry<Address,List<Task>> entry: clients.entrySet())
+            sendRequest(entry.getKey(), Type.TASKS_MOVED, -1, new TaskBatch(thief, entry.getValue(), false));
+    }
+
+    /** Resubmits our tasks which may have been lost with the left members and drops the tasks of left clients */
+    protected void handleLeftMembers(List<Address> left) {
+        List<Long> lost=new ArrayList<Long>();
+        synchronized(task_locations) {
+            for(Map.Entry<Long,List<Address>> entry: task_locations.entrySet()) {
+                for(Address location: entry.getValue()) {
+                    if(left.contains(location)) {
+                        lost.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+        }
+        for(long request_id: lost) {
+            Owner owner=new Owner(local_addr, request_id);
+            Runnable runnable=_awaitingReturn.get(owner);
+            if(runnable != null) {
+                if(log.isDebugEnabled())
+                    log.debug("resubmitting task " + owner + " as its member left");
+                submit(new Task(owner, runnable));
+            }
+        }
+        for(Iterator<Task> it=local_tasks.iterator(); it.hasNext();) {
+            if(left.contains(it.next().owner.getAddress()))
+                it.remove();
+        }
+    }
+
+    protected Object cancel(Object[] args) {
+        Runnable runnable=(Runnable)args[0];
+        Long request_id=_requestId.get(runnable);
+        if(request_id == null)
+            return Boolean.FALSE;
+        Owner owner=new Owner(local_addr, request_id);
+        if(!removeQueuedTask(owner)) {
+            if(args[1] != Boolean.TRUE)
+                return Boolean.FALSE;
+            // we don't know which member runs the task: everybody removes or interrupts it
+            sendRequest(null, Type.INTERRUPT_RUN, request_id, null);
+        }
+        removeTask(runnable, owner);
+        ExecutorNotification notification=notifiers.remove(runnable);
+        if(notification != null)
+            notification.interrupted(runnable);
+        return Boolean.TRUE;
+    }
+
+    protected Object cancelAll(Object[] args) {
+        @SuppressWarnings("unchecked")
+        Set<Runnable> runnables=(Set<Runnable>)args[0];
+        boolean interrupt=args[1] == Boolean.TRUE;
+        List<Runnable> not_ran=new ArrayList<Runnable>();
+        for(Runnable runnable: runnables) {
+            Long request_id=_requestId.get(runnable);
+            if(request_id == null)
+                continue;
+            Owner owner=new Owner(local_addr, request_id);
+            if(!removeQueuedTask(owner) && interrupt) {
+                sendRequest(null, Type.INTERRUPT_RUN, request_id, null);
+                removeTask(runnable, owner);
+                ExecutorNotification notification=notifiers.remove(runnable);
+                if(notification != null)
+                    notification.interrupted(runnable);
+            }
+            else {
+                _requestId.remove(runnable);
+                not_ran.add(runnable);
+            }
+        }
+        return not_ran;
+    }
+
+    protected boolean removeQueuedTask(Owner owner) {
+        for(Iterator<Task> it=local_tasks.iterator(); it.hasNext();) {
+            if(it.next().owner.equals(owner)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected void removeTask(Runnable runnable, Owner owner) {
+        _requestId.remove(runnable);
+        _awaitingReturn.remove(owner);
+        removeLocations(owner.getRequestId());
+    }
+
+    /** Picks the member a task is hashed to */
+    protected Address pickMember(long request_id) {
+        View tmp=view;
+        if(tmp == null || tmp.size() == 0)
+            return local_addr;
+        List<Address> mbrs=tmp.getMembers();
+        int hash=(int)(request_id ^ (request_id >>> 32)) + (local_addr != null? local_addr.hashCode() : 0);
+        return mbrs.get((hash & Integer.MAX_VALUE) % mbrs.size());
+    }
+
+    protected void addLocation(long request_id, Address location, boolean reset) {
+        synchronized(task_locations) {
+            List<Address> locations=task_locations.get(request_id);
+            if(locations == null) {
+                if(!reset)
+                    return; // the result was already received
+                task_locations.put(request_id, locations=new ArrayList<Address>(2));
+            }
+            if(reset)
+                locations.clear();
+            locations.add(location);
+        }
+    }
+
+    protected void removeLocations(long request_id) {
+        synchronized(task_locations) {
+            task_locations.remove(request_id);
+        }
     }
 
     protected void updateBackups(Type type, Owner obj) {
@@ -222,4 +655,82 @@ public class CENTRAL_EXECUTOR extends Executing {
         if(is_coord)
             updateBackups(Type.DELETE_CONSUMER_READY, sender);
     }
+
+
+    /** A task queued for (or sent to) a member. The payload is the object sent over the wire */
+    protected static class Task {
+        protected final Owner    owner;    // the client and the request-id
+        protected final Object   payload;  // the Callable or Runnable to send
+        protected final Runnable runnable; // what the consumer runs
+
+        protected Task(Owner owner, Runnable runnable) {
+            this(owner, runnable instanceof DistributedFuture? ((DistributedFuture<?>)runnable).getCallable() : runnable,
+                 runnable);
+        }
+
+        protected Task(Owner owner, Object payload, Runnable runnable) {
+            this.owner=owner;
+            this.payload=payload;
+            this.runnable=runnable;
+        }
+
+        public String toString() {
+            return owner + ": " + payload;
+        }
+    }
+
+    /** A list of tasks, optionally without their payload (e.g. to tell a client that its tasks moved to location) */
+    public static class TaskBatch implements Streamable {
+        protected Address    location;
+        protected List<Task> tasks;
+        protected boolean    with_payload;
+
+        public TaskBatch() {
+        }
+
+        public TaskBatch(Address location, List<Task> tasks, boolean with_payload) {
+            this.location=location;
+            this.tasks=tasks;
+            this.with_payload=with_payload;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            Util.writeAddress(location, out);
+            out.writeBoolean(with_payload);
+            out.writeInt(tasks.size());
+            for(Task task: tasks) {
+                Util.writeAddress(task.owner.getAddress(), out);
+                out.writeLong(task.owner.getRequestId());
+                if(with_payload) {
+                    byte[] bytes=Util.objectToByteBuffer(task.payload);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            location=Util.readAddress(in);
+            with_payload=in.readBoolean();
+            int size=in.readInt();
+            tasks=new ArrayList<Task>(size);
+            for(int i=0; i < size; i++) {
+                Owner owner=new Owner(Util.readAddress(in), in.readLong());
+                Object payload=null;
+                Runnable runnable=null;
+                if(with_payload) {
+                    byte[] bytes=new byte[in.readInt()];
+                    in.readFully(bytes);
+                    payload=Util.objectFromByteBuffer(bytes);
+                    if((runnable=toRunnable(payload)) == null)
+                        throw new IllegalArgumentException("task " + payload + " is neither a Runnable nor a Callable");
+                }
+                tasks.add(new Task(owner, payload, runnable));
+            }
+        }
+
+        public String toString() {
+            return tasks.size() + " tasks" + (location != null? " (location: " + location + ")" : "");
+        }
+    }
 }
@@ -3,12 +3,14 @@ package org.jgroups.protocols;
 import org.jgroups.Address;
 import org.jgroups.View;
 import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.blocks.locking.LockNotification;
 import org.jgroups.util.Owner;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -24,6 +26,12 @@ import java.util.*;
  * B in turn copies all existing locks over to C and - when locks are acquired or released - forwards this
  * information to C as well.
  * <p/>
+ * When use_leases is true, a member keeps a lease on a lock after the lock has been released. As long as it holds the
+ * lease, the lock can be re-acquired by any thread of that member without contacting the coordinator. When a different
+ * owner requests the lock, the coordinator sends a REVOKE_LEASE to the member holding the lease, which then releases
+ * the lock as soon as it isn't used locally any longer. This saves the round trips to the coordinator when the same
+ * member acquires the same lock repeatedly (and nobody else wants it).
+ * <p/>
  * An alternative is also the {@link org.jgroups.protocols.PEER_LOCK} protocol.
  * @author Bela Ban
  * @since 2.12
@@ -35,6 +43,11 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
     @Property(description="Number of backups to the coordinator. Server locks get replicated to these nodes as well")
     protected int num_backups=1;
 
+    @Property(description="If true, a member keeps a lease on a lock it released and re-acquires it locally until the " +
+      "coordinator revokes the lease because a different owner wants the lock. Note that tryLock() without timeout " +
+      "fails while a different member holds the lease (which is then revoked)")
+    protected boolean use_leases=false;
+
     protected Address coord;
 
     @ManagedAttribute
@@ -42,6 +55,11 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
 
     protected final List<Address> backups=new ArrayList<Address>();
 
+    /** Leases held by this member, keyed by lock name. Guarded by synchronizing on leases */
+    protected final Map<String,Lease> leases=new HashMap<String,Lease>();
+
+    protected final AtomicLong num_revoked_leases=new AtomicLong();
+
 
     public CENTRAL_LOCK() {
         super();
@@ -74,16 +92,143 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
         return backups != null? backups.toString() : null;
     }
 
+    public boolean getUseLeases() {
+        return use_leases;
+    }
+
+    public CENTRAL_LOCK setUseLeases(boolean use_leases) {
+        this.use_leases=use_leases;
+        return this;
+    }
+
+    @ManagedAttribute(description="Number of leases currently held by this member")
+    public int getNumLeases() {
+        synchronized(leases) {
+            return leases.size();
+        }
+    }
+
+    @ManagedAttribute(description="Number of leases revoked by the coordinator")
+    public long getNumRevokedLeases() {
+        return num_revoked_leases.get();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_revoked_leases.set(0);
+    }
+
+    protected boolean useLeases() {
+        return use_leases;
+    }
+
+    @ManagedOperation(description="Releases all leases which are currently not used by a local lock holder")
+    public void releaseLeases() {
+        List<Lease> idle=new ArrayList<Lease>();
+        synchronized(leases) {
+            for(Iterator<Lease> it=leases.values().iterator(); it.hasNext();) {
+                Lease lease=it.next();
+                if(lease.holder == null) {
+                    it.remove();
+                    idle.add(lease);
+                }
+            }
+        }
+        if(coord != null)
+            for(Lease lease: idle)
+                sendRequest(coord, Type.RELEASE_LOCK, lease.lock_name, lease.owner, 0, false);
+    }
+
+    public String printLocks() {
+        String locks=super.printLocks();
+        synchronized(leases) {
+            return leases.isEmpty()? locks : locks + "\nleases: " + leases;
+        }
+    }
+
+    public void unlockAll() {
+        super.unlockAll();
+        if(use_leases)
+            releaseLeases();
+    }
+
     protected void sendGrantLockRequest(String lock_name, int lock_id, Owner owner, long timeout, boolean is_trylock) {
+        if(use_leases) {
+            Type local_rsp=null;
+            boolean queued=false;
+            synchronized(leases) {
+                Lease lease=leases.get(lock_name);
+                if(lease != null && !lease.revoked) {
+                    if(lease.holder == null) {
+                        lease.holder=owner;
+                        local_rsp=Type.LOCK_GRANTED;
+                    }
+                    else if(is_trylock && timeout <= 0)
+                        local_rsp=Type.LOCK_DENIED;
+                    else
+                        queued=lease.waiters.add(new Request(Type.GRANT_LOCK, lock_name, owner, timeout, is_trylock).lockId(lock_id));
+                }
+            }
+            if(local_rsp != null)
+                grantOrDenyLocally(local_rsp, lock_name, lock_id, owner);
+            if(local_rsp != null || queued)
+                return;
+        }
         if(coord != null)
             sendRequest(coord, Type.GRANT_LOCK, lock_name, lock_id, owner, timeout, is_trylock);
     }
 
     protected void sendReleaseLockRequest(String lock_name, Owner owner) {
+        if(use_leases && releaseLocally(lock_name, owner))
+            return;
         if(coord != null)
             sendRequest(coord, Type.RELEASE_LOCK, lock_name, owner, 0, false);
     }
 
+    /** Creates a lease when the coordinator granted a lock which is still wanted by its owner */
+    protected void handleLockGrantedResponse(String lock_name, int lock_id, Owner owner) {
+        if(!use_leases) {
+            super.handleLockGrantedResponse(lock_name, lock_id, owner);
+            return;
+        }
+        ClientLock lock=client_lock_table.getLock(lock_name, owner, false);
+        if(lock == null)
+            return;
+        synchronized(lock) {
+            if(lock.owner == null || lock.lock_id != lock_id) // released in the meantime: the coordinator will get a RELEASE_LOCK
+                return;
+            synchronized(leases) {
+                Lease prev=leases.put(lock_name, new Lease(lock_name, owner));
+                if(prev != null)
+                    log.warn("%s: replaced lease %s on %s with %s", local_addr, prev.owner, lock_name, owner);
+            }
+            lock.handleLockGrantedResponse(lock_id);
+        }
+    }
+
+    /**
+     * Releases the lease when it is not used locally, or else marks it as revoked, so that it is released when the
+     * local holder unlocks it
+     */
+    protected void handleRevokeLeaseRequest(String lock_name, Owner owner) {
+        boolean release=true;
+        synchronized(leases) {
+            Lease lease=leases.get(lock_name);
+            if(lease != null && lease.owner.equals(owner)) {
+                num_revoked_leases.incrementAndGet();
+                if(lease.holder != null) {
+                    lease.revoked=true;
+                    release=false;
+                }
+                else
+                    leases.remove(lock_name);
+            }
+        }
+        // no (idle) lease: releasing is idempotent, so we release in any case to never leave the lock stuck
+        if(release && coord != null)
+            sendRequest(coord, Type.RELEASE_LOCK, lock_name, owner, 0, false);
+    }
+
     protected void sendCreateLockRequest(Address dest, String lock_name, Owner owner) {
         sendRequest(dest, Type.CREATE_LOCK, lock_name, owner, 0, false);
     }
@@ -94,6 +239,18 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
 
     @Override
     protected void sendAwaitConditionRequest(String lock_name, Owner owner) {
+        if(use_leases) {
+            // the lease is given up, as the coordinator releases the lock on LOCK_AWAIT
+            Lease lease;
+            synchronized(leases) {
+                lease=leases.remove(lock_name);
+            }
+            if(lease != null) {
+                if(!lease.owner.equals(owner))
+                    sendRequest(coord, Type.RELEASE_LOCK, lock_name, lease.owner, 0, false);
+                sendWaitersToCoord(lease);
+            }
+        }
         sendRequest(coord, Type.LOCK_AWAIT, lock_name, owner, 0, false);
     }
 
@@ -134,8 +291,77 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
         }
 
         // For all non-acquired client locks, send the GRANT_LOCK request to the new coordinator (if changed)
-        if(old_coord != null && !old_coord.equals(coord))
+        if(old_coord != null && !old_coord.equals(coord)) {
+            if(use_leases)
+                handleCoordChange();
             client_lock_table.resendPendingLockRequests();
+        }
+    }
+
+    /**
+     * The new coordinator may not know about our leases (e.g. with num_backups=0): release idle leases and revoke
+     * the others. Local waiters are removed as the pending requests are resent to the new coordinator anyway
+     */
+    protected void handleCoordChange() {
+        synchronized(leases) {
+            for(Lease lease: leases.values()) {
+                lease.revoked=true;
+                lease.waiters.clear();
+            }
+        }
+        releaseLeases();
+    }
+
+    /**
+     * Releases a lock acquired locally: the lease is handed over to the next local waiter, or kept if there isn't
+     * any, or released if it was revoked
+     * @return True if the lock was released locally, false if a RELEASE_LOCK needs to be sent to the coordinator
+     */
+    protected boolean releaseLocally(String lock_name, Owner owner) {
+        Request next=null;
+        Lease revoked=null;
+        synchronized(leases) {
+            Lease lease=leases.get(lock_name);
+            if(lease == null)
+                return false;
+            if(!owner.equals(lease.holder))
+                return lease.removeWaiter(owner); // a local waiter gave up (e.g. tryLock() timed out)
+            lease.holder=null;
+            if(lease.revoked) {
+                leases.remove(lock_name);
+                revoked=lease;
+            }
+            else if((next=lease.waiters.poll()) != null)
+                lease.holder=next.owner;
+        }
+        if(next != null)
+            grantOrDenyLocally(Type.LOCK_GRANTED, lock_name, next.lock_id, next.owner);
+        if(revoked != null) {
+            if(coord != null)
+                sendRequest(coord, Type.RELEASE_LOCK, lock_name, revoked.owner, 0, false);
+            sendWaitersToCoord(revoked);
+        }
+        return true;
+    }
+
+    /** The local waiters of a lease which is given up have to get the lock from the coordinator */
+    protected void sendWaitersToCoord(Lease lease) {
+        Request req;
+        while((req=lease.waiters.poll()) != null)
+            if(coord != null)
+                sendRequest(coord, Type.GRANT_LOCK, req.lock_name, req.lock_id, req.owner, req.timeout, req.is_trylock);
+    }
+
+    protected void grantOrDenyLocally(Type type, String lock_name, int lock_id, Owner owner) {
+        ClientLock lock=client_lock_table.getLock(lock_name, owner, false);
+        if(lock == null)
+            return;
+        if(type == Type.LOCK_GRANTED) {
+            num_local_acquisitions.incrementAndGet();
+            lock.lockGranted(lock_id);
+        }
+        else
+            lock.lockDenied(lock_id);
     }
 
     public void lockCreated(String name) {
@@ -197,5 +423,35 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
             }
         }
     }
-}
 
+
+    /** A lease on a lock, granted by the coordinator to owner and used by local threads (holder) one at a time */
+    protected static class Lease {
+        protected final String         lock_name;
+        protected final Owner          owner;   // the owner of the lock as known by the coordinator
+        protected Owner                holder;  // the local owner currently holding the lock, null if idle
+        protected boolean              revoked; // release the lease when the holder unlocks it
+        protected final Queue<Request> waiters=new ArrayDeque<Request>(); // local GRANT_LOCK requests
+
+        protected Lease(String lock_name, Owner owner) {
+            this.lock_name=lock_name;
+            this.owner=owner;
+            this.holder=owner;
+        }
+
+        protected boolean removeWaiter(Owner owner) {
+            for(Iterator<Request> it=waiters.iterator(); it.hasNext();) {
+                if(it.next().owner.equals(owner)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String toString() {
+            return owner + " (holder=" + holder + (revoked? ", revoked" : "") +
+              (waiters.isEmpty()? "" : ", " + waiters.size() + " waiters") + ")";
+        }
+    }
+}
@@ -3,11 +3,13 @@ package org.jgroups.protocols;
 import org.jgroups.*;
 import org.jgroups.annotations.*;
 import org.jgroups.blocks.atomic.Counter;
+import org.jgroups.blocks.atomic.RangeCounter;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +17,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -37,6 +40,16 @@ public class COUNTER extends Protocol {
     @Property(description="Number of backup coordinators. Modifications are asynchronously sent to all backup coordinators")
     protected int num_backups=1;
 
+    @Property(description="Default number of values a range counter reserves from the coordinator at a time")
+    protected long range_size=10000;
+
+    @Property(description="Max number of requests (or responses) sent in one message. Requests sent concurrently " +
+      "to the same member are batched into one message, and so are the responses to a batch of requests",writable=false)
+    protected int max_batch_size=100;
+
+    /** Number of ranges reserved by all range counters of this member */
+    protected final AtomicLong num_range_reservations=new AtomicLong();
+
     protected Address local_addr;
 
     /** Set to true during reconciliation process, will cause all requests to be discarded */
@@ -60,8 +73,12 @@ public class COUNTER extends Protocol {
     // (client side) pending requests
     protected final Map<Owner,Tuple<Request,Promise>> pending_requests=Util.createConcurrentMap(20);
 
+    /** Batches concurrently sent requests and responses per destination */
+    protected RequestBatcher<Streamable> batcher;
+
     protected static final byte REQUEST  = 1;
     protected static final byte RESPONSE = 2;
+    protected static final byte BATCH    = 3;
     
 
     protected static enum RequestType {
@@ -131,6 +148,39 @@ public class COUNTER extends Protocol {
         return backup_coords != null? backup_coords.toString() : "null";
     }
 
+    @ManagedAttribute(description="Number of ranges reserved by range counters")
+    public long getNumRangeReservations() {
+        return num_range_reservations.get();
+    }
+
+    @ManagedAttribute(description="Number of requests and responses sent")
+    public long getNumRequestsSent() {
+        return batcher != null? batcher.getNumRequests() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages sent (each carrying one or more requests or responses)")
+    public long getNumBatchesSent() {
+        return batcher != null? batcher.getNumBatches() : 0;
+    }
+
+    @ManagedAttribute(description="Average number of requests or responses per message")
+    public double getAverageBatchSize() {
+        return batcher != null? batcher.getAverageBatchSize() : 0;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        if(batcher != null)
+            batcher.resetStats();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        batcher=new RequestBatcher<Streamable>(new RequestBatcher.Sender<Streamable>() {
+            public void send(Address dest, List<Streamable> requests) {COUNTER.this.send(dest, requests);}
+        }, max_batch_size);
+    }
+
 
     public Counter getOrCreateCounter(String name, long initial_value) {
         if(local_addr == null)
@@ -147,6 +197,22 @@ public class COUNTER extends Protocol {
         return new CounterImpl(name);
     }
 
+    /**
+     * Returns a counter which reserves range_size values at a time from the cluster-wide counter and hands them out
+     * locally, so that only every range_size-th increment requires a round trip to the coordinator.
+     * See {@link RangeCounterImpl} for details
+     */
+    public RangeCounter getOrCreateRangeCounter(String name, long initial_value, long range_size) {
+        if(range_size <= 0)
+            throw new IllegalArgumentException("range_size (" + range_size + ") must be positive");
+        CounterImpl counter=(CounterImpl)getOrCreateCounter(name, initial_value);
+        return new RangeCounterImpl(counter, range_size);
+    }
+
+    public RangeCounter getOrCreateRangeCounter(String name, long initial_value) {
+        return getOrCreateRangeCounter(name, initial_value, range_size);
+    }
+
     /** Sent asynchronously - we don't wait for an ack */
     public void deleteCounter(String name) {
         Owner owner=getOwner();
@@ -175,24 +241,7 @@ public class COUNTER extends Protocol {
                 if(hdr == null)
                     break;
 
-                try {
-                    Object obj=streamableFromBuffer(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
-                    if(log.isTraceEnabled())
-                        log.trace("[" + local_addr + "] <-- [" + msg.getSrc() + "] " + obj);
-
-                    if(obj instanceof Request) {
-                        handleRequest((Request)obj, msg.getSrc());
-                    }
-                    else if(obj instanceof Response) {
-                        handleResponse((Response)obj, msg.getSrc());
-                    }
-                    else {
-                        log.error("received object is neither a Request nor a Response: " + obj);
-                    }
-                }
-                catch(Exception ex) {
-                    log.error("failed handling message", ex);
-                }
+                handleMessage(msg);
                 return null;
 
             case Event.VIEW_CHANGE:
@@ -202,7 +251,51 @@ public class COUNTER extends Protocol {
         return up_prot.up(evt);
     }
 
-    
+    public void up(MessageBatch batch) {
+        boolean held=batcher.hold(); // the responses to all requests of the batch are sent in one message per member
+        try {
+            for(Message msg: batch) {
+                if(msg.getHeader(id) == null)
+                    continue;
+                batch.remove(msg);
+                handleMessage(msg);
+            }
+        }
+        finally {
+            batcher.release(held);
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    /** Handles all requests and responses of a message; the responses are sent as one batch */
+    protected void handleMessage(Message msg) {
+        boolean held=batcher.hold();
+        try {
+            List<Streamable> list=streamablesFromBuffer(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            for(Streamable obj: list) {
+                if(log.isTraceEnabled())
+                    log.trace("[" + local_addr + "] <-- [" + msg.getSrc() + "] " + obj);
+
+                if(obj instanceof Request) {
+                    handleRequest((Request)obj, msg.getSrc());
+                }
+                else if(obj instanceof Response) {
+                    handleResponse((Response)obj, msg.getSrc());
+                }
+                else {
+                    log.error("received object is neither a Request nor a Response: " + obj);
+                }
+            }
+        }
+        catch(Exception ex) {
+            log.error("failed handling message", ex);
+        }
+        finally {
+            batcher.release(held);
+        }
+    }
+
     protected void handleRequest(Request req, Address sender) {
         RequestType type=requestToRequestType(req);
         switch(type) {
@@ -429,63 +522,42 @@ public class COUNTER extends Protocol {
     }
 
 
+    /** Sends the request, possibly in the same message as other requests to dest */
     protected void sendRequest(Address dest, Request req) {
-        try {
-            Buffer buffer=requestToBuffer(req);
-            Message msg=new Message(dest, buffer).putHeader(id, new CounterHeader());
-            if(bypass_bundling)
-                msg.setFlag(Message.Flag.DONT_BUNDLE);
-            if(log.isTraceEnabled())
-                log.trace("[" + local_addr + "] --> [" + (dest == null? "ALL" : dest) + "] " + req);
-
-            down_prot.down(new Event(Event.MSG, msg));
-        }
-        catch(Exception ex) {
-            log.error("failed sending " + req + " request: " + ex);
-        }
+        if(log.isTraceEnabled())
+            log.trace("[" + local_addr + "] --> [" + (dest == null? "ALL" : dest) + "] " + req);
+        batcher.send(dest, req);
     }
 
 
+    /** Sends the response, possibly in the same message as other responses to dest */
     protected void sendResponse(Address dest, Response rsp) {
-        try {
-            Buffer buffer=responseToBuffer(rsp);
-            Message rsp_msg=new Message(dest, buffer).putHeader(id, new CounterHeader());
-            if(bypass_bundling)
-                rsp_msg.setFlag(Message.Flag.DONT_BUNDLE);
-
-            if(log.isTraceEnabled())
-                log.trace("[" + local_addr + "] --> [" + dest + "] " + rsp);
-
-            down_prot.down(new Event(Event.MSG, rsp_msg));
-        }
-        catch(Exception ex) {
-            log.error("failed sending " + rsp + " message to " + dest + ": " + ex);
-        }
+        if(log.isTraceEnabled())
+            log.trace("[" + local_addr + "] --> [" + dest + "] " + rsp);
+        batcher.send(dest, rsp);
     }
 
     protected void updateBackups(String name, long value, long version) {
-        Request req=new UpdateRequest(name, value, version);
-        try {
-            Buffer buffer=requestToBuffer(req);
-            if(backup_coords != null && !backup_coords.isEmpty()) {
-                for(Address backup_coord: backup_coords)
-                    send(backup_coord, buffer);
-            }
-        }
-        catch(Exception ex) {
-            log.error("failed sending " + req + " to backup coordinator(s):" + ex);
+        List<Address> backups=backup_coords;
+        if(backups != null && !backups.isEmpty()) {
+            Request req=new UpdateRequest(name, value, version);
+            for(Address backup_coord: backups)
+                batcher.add(backup_coord, req);
+            batcher.send();
         }
     }
 
-    protected void send(Address dest, Buffer buffer) {
+    /** Sends a single request (or response) in the old format, or a list of them in one BATCH message */
+    protected void send(Address dest, List<Streamable> list) {
         try {
-            Message rsp_msg=new Message(dest, buffer).putHeader(id, new CounterHeader());
+            Buffer buffer=list.size() == 1? streamableToBuffer(list.get(0)) : streamablesToBuffer(list);
+            Message msg=new Message(dest, buffer).putHeader(id, new CounterHeader());
             if(bypass_bundling)
-                rsp_msg.setFlag(Message.Flag.DONT_BUNDLE);
-            down_prot.down(new Event(Event.MSG, rsp_msg));
+                msg.setFlag(Message.Flag.DONT_BUNDLE);
+            down_prot.down(new Event(Event.MSG, msg));
         }
         catch(Exception ex) {
-            log.error("failed sending message to " + dest + ": " + ex);
+            log.error("failed sending " + list.size() + " request(s) to " + (dest == null? "ALL" : dest) + ": " + ex);
         }
     }
 
@@ -513,6 +585,29 @@ public class COUNTER extends Protocol {
         return output.getBuffer();
     }
 
+    protected static Buffer streamableToBuffer(Streamable obj) throws Exception {
+        return obj instanceof Request? requestToBuffer((Request)obj) : responseToBuffer((Response)obj);
+    }
+
+    /** Writes BATCH, the number of elements, and for each element the same bytes {@link #streamableToBuffer(Streamable)} writes */
+    protected static Buffer streamablesToBuffer(List<Streamable> list) throws Exception {
+        ByteBufferOutputStream out=new ByteBufferOutputStream(list.size() * 50);
+        out.writeByte(BATCH);
+        out.writeInt(list.size());
+        for(Streamable obj: list) {
+            if(obj instanceof Request) {
+                out.writeByte(REQUEST);
+                out.writeByte((byte)requestToRequestType((Request)obj).ordinal());
+            }
+            else {
+                out.writeByte(RESPONSE);
+                out.writeByte((byte)responseToResponseType((Response)obj).ordinal());
+            }
+            obj.writeTo(out);
+        }
+        return out.getBuffer();
+    }
+
     protected static Streamable streamableFromBuffer(byte[] buf, int offset, int length) throws Exception {
         switch(buf[offset]) {
             case REQUEST:
@@ -524,6 +619,31 @@ public class COUNTER extends Protocol {
         }
     }
 
+    protected static List<Streamable> streamablesFromBuffer(byte[] buf, int offset, int length) throws Exception {
+        if(buf[offset] != BATCH)
+            return Collections.singletonList(streamableFromBuffer(buf, offset, length));
+        ByteBufferInputStream in=new ByteBufferInputStream(buf, offset+1, length-1);
+        int size=in.readInt();
+        List<Streamable> list=new ArrayList<Streamable>(size);
+        for(int i=0; i < size; i++) {
+            Streamable obj;
+            byte req_or_rsp=in.readByte();
+            switch(req_or_rsp) {
+                case REQUEST:
+                    obj=createRequest(RequestType.values()[in.readByte()]);
+                    break;
+                case RESPONSE:
+                    obj=createResponse(ResponseType.values()[in.readByte()]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("type " + req_or_rsp + " is invalid (expected Request (1) or RESPONSE (2)");
+            }
+            obj.readFrom(in);
+            list.add(obj);
+        }
+        return list;
+    }
+
     protected static final Request requestFromBuffer(byte[] buf, int offset, int length) throws Exception {
         ByteArrayInputStream input=new ByteArrayInputStream(buf, offset, length);
         DataInputStream in=new DataInputStream(input);
@@ -734,6 +854,104 @@ public class COUNTER extends Protocol {
 
 
 
+    /**
+     * A counter which reserves a range of values (start .. end] from the cluster-wide counter by adding range_size to it,
+     * and hands out the values of the range locally. Values are unique across the cluster, and increasing on a given
+     * member, but not across members, and values of a range which are not used (e.g. when the member leaves) are
+     * lost. {@link #get()} returns the cluster-wide value, which includes the values
+     * reserved by all members.<p/>
+     * A reservation is an ADD_AND_GET request, so the coordinator updates the backups as usual, and the end of the
+     * range is stored (with its version) in the counters of the reserving member. On a coordinator change, the
+     * {@link ReconciliationTask} therefore also fetches the ends of all ranges, and the new coordinator never hands
+     * out values which have already been reserved by a member.
+     */
+    protected class RangeCounterImpl implements RangeCounter {
+        protected final CounterImpl counter; // the cluster-wide counter
+        protected final long        range_size;
+        protected volatile Range    range=new Range(0, 0); // empty
+
+        protected RangeCounterImpl(CounterImpl counter, long range_size) {
+            this.counter=counter;
+            this.range_size=range_size;
+        }
+
+        public String getName() {
+            return counter.getName();
+        }
+
+        public long get() {
+            return counter.get();
+        }
+
+        /** Sets the cluster-wide value and discards the current range */
+        public void set(long new_value) {
+            counter.set(new_value);
+            range=new Range(0, 0);
+        }
+
+        public long incrementAndGet() {
+            return addAndGet(1);
+        }
+
+        /** Takes delta values from the current range and returns the last one, reserving a new range if needed */
+        public long addAndGet(long delta) {
+            if(delta < 0)
+                throw new IllegalArgumentException("delta (" + delta + ") must not be negative");
+            if(delta == 0)
+                return get();
+            for(;;) {
+                Range tmp=range;
+                long next=tmp.next(delta);
+                if(next != Long.MIN_VALUE)
+                    return next;
+                synchronized(this) {
+                    if(range == tmp)
+                        range=reserve(delta);
+                }
+            }
+        }
+
+        protected Range reserve(long delta) {
+            long size=Math.max(delta, range_size);
+            long end=counter.addAndGet(size);
+            num_range_reservations.incrementAndGet();
+            if(log.isTraceEnabled())
+                log.trace("[" + local_addr + "] reserved range (" + (end-size) + " .. " + end + "] of " + getName());
+            return new Range(end - size, end);
+        }
+
+        public String toString() {
+            return getName() + ": " + range;
+        }
+    }
+
+    /** A range (start .. end] of reserved values; values are handed out by incrementing next */
+    protected static class Range {
+        protected final AtomicLong next;
+        protected final long       end;
+
+        protected Range(long start, long end) {
+            this.next=new AtomicLong(start);
+            this.end=end;
+        }
+
+        /** Returns the last of the next delta values, or Long.MIN_VALUE if the range doesn't have delta more values */
+        protected long next(long delta) {
+            for(;;) {
+                long current=next.get(), val=current + delta;
+                if(val > end || val <= current) // the second condition catches overflow
+                    return Long.MIN_VALUE;
+                if(next.compareAndSet(current, val))
+                    return val;
+            }
+        }
+
+        public String toString() {
+            return "(" + next + " .. " + end + "]";
+        }
+    }
+
+
     protected abstract static class Request implements Streamable {
 
     }
@@ -11,6 +11,9 @@ import org.jgroups.util.Util;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 /**
@@ -19,6 +22,10 @@ import java.util.concurrent.Executor;
  * point-to-point transports such as TCP - we can avoid the N-1 issue: when A sends a multicast message to 10
  * members, it needs to send it 9 times. With daisy chaining, it sends it 1 time, and in the next round, can already
  * send another message. This leads to much better throughput, see the ref in the JIRA.<p/>
+ * Alternatively (mode="tree"), multicasts are relayed along a tree rooted at the sender: every member forwards a
+ * message to (at most) fanout children, so a message reaches all members in log(N) rounds rather than N-1.<p/>
+ * Relaying only kicks in when the view has at least min_members members; with smaller views, multicasts are sent
+ * directly by the transport.<p/>
  * Should be inserted just above MERGE2, in TCP based configurations.
  * JIRA: https://jira.jboss.org/browse/JGRP-1021
  * @author Bela Ban
@@ -41,8 +48,20 @@ public class DAISYCHAIN extends Protocol {
       "to be sent",deprecatedMessage="not used anymore")
     int send_queue_size=10000;
 
+    @Property(description="How multicasts are relayed: \"ring\" (to the next member, which forwards to its next " +
+      "member etc) or \"tree\" (along a tree rooted at the sender)")
+    protected String mode="ring";
+
+    @Property(description="Number of members a message is forwarded to by each member in tree mode")
+    protected int fanout=3;
+
+    @Property(description="Min number of members for multicasts to be relayed. With fewer members, multicasts " +
+      "are sent directly to all members by the transport")
+    protected int min_members=0;
+
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     protected volatile Address       local_addr, next;
+    protected volatile List<Address> members=Collections.emptyList();
     protected int                    view_size=0;
     protected Executor               default_pool=null;
     protected Executor               oob_pool=null;
@@ -56,12 +75,32 @@ public class DAISYCHAIN extends Protocol {
 
 
 
+    public DAISYCHAIN setMode(String mode) {
+        if(!"ring".equals(mode) && !"tree".equals(mode))
+            throw new IllegalArgumentException("mode has to be \"ring\" or \"tree\": " + mode);
+        this.mode=mode;
+        return this;
+    }
+
+    public DAISYCHAIN setFanout(int fanout) {
+        this.fanout=fanout;
+        return this;
+    }
+
+    public DAISYCHAIN setMinMembers(int min_members) {
+        this.min_members=min_members;
+        return this;
+    }
+
     public void resetStats() {
         super.resetStats();
         msgs_forwarded=msgs_sent=0;
     }
 
     public void init() throws Exception {
+        setMode(mode);
+        if(fanout < 1)
+            throw new IllegalArgumentException("fanout has to be >= 1: " + fanout);
         default_pool=getTransport().getDefaultThreadPool();
         oob_pool=getTransport().getOOBThreadPool();
     }
@@ -83,20 +122,29 @@ public class DAISYCHAIN extends Protocol {
                 if(msg.getDest() != null)
                     break; // only process multicast messages
 
-                if(next == null) // view hasn't been received yet, use the normal transport
+                if(next == null || view_size < min_members) // no view yet or too few members: use the normal transport
                     break;
 
-                // we need to copy the message, as we cannot do a msg.setSrc(next): the next retransmission
-                // would use 'next' as destination  !
-                Message copy=msg.copy(true);
-                short hdr_ttl=(short)(loopback? view_size -1 : view_size);
-                DaisyHeader hdr=new DaisyHeader(hdr_ttl);
-                copy.setDest(next);
-                copy.putHeader(getId(), hdr);
+                boolean tree=isTree();
+                if(!tree) {
+                    // we need to copy the message, as we cannot do a msg.setSrc(next): the next retransmission
+                    // would use 'next' as destination  !
+                    Message copy=msg.copy(true);
+                    short hdr_ttl=(short)(loopback? view_size -1 : view_size);
+                    DaisyHeader hdr=new DaisyHeader(hdr_ttl);
+                    copy.setDest(next);
+                    copy.putHeader(getId(), hdr);
+                    msgs_sent++;
+                    down_prot.down(new Event(Event.MSG, copy));
+                }
+                else {
+                    if(msg.getSrc() == null)
+                        msg.setSrc(local_addr);
+                    forwardToChildren(msg, local_addr);
+                    msgs_sent++;
+                }
 
-                msgs_sent++;
-                
-                if(loopback) {
+                if(loopback || tree) { // a tree never leads back to the sender
                     if(log.isTraceEnabled()) log.trace(new StringBuilder("looping back message ").append(msg));
                     if(msg.getSrc() == null)
                         msg.setSrc(local_addr);
@@ -108,7 +156,7 @@ public class DAISYCHAIN extends Protocol {
                         }
                     });
                 }
-                return down_prot.down(new Event(Event.MSG, copy));
+                return null;
 
 
             case Event.VIEW_CHANGE:
@@ -134,48 +182,23 @@ public class DAISYCHAIN extends Protocol {
                 DaisyHeader hdr=(DaisyHeader)msg.getHeader(getId());
                 if(hdr == null)
                     break;
-
-                // 1. forward the message to the next in line if ttl > 0
-                short ttl=hdr.getTTL();
-                if(log.isTraceEnabled())
-                    log.trace(local_addr + ": received message from " + msg.getSrc() + " with ttl=" + ttl);
-                if(--ttl > 0) {
-                    Message copy=msg.copy(true);
-                    copy.setDest(next);
-                    copy.putHeader(getId(), new DaisyHeader(ttl));
-                    msgs_forwarded++;
-                    if(log.isTraceEnabled())
-                        log.trace(local_addr + ": forwarding message to " + next + " with ttl=" + ttl);
-                    down_prot.down(new Event(Event.MSG, copy));
-                }
-
-                // 2. Pass up
-                msg.setDest(null);
+                forward(msg, hdr);
                 break;
         }
         return up_prot.up(evt);
     }
 
     public void up(MessageBatch batch) {
-        for(Message msg: batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
             DaisyHeader hdr=(DaisyHeader)msg.getHeader(getId());
             if(hdr != null) {
-                // 1. forward the message to the next in line if ttl > 0
-                short ttl=hdr.getTTL();
-                if(log.isTraceEnabled())
-                    log.trace(local_addr + ": received message from " + msg.getSrc() + " with ttl=" + ttl);
-                if(--ttl > 0) {
-                    Message copy=msg.copy(true);
-                    copy.setDest(next);
-                    copy.putHeader(getId(), new DaisyHeader(ttl));
-                    msgs_forwarded++;
-                    if(log.isTraceEnabled())
-                        log.trace(local_addr + ": forwarding message to " + next + " with ttl=" + ttl);
-                    down_prot.down(new Event(Event.MSG, copy));
+                forward(msg, hdr);
+                // the batch was sent by the member which forwarded the message, not by its original sender
+                if(!batch.sender().equals(msg.getSrc())) {
+                    it.remove();
+                    up_prot.up(new Event(Event.MSG, msg));
                 }
-
-                // 2. Pass up
-                msg.setDest(null);
             }
         }
 
@@ -183,8 +206,67 @@ public class DAISYCHAIN extends Protocol {
             up_prot.up(batch);
     }
 
+    protected boolean isTree() {
+        return "tree".equals(mode);
+    }
+
+    /** Forwards a relayed message to the next member (ring) or our children (tree) and makes it a multicast again */
+    protected void forward(Message msg, DaisyHeader hdr) {
+        if(hdr.isTree()) {
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": received message from " + msg.getSrc() + " (tree)");
+            msgs_forwarded+=forwardToChildren(msg, msg.getSrc());
+        }
+        else {
+            // 1. forward the message to the next in line if ttl > 0
+            short ttl=hdr.getTTL();
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": received message from " + msg.getSrc() + " with ttl=" + ttl);
+            if(--ttl > 0) {
+                Message copy=msg.copy(true);
+                copy.setDest(next);
+                copy.putHeader(getId(), new DaisyHeader(ttl));
+                msgs_forwarded++;
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": forwarding message to " + next + " with ttl=" + ttl);
+                down_prot.down(new Event(Event.MSG, copy));
+            }
+        }
+
+        // 2. Pass up
+        msg.setDest(null);
+    }
+
+    /**
+     * Sends a copy of msg to each of our children in the tree rooted at root. The tree is laid over the members,
+     * starting at root: the member at position p (relative to root) has the children at positions p*fanout+1 to
+     * p*fanout+fanout. Returns the number of copies sent
+     */
+    protected int forwardToChildren(Message msg, Address root) {
+        List<Address> mbrs=members;
+        int size=mbrs.size(), root_index=mbrs.indexOf(root), my_index=mbrs.indexOf(local_addr);
+        if(root_index < 0 || my_index < 0)
+            return 0;
+        int pos=(my_index - root_index + size) % size, count=0;
+        for(int i=1; i <= fanout; i++) {
+            long child_pos=(long)pos * fanout + i;
+            if(child_pos >= size)
+                break;
+            Address child=mbrs.get((int)((root_index + child_pos) % size));
+            Message copy=msg.copy(true);
+            copy.setDest(child);
+            copy.putHeader(getId(), new DaisyHeader());
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": forwarding message from " + root + " to " + child);
+            down_prot.down(new Event(Event.MSG, copy));
+            count++;
+        }
+        return count;
+    }
+
     protected void handleView(View view) {
         view_size=view.size();
+        members=view.getMembers();
         Address tmp=Util.pickNext(view.getMembers(), local_addr);
         if(tmp != null && !tmp.equals(local_addr)) {
             next=tmp;
@@ -195,9 +277,11 @@ public class DAISYCHAIN extends Protocol {
 
 
     public static class DaisyHeader extends Header {
-        private short   ttl;
+        private short   ttl; // -1: relayed along a tree
 
+        /** Creates a header for a message relayed along a tree */
         public DaisyHeader() {
+            this.ttl=-1;
         }
 
         public DaisyHeader(short ttl) {
@@ -206,6 +290,8 @@ public class DAISYCHAIN extends Protocol {
 
         public short getTTL() {return ttl;}
 
+        public boolean isTree() {return ttl < 0;}
+
         public void setTTL(short ttl) {
             this.ttl=ttl;
         }
@@ -223,7 +309,7 @@ public class DAISYCHAIN extends Protocol {
         }
 
         public String toString() {
-            return "ttl=" + ttl;
+            return isTree()? "tree" : "ttl=" + ttl;
         }
     }
 
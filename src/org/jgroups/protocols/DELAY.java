@@ -32,6 +32,9 @@ public class DELAY extends Protocol {
     protected int in_delay_nanos;
     @Property(description = "Number of nanoseconds to delay passing a message down the stack")
     protected int out_delay_nanos;
+    @Property(description = "If true, in_delay and out_delay are the exact (rather than the max) number of milliseconds " +
+      "to delay a message, e.g. to simulate a link with a given round-trip time")
+    protected boolean constant_delay;
 
     public int  getInDelay()               {return in_delay;}
     public void setInDelay(int in_delay)   {this.in_delay=in_delay;}
@@ -41,21 +44,23 @@ public class DELAY extends Protocol {
     public void setInDelayNanos(int in_delay_nanos)   {this.in_delay_nanos=in_delay_nanos;}
     public int  getOutDelayNanos()              {return out_delay_nanos;}
     public void setOutDelayNanos(int out_delay_nanos) {this.out_delay_nanos=out_delay_nanos;}
+    public boolean getConstantDelay()           {return constant_delay;}
+    public void setConstantDelay(boolean flag)  {this.constant_delay=flag;}
 
     public Object down(final Event evt) {
         if (isMessage(evt))
-            sleep(out_delay, out_delay_nanos);
+            sleep(out_delay, out_delay_nanos, constant_delay);
         return down_prot.down(evt);
     }
 
     public Object up(final Event evt) {
         if (isMessage(evt))
-            sleep(in_delay, in_delay_nanos);
+            sleep(in_delay, in_delay_nanos, constant_delay);
         return up_prot.up(evt);
     }
 
     public void up(final MessageBatch batch) {
-        sleep(in_delay, in_delay_nanos);
+        sleep(in_delay, in_delay_nanos, constant_delay);
         up_prot.up(batch);
     }
 
@@ -73,8 +78,8 @@ public class DELAY extends Protocol {
         return randomNumberGenerator.nextInt(n);
     }
 
-    private static void sleep(final int variable_milliseconds_delay, final int nano_delay) {
-        final int millis = computeDelay(variable_milliseconds_delay);
+    private static void sleep(final int variable_milliseconds_delay, final int nano_delay, final boolean constant) {
+        final int millis = constant? variable_milliseconds_delay : computeDelay(variable_milliseconds_delay);
         if (millis != 0 || nano_delay != 0) {
             Util.sleep(millis, nano_delay);
         }
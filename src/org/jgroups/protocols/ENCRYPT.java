@@ -11,19 +11,23 @@ import org.jgroups.util.QueueClosedException;
 import org.jgroups.util.Util;
 
 import javax.crypto.*;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.lang.reflect.Constructor;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ENCRYPT layer. Encrypt and decrypt communication in JGroups
@@ -50,6 +54,10 @@ import java.util.concurrent.locks.ReentrantLock;
  * which identifies the type of encrypt header and an MD5 digest that identifies
  * the version of the key being used to encrypt/decrypt the messages.
  * <p>
+ * Messages are encrypted and decrypted with ciphers taken from a pool (cipher_pool_size), so multiple threads can
+ * encrypt and decrypt in parallel. If sym_algorithm is an authenticated mode such as "AES/GCM/NoPadding", every
+ * message is encrypted with its own IV (shipped in the header), and modified messages fail decryption and are dropped.
+ * <p>
  * <p>
  * <h2>Option 1</h2>
  * <br>
@@ -166,23 +174,35 @@ public class ENCRYPT extends Protocol {
     //	 for client to store server's public Key
     PublicKey serverPubKey=null;
 
-    // needed because we do simultaneous encode/decode with these ciphers - which
-    // would be a threading issue
-    Cipher symEncodingCipher;
+    @Property(description="Number of ciphers in the pool used for encryption and decryption (each). Up to this " +
+      "many threads can encrypt (or decrypt) messages in parallel",writable=false)
+    protected int cipher_pool_size=8;
 
-    @GuardedBy("decrypt_lock")
-    Cipher symDecodingCipher;
+    @Property(description="Length (in bits) of the authentication tag if sym_algorithm uses GCM, e.g. AES/GCM/NoPadding")
+    protected int gcm_tag_length=128;
 
-    /** To synchronize access to symDecodingCipher */
-    protected final Lock decrypt_lock=new ReentrantLock();
+    // the ciphers for the current secret key; replaced when a new key is installed
+    protected volatile CipherPool ciphers;
 
     // version filed for secret key
     private String symVersion=null;
     // dhared secret key to encrypt/decrypt messages
     SecretKey secretKey=null;
 
-    // map to hold previous keys so we can decrypt some earlier messages if we need to
-    final Map<String,Cipher> keyMap=new WeakHashMap<String,Cipher>();
+    @Property(description="Max number of previous keys (and their ciphers) which are kept to decrypt messages " +
+      "encrypted with an older key. The oldest key is removed when a new key is installed")
+    protected int key_map_max_size=20;
+
+    // map to hold previous keys so we can decrypt some earlier messages if we need to; only the last
+    // key_map_max_size versions are kept (a CipherPool references its version, so weak keys would never be collected)
+    @GuardedBy("keyMap")
+    final Map<String,CipherPool> keyMap=new LinkedHashMap<String,CipherPool>() {
+        private static final long serialVersionUID=-4165651064367420446L;
+
+        protected boolean removeEldestEntry(Map.Entry<String,CipherPool> eldest) {
+            return size() > key_map_max_size;
+        }
+    };
 
     // queues to buffer data while we are swapping shared key
     // or obtsining key for first time
@@ -344,29 +364,23 @@ public class ENCRYPT extends Protocol {
         if(log.isDebugEnabled())
             log.debug(" Initializing symmetric ciphers");
 
-        if(symProvider != null && !symProvider.trim().isEmpty()) {
-            symEncodingCipher=Cipher.getInstance(algorithm, symProvider);
-            symDecodingCipher=Cipher.getInstance(algorithm, symProvider);
-        }
-        else {
-            symEncodingCipher=Cipher.getInstance(algorithm);
-            symDecodingCipher=Cipher.getInstance(algorithm);
-        }
-
-        symEncodingCipher.init(Cipher.ENCRYPT_MODE, secret);
-        symDecodingCipher.init(Cipher.DECRYPT_MODE, secret);
-
         //set the version
         MessageDigest digest=MessageDigest.getInstance("MD5");
         digest.reset();
         digest.update(secret.getEncoded());
 
         symVersion = byteArrayToHexString(digest.digest());
+        ciphers=new CipherPool(algorithm, secret, symVersion);
         if(log.isDebugEnabled()) {
-            log.debug(" Initialized symmetric ciphers with secret key (" + symVersion.length() + " bytes)");
+            log.debug(" Initialized " + cipher_pool_size + " symmetric ciphers with secret key (" + symVersion.length() + " bytes)");
         }
     }
 
+    protected Cipher createSymCipher(String algorithm) throws Exception {
+        return symProvider != null && !symProvider.trim().isEmpty()?
+          Cipher.getInstance(algorithm, symProvider) : Cipher.getInstance(algorithm);
+    }
+
     public static String byteArrayToHexString(byte[] b){
         StringBuilder sb = new StringBuilder(b.length * 2);
         for (int i = 0; i < b.length; i++){
@@ -449,68 +463,87 @@ public class ENCRYPT extends Protocol {
     }
 
 
+    /**
+     * Decrypts all messages of the batch with one decoding cipher, which is taken from the pool only once. Batches
+     * received by different threads are decrypted in parallel, up to cipher_pool_size at a time
+     */
     public void up(MessageBatch batch) {
-        for(Message msg: batch) {
-            if(msg.getLength() == 0 && !encrypt_entire_message)
-                continue;
-
-            EncryptHeader hdr=(EncryptHeader)msg.getHeader(this.id);
-            if(hdr == null) {
-                if(log.isTraceEnabled())
-                    log.trace("dropping message as ENCRYPT header is null or has not been recognized, msg will not be passed up, " +
-                                "headers are " + msg.printHeaders());
-                batch.remove(msg);
-                continue;
-            }
-
-            switch(hdr.getType()) {
-                case EncryptHeader.ENCRYPT:
-                    // if msg buffer is empty, and we didn't encrypt the entire message, just pass up
-                    if(!hdr.encrypt_entire_msg && msg.getLength() == 0)
-                        break;
+        CipherPool pool=ciphers;
+        Cipher cipher=null; // taken from the pool on the first encrypted message
+        boolean drained=false;
+        try {
+            for(Message msg: batch) {
+                if(msg.getLength() == 0 && !encrypt_entire_message)
+                    continue;
+
+                EncryptHeader hdr=(EncryptHeader)msg.getHeader(this.id);
+                if(hdr == null) {
+                    if(log.isTraceEnabled())
+                        log.trace("dropping message as ENCRYPT header is null or has not been recognized, msg will not be passed up, " +
+                                    "headers are " + msg.printHeaders());
+                    batch.remove(msg);
+                    continue;
+                }
 
-                    // if queueing then pass into queue to be dealt with later
-                    if(queue_up) {
-                        if(log.isTraceEnabled())
-                            log.trace("queueing up message as no session key established: " + msg);
-                        try {
-                            upMessageQueue.put(msg);
-                        }
-                        catch(InterruptedException e) {
-                        }
-                    }
-                    else {
-                        // make sure we pass up any queued messages first
-                        // could be more optimised but this can wait we only need this if not using supplied key
-                        if(!suppliedKey) {
+                switch(hdr.getType()) {
+                    case EncryptHeader.ENCRYPT:
+                        // if msg buffer is empty, and we didn't encrypt the entire message, just pass up
+                        if(!hdr.encrypt_entire_msg && msg.getLength() == 0)
+                            break;
+
+                        // if queueing then pass into queue to be dealt with later
+                        if(queue_up) {
+                            if(log.isTraceEnabled())
+                                log.trace("queueing up message as no session key established: " + msg);
+                            batch.remove(msg);
                             try {
-                                drainUpQueue();
+                                upMessageQueue.put(msg);
                             }
-                            catch(Exception e) {
-                                log.error("failed draining up queue", e);
+                            catch(InterruptedException e) {
                             }
                         }
+                        else {
+                            // make sure we pass up any queued messages first (once per batch)
+                            if(!suppliedKey && !drained) {
+                                drained=true;
+                                try {
+                                    drainUpQueue();
+                                }
+                                catch(Exception e) {
+                                    log.error("failed draining up queue", e);
+                                }
+                            }
 
-                        // try and decrypt the message - we need to copy msg as we modify its
-                        // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
-                        try {
-                            Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
-                            if(tmpMsg != null)
-                                batch.replace(msg, tmpMsg);
-                            else
-                                log.warn("Unrecognised cipher discarding message");
-                        }
-                        catch(Exception e) {
-                            log.error("failed decrypting message", e);
+                            // try and decrypt the message - we need to copy msg as we modify its
+                            // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
+                            try {
+                                if(cipher == null)
+                                    cipher=pool.decoders.take();
+                                Message tmpMsg=decryptMessage(pool, cipher, msg.copy());
+                                if(tmpMsg != null)
+                                    batch.replace(msg, tmpMsg);
+                                else {
+                                    batch.remove(msg);
+                                    log.warn("Unrecognised cipher discarding message");
+                                }
+                            }
+                            catch(Exception e) {
+                                batch.remove(msg);
+                                log.error("failed decrypting message", e);
+                            }
                         }
-                    }
-                    break;
-                default:
-                    batch.remove(msg); // a control message will get handled by ENCRYPT and should not be passed up
-                    handleUpEvent(msg, hdr);
-                    break;
+                        break;
+                    default:
+                        batch.remove(msg); // a control message will get handled by ENCRYPT and should not be passed up
+                        handleUpEvent(msg, hdr);
+                        break;
+                }
             }
         }
+        finally {
+            if(cipher != null)
+                pool.decoders.offer(cipher);
+        }
 
         if(!batch.isEmpty())
             up_prot.up(batch);
@@ -639,7 +672,7 @@ public class ENCRYPT extends Protocol {
 
             // try and decrypt the message - we need to copy msg as we modify its
             // buffer (http://jira.jboss.com/jira/browse/JGRP-538)
-            Message tmpMsg=decryptMessage(symDecodingCipher, msg.copy());
+            Message tmpMsg=decryptMessage(ciphers, null, msg.copy());
             if(tmpMsg != null) {
                 if(log.isTraceEnabled())
                     log.trace("decrypted message " + tmpMsg);
@@ -717,7 +750,7 @@ public class ENCRYPT extends Protocol {
         }
         Message tmp=null;
         while((tmp=upMessageQueue.poll(0L, TimeUnit.MILLISECONDS)) != null) {
-            Message msg=decryptMessage(symDecodingCipher, tmp.copy());
+            Message msg=decryptMessage(ciphers, null, tmp.copy());
 
             if(msg != null)
                 passItUp(new Event(Event.MSG, msg));
@@ -741,10 +774,13 @@ public class ENCRYPT extends Protocol {
 
         // put the previous key into the map
         // if the keys are already there then they will overwrite
-        keyMap.put(getSymVersion(), getSymDecodingCipher());
+        CipherPool pool=ciphers;
+        synchronized(keyMap) {
+            keyMap.put(pool.version, pool);
+        }
 
         setSecretKey(key);
-        initSymCiphers(key.getAlgorithm(), key);
+        initSymCiphers(symAlgorithm, key);
         setSymVersion(version);
 
         // drain the up queue
@@ -760,46 +796,54 @@ public class ENCRYPT extends Protocol {
      * Does the actual work for decrypting - if version does not match current
      * cipher then tries to use previous cipher
      * 
-     * @param cipher
+     * @param pool The ciphers of the current key
+     * @param cipher A decoding cipher taken from pool, or null to take one from the pool for this message only
      * @param msg
      * @return
      * @throws Exception
      */
-    private Message decryptMessage(Cipher cipher, Message msg) throws Exception {
+    private Message decryptMessage(CipherPool pool, Cipher cipher, Message msg) throws Exception {
         EncryptHeader hdr=(EncryptHeader)msg.getHeader(this.id);
-        if(!hdr.getVersion().equals(getSymVersion())) {
+        if(!hdr.getVersion().equals(pool.version)) {
             log.warn("attempting to use stored cipher as message does not use current encryption version ");
-            cipher=keyMap.get(hdr.getVersion());
-            if(cipher == null) {
+            CipherPool old;
+            synchronized(keyMap) {
+                old=keyMap.get(hdr.getVersion());
+            }
+            if(old == null) {
                 log.warn("Unable to find a matching cipher in previous key map");
                 return null;
             }
             else {
                 if(log.isTraceEnabled())
                     log.trace("decrypting using previous cipher version " + hdr.getVersion());
-                return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+                return _decrypt(old, null, msg, hdr);
             }
         }
 
         else {
 
             // reset buffer with decrypted message
-            return _decrypt(cipher, msg, hdr.encrypt_entire_msg);
+            return _decrypt(pool, cipher, msg, hdr);
         }
     }
 
-    private Message _decrypt(Cipher cipher, Message msg, boolean decrypt_entire_msg) throws Exception {
+    private Message _decrypt(CipherPool pool, Cipher cipher, Message msg, EncryptHeader hdr) throws Exception {
         byte[] decrypted_msg;
 
-        decrypt_lock.lock();
-        try {
-            decrypted_msg=cipher.doFinal(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
-        }
-        finally {
-            decrypt_lock.unlock();
+        if(cipher != null)
+            decrypted_msg=pool.decrypt(cipher, hdr.iv, msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        else {
+            cipher=pool.decoders.take();
+            try {
+                decrypted_msg=pool.decrypt(cipher, hdr.iv, msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            }
+            finally {
+                pool.decoders.offer(cipher);
+            }
         }
 
-        if(!decrypt_entire_msg) {
+        if(!hdr.encrypt_entire_msg) {
             msg.setBuffer(decrypted_msg);
             return msg;
         }
@@ -957,17 +1001,16 @@ public class ENCRYPT extends Protocol {
             return;
         }
 
-        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, getSymVersion());
+        // version and key have to match, so both are taken from the same pool
+        CipherPool pool=ciphers;
+        EncryptHeader hdr=new EncryptHeader(EncryptHeader.ENCRYPT, pool.version);
         hdr.encrypt_entire_msg=this.encrypt_entire_message;
 
         if(encrypt_entire_message) {
             if(msg.getSrc() == null)
                 msg.setSrc(local_addr);
             byte[] serialized_msg=Util.streamableToByteBuffer(msg);
-            byte[] encrypted_msg=encryptMessage(symEncodingCipher,
-                                                serialized_msg,
-                                                0,
-                                                serialized_msg.length);
+            byte[] encrypted_msg=pool.encrypt(hdr, serialized_msg, 0, serialized_msg.length);
             // we need to exclude existing headers, they will be seen again when we decrypt and unmarshal the message
             // on the receiver
             Message tmp=msg.copy(false, false);
@@ -984,24 +1027,10 @@ public class ENCRYPT extends Protocol {
 
         // copy neeeded because same message (object) may be retransmitted -> no double encryption
         Message msgEncrypted=msg.copy(false);
-        msgEncrypted.setBuffer(encryptMessage(symEncodingCipher,
-                                              msg.getRawBuffer(),
-                                              msg.getOffset(),
-                                              msg.getLength()));
+        msgEncrypted.setBuffer(pool.encrypt(hdr, msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
         passItDown(new Event(Event.MSG, msgEncrypted));
     }
 
-    /**
-     * 
-     * @param cipher
-     * @param plain
-     * @return
-     * @throws Exception
-     */
-    private synchronized byte[] encryptMessage(Cipher cipher, byte[] plain, int offset, int length) throws Exception {
-        return cipher.doFinal(plain,offset,length);
-    }
-
     private SecretKeySpec decodeKey(byte[] encodedKey) throws Exception {
         // try and decode secrey key sent from keyserver
         byte[] keyBytes;
@@ -1160,14 +1189,16 @@ public class ENCRYPT extends Protocol {
      * @return Returns the symDecodingCipher.
      */
     protected Cipher getSymDecodingCipher() {
-        return symDecodingCipher;
+        CipherPool pool=ciphers;
+        return pool != null? pool.decoders.peek() : null;
     }
 
     /**
      * @return Returns the symEncodingCipher.
      */
     protected Cipher getSymEncodingCipher() {
-        return symEncodingCipher;
+        CipherPool pool=ciphers;
+        return pool != null? pool.encoders.peek() : null;
     }
 
     /**
@@ -1200,6 +1231,100 @@ public class ENCRYPT extends Protocol {
         this.keyServerAddr=keyServerAddr;
     }
 
+    /**
+     * The ciphers for one secret key. A cipher is not thread-safe, so a thread takes one from the pool, uses it and
+     * returns it; this allows up to cipher_pool_size threads to encrypt (and as many to decrypt) at the same time.<p/>
+     * If the transformation needs an IV (e.g. AES/CBC/PKCS5Padding or AES/GCM/NoPadding), every message is encrypted
+     * with a new IV, which is sent in the {@link EncryptHeader}. With GCM (an authenticated mode, so tampered messages
+     * fail decryption), the IV consists of a random prefix and a counter, which keeps IVs unique without generating
+     * random numbers for every message. GCM requires Java 7 or higher, so GCMParameterSpec is looked up with reflection
+     * and creating a pool for GCM fails (in init()) on older JVMs.
+     */
+    protected class CipherPool {
+        protected final SecretKey             key;
+        protected final String                version;
+        protected final BlockingQueue<Cipher> encoders, decoders;
+        protected final boolean               needs_iv, gcm;
+        protected final Constructor<? extends AlgorithmParameterSpec> gcm_spec; // GCMParameterSpec(int,byte[])
+        protected final byte[]                iv_prefix=new byte[8];
+        protected final AtomicLong            iv_counter=new AtomicLong();
+
+        protected CipherPool(String algorithm, SecretKey key, String version) throws Exception {
+            this.key=key;
+            this.version=version;
+            int size=Math.max(1, cipher_pool_size);
+            encoders=new ArrayBlockingQueue<Cipher>(size);
+            decoders=new ArrayBlockingQueue<Cipher>(size);
+            gcm=algorithm.toUpperCase().contains("/GCM/");
+            gcm_spec=gcm? getGCMParameterSpec(algorithm) : null;
+            boolean iv=false;
+            for(int i=0; i < size; i++) {
+                Cipher encoder=createSymCipher(algorithm), decoder=createSymCipher(algorithm);
+                encoder.init(Cipher.ENCRYPT_MODE, key);
+                iv=encoder.getIV() != null;
+                if(!iv) // decoders of ciphers with an IV are initialized for every message
+                    decoder.init(Cipher.DECRYPT_MODE, key);
+                encoders.add(encoder);
+                decoders.add(decoder);
+            }
+            needs_iv=iv;
+            if(gcm)
+                new SecureRandom().nextBytes(iv_prefix);
+        }
+
+        /** Encrypts the buffer and sets the IV (if needed) in hdr */
+        protected byte[] encrypt(EncryptHeader hdr, byte[] buf, int offset, int length) throws Exception {
+            Cipher cipher=encoders.take();
+            try {
+                if(gcm) {
+                    byte[] iv=nextIV();
+                    cipher.init(Cipher.ENCRYPT_MODE, key, gcm_spec.newInstance(gcm_tag_length, iv));
+                    hdr.iv=iv;
+                }
+                else if(needs_iv) {
+                    cipher.init(Cipher.ENCRYPT_MODE, key); // generates a new random IV
+                    hdr.iv=cipher.getIV();
+                }
+                return cipher.doFinal(buf, offset, length);
+            }
+            finally {
+                encoders.offer(cipher);
+            }
+        }
+
+        /** Decrypts the buffer with a decoding cipher taken from this pool */
+        protected byte[] decrypt(Cipher cipher, byte[] iv, byte[] buf, int offset, int length) throws Exception {
+            if(needs_iv) {
+                if(iv == null)
+                    throw new IllegalArgumentException("message has no IV, but " + cipher.getAlgorithm() + " requires one");
+                cipher.init(Cipher.DECRYPT_MODE, key, gcm? gcm_spec.newInstance(gcm_tag_length, iv) : new IvParameterSpec(iv));
+            }
+            return cipher.doFinal(buf, offset, length);
+        }
+
+        /** Returns the constructor of GCMParameterSpec, which was added in Java 7 */
+        protected Constructor<? extends AlgorithmParameterSpec> getGCMParameterSpec(String algorithm) throws Exception {
+            Class<? extends AlgorithmParameterSpec> clazz;
+            try {
+                clazz=Class.forName("javax.crypto.spec.GCMParameterSpec").asSubclass(AlgorithmParameterSpec.class);
+            }
+            catch(ClassNotFoundException ex) {
+                throw new IllegalStateException(algorithm + " uses GCM, which requires Java 7 or higher");
+            }
+            return clazz.getConstructor(int.class, byte[].class);
+        }
+
+        protected byte[] nextIV() {
+            byte[] iv=Arrays.copyOf(iv_prefix, iv_prefix.length + Global.LONG_SIZE);
+            long count=iv_counter.incrementAndGet();
+            for(int i=iv.length-1; i >= iv_prefix.length; i--) {
+                iv[i]=(byte)count;
+                count>>>=8;
+            }
+            return iv;
+        }
+    }
+
     public static class EncryptHeader extends org.jgroups.Header {
         short type;
         public static final short ENCRYPT     = 0;
@@ -1208,6 +1333,7 @@ public class ENCRYPT extends Protocol {
 
         String version;
         boolean encrypt_entire_msg=false;
+        byte[] iv; // only set if the cipher needs an IV
 
         public EncryptHeader() {}
 
@@ -1226,12 +1352,20 @@ public class ENCRYPT extends Protocol {
             out.writeShort(type);
             Util.writeString(version, out);
             out.writeBoolean(encrypt_entire_msg);
+            out.writeByte(iv != null? iv.length : 0);
+            if(iv != null)
+                out.write(iv);
         }
 
         public void readFrom(DataInput in) throws Exception {
             type=in.readShort();
             version=Util.readString(in);
             encrypt_entire_msg=in.readBoolean();
+            int iv_len=in.readUnsignedByte();
+            if(iv_len > 0) {
+                iv=new byte[iv_len];
+                in.readFully(iv);
+            }
         }
 
         public String toString() {
@@ -1239,9 +1373,11 @@ public class ENCRYPT extends Protocol {
         }
 
         public int size() {
-            int retval=Global.SHORT_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE;
+            int retval=Global.SHORT_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE + Global.BYTE_SIZE;
             if(version != null)
                 retval+=version.length() + 2;
+            if(iv != null)
+                retval+=iv.length;
             return retval;
         }
 
@@ -134,7 +134,11 @@ abstract public class Executing extends Protocol {
         CREATE_RUN_REQUEST,     // request to backups from coordinator to create a new task request. Used by CENTRAL_LOCKING
         CREATE_CONSUMER_READY,  // request to backups from coordinator to create a new consumer ready. Used by CENTRAL_LOCKING
         DELETE_RUN_REQUEST,     // request to backups from coordinator to delete a task request. Used by CENTRAL_LOCKING
-        DELETE_CONSUMER_READY   // request to backups from coordinator to delete a consumer ready. Used by CENTRAL_LOCKING
+        DELETE_CONSUMER_READY,  // request to backups from coordinator to delete a consumer ready. Used by CENTRAL_LOCKING
+        RUN_BATCH,              // request to a member from client with a batch of tasks to run. Used by work stealing
+        STEAL_REQUEST,          // request to a member from an idle member to hand over queued tasks. Used by work stealing
+        STEAL_RESPONSE,         // response to the idle member with the tasks stolen (may be none). Used by work stealing
+        TASKS_MOVED             // request to client that some of its tasks were stolen by a given member. Used by work stealing
     }
     
     public Executing() {
@@ -173,15 +177,7 @@ abstract public class Executing extends Protocol {
             case ExecutorEvent.TASK_SUBMIT:
                 Runnable runnable = (Runnable)evt.getArg();
                 _awaitingConsumer.add(runnable);
-                // We are limited to a number of concurrent request id's
-                // equal to 2^63-1.  This is quite large and if it 
-                // overflows it will still be positive
-                long requestId = Math.abs(counter.getAndIncrement());
-                if(requestId == Long.MIN_VALUE) {
-                    counter.set(0);
-                    requestId = Math.abs(counter.getAndIncrement());
-                }
-
+                long requestId = nextRequestId();
                 _requestId.put(runnable, requestId);
                 sendToCoordinator(Type.RUN_REQUEST, requestId, local_addr);
                 break;
@@ -429,6 +425,34 @@ abstract public class Executing extends Protocol {
         return down_prot.down(evt);
     }
     
+    protected static long nextRequestId() {
+        // We are limited to a number of concurrent request id's
+        // equal to 2^63-1.  This is quite large and if it
+        // overflows it will still be positive
+        long requestId = Math.abs(counter.getAndIncrement());
+        if(requestId == Long.MIN_VALUE) {
+            counter.set(0);
+            requestId = Math.abs(counter.getAndIncrement());
+        }
+        return requestId;
+    }
+
+    /**
+     * Returns the runnable to run for a task received from a client: either the Runnable itself or a Callable
+     * wrapped in a FutureTask. Returns null if the object is neither
+     */
+    protected static Runnable toRunnable(Object objectToRun) {
+        if (objectToRun instanceof Runnable) {
+            return (Runnable)objectToRun;
+        }
+        if (objectToRun instanceof Callable) {
+            @SuppressWarnings("unchecked")
+            Callable<Object> callable = (Callable<Object>)objectToRun;
+            return new FutureTask<Object>(callable);
+        }
+        return null;
+    }
+
     protected static <V, K> V removeKeyForValue(Map<V, K> map, K value) {
         synchronized (map) {
             Iterator<Entry<V, K>> iter = 
@@ -472,16 +496,8 @@ abstract public class Executing extends Protocol {
                     case RUN_SUBMITTED:
                         RequestWithThread reqWT = (RequestWithThread)req;
                         Object objectToRun = reqWT.object;
-                        Runnable runnable;
-                        if (objectToRun instanceof Runnable) {
-                            runnable = (Runnable)objectToRun;
-                        }
-                        else if (objectToRun instanceof Callable) {
-                            @SuppressWarnings("unchecked")
-                            Callable<Object> callable = (Callable<Object>)objectToRun;
-                            runnable = new FutureTask<Object>(callable);
-                        }
-                        else {
+                        Runnable runnable = toRunnable(objectToRun);
+                        if (runnable == null) {
                             log.error("Request of type " + req.type + 
                                 " sent an object of " + objectToRun + " which is invalid");
                             break;
@@ -521,6 +537,12 @@ abstract public class Executing extends Protocol {
                         owner = new Owner((Address)req.object, req.request);
                         handleRemoveRunRequest(owner);
                         break;
+                    case RUN_BATCH:
+                    case STEAL_REQUEST:
+                    case STEAL_RESPONSE:
+                    case TASKS_MOVED:
+                        handleWorkStealingRequest(msg.getSrc(), req);
+                        break;
                     default:
                         log.error("Request of type " + req.type + " not known");
                         break;
@@ -581,6 +603,11 @@ abstract public class Executing extends Protocol {
         }
     }
 
+    /** Handles the requests used by work stealing; only needed by subclasses supporting it */
+    protected void handleWorkStealingRequest(Address sender, Request req) {
+        log.error("Request of type " + req.type + " is not supported by " + getName());
+    }
+
     abstract protected void sendToCoordinator(Type type, long requestId, Address address);
     abstract protected void sendNewRunRequest(Owner source);
     abstract protected void sendRemoveRunRequest(Owner source);
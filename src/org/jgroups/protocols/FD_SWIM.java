@@ -0,0 +1,718 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.*;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Failure detection based on SWIM (Scalable Weakly-consistent Infection-style process group Membership). In every
+ * protocol period (interval), a member pings one other member, picked in round-robin order from a randomly shuffled
+ * list of the members. If no ack is received within ping_timeout, num_indirect_probes other members are asked to
+ * ping the target on our behalf and relay the ack. If no ack is received by the end of the period, the target is
+ * suspected.<p/>
+ * Suspicions are not acted on right away: they're disseminated by piggybacking them on pings and acks, and a
+ * suspected member which learns about the suspicion refutes it by incrementing its incarnation number. If a
+ * suspicion is not refuted within suspect_timeout ms, the member is confirmed as dead and the first non-confirmed
+ * member of the view (usually the coordinator) sends a SUSPECT event up the stack.<p/>
+ * Contrary to {@link FD_ALL}, where every member multicasts heartbeats and scans the timestamps of all members, the
+ * load per member is constant: a member sends one ping per period (plus num_indirect_probes ping requests when the
+ * target doesn't respond) and is pinged once per period on average, regardless of the cluster size.
+ * Every update is piggybacked retransmit_mult * log2(N) times, so it reaches all members with high probability.
+ * @since 3.5
+ */
+@Experimental
+@MBean(description="Failure detection based on SWIM (randomized probing, indirect pings and gossiped suspicions)")
+public class FD_SWIM extends Protocol {
+
+    /* -----------------------------------------    Properties     -------------------------------------------------- */
+
+    @Property(description="Length of a protocol period (ms): a member is pinged every interval ms")
+    protected long interval=2000;
+
+    @Property(description="Time (ms) to wait for an ack to a direct ping before other members are asked to ping " +
+      "the target. Needs to be less than interval")
+    protected long ping_timeout=500;
+
+    @Property(description="Number of members which are asked to ping a target which didn't ack a direct ping")
+    protected int num_indirect_probes=3;
+
+    @Property(description="Time (ms) after which a suspected member which didn't refute the suspicion is " +
+      "confirmed as dead")
+    protected long suspect_timeout=10000;
+
+    @Property(description="Max number of membership updates piggybacked on a single ping or ack")
+    protected int max_piggyback=6;
+
+    @Property(description="Every update is piggybacked retransmit_mult * log2(cluster size) times")
+    protected int retransmit_mult=3;
+
+
+    /* ---------------------------------------------   JMX      ------------------------------------------------------ */
+    @ManagedAttribute(description="Number of direct pings sent")
+    protected int num_pings_sent;
+
+    @ManagedAttribute(description="Number of pings received (direct and on behalf of other members)")
+    protected int num_pings_received;
+
+    @ManagedAttribute(description="Number of requests to ping a target on our behalf sent")
+    protected int num_ping_reqs_sent;
+
+    @ManagedAttribute(description="Number of acks received for our own pings")
+    protected int num_acks_received;
+
+    @ManagedAttribute(description="Number of acks relayed to members which requested an indirect ping")
+    protected int num_acks_relayed;
+
+    @ManagedAttribute(description="Number of suspicions raised by this member")
+    protected int num_suspicions;
+
+    @ManagedAttribute(description="Number of suspicions about this member which were refuted")
+    protected int num_refutations;
+
+    @ManagedAttribute(description="Number of suspect events sent up the stack")
+    protected int num_suspect_events;
+
+    @ManagedAttribute(description="Number of membership updates piggybacked on outgoing messages")
+    protected int num_updates_sent;
+
+
+    /* --------------------------------------------- Fields ------------------------------------------------------ */
+
+    protected Address                          local_addr;
+    protected TimeScheduler                    timer;
+    protected final Random                     random=new Random();
+
+    @GuardedBy("this")
+    protected List<Address>                    members=Collections.emptyList();
+    @GuardedBy("this")
+    protected final Set<Address>               member_set=new HashSet<Address>();
+
+    /** Members in the order in which they're probed; shuffled again after every round */
+    @GuardedBy("this")
+    protected final List<Address>              probe_list=new ArrayList<Address>();
+    @GuardedBy("this")
+    protected int                              probe_index;
+
+    /** Target, seqno and ack status of the current probe */
+    @GuardedBy("this")
+    protected Address                          probe_target;
+    @GuardedBy("this")
+    protected long                             probe_seqno;
+    @GuardedBy("this")
+    protected boolean                          probe_acked=true;
+
+    /** Our own incarnation; incremented to refute a suspicion */
+    @GuardedBy("this")
+    protected int                              incarnation;
+
+    /** The highest incarnation we know of per member (0 is not stored) */
+    @GuardedBy("this")
+    protected final Map<Address,Integer>       incarnations=new HashMap<Address,Integer>();
+
+    /** Suspected members and the time (ns) at which the suspicion expires */
+    @GuardedBy("this")
+    protected final Map<Address,Long>          suspects=new HashMap<Address,Long>();
+
+    /** Members which have been confirmed as dead, but which are still in the view */
+    @GuardedBy("this")
+    protected final Set<Address>               confirmed=new HashSet<Address>();
+
+    /** Updates to be piggybacked and the number of times they still need to be sent, oldest first */
+    @GuardedBy("this")
+    protected final Map<Address,Dissemination> updates=new LinkedHashMap<Address,Dissemination>();
+
+    @GuardedBy("this")
+    protected Future<?>                        prober;
+
+    protected final BoundedList<Tuple<Address,Long>> suspect_history=new BoundedList<Tuple<Address,Long>>(20);
+
+
+
+    public FD_SWIM setInterval(long interval)                {this.interval=interval; return this;}
+    public long    getInterval()                             {return interval;}
+    public FD_SWIM setPingTimeout(long timeout)              {this.ping_timeout=timeout; return this;}
+    public long    getPingTimeout()                          {return ping_timeout;}
+    public FD_SWIM setNumIndirectProbes(int num)             {this.num_indirect_probes=num; return this;}
+    public int     getNumIndirectProbes()                    {return num_indirect_probes;}
+    public FD_SWIM setSuspectTimeout(long timeout)           {this.suspect_timeout=timeout; return this;}
+    public long    getSuspectTimeout()                       {return suspect_timeout;}
+    public FD_SWIM setMaxPiggyback(int max)                  {this.max_piggyback=max; return this;}
+    public FD_SWIM setRetransmitMult(int mult)               {this.retransmit_mult=mult; return this;}
+    public int     getNumPingsSent()                         {return num_pings_sent;}
+    public int     getNumPingsReceived()                     {return num_pings_received;}
+    public int     getNumPingReqsSent()                      {return num_ping_reqs_sent;}
+    public int     getNumAcksReceived()                      {return num_acks_received;}
+    public int     getNumAcksRelayed()                       {return num_acks_relayed;}
+    public int     getNumSuspicions()                        {return num_suspicions;}
+    public int     getNumRefutations()                       {return num_refutations;}
+    public int     getNumSuspectEvents()                     {return num_suspect_events;}
+    public int     getNumUpdatesSent()                       {return num_updates_sent;}
+
+    @ManagedAttribute(description="Our own incarnation number")
+    public synchronized int getIncarnation() {return incarnation;}
+
+    @ManagedAttribute(description="Currently suspected members")
+    public synchronized String getSuspectedMembers() {return suspects.keySet().toString();}
+
+    @ManagedAttribute(description="Members which have been confirmed as dead")
+    public synchronized String getConfirmedMembers() {return confirmed.toString();}
+
+    public synchronized boolean isConfirmed(Address mbr) {return confirmed.contains(mbr);}
+
+    @ManagedAttribute(description="Number of updates waiting to be piggybacked")
+    public synchronized int getNumPendingUpdates() {return updates.size();}
+
+    @ManagedAttribute(description="Whether the probing task is running")
+    public synchronized boolean isRunning() {return prober != null && !prober.isDone();}
+
+    @ManagedOperation(description="Prints the updates which are piggybacked on outgoing messages")
+    public synchronized String printUpdates() {
+        StringBuilder sb=new StringBuilder();
+        for(Dissemination d: updates.values())
+            sb.append(d).append("\n");
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Prints suspect history")
+    public String printSuspectHistory() {
+        StringBuilder sb=new StringBuilder();
+        for(Tuple<Address,Long> tmp: suspect_history)
+            sb.append(new Date(tmp.getVal2())).append(": ").append(tmp.getVal1()).append("\n");
+        return sb.toString();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_pings_sent=num_pings_received=num_ping_reqs_sent=num_acks_received=num_acks_relayed=0;
+        num_suspicions=num_refutations=num_suspect_events=num_updates_sent=0;
+        suspect_history.clear();
+    }
+
+    public void init() throws Exception {
+        timer=getTransport().getTimer();
+        if(timer == null)
+            throw new Exception("timer not set");
+        if(ping_timeout >= interval)
+            throw new IllegalArgumentException("ping_timeout (" + ping_timeout + ") has to be less than interval (" +
+                                                 interval + ")");
+        if(max_piggyback < 1 || retransmit_mult < 1)
+            throw new IllegalArgumentException("max_piggyback and retransmit_mult have to be >= 1");
+    }
+
+    public synchronized void stop() {
+        stopProber();
+        suspects.clear();
+        confirmed.clear();
+        updates.clear();
+    }
+
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.MSG:
+                Message msg=(Message)evt.getArg();
+                SwimHeader hdr=(SwimHeader)msg.getHeader(id);
+                if(hdr == null)
+                    break;
+                handle(msg.getSrc(), hdr);
+                return null;
+        }
+        return up_prot.up(evt);
+    }
+
+    public void up(MessageBatch batch) {
+        Collection<Message> msgs=batch.getMatchingMessages(id, true);
+        if(msgs != null) {
+            for(Message msg: msgs)
+                handle(msg.getSrc(), (SwimHeader)msg.getHeader(id));
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                Object retval=down_prot.down(evt);
+                handleView((View)evt.getArg());
+                return retval;
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=(Address)evt.getArg();
+                break;
+            case Event.UNSUSPECT:
+                Address mbr=(Address)evt.getArg();
+                synchronized(this) {
+                    suspects.remove(mbr);
+                    confirmed.remove(mbr);
+                }
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+
+    protected void handle(Address sender, SwimHeader hdr) {
+        List<Address> dead=hdr.updates != null? processUpdates(hdr.updates) : null;
+        switch(hdr.type) {
+            case SwimHeader.PING:
+                num_pings_received++;
+                // hdr.origin is the member which asked sender to ping us; it is returned in the ack
+                send(sender, new SwimHeader(SwimHeader.ACK, hdr.seqno, local_addr, hdr.origin));
+                break;
+            case SwimHeader.PING_REQ:
+                send(hdr.target, new SwimHeader(SwimHeader.PING, hdr.seqno, null, sender));
+                break;
+            case SwimHeader.ACK:
+                if(hdr.origin != null && !hdr.origin.equals(local_addr)) {
+                    num_acks_relayed++;
+                    send(hdr.origin, new SwimHeader(SwimHeader.ACK, hdr.seqno, hdr.target, null));
+                }
+                else
+                    handleAck(hdr.seqno, hdr.target);
+                break;
+            default:
+                log.error("type " + hdr.type + " not known");
+        }
+        if(dead != null && !dead.isEmpty())
+            raiseSuspectEvents(dead);
+    }
+
+    protected synchronized void handleAck(long seqno, Address target) {
+        if(seqno == probe_seqno && target != null && target.equals(probe_target) && !probe_acked) {
+            probe_acked=true;
+            num_acks_received++;
+        }
+    }
+
+    protected void handleView(View view) {
+        synchronized(this) {
+            members=view.getMembers();
+            member_set.clear();
+            member_set.addAll(members);
+            incarnations.keySet().retainAll(member_set);
+            suspects.keySet().retainAll(member_set);
+            confirmed.retainAll(member_set);
+            updates.keySet().retainAll(member_set);
+            probe_list.clear();
+            probe_index=0;
+            for(Address mbr: members)
+                if(!mbr.equals(local_addr))
+                    probe_list.add(mbr);
+            Collections.shuffle(probe_list, random);
+            if(members.size() > 1)
+                startProber();
+            else
+                stopProber();
+        }
+        raiseSuspectEvents(null);
+    }
+
+    /** Runs once per protocol period: evaluates the previous probe and the suspicions, then probes the next member */
+    protected void probe() {
+        List<Address> dead;
+        Address target;
+        final long seqno;
+        synchronized(this) {
+            if(!probe_acked && probe_target != null)
+                suspect(probe_target);
+            dead=checkSuspicions();
+            target=nextTarget();
+            probe_target=target;
+            probe_acked=target == null;
+            seqno=++probe_seqno;
+        }
+        if(target != null) {
+            num_pings_sent++;
+            send(target, new SwimHeader(SwimHeader.PING, seqno, null, null));
+            timer.schedule(new Runnable() {
+                public void run() {probeIndirectly(seqno);}
+                public String toString() {return FD_SWIM.class.getSimpleName() + ": indirect probe";}
+            }, ping_timeout, TimeUnit.MILLISECONDS);
+        }
+        raiseSuspectEvents(dead);
+    }
+
+    /** Asks num_indirect_probes random members to ping the current target if it hasn't acked our ping yet */
+    protected void probeIndirectly(long seqno) {
+        Address target;
+        List<Address> helpers=new ArrayList<Address>(num_indirect_probes);
+        synchronized(this) {
+            if(probe_acked || seqno != probe_seqno)
+                return;
+            target=probe_target;
+            int size=members.size();
+            // random picks rather than a scan of the membership: the cost doesn't depend on the cluster size
+            for(int i=0; i < num_indirect_probes * 3 && helpers.size() < num_indirect_probes && size > 2; i++) {
+                Address mbr=members.get(random.nextInt(size));
+                if(!mbr.equals(local_addr) && !mbr.equals(target) && !confirmed.contains(mbr)
+                  && !suspects.containsKey(mbr) && !helpers.contains(mbr))
+                    helpers.add(mbr);
+            }
+        }
+        for(Address helper: helpers) {
+            num_ping_reqs_sent++;
+            send(helper, new SwimHeader(SwimHeader.PING_REQ, seqno, target, null));
+        }
+    }
+
+    /** Returns the next member to be probed; the probe list is shuffled after every complete round */
+    @GuardedBy("this")
+    protected Address nextTarget() {
+        for(int i=0; i <= probe_list.size(); i++) {
+            if(probe_index >= probe_list.size()) {
+                if(probe_list.isEmpty())
+                    return null;
+                Collections.shuffle(probe_list, random);
+                probe_index=0;
+            }
+            Address mbr=probe_list.get(probe_index++);
+            if(!confirmed.contains(mbr))
+                return mbr;
+        }
+        return null;
+    }
+
+    @GuardedBy("this")
+    protected void suspect(Address mbr) {
+        if(confirmed.contains(mbr) || suspects.containsKey(mbr) || !member_set.contains(mbr))
+            return;
+        num_suspicions++;
+        if(log.isDebugEnabled())
+            log.debug(local_addr + ": no ack from " + mbr + ", suspecting it");
+        suspects.put(mbr, System.nanoTime() + TimeUnit.NANOSECONDS.convert(suspect_timeout, TimeUnit.MILLISECONDS));
+        disseminate(new Update(Update.SUSPECT, mbr, incarnationOf(mbr)));
+    }
+
+    /** Confirms all members whose suspicion has expired; returns the members which need to be suspected */
+    @GuardedBy("this")
+    protected List<Address> checkSuspicions() {
+        if(suspects.isEmpty())
+            return null;
+        List<Address> dead=null;
+        long now=System.nanoTime();
+        for(Iterator<Map.Entry<Address,Long>> it=suspects.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Address,Long> entry=it.next();
+            if(entry.getValue() - now > 0)
+                continue;
+            Address mbr=entry.getKey();
+            it.remove();
+            if(dead == null)
+                dead=new ArrayList<Address>();
+            confirm(mbr, incarnationOf(mbr), dead);
+        }
+        return dead;
+    }
+
+    @GuardedBy("this")
+    protected void confirm(Address mbr, int inc, List<Address> dead) {
+        if(!confirmed.add(mbr))
+            return;
+        suspects.remove(mbr);
+        disseminate(new Update(Update.CONFIRM, mbr, inc));
+        dead.add(mbr);
+    }
+
+    /** Applies the piggybacked updates; returns the members which have been confirmed as dead, or null */
+    protected synchronized List<Address> processUpdates(List<Update> list) {
+        List<Address> dead=null;
+        for(Update update: list) {
+            Address mbr=update.member;
+            if(mbr.equals(local_addr)) {
+                if(update.type == Update.SUSPECT && update.incarnation >= incarnation) {
+                    // refute the suspicion by bumping our incarnation
+                    incarnation=update.incarnation + 1;
+                    num_refutations++;
+                    if(log.isDebugEnabled())
+                        log.debug(local_addr + ": refuting suspicion, incarnation is now " + incarnation);
+                    disseminate(new Update(Update.ALIVE, local_addr, incarnation));
+                }
+                else if(update.type == Update.CONFIRM)
+                    log.warn(local_addr + ": I was confirmed as dead");
+                continue;
+            }
+            if(!member_set.contains(mbr) || confirmed.contains(mbr))
+                continue;
+            int known=incarnationOf(mbr);
+            switch(update.type) {
+                case Update.ALIVE:
+                    if(update.incarnation > known) {
+                        incarnations.put(mbr, update.incarnation);
+                        suspects.remove(mbr);
+                        disseminate(update);
+                    }
+                    break;
+                case Update.SUSPECT:
+                    if(update.incarnation > known || (update.incarnation == known && !suspects.containsKey(mbr))) {
+                        if(update.incarnation > known)
+                            incarnations.put(mbr, update.incarnation);
+                        suspects.put(mbr, System.nanoTime() +
+                          TimeUnit.NANOSECONDS.convert(suspect_timeout, TimeUnit.MILLISECONDS));
+                        disseminate(update);
+                    }
+                    break;
+                case Update.CONFIRM:
+                    if(dead == null)
+                        dead=new ArrayList<Address>();
+                    confirm(mbr, update.incarnation, dead);
+                    break;
+            }
+        }
+        return dead;
+    }
+
+    /**
+     * Records the newly confirmed members and, if we're the first member of the view which is not confirmed, sends
+     * a SUSPECT event up and down the stack for every confirmed member which is still in the view. This is called on
+     * every protocol period and view change (like {@link FD_ALL}, which suspects a member until it has been removed),
+     * so members which were confirmed while a (not yet confirmed) dead coordinator was the first member are suspected
+     * as soon as we take over
+     * @param dead The members which have just been confirmed as dead, or null
+     */
+    protected void raiseSuspectEvents(List<Address> dead) {
+        if(dead != null)
+            for(Address mbr: dead)
+                suspect_history.add(new Tuple<Address,Long>(mbr, System.currentTimeMillis()));
+        List<Address> suspected=null;
+        synchronized(this) {
+            if(confirmed.isEmpty())
+                return;
+            for(Address mbr: members) {
+                if(!confirmed.contains(mbr)) {
+                    if(mbr.equals(local_addr))
+                        suspected=new ArrayList<Address>(confirmed);
+                    break;
+                }
+            }
+        }
+        if(suspected == null)
+            return;
+        for(Address mbr: suspected) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": suspecting " + mbr);
+            num_suspect_events++;
+            up_prot.up(new Event(Event.SUSPECT, mbr));
+            down_prot.down(new Event(Event.SUSPECT, mbr));
+        }
+    }
+
+    @GuardedBy("this")
+    protected int incarnationOf(Address mbr) {
+        Integer inc=incarnations.get(mbr);
+        return inc != null? inc : 0;
+    }
+
+    /** Adds an update to be piggybacked; it replaces an older update about the same member */
+    @GuardedBy("this")
+    protected void disseminate(Update update) {
+        int size=Math.max(members.size(), 2);
+        int count=retransmit_mult * (32 - Integer.numberOfLeadingZeros(size - 1)); // retransmit_mult * ceil(log2(size))
+        updates.remove(update.member);
+        updates.put(update.member, new Dissemination(update, count));
+    }
+
+    /**
+     * Picks up to max_piggyback updates to be sent to dest; an update about dest itself is always included, so that
+     * a suspected member learns about the suspicion as soon as possible
+     */
+    protected synchronized List<Update> nextUpdates(Address dest) {
+        if(updates.isEmpty())
+            return null;
+        List<Update> list=new ArrayList<Update>(Math.min(max_piggyback, updates.size()));
+        Dissemination about_dest=dest != null? updates.get(dest) : null;
+        if(about_dest != null)
+            list.add(about_dest.update);
+        // updates which haven't been sent for the longest time are at the head; sent updates are moved to the tail
+        List<Dissemination> sent=new ArrayList<Dissemination>(max_piggyback);
+        for(Iterator<Dissemination> it=updates.values().iterator(); it.hasNext() && list.size() < max_piggyback;) {
+            Dissemination d=it.next();
+            if(d != about_dest)
+                list.add(d.update);
+            it.remove();
+            sent.add(d);
+        }
+        if(about_dest != null && !sent.contains(about_dest)) {
+            updates.remove(dest);
+            sent.add(about_dest);
+        }
+        for(Dissemination d: sent)
+            if(--d.count > 0)
+                updates.put(d.update.member, d);
+        num_updates_sent+=list.size();
+        return list;
+    }
+
+    protected void send(Address dest, SwimHeader hdr) {
+        if(dest == null)
+            return;
+        hdr.updates=nextUpdates(dest);
+        Message msg=new Message(dest).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL).putHeader(id, hdr);
+        down_prot.down(new Event(Event.MSG, msg));
+    }
+
+    @GuardedBy("this")
+    protected void startProber() {
+        if(prober == null || prober.isDone()) {
+            prober=timer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {probe();}
+                public String toString() {return FD_SWIM.class.getSimpleName() + ": prober (interval=" + interval + " ms)";}
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @GuardedBy("this")
+    protected void stopProber() {
+        if(prober != null) {
+            prober.cancel(true);
+            prober=null;
+        }
+        probe_target=null;
+        probe_acked=true;
+    }
+
+
+    /** A membership update about a member, piggybacked on pings and acks */
+    public static class Update implements Streamable {
+        public static final byte ALIVE=1, SUSPECT=2, CONFIRM=3;
+
+        protected byte    type;
+        protected Address member;
+        protected int     incarnation;
+
+        public Update() {
+        }
+
+        public Update(byte type, Address member, int incarnation) {
+            this.type=type;
+            this.member=member;
+            this.incarnation=incarnation;
+        }
+
+        public int size() {
+            return Global.BYTE_SIZE + Util.size(member) + Global.INT_SIZE;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            Util.writeAddress(member, out);
+            out.writeInt(incarnation);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            member=Util.readAddress(in);
+            incarnation=in.readInt();
+        }
+
+        public String toString() {
+            return typeToString(type) + "(" + member + ", " + incarnation + ")";
+        }
+
+        public static String typeToString(byte type) {
+            switch(type) {
+                case ALIVE:   return "ALIVE";
+                case SUSPECT: return "SUSPECT";
+                case CONFIRM: return "CONFIRM";
+                default:      return "<unknown>";
+            }
+        }
+    }
+
+    protected static class Dissemination {
+        protected final Update update;
+        protected int          count; // number of times the update still needs to be sent
+
+        protected Dissemination(Update update, int count) {
+            this.update=update;
+            this.count=count;
+        }
+
+        public String toString() {return update + " (" + count + " left)";}
+    }
+
+
+    public static class SwimHeader extends Header {
+        public static final byte PING=1, PING_REQ=2, ACK=3;
+
+        protected byte         type;
+        protected long         seqno;
+        protected Address      target; // PING_REQ: member to be pinged, ACK: member which was pinged
+        protected Address      origin; // member which requested an indirect ping
+        protected List<Update> updates;
+
+        public SwimHeader() {
+        }
+
+        public SwimHeader(byte type, long seqno, Address target, Address origin) {
+            this.type=type;
+            this.seqno=seqno;
+            this.target=target;
+            this.origin=origin;
+        }
+
+        public byte         getType()    {return type;}
+        public long         getSeqno()   {return seqno;}
+        public List<Update> getUpdates() {return updates;}
+
+        public int size() {
+            int retval=Global.BYTE_SIZE + Util.size(seqno) + Util.size(target) + Util.size(origin) + Global.SHORT_SIZE;
+            if(updates != null)
+                for(Update update: updates)
+                    retval+=update.size();
+            return retval;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            Util.writeLong(seqno, out);
+            Util.writeAddress(target, out);
+            Util.writeAddress(origin, out);
+            out.writeShort(updates != null? updates.size() : 0);
+            if(updates != null)
+                for(Update update: updates)
+                    update.writeTo(out);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            type=in.readByte();
+            seqno=Util.readLong(in);
+            target=Util.readAddress(in);
+            origin=Util.readAddress(in);
+            int size=in.readShort();
+            if(size > 0) {
+                updates=new ArrayList<Update>(size);
+                for(int i=0; i < size; i++) {
+                    Update update=new Update();
+                    update.readFrom(in);
+                    updates.add(update);
+                }
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder(typeToString(type)).append(" seqno=").append(seqno);
+            if(target != null)
+                sb.append(", target=").append(target);
+            if(origin != null)
+                sb.append(", origin=").append(origin);
+            if(updates != null && !updates.isEmpty())
+                sb.append(", updates=").append(updates);
+            return sb.toString();
+        }
+
+        public static String typeToString(byte type) {
+            switch(type) {
+                case PING:     return "PING";
+                case PING_REQ: return "PING_REQ";
+                case ACK:      return "ACK";
+                default:       return "<unknown>";
+            }
+        }
+    }
+}
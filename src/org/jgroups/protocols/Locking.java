@@ -9,7 +9,12 @@ import org.jgroups.blocks.locking.AwaitInfo;
 import org.jgroups.blocks.locking.LockInfo;
 import org.jgroups.blocks.locking.LockNotification;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ByteBufferInputStream;
+import org.jgroups.util.ByteBufferOutputStream;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Owner;
+import org.jgroups.util.RequestBatcher;
 import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
@@ -20,6 +25,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -44,6 +50,10 @@ abstract public class Locking extends Protocol {
     @Property(description="Number of locks to be used for lock striping (for synchronized access to the server_lock entries)")
     protected int     lock_striping_size=10;
 
+    @Property(description="Max number of requests (or responses) sent in one message. Requests sent concurrently " +
+      "to the same member are batched into one message, and so are the responses to a batch of requests",writable=false)
+    protected int     max_batch_size=100;
+
 
     protected Address local_addr;
 
@@ -61,6 +71,19 @@ abstract public class Locking extends Protocol {
     protected final Set<LockNotification> lock_listeners=new HashSet<LockNotification>();
 
     protected final static AtomicInteger  current_lock_id=new AtomicInteger(1);
+
+    /** First byte of a message carrying more than one request. A single request is sent in the old format, which
+     * starts with the type written by {@link Util#objectToByteBuffer(Object)} (never BATCH) */
+    protected static final byte           BATCH=3;
+
+    /** Batches concurrently sent requests and responses per destination */
+    protected RequestBatcher<Request>     batcher;
+
+    /** Number of locks acquired without contacting the lock server (e.g. from a lease held by this member) */
+    protected final AtomicLong            num_local_acquisitions=new AtomicLong();
+
+    /** Number of locks acquired from the lock server */
+    protected final AtomicLong            num_remote_acquisitions=new AtomicLong();
     
 
 
@@ -77,7 +100,8 @@ abstract public class Locking extends Protocol {
         SIG_RET,           // response to alert of signal
         DELETE_LOCK_AWAIT, // request to delete a waiter
         CREATE_AWAITER,    // request to create a server lock await (sent by coordinator to backups). Used by CentralLockService
-        DELETE_AWAITER     // request to delete a server lock await (sent by coordinator to backups). Used by CentralLockService
+        DELETE_AWAITER,    // request to delete a server lock await (sent by coordinator to backups). Used by CentralLockService
+        REVOKE_LEASE       // request to the owner of a leased lock to release it (sent by coordinator). Used by CENTRAL_LOCK
     }
 
 
@@ -114,11 +138,47 @@ abstract public class Locking extends Protocol {
         return view != null? view.toString() : null;
     }
 
+    @ManagedAttribute(description="Number of requests and responses sent")
+    public long getNumRequestsSent() {
+        return batcher != null? batcher.getNumRequests() : 0;
+    }
+
+    @ManagedAttribute(description="Number of messages sent (each carrying one or more requests or responses)")
+    public long getNumBatchesSent() {
+        return batcher != null? batcher.getNumBatches() : 0;
+    }
+
+    @ManagedAttribute(description="Average number of requests or responses per message")
+    public double getAverageBatchSize() {
+        return batcher != null? batcher.getAverageBatchSize() : 0;
+    }
+
+    @ManagedAttribute(description="Number of locks acquired locally, without contacting the lock server")
+    public long getNumLocalAcquisitions() {
+        return num_local_acquisitions.get();
+    }
+
+    @ManagedAttribute(description="Number of locks acquired from the lock server")
+    public long getNumRemoteAcquisitions() {
+        return num_remote_acquisitions.get();
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        if(batcher != null)
+            batcher.resetStats();
+        num_local_acquisitions.set(0);
+        num_remote_acquisitions.set(0);
+    }
+
     public void init() throws Exception {
         super.init();
         lock_stripes=new Lock[lock_striping_size];
         for(int i=0; i < lock_stripes.length; i++)
             lock_stripes[i]=new ReentrantLock();
+        batcher=new RequestBatcher<Request>(new RequestBatcher.Sender<Request>() {
+            public void send(Address dest, List<Request> requests) {sendRequests(dest, requests);}
+        }, max_batch_size);
     }
 
     public Object down(Event evt) {
@@ -217,49 +277,7 @@ abstract public class Locking extends Protocol {
                 if(hdr == null)
                     break;
 
-                Request req=(Request)msg.getObject();
-                log.trace("[%s] <-- [%s] %s", local_addr, msg.getSrc(), req);
-                switch(req.type) {
-                    case GRANT_LOCK:
-                    case RELEASE_LOCK:
-                        handleLockRequest(req);
-                        break;
-                    case LOCK_GRANTED:
-                        handleLockGrantedResponse(req.lock_name, req.lock_id, req.owner);
-                        break;
-                    case LOCK_DENIED:
-                        handleLockDeniedResponse(req.lock_name, req.lock_id, req.owner);
-                        break;
-                    case CREATE_LOCK:
-                        handleCreateLockRequest(req.lock_name, req.owner);
-                        break;
-                    case DELETE_LOCK:
-                        handleDeleteLockRequest(req.lock_name);
-                        break;
-                    case COND_SIG:
-                    case COND_SIG_ALL:
-                        handleSignalRequest(req);
-                        break;
-                    case LOCK_AWAIT:
-                        handleAwaitRequest(req.lock_name, req.owner);
-                        handleLockRequest(req);
-                        break;
-                    case DELETE_LOCK_AWAIT:
-                        handleDeleteAwaitRequest(req.lock_name, req.owner);
-                        break;
-                    case SIG_RET:
-                        handleSignalResponse(req.lock_name, req.owner);
-                        break;
-                    case CREATE_AWAITER:
-                        handleCreateAwaitingRequest(req.lock_name, req.owner);
-                        break;
-                    case DELETE_AWAITER:
-                        handleDeleteAwaitingRequest(req.lock_name, req.owner);
-                        break;
-                    default:
-                        log.error("Request of type %s not known", req.type);
-                        break;
-                }
+                handleRequests(msg);
                 return null;
 
             case Event.VIEW_CHANGE:
@@ -269,6 +287,94 @@ abstract public class Locking extends Protocol {
         return up_prot.up(evt);
     }
 
+    public void up(MessageBatch batch) {
+        boolean held=batcher.hold(); // the responses to all requests of the batch are sent in one message per member
+        try {
+            for(Message msg: batch) {
+                if(msg.getHeader(id) == null)
+                    continue;
+                batch.remove(msg);
+                handleRequests(msg);
+            }
+        }
+        finally {
+            batcher.release(held);
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    /** Handles all requests of a message; the responses are sent as one batch */
+    protected void handleRequests(Message msg) {
+        List<Request> requests;
+        try {
+            requests=msg.getLength() > 0 && msg.getRawBuffer()[msg.getOffset()] == BATCH?
+              readRequests(msg.getRawBuffer(), msg.getOffset()+1, msg.getLength()-1)
+              : Collections.singletonList((Request)msg.getObject());
+        }
+        catch(Exception ex) {
+            log.error("failed reading requests from %s: %s", msg.getSrc(), ex);
+            return;
+        }
+        boolean held=batcher.hold();
+        try {
+            for(Request req: requests) {
+                log.trace("[%s] <-- [%s] %s", local_addr, msg.getSrc(), req);
+                handleRequest(req);
+            }
+        }
+        finally {
+            batcher.release(held);
+        }
+    }
+
+    protected void handleRequest(Request req) {
+        switch(req.type) {
+            case GRANT_LOCK:
+            case RELEASE_LOCK:
+                handleLockRequest(req);
+                break;
+            case LOCK_GRANTED:
+                handleLockGrantedResponse(req.lock_name, req.lock_id, req.owner);
+                break;
+            case LOCK_DENIED:
+                handleLockDeniedResponse(req.lock_name, req.lock_id, req.owner);
+                break;
+            case CREATE_LOCK:
+                handleCreateLockRequest(req.lock_name, req.owner);
+                break;
+            case DELETE_LOCK:
+                handleDeleteLockRequest(req.lock_name);
+                break;
+            case COND_SIG:
+            case COND_SIG_ALL:
+                handleSignalRequest(req);
+                break;
+            case LOCK_AWAIT:
+                handleAwaitRequest(req.lock_name, req.owner);
+                handleLockRequest(req);
+                break;
+            case DELETE_LOCK_AWAIT:
+                handleDeleteAwaitRequest(req.lock_name, req.owner);
+                break;
+            case SIG_RET:
+                handleSignalResponse(req.lock_name, req.owner);
+                break;
+            case CREATE_AWAITER:
+                handleCreateAwaitingRequest(req.lock_name, req.owner);
+                break;
+            case DELETE_AWAITER:
+                handleDeleteAwaitingRequest(req.lock_name, req.owner);
+                break;
+            case REVOKE_LEASE:
+                handleRevokeLeaseRequest(req.lock_name, req.owner);
+                break;
+            default:
+                log.error("Request of type %s not known", req.type);
+                break;
+        }
+    }
+
     protected ClientLock getLock(String name) {
         return client_lock_table.getLock(name,getOwner(),true);
     }
@@ -308,6 +414,9 @@ abstract public class Locking extends Protocol {
                 Response rsp=server_lock.handleView(members);
                 if(rsp != null)
                     responses.add(rsp);
+                Owner revoke=server_lock.leaseToRevoke(null);
+                if(revoke != null)
+                    responses.add(new Response(Type.REVOKE_LEASE, revoke, lock_name, 0));
                 if(server_lock.isEmpty() && server_lock.current_owner == null && server_lock.condition.queue.isEmpty())
                     server_locks.remove(lock_name);
             }
@@ -337,6 +446,18 @@ abstract public class Locking extends Protocol {
         return new Owner(local_addr, Thread.currentThread().getId());
     }
 
+    /**
+     * Whether members keep a lease on the locks they acquired after releasing them. The lock server then revokes a
+     * lease (by sending REVOKE_LEASE to its owner) when the lock is requested by a different owner
+     */
+    protected boolean useLeases() {
+        return false;
+    }
+
+    /** Called when the lock server revokes the lease of owner on a lock. Only needed by subclasses using leases */
+    protected void handleRevokeLeaseRequest(String lock_name, Owner owner) {
+    }
+
     abstract protected void sendGrantLockRequest(String lock_name, int lock_id, Owner owner, long timeout, boolean is_trylock);
     abstract protected void sendReleaseLockRequest(String lock_name, Owner owner);
     abstract protected void sendAwaitConditionRequest(String lock_name, Owner owner);
@@ -360,23 +481,52 @@ abstract public class Locking extends Protocol {
         send(dest.getAddress(), new Request(Type.SIG_RET, lock_name, dest, 0));
     }
 
+    /** Sends the request, possibly in the same message as other requests to dest */
     protected void send(Address dest, Request req) {
-       // Message msg=new Message(dest, req).putHeader(id, new LockingHeader()).setFlag(Message.Flag.OOB);
-        Message msg=new Message(dest, req).putHeader(id, new LockingHeader());
-        if(bypass_bundling)
-            msg.setFlag(Message.Flag.DONT_BUNDLE);
-        log.trace("[%s] --> %s] %s", local_addr, dest == null? "ALL" : dest, req);
+        log.trace("[%s] --> [%s] %s", local_addr, dest == null? "ALL" : dest, req);
+        batcher.send(dest, req);
+    }
+
+    protected void sendRequests(Address dest, List<Request> requests) {
         try {
+            Message msg=requests.size() == 1? new Message(dest, requests.get(0)) : new Message(dest, writeRequests(requests));
+            msg.putHeader(id, new LockingHeader());
+            if(bypass_bundling)
+                msg.setFlag(Message.Flag.DONT_BUNDLE);
             down_prot.down(new Event(Event.MSG, msg));
         }
         catch(Exception ex) {
-            log.error("failed sending %s request: %s", req.type, ex);
+            log.error("failed sending %d request(s) to %s: %s", requests.size(), dest == null? "ALL" : dest, ex);
         }
     }
 
+    /** Writes BATCH, the number of requests and each request */
+    protected static Buffer writeRequests(List<Request> requests) throws Exception {
+        ByteBufferOutputStream out=new ByteBufferOutputStream(requests.size() * 50 + 1);
+        out.writeByte(BATCH);
+        out.writeInt(requests.size());
+        for(Request req: requests)
+            req.writeTo(out);
+        return out.getBuffer();
+    }
+
+    /** Reads the requests written by {@link #writeRequests(List)}, starting after the BATCH byte */
+    protected static List<Request> readRequests(byte[] buf, int offset, int length) throws Exception {
+        ByteBufferInputStream in=new ByteBufferInputStream(buf, offset, length);
+        int size=in.readInt();
+        List<Request> requests=new ArrayList<Request>(size);
+        for(int i=0; i < size; i++) {
+            Request req=new Request();
+            req.readFrom(in);
+            requests.add(req);
+        }
+        return requests;
+    }
+
 
     protected void handleLockRequest(Request req) {
         Response rsp=null;
+        Owner revoke=null;
         Lock lock=_getLock(req.lock_name);
         lock.lock();
         try {
@@ -390,6 +540,7 @@ abstract public class Locking extends Protocol {
                     notifyLockCreated(req.lock_name);
             }
             rsp=server_lock.handleRequest(req);
+            revoke=server_lock.leaseToRevoke(req);
             if(server_lock.isEmpty() && server_lock.current_owner == null && server_lock.condition.queue.isEmpty())
                 server_locks.remove(req.lock_name);
         }
@@ -400,6 +551,8 @@ abstract public class Locking extends Protocol {
         // moved outside the lock scope
         if(rsp != null)
             sendLockResponse(rsp.type, rsp.owner, rsp.lock_name, rsp.lock_id);
+        if(revoke != null)
+            sendLockResponse(Type.REVOKE_LEASE, revoke, req.lock_name, 0);
     }
 
 
@@ -620,6 +773,7 @@ abstract public class Locking extends Protocol {
         protected Owner                 current_owner;
         protected final List<Request>   queue=new ArrayList<Request>();
         protected final ServerCondition condition;
+        protected boolean               lease_revoked; // REVOKE_LEASE was sent to current_owner
 
         public ServerLock(String lock_name) {
             this.lock_name=lock_name;
@@ -745,7 +899,23 @@ abstract public class Locking extends Protocol {
             return null;
         }
 
+        /**
+         * Returns the owner whose lease has to be revoked, or null. A lease is revoked (once) when a different owner
+         * waits for the lock or was denied it
+         */
+        protected Owner leaseToRevoke(Request req) {
+            if(!useLeases() || current_owner == null || lease_revoked)
+                return null;
+            boolean contended=!queue.isEmpty()
+              || (req != null && req.type == Type.GRANT_LOCK && !current_owner.equals(req.owner));
+            if(!contended)
+                return null;
+            lease_revoked=true;
+            return current_owner;
+        }
+
         protected void setOwner(Owner owner) {
+            lease_revoked=false;
             if(owner == null) {
                 if(current_owner != null) {
                     Owner tmp=current_owner;
@@ -906,6 +1076,7 @@ abstract public class Locking extends Protocol {
         }
 
         protected void handleLockGrantedResponse(int lock_id) {
+            num_remote_acquisitions.incrementAndGet();
             lockGranted(lock_id);
         }
 
@@ -30,7 +30,11 @@ import java.util.concurrent.Future;
  * The others do nothing.<p/>
  * The advantage compared to {@link MERGE2} is that there are no merge collisions caused by multiple merges going on.
  * Also, the INFO traffic is spread out over max_interval, and every member sends its physical address with INFO, so
- * we don't need to fetch the physical address first.
+ * we don't need to fetch the physical address first.<p/>
+ * If many subgroups reappear at the same time, parallel_merge splits them into disjoint groups of at most
+ * max_participants_in_merge subgroups, which are merged concurrently. The coordinators of the merged groups then
+ * announce their new views right away and merge again, so that the partition is healed in log(N) rounds. The time
+ * it took is exposed as time_to_converge.
  *
  * @author Bela Ban, Nov 2011
  * @since 3.1
@@ -47,6 +51,12 @@ public class MERGE3 extends Protocol {
     @Property(description="The max number of merge participants to be involved in a merge. 0 sets this to unlimited.")
     protected int  max_participants_in_merge=100;
 
+    @Property(description="If true, and there are more subgroups than max_participants_in_merge, the subgroups are " +
+      "split into disjoint groups of at most max_participants_in_merge, which are merged in parallel, each by its own " +
+      "merge leader. The coordinators of the merged groups merge again right away, so that N subgroups are merged in " +
+      "log(N) rounds. If false, the excess subgroups are left out and merged in subsequent rounds")
+    protected boolean parallel_merge=false;
+
     /* ---------------------------------------------- JMX -------------------------------------------------------- */
     @Property(description="Interval (in ms) after which we check for view inconsistencies")
     protected long check_interval=0;
@@ -83,6 +93,22 @@ public class MERGE3 extends Protocol {
     @ManagedAttribute(description="Number of times a MERGE event was sent up the stack")
     protected int           num_merge_events=0;
 
+    @ManagedAttribute(description="Time (ms) from the detection of different subgroups to the installation of the " +
+      "merge view which healed them, for the last partition healed with this member as coordinator")
+    protected long          time_to_converge;
+
+    @ManagedAttribute(description="Number of merges started by this member to heal the last partition")
+    protected int           rounds_to_converge;
+
+    /** Time at which different subgroups were detected, 0 if there are none */
+    protected long          divergence_detected;
+
+    /** Number of merges started by this member since divergence_detected */
+    protected int           merge_rounds;
+
+    /** Time at which the last MergeView was installed */
+    protected volatile long last_merge_view;
+
     @ManagedAttribute(description="Is the view consistency checker task running")
     public synchronized boolean isViewConsistencyCheckerRunning() {
         return view_consistency_checker != null && !view_consistency_checker.isDone();
@@ -108,6 +134,15 @@ public class MERGE3 extends Protocol {
     @ManagedOperation(description="Clears the views cache")
     public void clearViews() {views.clear();}
 
+    protected void removeFromViews(Collection<Address> mbrs) {
+        for(Iterator<Set<Address>> it=views.values().iterator(); it.hasNext();) {
+            Set<Address> set=it.next();
+            set.removeAll(mbrs);
+            if(set.isEmpty())
+                it.remove();
+        }
+    }
+
 
     @ManagedOperation(description="Send INFO")
     public void sendInfo() {
@@ -141,6 +176,13 @@ public class MERGE3 extends Protocol {
         stopInfoSender();
     }
 
+    public boolean isParallelMerge()                 {return parallel_merge;}
+    public MERGE3  setParallelMerge(boolean flag)    {this.parallel_merge=flag; return this;}
+    public int     getMaxParticipantsInMerge()       {return max_participants_in_merge;}
+    public MERGE3  setMaxParticipantsInMerge(int n)  {this.max_participants_in_merge=n; return this;}
+    public long    getTimeToConverge()               {return time_to_converge;}
+    public int     getRoundsToConverge()             {return rounds_to_converge;}
+
     public long getMinInterval() {
         return min_interval;
     }
@@ -189,8 +231,13 @@ public class MERGE3 extends Protocol {
     }
 
     protected synchronized void startViewConsistencyChecker() {
+        startViewConsistencyChecker(check_interval);
+    }
+
+    /** Starts the view consistency checker, which runs the first check after initial_delay ms */
+    protected synchronized void startViewConsistencyChecker(long initial_delay) {
         if(view_consistency_checker == null || view_consistency_checker.isDone())
-            view_consistency_checker=timer.scheduleWithDynamicInterval(new ViewConsistencyChecker());
+            view_consistency_checker=timer.scheduleWithDynamicInterval(new ViewConsistencyChecker(initial_delay));
     }
 
     protected synchronized void stopViewConsistencyChecker() {
@@ -226,23 +273,40 @@ public class MERGE3 extends Protocol {
                 stopInfoSender();             // should already be stopped
                 Object ret=down_prot.down(evt);
                 view=(View)evt.getArg();
-                clearViews();
+                boolean merge_view=view instanceof MergeView, next_round=parallel_merge && merge_view;
+                if(merge_view)
+                    last_merge_view=System.currentTimeMillis();
+
+                // the INFO of the other merged groups is needed for the next round of a parallel merge, so only the
+                // (now stale) INFO of our own members is dropped
+                if(next_round)
+                    removeFromViews(view.getMembers());
+                else
+                    clearViews();
 
                 if(ergonomics && max_participants_in_merge > 0)
                     max_participants_in_merge=Math.max(100, view.size() / 3);
 
                 startInfoSender();
 
+                // the members of the other merged groups do the same, so the next round can start without waiting
+                // for the regular INFO messages
+                if(next_round)
+                    sendInfo();
+
                 List<Address> mbrs=view.getMembers();
                 Address coord=mbrs.isEmpty()? null : mbrs.get(0);
                 if(coord != null && coord.equals(local_addr)) {
                     is_coord=true;
-                    startViewConsistencyChecker(); // start task if we became coordinator (doesn't start if already running)
+                    // start task if we became coordinator (doesn't start if already running)
+                    startViewConsistencyChecker(next_round? min_interval : check_interval);
                 }
                 else {
                     // if we were coordinator, but are no longer, stop task. this happens e.g. when we merge and someone
                     // else becomes the new coordinator of the merged group
                     is_coord=false;
+                    divergence_detected=0;
+                    merge_rounds=0;
                 }
                 return ret;
 
@@ -269,6 +333,8 @@ public class MERGE3 extends Protocol {
                         if(hdr.physical_addrs != null)
                             for(PhysicalAddress physical_addr: hdr.physical_addrs)
                                 down(new Event(Event.SET_PHYSICAL_ADDRESS, new Tuple<Address,PhysicalAddress>(sender, physical_addr)));
+                        if(isStale(sender, hdr.view_id))
+                            break;
                         Set<Address> existing=views.get(hdr.view_id);
                         if(existing == null) {
                             existing=new ConcurrentSkipListSet<Address>();
@@ -304,6 +370,17 @@ public class MERGE3 extends Protocol {
     }
 
 
+    /**
+     * Returns true if we already got an INFO from sender with a more recent view ID. INFO messages are not ordered,
+     * and an INFO sent just before a merge would otherwise make the sender look like the coordinator of a subgroup
+     */
+    protected boolean isStale(Address sender, ViewId view_id) {
+        for(Map.Entry<ViewId,Set<Address>> entry: views.entrySet())
+            if(entry.getKey().compareToIDs(view_id) > 0 && entry.getValue().contains(sender))
+                return true;
+        return false;
+    }
+
     public static List<View> detectDifferentViews(Map<Address,View> map) {
         final List<View> ret=new ArrayList<View>();
         for(View view: map.values()) {
@@ -380,13 +457,22 @@ public class MERGE3 extends Protocol {
 
 
     protected class ViewConsistencyChecker implements TimeScheduler.Task {
+        protected long next_interval;
+
+        public ViewConsistencyChecker(long initial_delay) {
+            this.next_interval=initial_delay;
+        }
 
         public void run() {
             try {
                 if(views.size() <= 1) {
                     log.trace("%s: found no inconsistent views: %s", local_addr, dumpViews());
+                    if(divergence_detected > 0)
+                        converged();
                     return;
                 }
+                if(divergence_detected == 0)
+                    divergence_detected=System.currentTimeMillis();
                 _run();
             }
             finally {
@@ -394,6 +480,19 @@ public class MERGE3 extends Protocol {
             }
         }
 
+        /** Records the time to converge if the different subgroups were healed by a merge */
+        protected void converged() {
+            long merged=last_merge_view;
+            if(merged >= divergence_detected && merge_rounds > 0) {
+                time_to_converge=merged - divergence_detected;
+                rounds_to_converge=merge_rounds;
+                log.debug("%s: subgroups converged in %d ms (%d merge rounds)",
+                          local_addr, time_to_converge, rounds_to_converge);
+            }
+            divergence_detected=0;
+            merge_rounds=0;
+        }
+
         protected void _run() {
             SortedSet<Address> coords=new TreeSet<Address>();
 
@@ -407,6 +506,17 @@ public class MERGE3 extends Protocol {
                     coords.add(coord);
             }
 
+            if(parallel_merge && max_participants_in_merge > 0 && coords.size() > max_participants_in_merge) {
+                List<Address> group=determineMergeGroup(coords);
+                if(group == null) {
+                    log.trace("%s: I won't be the leader of a merge group", local_addr);
+                    return;
+                }
+                log.debug("%s: I will be the merge leader of group %s", local_addr, group);
+                fetchViewsAndMerge(group);
+                return;
+            }
+
             Address merge_leader=coords.isEmpty() ? null : coords.first();
             if(merge_leader == null || local_addr == null || !merge_leader.equals(local_addr)) {
                 if(log.isTraceEnabled())
@@ -443,6 +553,32 @@ public class MERGE3 extends Protocol {
                     log.trace(local_addr + ": reduced " + old_size + " coords to " + max_participants_in_merge);
             }
 
+            fetchViewsAndMerge(coords);
+        }
+
+        /**
+         * Splits the coordinators into disjoint groups of at most max_participants_in_merge and returns the group led by
+         * this member (the first member of the group), or null if this member doesn't lead a group. As all
+         * coordinators see (mostly) the same INFO messages, they compute the same groups; a coordinator which is part
+         * of 2 groups rejects one of the merges. Subgroups whose coordinator didn't send an INFO message are merged
+         * by the regular merge, once the number of coordinators has dropped to max_participants_in_merge.
+         * @param coords The actual coordinators, i.e. the creators of views which are members of their view
+         */
+        protected List<Address> determineMergeGroup(SortedSet<Address> coords) {
+            // balance the groups, e.g. 6 coords and max_participants_in_merge=5 yields 2 groups of 3 (not 5 and 1)
+            List<Address> list=new ArrayList<Address>(coords);
+            int size=list.size(), group_size=Math.max(2, max_participants_in_merge);
+            int num_groups=(size + group_size - 1) / group_size;
+            for(int i=0; i < num_groups; i++) {
+                List<Address> group=list.subList(i * size / num_groups, (i + 1) * size / num_groups);
+                if(group.size() > 1 && group.get(0).equals(local_addr))
+                    return new ArrayList<Address>(group);
+            }
+            return null;
+        }
+
+        /** Fetches the views of all participants and sends a MERGE event up the stack if they're different */
+        protected void fetchViewsAndMerge(Collection<Address> coords) {
             // grab views from all members in coords
             view_rsps.reset(coords);
             for(Address target: coords) {
@@ -474,11 +610,15 @@ public class MERGE3 extends Protocol {
 
                 up_prot.up(new Event(Event.MERGE, merge_views));
                 num_merge_events++;
+                merge_rounds++;
             }
         }
 
+        /** Returns the initial delay on the first call, and check_interval afterwards */
         public long nextInterval() {
-            return check_interval;
+            long retval=next_interval;
+            next_interval=check_interval;
+            return retval;
         }
 
         public String toString() {
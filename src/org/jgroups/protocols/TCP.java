@@ -56,6 +56,12 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
             ct.send(dest, data, offset, length);
     }
 
+    /** Hands a single copy of the buffer to the send queues of all connections, which write it concurrently */
+    protected void sendToPhysicalAddresses(Collection<PhysicalAddress> dests, byte[] buf, int offset, int length) {
+        if(ct != null)
+            ct.sendToAll(dests, buf, offset, length);
+    }
+
     public void retainAll(Collection<Address> members) {
         ct.retainAll(members);
     }
@@ -12,8 +12,8 @@ import org.jgroups.util.*;
 import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.UUID;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.InterruptedIOException;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
@@ -21,6 +21,8 @@ import java.net.NetworkInterface;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -301,6 +303,12 @@ public abstract class TP extends Protocol {
     @Property(description="Max number of attempts to fetch a physical address (when not in the cache) before giving up")
     protected int physical_addr_max_fetch_attempts=3;
 
+    @Property(description="If true, a message to a member whose physical address is not in the cache is queued, and " +
+      "sent as soon as the address has been fetched; the missing addresses are fetched together by a single discovery " +
+      "request. Otherwise the sender blocks until the address has been fetched (or physical_addr_max_fetch_attempts " +
+      "is exceeded)")
+    protected boolean async_addr_resolution=true;
+
     @Property(description="Time during which identical warnings about messages from a member with a different version " +
       "will be suppressed. 0 disables this (every warning will be logged). Setting the log level to ERROR also " +
       "disables this.")
@@ -526,8 +534,9 @@ public abstract class TP extends Protocol {
     protected Address local_addr=null;
 
     /** The members of this group (updated when a member joins or leaves). With a shared transport,
-     * members contains *all* members from all channels sitting on the shared transport */
-    protected final Set<Address> members=new CopyOnWriteArraySet<Address>();
+     * members contains *all* members from all channels sitting on the shared transport. Hash based, as a
+     * CopyOnWriteArraySet makes every view change O(n^2) in large clusters */
+    protected final Set<Address> members=Collections.newSetFromMap(new ConcurrentHashMap<Address,Boolean>());
 
 
     /** Keeps track of connects and disconnects, in order to start and stop threads */
@@ -630,6 +639,15 @@ public abstract class TP extends Protocol {
      * them after who_has_cache_timeout ms */
     protected ExpiryCache<Address>   who_has_cache;
 
+    /** Messages waiting for the physical address of their destination (keys), with async_addr_resolution */
+    protected final ConcurrentMap<Address,PendingMessages> pending_msgs=Util.createConcurrentMap();
+
+    /** Set while the task fetching the missing physical addresses of pending_msgs is scheduled */
+    protected final AtomicBoolean    addr_resolver_running=new AtomicBoolean(false);
+
+    /** Number of discovery requests sent to fetch missing physical addresses */
+    protected final AtomicLong       num_addr_lookups=new AtomicLong(0);
+
     /** Log to suppress identical warnings for messages from members with different (incompatible) versions */
     protected SuppressLog<Address>   suppress_log_different_version;
 
@@ -939,6 +957,17 @@ public abstract class TP extends Protocol {
     @ManagedOperation(description="Prints the contents of the who-has cache")
     public String printWhoHasCache() {return who_has_cache.toString();}
 
+    @ManagedAttribute(description="Number of messages waiting for the physical address of their destination")
+    public int getNumPendingMessages() {
+        int retval=0;
+        for(PendingMessages msgs: pending_msgs.values())
+            retval+=msgs.size();
+        return retval;
+    }
+
+    @ManagedAttribute(description="Number of discovery requests sent to fetch missing physical addresses")
+    public long getNumAddressLookups() {return num_addr_lookups.get();}
+
     @ManagedOperation(description="Evicts elements in the logical address cache which have expired")
     public void evictLogicalAddressCache() {
         evictLogicalAddressCache(false);
@@ -1263,6 +1292,7 @@ public abstract class TP extends Protocol {
         preregistered_probe_handlers.clear();
         if(bundler != null)
             bundler.stop();
+        pending_msgs.clear();
     }
 
 
@@ -1470,10 +1500,8 @@ public abstract class TP extends Protocol {
 
 
     protected void handleMessageBatch(Address sender, byte[] data, int offset, int length) {
-        DataInputStream dis=null;
         try {
-            ExposedByteArrayInputStream in_stream=new ExposedByteArrayInputStream(data, offset, length);
-            dis=new DataInputStream(in_stream);
+            ByteBufferInputStream dis=new ByteBufferInputStream(data, offset, length);
             short version=dis.readShort();
             if(!versionMatch(version, sender))
                 return;
@@ -1511,9 +1539,6 @@ public abstract class TP extends Protocol {
         catch(Throwable t) {
             log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
         }
-        finally {
-            Util.close(dis);
-        }
     }
 
     protected void handleSingleMessage(Address sender, byte[] data, int offset, int length) {
@@ -1602,10 +1627,8 @@ public abstract class TP extends Protocol {
         }
 
         public void run() {
-            DataInputStream dis=null;
             try {
-                ExposedByteArrayInputStream in_stream=new ExposedByteArrayInputStream(data, offset, length);
-                dis=new DataInputStream(in_stream);
+                ByteBufferInputStream dis=new ByteBufferInputStream(data, offset, length);
                 short version=dis.readShort();
                 if(!versionMatch(version, sender))
                     return;
@@ -1634,9 +1657,6 @@ public abstract class TP extends Protocol {
             catch(Throwable t) {
                 log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
             }
-            finally {
-                Util.close(dis); // only nulls the buffer
-            }
         }
     }
 
@@ -1712,14 +1732,11 @@ public abstract class TP extends Protocol {
             return;
         }
 
-        // we can create between 300'000 - 400'000 output streams and do the marshalling per second,
-        // so this is not a bottleneck !
-        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream((int)(msg.size() + 50));
-        ExposedDataOutputStream dos=new ExposedDataOutputStream(out_stream);
-        writeMessage(msg, dos, multicast);
-        Buffer buf=new Buffer(out_stream.getRawBuffer(), 0, out_stream.size());
-        doSend(buf, dest, multicast);
-        // we don't need to close() or flush() any of the 2 streams above, as these ops are no-ops
+        // the stream is sized to the message, so no resizing should be needed; it's neither synchronized nor
+        // does it need to be closed or flushed
+        ByteBufferOutputStream out=new ByteBufferOutputStream((int)(msg.size() + 50));
+        writeMessage(msg, out, multicast);
+        doSend(out.getBuffer(), dest, multicast);
     }
 
 
@@ -1741,10 +1758,16 @@ public abstract class TP extends Protocol {
             return;
         }
 
-        PhysicalAddress physical_dest=null;
+        PhysicalAddress physical_dest=getPhysicalAddressFromCache(dest);
+        if(physical_dest == null && async_addr_resolution) {
+            addToPendingMessages(dest, buf, offset, length);
+            return;
+        }
+
         int cnt=1;
         long sleep_time=20;
-        while((physical_dest=getPhysicalAddressFromCache(dest)) == null && cnt++ <= physical_addr_max_fetch_attempts) {
+        while(physical_dest == null && (physical_dest=getPhysicalAddressFromCache(dest)) == null
+          && cnt++ <= physical_addr_max_fetch_attempts) {
             if(who_has_cache.addIfAbsentOrExpired(dest)) { // true if address was added
                 Util.sleepRandom(1, 500); // to prevent a discovery flood in large clusters (by staggering requests)
                 if((physical_dest=getPhysicalAddressFromCache(dest)) != null)
@@ -1762,6 +1785,58 @@ public abstract class TP extends Protocol {
     }
 
 
+    /**
+     * Queues a copy of the message until the physical address of dest has been fetched (or the fetching has been
+     * given up), and starts the task fetching the missing addresses if not yet running
+     */
+    protected void addToPendingMessages(Address dest, byte[] buf, int offset, int length) throws Exception {
+        byte[] copy=Arrays.copyOfRange(buf, offset, offset + length);
+        for(;;) {
+            PendingMessages msgs=pending_msgs.get(dest);
+            if(msgs == null) {
+                PendingMessages tmp=pending_msgs.putIfAbsent(dest, msgs=new PendingMessages());
+                if(tmp != null)
+                    msgs=tmp;
+            }
+            if(msgs.add(copy))
+                break;
+            // the pending messages were sent (or dropped) concurrently, send the message directly if we can
+            PhysicalAddress physical_dest=getPhysicalAddressFromCache(dest);
+            if(physical_dest != null) {
+                sendUnicast(physical_dest, copy, 0, copy.length);
+                return;
+            }
+        }
+        // the address might have been added between the cache miss and the creation of the pending messages
+        if(getPhysicalAddressFromCache(dest) != null)
+            sendPendingMessages(dest);
+        else
+            startAddressResolver();
+    }
+
+    /** Sends the messages waiting for dest's physical address, if the address is in the cache */
+    protected void sendPendingMessages(Address dest) {
+        PhysicalAddress physical_dest=getPhysicalAddressFromCache(dest);
+        PendingMessages msgs=physical_dest != null? pending_msgs.remove(dest) : null;
+        if(msgs == null)
+            return;
+        for(byte[] buf: msgs.close()) {
+            try {
+                sendUnicast(physical_dest, buf, 0, buf.length);
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, physical_dest, t);
+            }
+        }
+    }
+
+    protected void startAddressResolver() {
+        if(addr_resolver_running.compareAndSet(false, true)) {
+            // staggers the discovery requests of members which start resolving at the same time (e.g. in a mass join)
+            timer.schedule(new AddressResolver(), Util.random(100), TimeUnit.MILLISECONDS);
+        }
+    }
+
     protected void sendToAllPhysicalAddresses(byte[] buf, int offset, int length) throws Exception {
         if(!logical_addr_cache.containsKeys(members)) {
             long current_time=0;
@@ -1774,13 +1849,25 @@ public abstract class TP extends Protocol {
             }
         }
 
+        List<PhysicalAddress> dests=new ArrayList<PhysicalAddress>(members.size());
         for(LazyRemovalCache.Entry<PhysicalAddress> entry: logical_addr_cache.valuesIterator()) {
+            if(!entry.isRemovable())
+                dests.add(entry.getVal());
+        }
+        sendToPhysicalAddresses(dests, buf, offset, length);
+    }
+
+    /**
+     * Sends the same buffer to all destinations, one after the other. Transports which can write to multiple
+     * destinations concurrently (e.g. TCP via its send queues) override this
+     */
+    protected void sendToPhysicalAddresses(Collection<PhysicalAddress> dests, byte[] buf, int offset, int length) {
+        for(PhysicalAddress dest: dests) {
             try {
-                if(!entry.isRemovable())
-                    sendUnicast(entry.getVal(), buf, offset, length);
+                sendUnicast(dest, buf, offset, length);
             }
             catch(Throwable t) {
-                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, entry.getVal(), t);
+                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, dest, t);
             }
         }
     }
@@ -1791,7 +1878,7 @@ public abstract class TP extends Protocol {
      * @return
      * @throws java.io.IOException
      */
-    protected static void writeMessage(Message msg, DataOutputStream dos, boolean multicast) throws Exception {
+    protected static void writeMessage(Message msg, DataOutput dos, boolean multicast) throws Exception {
         byte flags=0;
         dos.writeShort(Version.version); // write the version
         if(multicast)
@@ -1800,7 +1887,7 @@ public abstract class TP extends Protocol {
         msg.writeTo(dos);
     }
 
-    public static Message readMessage(DataInputStream instream) throws Exception {
+    public static Message readMessage(DataInput instream) throws Exception {
         Message msg=new Message(false); // don't create headers, readFrom() will do this
         msg.readFrom(instream);
         return msg;
@@ -1826,7 +1913,7 @@ public abstract class TP extends Protocol {
      * @throws Exception
      */
     public static void writeMessageList(Address dest, Address src, String cluster_name,
-                                        List<Message> msgs, DataOutputStream dos, boolean multicast, short transport_id) throws Exception {
+                                        List<Message> msgs, DataOutput dos, boolean multicast, short transport_id) throws Exception {
         dos.writeShort(Version.version);
 
         byte flags=LIST;
@@ -1851,7 +1938,7 @@ public abstract class TP extends Protocol {
 
 
 
-    public static List<Message> readMessageList(DataInputStream in, short transport_id) throws Exception {
+    public static List<Message> readMessageList(DataInput in, short transport_id) throws Exception {
         List<Message> list=new LinkedList<Message>();
         Address dest=Util.readAddress(in);
         Address src=Util.readAddress(in);
@@ -1887,7 +1974,7 @@ public abstract class TP extends Protocol {
      * @return an array of 4 MessageBatches in the order above, the first batch is at index 0
      * @throws Exception
      */
-    public static MessageBatch[] readMessageBatch(DataInputStream in, boolean multicast) throws Exception {
+    public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast) throws Exception {
         MessageBatch[] batches=new MessageBatch[4]; // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
         Address dest=Util.readAddress(in);
         Address src=Util.readAddress(in);
@@ -2149,8 +2236,11 @@ public abstract class TP extends Protocol {
 
 
     protected void addPhysicalAddressToCache(Address logical_addr, PhysicalAddress physical_addr) {
-        if(logical_addr != null && physical_addr != null)
+        if(logical_addr != null && physical_addr != null) {
             logical_addr_cache.add(logical_addr, physical_addr);
+            if(!pending_msgs.isEmpty() && pending_msgs.containsKey(logical_addr))
+                sendPendingMessages(logical_addr); // on the caller's thread, so a slow send doesn't block the timer
+        }
     }
 
     protected PhysicalAddress getPhysicalAddressFromCache(Address logical_addr) {
@@ -2186,6 +2276,81 @@ public abstract class TP extends Protocol {
 
 
 
+    /** Messages to a destination whose physical address is not yet known */
+    protected static class PendingMessages {
+        protected final List<byte[]> msgs=new ArrayList<byte[]>();
+        protected boolean            closed;
+        /** Number of lookups sent for the physical address, only accessed by the AddressResolver */
+        protected int                attempts;
+
+        /** Adds a message, unless the messages have already been sent or dropped */
+        protected synchronized boolean add(byte[] msg) {
+            if(closed)
+                return false;
+            msgs.add(msg);
+            return true;
+        }
+
+        /** Returns the messages; subsequent additions fail */
+        protected synchronized List<byte[]> close() {
+            closed=true;
+            return msgs;
+        }
+
+        protected synchronized int size() {return msgs.size();}
+    }
+
+
+    /**
+     * Fetches the missing physical addresses of the destinations of pending_msgs. All missing addresses are fetched by
+     * a single discovery request per round; the rounds are spaced 20, 40, 80 ... (up to 1000) ms apart. A lookup for a
+     * given destination is sent at most once every who_has_cache_timeout ms, rounds in between only check whether the
+     * address has arrived. The pending messages of a destination are sent as soon as its address is added to the
+     * cache, or dropped when physical_addr_max_fetch_attempts lookups have not returned it
+     */
+    protected class AddressResolver implements Runnable {
+        protected int round;
+
+        public void run() {
+            Address missing=null;
+            for(Map.Entry<Address,PendingMessages> entry: pending_msgs.entrySet()) {
+                Address dest=entry.getKey();
+                PendingMessages msgs=entry.getValue();
+                if(getPhysicalAddressFromCache(dest) != null) {
+                    sendPendingMessages(dest);
+                    continue;
+                }
+                if(!who_has_cache.hasExpired(dest))
+                    continue; // a lookup was sent less than who_has_cache_timeout ms ago, wait for its response
+                if(msgs.attempts >= physical_addr_max_fetch_attempts) {
+                    if(pending_msgs.remove(dest, msgs)) {
+                        msgs.close();
+                        if(log.isWarnEnabled())
+                            log.warn(Util.getMessage("PhysicalAddrMissing"), local_addr, dest);
+                    }
+                    continue;
+                }
+                if(who_has_cache.addIfAbsentOrExpired(dest)) { // true if address was added
+                    msgs.attempts++;
+                    missing=dest;
+                }
+            }
+            if(missing != null) {
+                num_addr_lookups.incrementAndGet();
+                up(new Event(Event.GET_PHYSICAL_ADDRESS, missing)); // the discovery request returns all addresses
+            }
+
+            if(!pending_msgs.isEmpty()) {
+                timer.schedule(this, Math.min(1000, 20L << Math.min(round++, 6)), TimeUnit.MILLISECONDS);
+                return;
+            }
+            addr_resolver_running.set(false);
+            if(!pending_msgs.isEmpty()) // messages added after the check above
+                startAddressResolver();
+        }
+    }
+
+
     protected interface Bundler {
         void start();
         void stop();
@@ -2280,8 +2445,7 @@ public abstract class TP extends Protocol {
                 log.trace(sb);
             }
 
-            ExposedByteArrayOutputStream bundler_out_stream=new ExposedByteArrayOutputStream((int)(count + 50));
-            ExposedDataOutputStream bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
+            ByteBufferOutputStream bundler_out=new ByteBufferOutputStream((int)(count + 50));
 
             for(Map.Entry<SingletonAddress,List<Message>> entry: msgs.entrySet()) {
                 List<Message> list=entry.getValue();
@@ -2294,11 +2458,9 @@ public abstract class TP extends Protocol {
 
                 boolean multicast=dest == null;
                 try {
-                    bundler_out_stream.reset();
-                    bundler_dos.reset();
-                    writeMessageList(dest, src_addr, cluster_name, list, bundler_dos, multicast, id); // flushes output stream when done
-                    Buffer buffer=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                    doSend(buffer, dest, multicast);
+                    bundler_out.reset();
+                    writeMessageList(dest, src_addr, cluster_name, list, bundler_out, multicast, id);
+                    doSend(bundler_out.getBuffer(), dest, multicast);
                 }
                 catch(Throwable e) {
                     log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, e);
@@ -2357,8 +2519,8 @@ public abstract class TP extends Protocol {
         /** Keys are destinations, values are lists of Messages */
         final Map<SingletonAddress,List<Message>>  msgs=new HashMap<SingletonAddress,List<Message>>(36);
 
-        final ExposedByteArrayOutputStream         bundler_out_stream=new ExposedByteArrayOutputStream(1024);
-        final ExposedDataOutputStream              bundler_dos=new ExposedDataOutputStream(bundler_out_stream);
+        /** Reused for all sends; only accessed by the bundler thread. Grows to the biggest bundle sent */
+        final ByteBufferOutputStream               bundler_out=new ByteBufferOutputStream(1024);
         long                                       count;    // current number of bytes accumulated
         int                                        num_msgs;
         volatile boolean                           running=true;
@@ -2492,15 +2654,13 @@ public abstract class TP extends Protocol {
                 Address src_addr=list.get(0).getSrc();
 
                 boolean multicast=dest == null;
-                bundler_out_stream.reset();
-                bundler_dos.reset();
+                bundler_out.reset();
                 if(list.size() == 1) {
                     Message msg=null;
                     try {
                         msg=list.get(0);
-                        writeMessage(msg, bundler_dos, multicast);
-                        Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                        doSend(buf, dest, multicast);
+                        writeMessage(msg, bundler_out, multicast);
+                        doSend(bundler_out.getBuffer(), dest, multicast);
                     }
                     catch(Throwable e) {
                         log.error(Util.getMessage("SendFailure"),
@@ -2509,9 +2669,8 @@ public abstract class TP extends Protocol {
                 }
                 else {
                     try {
-                        writeMessageList(dest, src_addr, cluster_name, list, bundler_dos, multicast, id); // flushes output stream when done
-                        Buffer buf=new Buffer(bundler_out_stream.getRawBuffer(), 0, bundler_out_stream.size());
-                        doSend(buf, dest, multicast);
+                        writeMessageList(dest, src_addr, cluster_name, list, bundler_out, multicast, id);
+                        doSend(bundler_out.getBuffer(), dest, multicast);
                     }
                     catch(Throwable e) {
                         log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, e);
@@ -2533,7 +2692,7 @@ public abstract class TP extends Protocol {
         String                  cluster_name;
         final short             transport_id;
         TpHeader                header;
-        final Set<Address>      members=new CopyOnWriteArraySet<Address>();
+        final Set<Address>      members=Collections.newSetFromMap(new ConcurrentHashMap<Address,Boolean>());
         final ThreadFactory     factory;
         protected SocketFactory socket_factory=new DefaultSocketFactory();
         Address                 local_addr;
@@ -202,7 +202,7 @@ public class CoordGmsImpl extends ServerGmsImpl {
             if(hasJoiningMembers) {
                 gms.getDownProtocol().down(new Event(Event.SUSPEND_STABLE, MAX_SUSPEND_TIMEOUT));
                 // create a new digest, which contains the new members, minus left members
-                MutableDigest join_digest=new MutableDigest(new_view.getMembersRaw()).set(gms.getDigest());
+                MutableDigest join_digest=new MutableDigest(new_view).set(gms.getDigest());
                 for(Address member: new_mbrs)
                     join_digest.set(member,0,0); // ... and set the new members. their first seqno will be 1
 
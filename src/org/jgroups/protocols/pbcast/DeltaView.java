@@ -1,6 +1,7 @@
 package org.jgroups.protocols.pbcast;
 
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.View;
 import org.jgroups.ViewId;
 import org.jgroups.util.ArrayIterator;
@@ -21,6 +22,9 @@ import java.util.Iterator;
  * a GmsHeader, the header is then marshalled. On the receiving side, the DeltaView is created from the stream, a View
  * is created and the DeltaView discarded again.<p/>
  * Instances of this class are created by {@link CoordGmsImpl#handleMembershipChange(java.util.Collection)}.<p/>
+ * Left members are always members of the reference view, which every recipient has installed, so when the reference
+ * view is known at creation time they're marshalled as their ranks in the reference view (2 bytes each) rather than
+ * as addresses, and resolved by the recipient with {@link #resolveLeftMembers(org.jgroups.View)}.<p/>
  * JIRA issue: https://issues.jboss.org/browse/JGRP-1354
  * @author Bela Ban
  * @since  3.4
@@ -35,6 +39,9 @@ public class DeltaView extends View {
     /** Members which joined the view corresponding to ref_view_id */
     protected Address[] new_members;
 
+    /** The ranks of left_members in the view corresponding to ref_view_id, or null if the addresses are marshalled */
+    protected short[]   left_ranks;
+
     public DeltaView() {
 
     }
@@ -49,14 +56,47 @@ public class DeltaView extends View {
         if(ref_view_id == null) throw new IllegalArgumentException("ref_view_id cannot be null");
     }
 
+    /** Creates a delta view whose left members are marshalled as ranks in ref_view */
+    public DeltaView(ViewId view_id, View ref_view, Address[] left_members, Address[] new_members) {
+        this(view_id, ref_view.getViewId(), left_members, new_members);
+        this.left_ranks=ranks(ref_view, left_members);
+    }
+
     public ViewId    getRefViewId()     {return ref_view_id;}
-    public Address[] getLeftMembers()   {return left_members;}
     public Address[] getNewMembers()    {return new_members;}
 
+    /** Returns the left members, or null if they were received as ranks and haven't been resolved yet */
+    public Address[] getLeftMembers()   {return left_members;}
+
+    /**
+     * Converts the ranks of the left members received from the coordinator into addresses
+     * @param ref_view The current view, which has to be the view corresponding to ref_view_id
+     */
+    public DeltaView resolveLeftMembers(View ref_view) {
+        if(left_members != null)
+            return this;
+        if(!ref_view_id.equals(ref_view.getViewId()))
+            throw new IllegalStateException("the view-id of the reference view (" + ref_view.getViewId() +
+                                              ") doesn't match the ref-view-id (" + ref_view_id + ")");
+        Address[] mbrs=ref_view.getMembersRaw();
+        Address[] tmp=new Address[left_ranks.length];
+        for(int i=0; i < left_ranks.length; i++) {
+            int rank=left_ranks[i];
+            if(rank < 0 || rank >= mbrs.length)
+                throw new IllegalStateException("rank " + rank + " is not in reference view " + ref_view_id);
+            tmp[i]=mbrs[rank];
+        }
+        left_members=tmp;
+        return this;
+    }
+
 
     public int serializedSize() {
-        int retval=view_id.serializedSize() + ref_view_id.serializedSize();
-        retval+=Util.size(left_members);
+        int retval=view_id.serializedSize() + ref_view_id.serializedSize() + Global.BYTE_SIZE;
+        if(left_ranks != null)
+            retval+=Global.SHORT_SIZE * (left_ranks.length + 1);
+        else
+            retval+=Util.size(left_members);
         retval+=Util.size(new_members);
         return retval;
     }
@@ -65,7 +105,14 @@ public class DeltaView extends View {
     public void writeTo(DataOutput out) throws Exception {
         view_id.writeTo(out);
         ref_view_id.writeTo(out);
-        Util.writeAddresses(left_members, out);
+        out.writeBoolean(left_ranks != null);
+        if(left_ranks != null) {
+            out.writeShort(left_ranks.length);
+            for(short rank: left_ranks)
+                out.writeShort(rank);
+        }
+        else
+            Util.writeAddresses(left_members, out);
         Util.writeAddresses(new_members, out);
     }
 
@@ -74,14 +121,21 @@ public class DeltaView extends View {
         view_id.readFrom(in);
         ref_view_id=new ViewId();
         ref_view_id.readFrom(in);
-        left_members=Util.readAddresses(in);
+        if(in.readBoolean()) {
+            left_ranks=new short[in.readShort()];
+            for(int i=0; i < left_ranks.length; i++)
+                left_ranks[i]=in.readShort();
+        }
+        else
+            left_members=Util.readAddresses(in);
         new_members=Util.readAddresses(in);
     }
 
     public Iterator<Address> iterator() {
-        Address[] combined=new Address[left_members.length + new_members.length];
-        int left_len=left_members.length;
-        System.arraycopy(left_members, 0, combined, 0, left_len);
+        Address[] left=left_members != null? left_members : new Address[0];
+        Address[] combined=new Address[left.length + new_members.length];
+        int left_len=left.length;
+        System.arraycopy(left, 0, combined, 0, left_len);
         System.arraycopy(new_members, 0, combined, left_len, new_members.length);
         return new ArrayIterator<Address>(combined);
     }
@@ -90,8 +144,24 @@ public class DeltaView extends View {
         StringBuilder sb=new StringBuilder(super.toString()).append(", ref-view=").append(ref_view_id);
         if(left_members != null && left_members.length > 0)
             sb.append(", left=").append(Arrays.toString(left_members));
+        else if(left_members == null && left_ranks != null && left_ranks.length > 0)
+            sb.append(", left ranks=").append(Arrays.toString(left_ranks));
         if(new_members != null && new_members.length > 0)
             sb.append(", joined=").append(Arrays.toString(new_members));
         return sb.toString();
     }
+
+    /** Returns the ranks of mbrs in view, or null if a rank doesn't fit into a short or a member isn't in view */
+    protected static short[] ranks(View view, Address[] mbrs) {
+        if(mbrs == null || view instanceof DeltaView || view.size() > Short.MAX_VALUE)
+            return null;
+        short[] retval=new short[mbrs.length];
+        for(int i=0; i < mbrs.length; i++) {
+            int rank=view.getRank(mbrs[i]);
+            if(rank < 0)
+                return null;
+            retval[i]=(short)rank;
+        }
+        return retval;
+    }
 }
@@ -880,7 +880,7 @@ public class FLUSH extends Protocol {
         if(view == null || digests == null)
             return null;
 
-        MutableDigest digest=new MutableDigest(view.getMembersRaw());
+        MutableDigest digest=new MutableDigest(view);
         for(Digest dig: digests)
             digest.merge(dig);
         return digest;
@@ -43,6 +43,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     public static final short MERGE_VIEW       = 1 << 2; // if a view is present, is it a MergeView ?
     public static final short DELTA_VIEW       = 1 << 3; // if a view is present, is it a DeltaView ?
     public static final short READ_ADDRS       = 1 << 4; // if digest needs to read its own addresses (rather than that of view)
+    public static final short DIGEST_RANKS     = 1 << 5; // if the digest's members are marshalled as ranks in the view
 
     /* ------------------------------------------ Properties  ------------------------------------------ */
 
@@ -86,6 +87,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Max view bundling timeout if view bundling is turned on. Default is 50 msec")
     protected long max_bundling_time=50; // 50ms max to wait for other JOIN, LEAVE or SUSPECT requests
 
+    @Property(description="Max number of JOIN, LEAVE or SUSPECT requests bundled into a single view change if " +
+      "view bundling is turned on (0 = unbounded). Caps the number of join responses and view acks per view change")
+    protected int max_bundling_requests=100;
+
     @Property(description="Max number of old members to keep in history. Default is 50")
     protected int num_prev_mbrs=50;
 
@@ -176,7 +181,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
     /** Returns the current view and digest. Try to find a matching digest twice (if not found on the first try) */
     public Tuple<View,Digest> getViewAndDigest() {
-        MutableDigest digest=new MutableDigest(view.getMembersRaw()).set(getDigest());
+        MutableDigest digest=new MutableDigest(view).set(getDigest());
         return digest.allSet() || digest.set(getDigest()).allSet()? new Tuple<View,Digest>(view, digest) : null;
     }
 
@@ -278,6 +283,14 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         this.max_bundling_time=max_bundling_time;
     }
 
+    public int getMaxBundlingRequests() {
+        return max_bundling_requests;
+    }
+
+    public void setMaxBundlingRequests(int max_bundling_requests) {
+        this.max_bundling_requests=max_bundling_requests;
+    }
+
     @ManagedAttribute
     public int getViewHandlerSize() {return view_handler.size();}
     @ManagedAttribute
@@ -616,8 +629,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         if(jr != null && newMembers != null && !newMembers.isEmpty()) {
             final ViewId view_id=jr.getView().getViewId();
             ack_collector.reset(new ArrayList<Address>(newMembers));
+            Buffer marshalled_rsp=marshal(jr); // the same view and digest go to all joiners
             for(Address joiner: newMembers)
-                sendJoinResponse(jr, joiner);
+                sendJoinResponse(marshalled_rsp, joiner);
             try {
                 ack_collector.waitForAllAcks(view_ack_collection_timeout);
                 log.trace("%s: got all ACKs (%d) from joiners for view %s", local_addr, ack_collector.expectedAcks(), view_id);
@@ -632,8 +646,12 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     }
 
     public void sendJoinResponse(JoinRsp rsp, Address dest) {
+        sendJoinResponse(marshal(rsp), dest);
+    }
+
+    protected void sendJoinResponse(Buffer marshalled_rsp, Address dest) {
         Message m=new Message(dest).putHeader(this.id, new GMS.GmsHeader(GMS.GmsHeader.JOIN_RSP))
-          .setBuffer(marshal(rsp));
+          .setBuffer(marshalled_rsp);
         getDownProtocol().down(new Event(Event.MSG, m));
     }
 
@@ -664,6 +682,19 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             return;
         }
 
+        // the digest of a merge view only has the entries of the other subgroups (Merger.sendMergeView()), so we
+        // can only install it if we're a member of the subgroup whose entries were omitted
+        if(digest != null && new_view instanceof MergeView) {
+            for(Address mbr: mbrs) {
+                if(!digest.contains(mbr) && (view == null || !view.containsMember(mbr))) {
+                    if(log_view_warnings)
+                        log.warn("%s: digest of merge view %s has no entry for %s; discarding view",
+                                 local_addr, new_view.getViewId(), mbr);
+                    return;
+                }
+            }
+        }
+
         if(digest != null) {
             if(new_view instanceof MergeView)
                 mergeDigest(digest);
@@ -734,10 +765,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     }
 
     protected static View createDeltaView(final View current_view, final View next_view) {
-        final ViewId current_view_id=current_view.getViewId();
         final ViewId next_view_id=next_view.getViewId();
         Address[][] diff=View.diff(current_view, next_view);
-        return new DeltaView(next_view_id, current_view_id, diff[1], diff[0]);
+        return new DeltaView(next_view_id, current_view, diff[1], diff[0]);
     }
 
 
@@ -919,9 +949,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
                     case GmsHeader.MERGE_RSP:
                         tuple=readViewAndDigest(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
-                        if(tuple == null)
+                        if(tuple == null && !hdr.merge_rejected) // a rejection has neither view nor digest
                             return null;
-                        MergeData merge_data=new MergeData(msg.getSrc(), tuple.getVal1(), tuple.getVal2(), hdr.merge_rejected);
+                        MergeData merge_data=tuple != null?
+                          new MergeData(msg.getSrc(), tuple.getVal1(), tuple.getVal2(), hdr.merge_rejected) :
+                          new MergeData(msg.getSrc(), null, null, true);
                         log.trace("%s: got merge response from %s, merge_id=%s, merge data is %s",
                                   local_addr, msg.getSrc(), hdr.merge_id, merge_data);
                         impl.handleMergeResponse(merge_data, hdr.merge_id);
@@ -1115,7 +1147,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             throw new IllegalStateException("the view-id of the delta view ("+delta_ref_view_id+") doesn't match the " +
                                               "current view-id ("+current_view_id+"); discarding delta view");
         List<Address> current_mbrs=current_view.getMembers();
-        List<Address> left_mbrs=Arrays.asList(delta_view.getLeftMembers());
+        List<Address> left_mbrs=Arrays.asList(delta_view.resolveLeftMembers(current_view).getLeftMembers());
         List<Address> new_mbrs=Arrays.asList(delta_view.getNewMembers());
 
 
@@ -1137,21 +1169,39 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 retval|=DELTA_VIEW;
         }
         if(digest != null) retval|=DIGEST_PRESENT;
-        if(writeAddresses(view, digest))  retval|=READ_ADDRS;
+        if(writeAddresses(view, digest))
+            retval|=digest != null && ranks(view, digest) != null? DIGEST_RANKS : READ_ADDRS;
         return retval;
     }
 
+    /**
+     * Returns the ranks of the digest's members in the view, or null if the view is null or too large, or a member
+     * of the digest is not in the view. E.g. the digest of a merge view contains the members of all subgroups in a
+     * different order, so the members are marshalled as 2-byte ranks rather than as addresses
+     */
+    protected static short[] ranks(final View view, final Digest digest) {
+        return view != null? DeltaView.ranks(view, digest.getMembersRaw()) : null;
+    }
+
     protected static Buffer marshal(final View view, final Digest digest) {
         final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(512);
         DataOutputStream out=new ExposedDataOutputStream(out_stream);
 
         try {
-            out.writeShort(determineFlags(view, digest));
+            short flags=determineFlags(view, digest);
+            out.writeShort(flags);
             if(view != null)
                 view.writeTo(out);
 
-            if(digest != null)
-                digest.writeTo(out, writeAddresses(view, digest));
+            if(digest != null) {
+                if((flags & DIGEST_RANKS) == DIGEST_RANKS) {
+                    short[] ranks=ranks(view, digest);
+                    out.writeShort(ranks.length);
+                    for(short rank: ranks)
+                        out.writeShort(rank);
+                }
+                digest.writeTo(out, (flags & READ_ADDRS) == READ_ADDRS);
+            }
 
             return out_stream.getBuffer();
         }
@@ -1222,8 +1272,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                     digest=new Digest();
                     digest.readFrom(in);
                 }
+                else if((flags & DIGEST_RANKS) == DIGEST_RANKS) {
+                    digest=readDigestWithRanks(tmp_view, in);
+                }
                 else {
-                    digest=new Digest(tmp_view.getMembersRaw());
+                    digest=new Digest(tmp_view);
                     digest.readFrom(in,false);
                 }
             }
@@ -1237,6 +1290,17 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
 
 
+    protected static Digest readDigestWithRanks(View view, DataInput in) throws Exception {
+        if(view == null)
+            throw new IllegalStateException("digest members are ranks, but no view is present");
+        Address[] view_mbrs=view.getMembersRaw(), mbrs=new Address[in.readShort()];
+        for(int i=0; i < mbrs.length; i++)
+            mbrs[i]=view_mbrs[in.readShort()];
+        Digest digest=new Digest(mbrs);
+        digest.readFrom(in, false);
+        return digest;
+    }
+
     /* --------------------------- End of Private Methods ------------------------------- */
 
     public static class DefaultMembershipPolicy implements MembershipChangePolicy {
@@ -1581,7 +1645,8 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                             keepGoing=queue.size() > 0 && firstRequest.canBeProcessedTogether((Request)queue.peek());
                         }
                     }
-                    while(keepGoing && System.currentTimeMillis() < end_time);
+                    while(keepGoing && System.currentTimeMillis() < end_time
+                      && (max_bundling_requests <= 0 || requests.size() < max_bundling_requests));
 
                     try {
                         process(requests);
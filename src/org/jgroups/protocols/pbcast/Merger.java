@@ -111,6 +111,8 @@ public class Merger {
         boolean success=matchMergeId(merge_id) || setMergeId(null, merge_id);
         if(!success) {
             log.trace("%s: merge %s is already in progress, received merge-id=%s", gms.local_addr, current_merge_id, merge_id);
+            // reject right away, so that the merge leader doesn't wait for our response until merge_timeout kicks in
+            sendMergeRejectedResponse(sender, merge_id);
             return;
         }
 
@@ -260,8 +262,13 @@ public class Merger {
      * <li>broadcast the new view and digest to all the members of its subgroup (MergeView)
      * <li>on reception of the view, if it is a MergeView, each member will set the digest and install the new view
      * </ol>
+     * The digest is sent incrementally: the members of a subgroup already have the retransmission tables of their
+     * own subgroup, so a coordinator only gets the digest entries of the other subgroups (see
+     * {@link #incrementalDigest(Digest,View,Set)}).
+     * @param subgroups The subgroup views returned by the coordinators with their merge responses
      */
-    private void sendMergeView(Collection<Address> coords, MergeData combined_merge_data, MergeId merge_id) {
+    private void sendMergeView(Collection<Address> coords, MergeData combined_merge_data, MergeId merge_id,
+                               Map<Address,View> subgroups) {
         if(coords == null || combined_merge_data == null)
             return;
 
@@ -278,9 +285,12 @@ public class Merger {
             size=gms.merge_ack_collector.size();
         }
 
+        Set<Address> overlapping=overlappingMembers(subgroups.values());
         long start=System.currentTimeMillis();
         for(Address coord: coords) {
-            Message msg=new Message(coord).setBuffer(GMS.marshal(view, digest))
+            View subgroup=subgroups.get(coord);
+            Digest tmp=subgroup != null? incrementalDigest(digest, subgroup, overlapping) : digest;
+            Message msg=new Message(coord).setBuffer(GMS.marshal(view, tmp))
               .putHeader(gms.getId(),new GMS.GmsHeader(GMS.GmsHeader.INSTALL_MERGE_VIEW).mergeId(merge_id));
             gms.getDownProtocol().down(new Event(Event.MSG, msg));
         }
@@ -300,6 +310,32 @@ public class Merger {
         }
     }
 
+    /**
+     * Returns the entries of digest which are not members of subgroup. The members of subgroup already have each
+     * other's retransmission tables and keep them across the merge, so they only need the entries of the other
+     * subgroups. Members of more than one subgroup (overlapping views) are always included.
+     */
+    protected static Digest incrementalDigest(Digest digest, View subgroup, Set<Address> overlapping) {
+        Address[] members=digest.getMembersRaw();
+        List<Address> others=new ArrayList<Address>(members.length);
+        for(Address mbr: members)
+            if(!subgroup.containsMember(mbr) || overlapping.contains(mbr))
+                others.add(mbr);
+        if(others.size() == members.length)
+            return digest;
+        return new MutableDigest(others.toArray(new Address[others.size()])).set(digest);
+    }
+
+    /** Returns the members which are in more than one of the views */
+    protected static Set<Address> overlappingMembers(Collection<View> views) {
+        Set<Address> all=new HashSet<Address>(), retval=new HashSet<Address>();
+        for(View view: views)
+            for(Address mbr: view)
+                if(!all.add(mbr))
+                    retval.add(mbr);
+        return retval;
+    }
+
     protected void sendMergeRejectedResponse(Address sender, MergeId merge_id) {
         Message msg=new Message(sender).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
           .putHeader(gms.getId(), new GMS.GmsHeader(GMS.GmsHeader.MERGE_RSP).mergeId(merge_id).mergeRejected(true));
@@ -330,7 +366,7 @@ public class Merger {
         
         // Optimization: if we're the only member, we don't need to multicast the get-digest message
         if(current_mbrs == null || current_mbrs.size() == 1 && current_mbrs.get(0).equals(gms.local_addr))
-            return new MutableDigest(view.getMembersRaw())
+            return new MutableDigest(view)
               .set((Digest)gms.getDownProtocol().down(new Event(Event.GET_DIGEST, gms.local_addr)));
 
         Message get_digest_req=new Message().setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
@@ -633,7 +669,11 @@ public class Merger {
                    install the digest and view in all of their subgroup members */
             log.debug("%s: installing merge view %s (%d members) in %d coords",
                       gms.local_addr, combined_merge_data.view.getViewId(), combined_merge_data.view.size(), coords.keySet().size());
-            sendMergeView(coords.keySet(), combined_merge_data, new_merge_id);
+            Map<Address,View> subgroups=new HashMap<Address,View>(merge_data.size());
+            for(MergeData data: merge_data)
+                if(data.getSender() != null && data.getView() != null)
+                    subgroups.put(data.getSender(), data.getView());
+            sendMergeView(coords.keySet(), combined_merge_data, new_merge_id, subgroups);
         }
 
 
@@ -759,7 +799,7 @@ public class Merger {
          * max(highest_received). This method has a lock on merge_rsps
          */
         protected MutableDigest consolidateDigests(final View new_view, final List<MergeData> merge_rsps) {
-            MutableDigest retval=new MutableDigest(new_view.getMembersRaw());
+            MutableDigest retval=new MutableDigest(new_view);
             for(MergeData data: merge_rsps) {
                 Digest tmp_digest=data.getDigest();
                 if(tmp_digest != null)
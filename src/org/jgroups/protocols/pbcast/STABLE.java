@@ -411,7 +411,7 @@ public class STABLE extends Protocol {
     protected void resetDigest() {
         if(view == null)
             return;
-        digest=new MutableDigest(view.getMembersRaw()); // .set(getDigest());
+        digest=new MutableDigest(view); // .set(getDigest());
         log.trace("%s: reset digest to %s", local_addr, printDigest(digest));
         votes=new FixedSizeBitSet(view.size()); // all 0's initially
     }
@@ -437,13 +437,7 @@ public class STABLE extends Protocol {
     }
 
     protected static int getRank(Address member, View v) {
-        if(v == null || member == null)
-            return -1;
-        Address[] members=v.getMembersRaw();
-        for(int i=0; i < members.length; i++)
-            if(member.equals(members[i]))
-                return i;
-        return -1;
+        return v != null? v.getRank(member) : -1;
     }
 
     protected void startStableTask() {
@@ -649,7 +643,7 @@ public class STABLE extends Protocol {
             return;
 
         final View          current_view=view;
-        final MutableDigest d=new MutableDigest(current_view.getMembersRaw()).set(getDigest());
+        final MutableDigest d=new MutableDigest(current_view).set(getDigest());
         Address dest=send_stable_msgs_to_coord_only? coordinator : null;
 
         if(d.allSet() || d.set(getDigest()).allSet()) // try once more if the first digest didn't match
@@ -19,6 +19,7 @@ import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 /**
  *
@@ -61,6 +62,35 @@ public class RELAY2 extends Protocol {
       "get deprecated soon")
     protected boolean                                  warn_when_ftc_missing=false;
 
+    @Property(description="Max number of bytes of the messages relayed to a remote site master as a single bridge " +
+      "message. Messages queued on the same route (e.g. sent concurrently, or part of the same message batch) are " +
+      "relayed together up to this size. 0 disables batching. Note that batches are sent in a format which " +
+      "site masters of older versions cannot read, so this must only be enabled when all site masters support it")
+    protected int                                      max_relay_batch_size;
+
+    @Property(description="Max number of messages queued on a route to a remote site master. Senders block while " +
+      "the queue is full. 0 means unbounded")
+    protected int                                      max_relay_queue_size=10000;
+
+    @Property(description="When a site has more than one route (multiple site masters or bridges), the messages of a " +
+      "given sender are always relayed via the same route, to preserve FIFO order. If that route has this many " +
+      "queued messages or more, messages are relayed via the route with the smallest queue instead, which can " +
+      "reorder messages of the same sender. 0 disables failover")
+    protected int                                      failover_queue_size=0;
+
+    @Property(description="Bridge mode for high-latency (WAN) links: the messages relayed to a remote site master are " +
+      "accumulated into frames of up to max_frame_size bytes, which are compressed and sent by a sender thread per " +
+      "route, so relaying threads don't wait for the link. The frames are pipelined by the bridge stack, whose flow " +
+      "control credits (if any) should cover the bandwidth times the round-trip time",writable=false)
+    protected boolean                                  wan_mode=false;
+
+    @Property(description="Max number of bytes (before compression) of the messages sent as a single frame in WAN mode")
+    protected int                                      max_frame_size=512000;
+
+    @Property(description="Compression level of frames in WAN mode (from java.util.zip.Deflater): 0 disables " +
+      "compression, 1 is best speed and 9 best compression",writable=false)
+    protected int                                      frame_compression_level=Deflater.BEST_SPEED;
+
 
     /* ---------------------------------------------    Fields    ------------------------------------------------ */
 
@@ -127,6 +157,12 @@ public class RELAY2 extends Protocol {
     public RELAY2 enableAddressTagging(boolean flag) {enable_address_tagging=flag; return this;}
     public RELAY2 relayMulticasts(boolean flag)      {relay_multicasts=flag;       return this;}
     public RELAY2 asyncRelayCreation(boolean flag)   {async_relay_creation=flag;   return this;}
+    public RELAY2 maxRelayBatchSize(int size)        {max_relay_batch_size=size;   return this;}
+    public RELAY2 maxRelayQueueSize(int size)        {max_relay_queue_size=size;   return this;}
+    public RELAY2 failoverQueueSize(int size)        {failover_queue_size=size;    return this;}
+    public RELAY2 wanMode(boolean flag)              {wan_mode=flag;               return this;}
+    public RELAY2 maxFrameSize(int size)             {max_frame_size=size;         return this;}
+    public RELAY2 frameCompressionLevel(int lvl)     {frame_compression_level=lvl; return this;}
 
     public String  site()                            {return site;}
     public List<String> siteNames()                  {return relayer.getSiteNames();}
@@ -135,9 +171,16 @@ public class RELAY2 extends Protocol {
     public boolean enableAddressTagging()            {return enable_address_tagging;}
     public boolean relayMulticasts()                 {return relay_multicasts;}
     public boolean asyncRelayCreation()              {return async_relay_creation;}
+    public int     getMaxRelayBatchSize()            {return max_relay_batch_size;}
+    public int     getMaxRelayQueueSize()            {return max_relay_queue_size;}
+    public int     getFailoverQueueSize()            {return failover_queue_size;}
+    public boolean wanMode()                         {return wan_mode;}
+    public int     getMaxFrameSize()                 {return max_frame_size;}
+    public int     getFrameCompressionLevel()        {return frame_compression_level;}
     public Address getLocalAddress()                 {return local_addr;}
     public TimeScheduler getTimer()                  {return timer;}
     public void incrementRelayed()                   {relayed.incrementAndGet();}
+    public void addToRelayed(long num)               {relayed.addAndGet(num);}
     public void addToRelayedTime(long delta)         {relayed_time.addAndGet(delta);}
 
 
@@ -205,6 +248,9 @@ public class RELAY2 extends Protocol {
         forward_to_local_mbr_time.set(0);
         local_deliveries.set(0);
         local_delivery_time.set(0);
+        Relayer tmp=relayer;
+        if(tmp != null)
+            tmp.resetStats();
     }
 
     public View getBridgeView(String cluster_name) {
@@ -232,6 +278,9 @@ public class RELAY2 extends Protocol {
             log.warn("max_size_masters was " + max_site_masters + ", changed to 1");
             max_site_masters=1;
         }
+        if(frame_compression_level < Deflater.NO_COMPRESSION || frame_compression_level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("frame_compression_level (" + frame_compression_level + ") needs to be " +
+                                                 "between " + Deflater.NO_COMPRESSION + " and " + Deflater.BEST_COMPRESSION);
         if(config != null)
             parseSiteConfiguration(sites);
 
@@ -304,6 +353,13 @@ public class RELAY2 extends Protocol {
         return relayer != null? relayer.printRoutes() : "n/a (not site master)";
     }
 
+    @ManagedOperation(description="Prints the number of messages and batches relayed, the throughput and the " +
+      "send queue of each route. Only available if we're the current coordinator (site master)")
+    public String printRouteStats() {
+        Relayer tmp=relayer;
+        return tmp != null? tmp.printRouteStats() : "n/a (not site master)";
+    }
+
     /**
      * Returns the bridge channel to a given site
      * @param site_name The site name, e.g. "SFO"
@@ -359,7 +415,7 @@ public class RELAY2 extends Protocol {
                 // forward to the coordinator unless we're the coord (then route the message directly)
                 if(!is_site_master) {
                     long start=stats? System.nanoTime() : 0;
-                    Address site_master=pickSiteMaster();
+                    Address site_master=pickSiteMaster(local_addr);
                     if(site_master == null)
                         throw new IllegalStateException("site master is null");
                     forwardTo(site_master, target, sender, msg, max_site_masters == 1);
@@ -414,6 +470,8 @@ public class RELAY2 extends Protocol {
     }
 
     public void up(MessageBatch batch) {
+        // messages relayed to other sites are only queued, and sent per route after the batch has been processed
+        Set<Relayer.Route> queued=null;
         for(Message msg: batch) {
             Relay2Header hdr=(Relay2Header)msg.getHeader(id);
             Address dest=msg.getDest();
@@ -422,17 +480,25 @@ public class RELAY2 extends Protocol {
                 // forward a multicast message to all bridges except myself, then pass up
                 if(dest == null && is_site_master && relay_multicasts && !msg.isFlagSet(Message.Flag.NO_RELAY)) {
                     Address sender=new SiteUUID((UUID)msg.getSrc(), UUID.get(msg.getSrc()), site);
-                    sendToBridges(sender, msg, site);
+                    if(queued == null)
+                        queued=new HashSet<Relayer.Route>();
+                    sendToBridges(sender, msg, queued, site);
                 }
             }
             else { // header is not null
                 batch.remove(msg); // message is consumed
-                if(dest != null)
-                    handleMessage(hdr, msg);
+                if(dest != null) {
+                    if(hdr.type == Relay2Header.DATA && queued == null)
+                        queued=new HashSet<Relayer.Route>();
+                    handleMessage(hdr, msg, queued);
+                }
                 else
                     deliver(null, hdr.original_sender, msg);
             }
         }
+        if(queued != null)
+            for(Relayer.Route route: queued)
+                route.flush();
         if(!batch.isEmpty())
             up_prot.up(batch);
     }
@@ -478,9 +544,14 @@ public class RELAY2 extends Protocol {
 
     /** Called to handle a message received by the transport */
     protected void handleMessage(Relay2Header hdr, Message msg) {
+        handleMessage(hdr, msg, null);
+    }
+
+    /** Handles a message received by the transport; messages relayed to other sites are added to queued if non-null */
+    protected void handleMessage(Relay2Header hdr, Message msg, Collection<Relayer.Route> queued) {
         switch(hdr.type) {
             case Relay2Header.DATA:
-                route((SiteAddress)hdr.final_dest, (SiteAddress)hdr.original_sender, msg);
+                route((SiteAddress)hdr.final_dest, (SiteAddress)hdr.original_sender, msg, queued);
                 break;
             case Relay2Header.SITE_UNREACHABLE:
                 up_prot.up(new Event(Event.SITE_UNREACHABLE, hdr.final_dest));
@@ -502,6 +573,14 @@ public class RELAY2 extends Protocol {
      * @param msg The message
      */
     protected void route(SiteAddress dest, SiteAddress sender, Message msg) {
+        route(dest, sender, msg, null);
+    }
+
+    /**
+     * Routes the message to the target destination. If queued is non-null, a message to a different site is only
+     * added to the send queue of its route, and the route is added to queued; the caller needs to flush the routes
+     */
+    protected void route(SiteAddress dest, SiteAddress sender, Message msg, Collection<Relayer.Route> queued) {
         String target_site=dest.getSite();
         if(target_site.equals(site)) {
             if(local_addr.equals(dest) || ((dest instanceof SiteMaster) && is_site_master)) {
@@ -517,28 +596,42 @@ public class RELAY2 extends Protocol {
             return;
         }
 
-        Relayer.Route route=tmp.getRoute(target_site);
+        Relayer.Route route=tmp.getRoute(target_site, sender);
         if(route == null) {
             log.error(local_addr + ": no route to " + target_site + ": dropping message");
             sendSiteUnreachableTo(sender, target_site);
         }
-        else {
-            route.send(dest,sender,msg);
+        else if(queued != null) {
+            route.add(dest, sender, msg);
+            queued.add(route);
         }
+        else
+            route.send(dest,sender,msg);
     }
 
 
     /** Sends the message via all bridges excluding the excluded_sites bridges */
     protected void sendToBridges(Address sender, final Message msg, String ... excluded_sites) {
+        sendToBridges(sender, msg, null, excluded_sites);
+    }
+
+    /** Sends the message via all bridges excluding the excluded_sites bridges, or queues it if queued is non-null */
+    protected void sendToBridges(Address sender, final Message msg, Collection<Relayer.Route> queued,
+                                 String ... excluded_sites) {
         Relayer tmp=relayer;
-        List<Relayer.Route> routes=tmp != null? tmp.getRoutes(excluded_sites) : null;
+        List<Relayer.Route> routes=tmp != null? tmp.getRoutes(sender, excluded_sites) : null;
         if(routes == null)
             return;
         for(Relayer.Route route: routes) {
             if(log.isTraceEnabled())
                 log.trace(local_addr + ": relaying multicast message from " + sender + " via route " + route);
             try {
-                route.send(null, sender, msg);
+                if(queued != null) {
+                    route.add(null, sender, msg);
+                    queued.add(route);
+                }
+                else
+                    route.send(null, sender, msg);
             }
             catch(Exception ex) {
                 log.error(local_addr + ": failed relaying message from " + sender + " via route " + route, ex);
@@ -579,7 +672,7 @@ public class RELAY2 extends Protocol {
         boolean send_to_coord=false;
         if(dest instanceof SiteUUID) {
             if(dest instanceof SiteMaster) {
-                local_dest=pickSiteMaster();
+                local_dest=pickSiteMaster(sender);
                 if(local_dest == null)
                     throw new IllegalStateException("site master was null");
                 send_to_coord=true;
@@ -706,9 +799,21 @@ public class RELAY2 extends Protocol {
         return retval;
     }
 
-    /** Returns a random site master from site_masters */
-    protected Address pickSiteMaster() {
-        return Util.pickRandomElement(site_masters);
+    /**
+     * Returns the site master to which the messages of sender are forwarded. A sender is always assigned the same
+     * site master (rendezvous hashing), so its messages are relayed in FIFO order; different senders are spread over
+     * all site masters. When the site masters change, only the senders of the site masters that left are reassigned
+     */
+    protected Address pickSiteMaster(Address sender) {
+        List<Address> masters=site_masters;
+        if(masters == null || masters.isEmpty())
+            return null;
+        if(masters.size() == 1 || sender == null)
+            return masters.get(0);
+        long[] hashes=new long[masters.size()];
+        for(int i=0; i < hashes.length; i++)
+            hashes[i]=Util.hash(masters.get(i));
+        return masters.get(Relayer.rendezvous(sender, hashes));
     }
 
 
@@ -717,6 +822,8 @@ public class RELAY2 extends Protocol {
         public static final byte DATA             = 1;
         public static final byte SITE_UNREACHABLE = 2; // final_dest is a SiteMaster
         public static final byte HOST_UNREACHABLE = 3; // final_dest is a SiteUUID (not currently used)
+        public static final byte BATCH            = 4; // the buffer contains a list of DATA messages
+        public static final byte COMPRESSED_BATCH = 5; // the buffer contains a compressed BATCH (WAN mode)
 
         protected byte    type;
         protected Address final_dest;
@@ -757,6 +864,8 @@ public class RELAY2 extends Protocol {
                 case DATA:             return "DATA";
                 case SITE_UNREACHABLE: return "SITE_UNREACHABLE";
                 case HOST_UNREACHABLE: return "HOST_UNREACHABLE";
+                case BATCH:            return "BATCH";
+                case COMPRESSED_BATCH: return "COMPRESSED_BATCH";
                 default:               return "<unknown>";
             }
         }
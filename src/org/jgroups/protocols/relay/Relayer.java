@@ -4,24 +4,45 @@ import org.jgroups.*;
 import org.jgroups.logging.Log;
 import org.jgroups.protocols.relay.config.RelayConfig;
 import org.jgroups.stack.AddressGenerator;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ByteBufferInputStream;
+import org.jgroups.util.ByteBufferOutputStream;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Maintains bridges and routing table. Does the routing of outgoing messages and dispatches incoming messages to
  * the right members.<p/>
+ * The routing table is immutable and replaced as a whole when a bridge view changes, so that looking up a route
+ * doesn't acquire a lock. Each route has a send queue: messages sent concurrently on the same route are relayed by
+ * one thread, which sends all queued messages as a single bridge message (see {@link Route#flush()}).<p/>
+ * The routing table contains the routes to the site masters of all bridges. When a site has more than one route
+ * (multiple site masters, or site masters reachable via multiple bridges), the messages of a given original sender
+ * are always relayed via the same route (see {@link #getRoute(String,Address)}), so that they're received in the
+ * order in which they were sent, while the messages of different senders are spread over all routes.<p/>
+ * In WAN mode ({@link RELAY2#wanMode()}), each route has a sender thread which sends the queued messages as
+ * (compressed) frames of up to {@link RELAY2#getMaxFrameSize()} bytes. While a frame is sent, the next one
+ * accumulates, so the frames get larger as the latency of the link increases.<p/>
  * A Relayer cannot be reused once it is stopped, but a new Relayer instance must be created.
  * @author Bela Ban
  * @since 3.2
  */
 public class Relayer {
-    /** The routing table. Site IDs are the keys (e.g. "sfo", and list of routes are the values */
-    protected ConcurrentMap<String,List<Route>> routes=new ConcurrentHashMap<String,List<Route>>(5);
+    /** The routing table. Site IDs are the keys (e.g. "sfo"), and arrays of routes are the values. Never modified,
+     * but replaced by a new table when a bridge view changes (copy-on-update) */
+    protected volatile Map<String,Route[]>      routes=Collections.emptyMap();
 
     /** The bridges which are used to connect to different sites */
     protected final Queue<Bridge>               bridges=new ConcurrentLinkedQueue<Bridge>();
@@ -108,19 +129,34 @@ public class Relayer {
         for(Bridge bridge: bridges)
             bridge.stop();
         bridges.clear();
+        for(Route[] list: routes.values())
+            for(Route route: list)
+                route.stop();
     }
 
 
-    public synchronized String printRoutes() {
+    public String printRoutes() {
         StringBuilder sb=new StringBuilder();
-        for(Map.Entry<String,List<Route>> entry: routes.entrySet()) {
-            List<Route> list=entry.getValue();
-            if(list != null && !list.isEmpty())
-                sb.append(entry.getKey() + " --> ").append(Util.print(list)).append("\n");
-        }
+        for(Map.Entry<String,Route[]> entry: routes.entrySet())
+            sb.append(entry.getKey() + " --> ").append(Util.print(Arrays.asList(entry.getValue())))
+              .append("\n");
+        return sb.toString();
+    }
+
+    /** Prints the number of messages and batches relayed, and the send queue of each route */
+    public String printRouteStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String,Route[]> entry: routes.entrySet())
+            for(Route route: entry.getValue())
+                sb.append(entry.getKey() + " --> ").append(route.printStats()).append("\n");
         return sb.toString();
     }
 
+    public void resetStats() {
+        for(Route[] list: routes.values())
+            for(Route route: list)
+                route.resetStats();
+    }
 
 
     /**
@@ -128,30 +164,93 @@ public class Relayer {
      * @param site
      * @return
      */
-    protected synchronized Route getRoute(String site) {
-        List<Route> list=routes.get(site);
-        return list == null? null : Util.pickRandomElement(list);
+    protected Route getRoute(String site) {
+        Route[] list=routes.get(site);
+        return list == null? null : list.length == 1? list[0] : Util.pickRandomElement(list);
+    }
+
+    /**
+     * Returns the route to site for the messages of original_sender. A given sender is always assigned the same route
+     * (as long as the route exists), so that its messages are received in FIFO order. If the assigned route has
+     * failover_queue_size or more queued messages, the route with the smallest queue is returned instead
+     */
+    protected Route getRoute(String site, Address original_sender) {
+        Route[] list=routes.get(site);
+        if(list == null)
+            return null;
+        return list.length == 1? list[0] : failover(list, pick(list, original_sender));
     }
 
     protected List<String> getSiteNames() {
         return new ArrayList<String>(routes.keySet());
     }
 
-    protected synchronized List<Route> getRoutes(String ... excluded_sites) {
-        List<Route> retval=new ArrayList<Route>(routes.size());
-        for(List<Route> list: routes.values()) {
-            for(Route route: list) {
-                if(route != null) {
-                    if(!isExcluded(route, excluded_sites)) {
-                        retval.add(route);
-                        break;
-                    }
-                }
+    /** Returns one route to each site, excluding the routes to excluded_sites */
+    protected List<Route> getRoutes(String ... excluded_sites) {
+        return getRoutes(null, excluded_sites);
+    }
+
+    /**
+     * Returns one route to each site for the messages of original_sender (see {@link #getRoute(String,Address)}),
+     * excluding the routes to excluded_sites
+     */
+    protected List<Route> getRoutes(Address original_sender, String ... excluded_sites) {
+        Map<String,Route[]> tmp=routes;
+        List<Route> retval=new ArrayList<Route>(tmp.size());
+        for(Map.Entry<String,Route[]> entry: tmp.entrySet()) {
+            Route[] list=entry.getValue();
+            if(list.length > 0 && !isExcluded(entry.getKey(), excluded_sites))
+                retval.add(list.length == 1 || original_sender == null? list[0] : failover(list, pick(list, original_sender)));
+        }
+        return retval;
+    }
+
+    /**
+     * Picks the route for sender by rendezvous hashing (see {@link #rendezvous(Address,long[])}). When a route is
+     * added or removed, only the senders which are assigned to that route are moved to a different route
+     */
+    protected static Route pick(Route[] list, Address sender) {
+        if(sender == null)
+            return list[0];
+        long[] hashes=new long[list.length];
+        for(int i=0; i < list.length; i++)
+            hashes[i]=list[i].hash;
+        return list[rendezvous(sender, hashes)];
+    }
+
+    /**
+     * Rendezvous (highest random weight) hashing: returns the index of the candidate (given by its hash) with the
+     * highest hash of sender and candidate, or 0 if sender is null
+     */
+    protected static int rendezvous(Address sender, long[] hashes) {
+        if(sender == null)
+            return 0;
+        long sender_hash=Util.hash(sender), max=0;
+        int retval=0;
+        for(int i=0; i < hashes.length; i++) {
+            long weight=Util.mix(sender_hash ^ hashes[i]);
+            if(i == 0 || weight > max) {
+                retval=i;
+                max=weight;
             }
         }
         return retval;
     }
 
+    /** Returns route, or the route with the smallest queue if route's queue has failover_queue_size or more messages */
+    protected Route failover(Route[] list, Route route) {
+        int threshold=relay.getFailoverQueueSize();
+        if(threshold <= 0 || route.queueSize() < threshold)
+            return route;
+        Route retval=route;
+        for(Route tmp: list)
+            if(tmp.queueSize() < retval.queueSize())
+                retval=tmp;
+        if(retval != route)
+            route.num_failovers.incrementAndGet();
+        return retval;
+    }
+
     protected View getBridgeView(String cluster_name) {
         if(cluster_name == null || bridges == null)
             return null;
@@ -162,10 +261,9 @@ public class Relayer {
         return null;
     }
 
-    protected static boolean isExcluded(Route route, String... excluded_sites) {
+    protected static boolean isExcluded(String site, String... excluded_sites) {
         if(excluded_sites == null)
             return false;
-        String site=((SiteUUID)route.site_master).getSite();
         for(String excluded_site: excluded_sites)
             if(site.equals(excluded_site))
                 return true;
@@ -176,60 +274,358 @@ public class Relayer {
 
 
     /**
-     * Includes information about the site master of the route and the channel to be used
+     * Includes information about the site master of the route and the channel to be used.<p/>
+     * Messages are added to a send queue, which is drained by one of the senders: if there is more than one message
+     * in the queue, the messages are marshalled into a single bridge message (a batch of up to
+     * {@link RELAY2#getMaxRelayBatchSize()} bytes), which is unmarshalled by the receiving site master. This way,
+     * the relayed messages sent by concurrent threads, or the messages of a received message batch, are sent as one
+     * message over the bridge.<p/>
+     * In WAN mode, the queue is drained by a sender thread, which always sends the messages as a frame (compressed
+     * if frame_compression_level is greater than 0), and the senders only block while the queue is full.
      */
-    public class Route implements Comparable<Route> {
+    public class Route implements Comparable<Route>, Runnable {
         /** SiteUUID: address of the site master */
-        protected final Address   site_master;
-        protected final JChannel  bridge;
+        protected final Address        site_master;
+        protected final JChannel       bridge;
+        /** Hash of site master and bridge, used to assign senders to routes */
+        protected final long           hash;
+
+        protected final Queue<Queued>  queue=new ConcurrentLinkedQueue<Queued>();
+        protected final AtomicInteger  queue_size=new AtomicInteger();
+        /** Set by the thread which drains the queue */
+        protected final AtomicBoolean  processing=new AtomicBoolean(false);
+        /** Number of senders blocked because the queue is full */
+        protected final AtomicInteger  blocked=new AtomicInteger();
+
+        protected final AtomicLong     num_msgs=new AtomicLong(0);
+        protected final AtomicLong     num_batches=new AtomicLong(0);
+        protected final AtomicLong     num_bytes=new AtomicLong(0);
+        /** Time (ns) spent sending messages on the bridge */
+        protected final AtomicLong     send_time=new AtomicLong(0);
+        protected volatile int         max_queue_size;
+        /** Number of messages which were sent via a different route because the queue of this route was too long */
+        protected final AtomicLong     num_failovers=new AtomicLong(0);
+        /** Latency (us) of relayed messages, from being added to the queue until sent on the bridge */
+        protected final Histogram      latency=new Histogram();
+        /** Number of bytes sent on the bridge; less than num_bytes if frames are compressed */
+        protected final AtomicLong     num_sent_bytes=new AtomicLong(0);
+
+        /** Drains the queue in WAN mode, null otherwise */
+        protected volatile Thread      sender;
+        /** Compresses frames, used only by the sender thread. Null if compression is disabled, or not in WAN mode */
+        protected final Deflater       deflater;
 
         public Route(Address site_master, JChannel bridge) {
             this.site_master=site_master;
             this.bridge=bridge;
+            this.hash=Util.mix(Util.hash(site_master) ^ clusterName().hashCode());
+            this.deflater=relay.wanMode() && relay.getFrameCompressionLevel() > 0?
+              new Deflater(relay.getFrameCompressionLevel()) : null;
+            if(relay.wanMode()) {
+                String name="Relayer-" + site_master;
+                ThreadFactory factory=relay.getThreadFactory();
+                Thread tmp=factory != null? factory.newThread(this, name) : new Thread(this, name);
+                tmp.setDaemon(true);
+                sender=tmp;
+                tmp.start();
+            }
         }
 
         public JChannel           bridge()                               {return bridge;}
         public Address            siteMaster()                           {return site_master;}
+        public int                queueSize()                            {return queue_size.get();}
+        public int                maxQueueSize()                         {return max_queue_size;}
+        public long               numMessages()                          {return num_msgs.get();}
+        public long               numBatches()                           {return num_batches.get();}
+        public long               numBytes()                             {return num_bytes.get();}
+        public long               numFailovers()                         {return num_failovers.get();}
+        public long               numSentBytes()                         {return num_sent_bytes.get();}
+        public Histogram          latency()                              {return latency;}
+
+        /** The number of messages relayed per second of send time */
+        public long throughput() {
+            long time=send_time.get();
+            return time > 0? (long)(num_msgs.get() / (time / 1000000000.0)) : 0;
+        }
 
         public void send(Address final_destination, Address original_sender, final Message msg) {
+            add(final_destination, original_sender, msg);
+            flush();
+        }
+
+        /** Adds a message to the send queue. {@link #flush()} needs to be called to send it */
+        public void add(Address final_destination, Address original_sender, final Message msg) {
             if(log.isTraceEnabled())
                 log.trace("routing message to " + final_destination + " via " + site_master);
-            long start=stats? System.nanoTime() : 0;
-            try {
-                Message copy=createMessage(site_master, final_destination, original_sender, msg);
-                bridge.send(copy);
-                if(stats) {
-                    relay.addToRelayedTime(System.nanoTime() - start);
-                    relay.incrementRelayed();
+            queue.add(new Queued(createMessage(site_master, final_destination, original_sender, msg), System.nanoTime()));
+            int size=queue_size.incrementAndGet();
+            if(size > max_queue_size)
+                max_queue_size=size;
+        }
+
+        /**
+         * Sends the queued messages, unless another thread is already sending them. In the latter case, our messages
+         * are sent by that thread, and we block while the queue has more than max_relay_queue_size messages.
+         * In WAN mode, the sender thread is woken up to send the queued messages
+         */
+        public void flush() {
+            Thread tmp=sender;
+            if(tmp != null) {
+                LockSupport.unpark(tmp);
+                waitUntilNotFull();
+                return;
+            }
+            while(!queue.isEmpty()) {
+                if(!processing.compareAndSet(false, true)) {
+                    waitUntilNotFull();
+                    return;
+                }
+                try {
+                    drain();
+                }
+                finally {
+                    processing.set(false);
                 }
             }
-            catch(Exception e) {
-                log.error("failure relaying message", e);
+        }
+
+        /** The loop of the sender thread in WAN mode */
+        public void run() {
+            while(sender == Thread.currentThread()) {
+                if(queue.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                processing.set(true);
+                try {
+                    drain();
+                }
+                finally {
+                    processing.set(false);
+                }
             }
+            if(deflater != null)
+                deflater.end();
+        }
+
+        /** Stops the sender thread (if running). Messages which are still queued are discarded */
+        public void stop() {
+            Thread tmp=sender;
+            sender=null;
+            if(tmp != null)
+                LockSupport.unpark(tmp);
+        }
+
+        public void resetStats() {
+            num_msgs.set(0);
+            num_batches.set(0);
+            num_bytes.set(0);
+            send_time.set(0);
+            max_queue_size=0;
+            num_failovers.set(0);
+            latency.reset();
+            num_sent_bytes.set(0);
+        }
+
+        public String printStats() {
+            long msgs=num_msgs.get(), batches=num_batches.get();
+            return String.format("%s (%s): %d msgs (%d bytes, %d sent) in %d batches (avg %.1f msgs/batch), %d msgs/s, " +
+                                   "queue: %d (max %d), failovers: %d, latency (us): %s", site_master, clusterName(),
+                                 msgs, num_bytes.get(), num_sent_bytes.get(), batches,
+                                 batches > 0? msgs / (double)batches : 0.0, throughput(),
+                                 queue_size.get(), max_queue_size, num_failovers.get(), latency);
         }
 
         public int compareTo(Route o) {
-            return site_master.compareTo(o.siteMaster());
+            int rc=site_master.compareTo(o.siteMaster());
+            return rc != 0? rc : clusterName().compareTo(o.clusterName());
         }
 
         public boolean equals(Object obj) {
-            return compareTo((Route)obj) == 0;
+            return obj instanceof Route && compareTo((Route)obj) == 0;
         }
 
         public int hashCode() {
-            return site_master.hashCode();
+            return site_master.hashCode() * 31 + clusterName().hashCode();
         }
 
         public String toString() {
             return (site_master != null? site_master.toString() : "");
         }
 
+        protected String clusterName() {
+            String name=bridge != null? bridge.getClusterName() : null;
+            return name != null? name : "";
+        }
+
+        protected boolean isFull() {
+            int capacity=relay.getMaxRelayQueueSize();
+            return capacity > 0 && queue_size.get() > capacity;
+        }
+
+        /** Blocks while the queue is full and another thread is sending the queued messages */
+        protected void waitUntilNotFull() {
+            if(!isFull())
+                return;
+            blocked.incrementAndGet();
+            try {
+                synchronized(this) {
+                    while(isFull() && processing.get())
+                        wait(10); // the timeout covers a notifyAll() sent just before we started waiting
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                blocked.decrementAndGet();
+            }
+        }
+
+        /** Sends messages until the queue is empty, waking up blocked senders */
+        protected void drain() {
+            while(sendQueuedMessages() > 0) {
+                if(blocked.get() > 0 && !isFull()) {
+                    synchronized(this) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes messages of up to max_relay_batch_size bytes (max_frame_size in WAN mode) from the queue and sends
+         * them. Returns the number sent
+         */
+        protected int sendQueuedMessages() {
+            Queued first=queue.poll();
+            if(first == null)
+                return 0;
+            boolean wan_mode=sender != null;
+            int max_bytes=wan_mode? relay.getMaxFrameSize() : relay.getMaxRelayBatchSize();
+            List<Queued> batch=wan_mode? new ArrayList<Queued>(Collections.singletonList(first)) : null;
+            long bytes=first.msg.size();
+            Queued next;
+            while(max_bytes > 0 && bytes < max_bytes && (next=queue.poll()) != null) {
+                if(batch == null) {
+                    batch=new ArrayList<Queued>();
+                    batch.add(first);
+                }
+                batch.add(next);
+                bytes+=next.msg.size();
+            }
+            int num=batch != null? batch.size() : 1;
+            queue_size.addAndGet(-num);
+
+            long start=System.nanoTime();
+            try {
+                Message msg=batch != null? createBatchMessage(batch, bytes) : first.msg;
+                bridge.send(msg);
+                num_sent_bytes.addAndGet(batch != null? msg.getLength() : bytes);
+                long stop=System.nanoTime(), time=stop - start;
+                if(batch != null)
+                    for(Queued queued: batch)
+                        latency.add((stop - queued.time) / 1000);
+                else
+                    latency.add((stop - first.time) / 1000);
+                send_time.addAndGet(time);
+                num_msgs.addAndGet(num);
+                num_batches.incrementAndGet();
+                num_bytes.addAndGet(bytes);
+                if(stats) {
+                    relay.addToRelayedTime(time);
+                    relay.addToRelayed(num);
+                }
+            }
+            catch(Exception e) {
+                log.error("failure relaying message", e);
+            }
+            return num;
+        }
+
         protected Message createMessage(Address target, Address final_destination, Address original_sender, final Message msg) {
             Message copy=relay.copy(msg).dest(target).src(null);
             RELAY2.Relay2Header hdr=new RELAY2.Relay2Header(RELAY2.Relay2Header.DATA, final_destination, original_sender);
             copy.putHeader(relay.getId(), hdr);
             return copy;
         }
+
+        /**
+         * Marshals the messages into the buffer of a single message, which is sent as OOB if all messages are OOB.
+         * The buffer is compressed if compression is enabled and reduces its size
+         */
+        protected Message createBatchMessage(List<Queued> msgs, long bytes) throws Exception {
+            ByteBufferOutputStream out=new ByteBufferOutputStream((int)bytes + Global.INT_SIZE);
+            out.writeInt(msgs.size());
+            boolean oob=true;
+            for(Queued queued: msgs) {
+                queued.msg.writeToNoAddrs(null, out);
+                oob=oob && queued.msg.isFlagSet(Message.Flag.OOB);
+            }
+            Buffer buf=out.getBuffer(), compressed=deflater != null? compress(buf) : null;
+            byte type=compressed != null? RELAY2.Relay2Header.COMPRESSED_BATCH : RELAY2.Relay2Header.BATCH;
+            Message batch=new Message(site_master, compressed != null? compressed : buf)
+              .putHeader(relay.getId(), new RELAY2.Relay2Header(type, null, null));
+            return oob? batch.setFlag(Message.Flag.OOB) : batch;
+        }
+
+        /** Returns the uncompressed length followed by the compressed frame, or null if compression doesn't pay off */
+        protected Buffer compress(Buffer frame) {
+            byte[] buf=new byte[frame.getLength()];
+            deflater.reset();
+            deflater.setInput(frame.getBuf(), frame.getOffset(), frame.getLength());
+            deflater.finish();
+            int len=Global.INT_SIZE + deflater.deflate(buf, Global.INT_SIZE, buf.length - Global.INT_SIZE);
+            if(!deflater.finished())
+                return null;
+            ByteBuffer.wrap(buf).putInt(frame.getLength());
+            return new Buffer(buf, 0, len);
+        }
+    }
+
+    /** A message in the send queue of a route, with the time (ns) it was added */
+    protected static class Queued {
+        protected final Message msg;
+        protected final long    time;
+
+        protected Queued(Message msg, long time) {
+            this.msg=msg;
+            this.time=time;
+        }
+    }
+
+    /** Reads the messages marshalled by {@link Route#createBatchMessage(List,long)} */
+    protected static List<Message> readBatchMessage(Message msg) throws Exception {
+        return readBatchMessage(ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), msg.getLength()));
+    }
+
+    /** Uncompresses the frame created by {@link Route#compress(Buffer)} and reads the messages */
+    protected static List<Message> readCompressedBatchMessage(Message msg) throws Exception {
+        ByteBuffer buf=ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        byte[] frame=new byte[buf.getInt()];
+        Inflater inflater=new Inflater();
+        try {
+            inflater.setInput(msg.getRawBuffer(), buf.position(), buf.remaining());
+            int len=inflater.inflate(frame);
+            if(len != frame.length)
+                throw new IllegalStateException("uncompressed frame has " + len + " bytes, but expected " + frame.length);
+        }
+        finally {
+            inflater.end();
+        }
+        return readBatchMessage(ByteBuffer.wrap(frame));
+    }
+
+    protected static List<Message> readBatchMessage(ByteBuffer buf) throws Exception {
+        ByteBufferInputStream in=new ByteBufferInputStream(buf);
+        int num=in.readInt();
+        List<Message> msgs=new ArrayList<Message>(num);
+        for(int i=0; i < num; i++) {
+            Message tmp=new Message(false);
+            tmp.readFrom(in);
+            msgs.add(tmp);
+        }
+        return msgs;
     }
 
 
@@ -260,10 +656,27 @@ public class Relayer {
                 log.warn("received a message without a relay header; discarding it");
                 return;
             }
+            if(hdr.type == RELAY2.Relay2Header.BATCH || hdr.type == RELAY2.Relay2Header.COMPRESSED_BATCH) {
+                try {
+                    List<Message> msgs=hdr.type == RELAY2.Relay2Header.BATCH? readBatchMessage(msg)
+                      : readCompressedBatchMessage(msg);
+                    for(Message tmp: msgs) {
+                        RELAY2.Relay2Header tmp_hdr=(RELAY2.Relay2Header)tmp.getHeader(relay.getId());
+                        if(tmp_hdr != null)
+                            relay.handleRelayMessage(tmp_hdr, tmp);
+                    }
+                }
+                catch(Exception ex) {
+                    log.error("failed reading relayed message batch from " + msg.getSrc(), ex);
+                }
+                return;
+            }
             relay.handleRelayMessage(hdr, msg);
         }
 
-        /** The view contains a list of SiteUUIDs. Adjust the routing table based on the SiteUUIDs UUID and site
+        /**
+         * The view contains a list of SiteUUIDs. Recomputes the routing table from the views of all bridges, so the
+         * senders are rebalanced over the current routes
          */
         public void viewAccepted(View new_view) {
             this.view=new_view;
@@ -271,46 +684,48 @@ public class Relayer {
                 log.trace("[Relayer " + channel.getAddress() + "] view: " + new_view);
 
             RouteStatusListener       listener=relay.getRouteStatusListener();
-            Map<String,List<Address>> tmp=extract(new_view);
-            Set<String>               down=listener != null? new HashSet<String>(routes.keySet()) : null;
-            Set<String>               up=listener != null? new HashSet<String>() : null;
-
-            if(listener != null)
-                down.removeAll(tmp.keySet());
-
-            routes.keySet().retainAll(tmp.keySet()); // remove all sites which are not in the view
-
-            for(Map.Entry<String,List<Address>> entry: tmp.entrySet()) {
-                String key=entry.getKey();
-                List<Address> val=entry.getValue();
-                if(!routes.containsKey(key)) {
-                    routes.put(key, new ArrayList<Route>());
-                    if(up != null)
-                        up.add(key);
-                }
-
-                List<Route> list=routes.get(key);
-
-                // Remove routes not in the view anymore:
-                for(Iterator<Route> it=list.iterator(); it.hasNext();) {
-                    Route route=it.next();
-                    if(!val.contains(route.siteMaster()))
-                        it.remove();
+            Set<String>               down, up;
+
+            synchronized(Relayer.this) { // serializes concurrent updates by different bridges
+                Map<String,Route[]>     old_routes=routes, new_routes=new HashMap<String,Route[]>();
+                Map<String,List<Route>> tmp=new HashMap<String,List<Route>>();
+
+                // sites which are not in any bridge view are removed. Routes which are still in a view are kept (with
+                // their send queue and stats), routes that aren't yet in the routing table are added
+                for(Bridge bridge: bridges) {
+                    View bridge_view=bridge.view;
+                    if(bridge_view == null)
+                        continue;
+                    for(Map.Entry<String,List<Address>> entry: extract(bridge_view).entrySet()) {
+                        String key=entry.getKey();
+                        List<Route> list=tmp.get(key);
+                        if(list == null)
+                            tmp.put(key, list=new ArrayList<Route>());
+                        for(Address addr: entry.getValue()) {
+                            Route existing=find(old_routes.get(key), addr, bridge.channel);
+                            list.add(existing != null? existing : new Route(addr, bridge.channel));
+                        }
+                    }
                 }
-
-                // Add routes that aren't yet in the routing table:
-                for(Address addr: val) {
-                    if(!contains(list, addr))
-                        list.add(new Route(addr, channel));
+                for(Map.Entry<String,List<Route>> entry: tmp.entrySet()) {
+                    List<Route> list=entry.getValue();
+                    if(!list.isEmpty())
+                        new_routes.put(entry.getKey(), list.toArray(new Route[list.size()]));
                 }
 
-                if(list.isEmpty()) {
-                    routes.remove(key);
-                    if(listener != null) {
-                        down.add(key);
-                        up.remove(key);
-                    }
-                }
+                down=new HashSet<String>(old_routes.keySet());
+                down.removeAll(new_routes.keySet());
+                up=new HashSet<String>(new_routes.keySet());
+                up.removeAll(old_routes.keySet());
+                routes=Collections.unmodifiableMap(new_routes);
+
+                Set<Route> current=new HashSet<Route>();
+                for(Route[] list: new_routes.values())
+                    current.addAll(Arrays.asList(list));
+                for(Route[] list: old_routes.values())
+                    for(Route route: list)
+                        if(!current.contains(route))
+                            route.stop();
             }
 
             if(listener != null) {
@@ -321,12 +736,12 @@ public class Relayer {
             }
         }
 
-        protected boolean contains(List<Route> routes, Address addr) {
-            for(Route route: routes) {
-                if(route.siteMaster().equals(addr))
-                    return true;
-            }
-            return false;
+        protected Route find(Route[] routes, Address addr, JChannel bridge) {
+            if(routes != null)
+                for(Route route: routes)
+                    if(route.siteMaster().equals(addr) && route.bridge() == bridge)
+                        return route;
+            return null;
         }
 
         /** Returns a map containing the site keys and addresses as values */
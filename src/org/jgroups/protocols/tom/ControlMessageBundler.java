@@ -0,0 +1,96 @@
+package org.jgroups.protocols.tom;
+
+import org.jgroups.Address;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Accumulates the propose and final sequence numbers to be sent to each destination, so that the ones generated
+ * concurrently (or while processing a {@link org.jgroups.util.MessageBatch}) are sent together in a single control
+ * message, or piggybacked on the next data message to the same destination
+ *
+ * @since 3.5
+ */
+public class ControlMessageBundler {
+    private final ConcurrentMap<Address, Queue<ToaHeader.ControlEntry>> pending =
+            new ConcurrentHashMap<Address, Queue<ToaHeader.ControlEntry>>();
+
+    /**
+     * Adds a propose or a final sequence number to be sent to the destination
+     *
+     * @param destination       the destination address
+     * @param type              {@link ToaHeader#PROPOSE_MESSAGE} or {@link ToaHeader#FINAL_MESSAGE}
+     * @param messageID         the message ID
+     * @param sequenceNumber    the proposed or final sequence number
+     */
+    public void add(Address destination, byte type, MessageID messageID, long sequenceNumber) {
+        Queue<ToaHeader.ControlEntry> queue = pending.get(destination);
+        if (queue == null) {
+            queue = new ConcurrentLinkedQueue<ToaHeader.ControlEntry>();
+            Queue<ToaHeader.ControlEntry> existing = pending.putIfAbsent(destination, queue);
+            if (existing != null) {
+                queue = existing;
+            }
+        }
+        queue.add(new ToaHeader.ControlEntry(type, messageID, sequenceNumber));
+    }
+
+    /**
+     * removes all the pending entries for a destination
+     *
+     * @param destination   the destination address
+     * @param maxEntries    the max number of entries to remove
+     * @return the entries removed (empty if nothing is pending)
+     */
+    public List<ToaHeader.ControlEntry> drain(Address destination, int maxEntries) {
+        Queue<ToaHeader.ControlEntry> queue = pending.get(destination);
+        if (queue == null || queue.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<ToaHeader.ControlEntry> list = new ArrayList<ToaHeader.ControlEntry>(Math.min(queue.size(), maxEntries));
+        ToaHeader.ControlEntry entry;
+        while (list.size() < maxEntries && (entry = queue.poll()) != null) {
+            list.add(entry);
+        }
+        return list;
+    }
+
+    /**
+     * @return the destinations with pending entries
+     */
+    public Collection<Address> getDestinations() {
+        List<Address> destinations = new ArrayList<Address>(pending.size());
+        for (Map.Entry<Address, Queue<ToaHeader.ControlEntry>> entry : pending.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                destinations.add(entry.getKey());
+            }
+        }
+        return destinations;
+    }
+
+    public boolean hasPending(Address destination) {
+        Queue<ToaHeader.ControlEntry> queue = pending.get(destination);
+        return queue != null && !queue.isEmpty();
+    }
+
+    public void removeLeavers(Collection<Address> leavers) {
+        if (leavers == null) {
+            return;
+        }
+        for (Address leaver : leavers) {
+            pending.remove(leaver);
+        }
+    }
+
+    public void clear() {
+        pending.clear();
+    }
+
+    @Override
+    public String toString() {
+        return pending.toString();
+    }
+}
@@ -102,6 +102,47 @@ public class DeliveryManagerImpl implements DeliveryManager {
         }
     }
 
+    /**
+     * marks several messages as ready to deliver, acquiring the lock and waking up the delivery thread only once.
+     * All the messages found are marked, even if some message IDs are not found: the exception is only thrown after
+     * the others have been marked, as they could otherwise never be delivered
+     * @param finalSequenceNumbers  the final sequence number of each message ID
+     */
+    public void markReadyToDeliver(Map<MessageID, Long> finalSequenceNumbers) {
+        if (finalSequenceNumbers.isEmpty()) {
+            return;
+        }
+        List<MessageID> notFound = null;
+        synchronized (deliverySet) {
+            for (Map.Entry<MessageID, Long> entry : finalSequenceNumbers.entrySet()) {
+                MessageInfo messageInfo = messageCache.remove(entry.getKey());
+                if (messageInfo == null) {
+                    if (notFound == null) {
+                        notFound = new ArrayList<MessageID>();
+                    }
+                    notFound.add(entry.getKey());
+                    continue;
+                }
+                long finalSequenceNumber = entry.getValue();
+                if (messageInfo.isUpdatePositionNeeded(finalSequenceNumber)) {
+                    deliverySet.remove(messageInfo);
+                    messageInfo.updateAndmarkReadyToDeliver(finalSequenceNumber);
+                    deliverySet.add(messageInfo);
+                } else {
+                    messageInfo.updateAndmarkReadyToDeliver(finalSequenceNumber);
+                }
+            }
+
+            if (!deliverySet.isEmpty() && deliverySet.first().isReadyToDeliver()) {
+                deliverySet.notify();
+            }
+        }
+        if (notFound != null) {
+            throw new IllegalStateException("Message IDs not found in to deliver list. this can't happen. " +
+                    "Message IDs are " + notFound);
+        }
+    }
+
     public final void removeLeavers(Collection<Address> leavers) {
         if (leavers == null) {
             return;
@@ -128,25 +169,16 @@ public class DeliveryManagerImpl implements DeliveryManager {
     public List<Message> getNextMessagesToDeliver() throws InterruptedException {
         LinkedList<Message> toDeliver = new LinkedList<Message>();
         synchronized (deliverySet) {
-            while (deliverySet.isEmpty() && singleDestinationSet.isEmpty()) {
+            while (singleDestinationSet.isEmpty() && (deliverySet.isEmpty() || !deliverySet.first().isReadyToDeliver())) {
                 deliverySet.wait();
             }
-            
+
             if (!singleDestinationSet.isEmpty()) {
                 toDeliver.addAll(singleDestinationSet);
                 singleDestinationSet.clear();
-                return toDeliver;
-            }
-
-            if (!deliverySet.first().isReadyToDeliver()) {
-                deliverySet.wait();
             }
 
-           if (!singleDestinationSet.isEmpty()) {
-                toDeliver.addAll(singleDestinationSet);
-                singleDestinationSet.clear();                
-           }
-
+            //releases all the messages ready to be delivered in this wake-up, not only the first one
             Iterator<MessageInfo> iterator = deliverySet.iterator();
 
             while (iterator.hasNext()) {
@@ -19,7 +19,10 @@ public class StatsCollector {
         DATA_MESSAGE_RECEIVED,
         ANYCAST_MESSAGE_SENT,
         ANYCAST_MESSAGE_DELIVERED,
-        UNICAST_MESSAGE_SENT
+        UNICAST_MESSAGE_SENT,
+        CONTROL_MESSAGE_SENT,
+        CONTROL_ENTRY_SENT,
+        PIGGYBACKED_CONTROL_ENTRY
     }
 
     private static enum Duration {
@@ -125,6 +128,22 @@ public class StatsCollector {
         durations.get(Duration.ANYCAST_MESSAGE_SENT).addAndGet(duration);
     }
 
+    public void addControlMessageSent(int numberOfEntries) {
+        if (!shouldCollectStats()) {
+            return;
+        }
+        counters.get(Counter.CONTROL_MESSAGE_SENT).incrementAndGet();
+        counters.get(Counter.CONTROL_ENTRY_SENT).addAndGet(numberOfEntries);
+    }
+
+    public void addPiggybackedControlEntries(int numberOfEntries) {
+        if (!shouldCollectStats()) {
+            return;
+        }
+        counters.get(Counter.CONTROL_ENTRY_SENT).addAndGet(numberOfEntries);
+        counters.get(Counter.PIGGYBACKED_CONTROL_ENTRY).addAndGet(numberOfEntries);
+    }
+
     public void incrementMessageDeliver() {
         if (!shouldCollectStats()) {
             return ;
@@ -212,4 +231,36 @@ public class StatsCollector {
         }
         return 0D;
     }
+
+    public int getNumberOfControlMessagesSent() {
+        return counters.get(Counter.CONTROL_MESSAGE_SENT).get();
+    }
+
+    public int getNumberOfControlEntriesSent() {
+        return counters.get(Counter.CONTROL_ENTRY_SENT).get();
+    }
+
+    public int getNumberOfPiggybackedControlEntries() {
+        return counters.get(Counter.PIGGYBACKED_CONTROL_ENTRY).get();
+    }
+
+    public double getAvgControlEntriesPerControlMessage() {
+        int messages = counters.get(Counter.CONTROL_MESSAGE_SENT).get();
+        if (messages > 0) {
+            int entries = counters.get(Counter.CONTROL_ENTRY_SENT).get() -
+                    counters.get(Counter.PIGGYBACKED_CONTROL_ENTRY).get();
+            return entries * 1.0 / messages;
+        }
+        return 0D;
+    }
+
+    public double getControlMessageReduction() {
+        //without bundling, each propose and each final is sent in its own message
+        int entries = counters.get(Counter.CONTROL_ENTRY_SENT).get();
+        if (entries > 0) {
+            int messages = counters.get(Counter.CONTROL_MESSAGE_SENT).get();
+            return (entries - messages) * 100.0 / entries;
+        }
+        return 0D;
+    }
 }
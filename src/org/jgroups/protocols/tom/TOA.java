@@ -4,11 +4,11 @@ import org.jgroups.*;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 
-import java.util.Collection;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -23,6 +23,14 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 @MBean(description = "Implementation of Total Order Anycast based on Skeen's Algorithm")
 public class TOA extends Protocol implements DeliveryProtocol {
+    @Property(description="If true, the propose and final sequence numbers generated concurrently (or while processing " +
+            "a message batch) are bundled into a single control message per destination, and piggybacked on data " +
+            "messages sent to the same destination")
+    private boolean bundle_control_messages = true;
+
+    @Property(description="The max number of propose and final sequence numbers sent in a single control message")
+    private int max_control_entries = 512;
+
     //managers
     private DeliveryManagerImpl deliverManager;
     private SenderManager senderManager;
@@ -37,6 +45,9 @@ public class TOA extends Protocol implements DeliveryProtocol {
     private final SequenceNumberManager sequenceNumberManager = new SequenceNumberManager();
     private final AtomicLong messageIdCounter = new AtomicLong(0);
 
+    //proposes and finals waiting to be sent
+    private final ControlMessageBundler controlBundler = new ControlMessageBundler();
+
     //stats: profiling information
     private final StatsCollector statsCollector = new StatsCollector();
     private volatile View currentView;
@@ -55,6 +66,7 @@ public class TOA extends Protocol implements DeliveryProtocol {
     @Override
     public void stop() {
         deliverThread.interrupt();
+        controlBundler.clear();
     }
 
     @Override
@@ -88,25 +100,8 @@ public class TOA extends Protocol implements DeliveryProtocol {
                     break;
                 }
 
-                switch (header.getType()) {
-                    case ToaHeader.DATA_MESSAGE:
-                        handleDataMessage(message, header);
-                        break;
-                    case ToaHeader.PROPOSE_MESSAGE:
-                        handleSequenceNumberPropose(message.getSrc(), header);
-                        break;
-                    case ToaHeader.FINAL_MESSAGE:
-                        handleFinalSequenceNumber(header);
-                        break;
-                    case ToaHeader.SINGLE_DESTINATION_MESSAGE:
-                        if (log.isTraceEnabled()) {
-                            log.trace("Received message " + message + " with SINGLE_DESTINATION header. delivering...");
-                        }
-                        deliverManager.deliverSingleDestinationMessage(message);
-                        break;
-                    default:
-                        throw new IllegalStateException("Unknown header type received " + header);
-                }
+                handleMessage(message, header);
+                flushControlMessages();
                 return null;
             case Event.VIEW_CHANGE:
                 handleViewChange((View) evt.getArg());
@@ -121,6 +116,29 @@ public class TOA extends Protocol implements DeliveryProtocol {
         return up_prot.up(evt);
     }
 
+    @Override
+    public void up(MessageBatch batch) {
+        for (Message message : batch) {
+            ToaHeader header = (ToaHeader) message.getHeader(this.id);
+            if (header == null) {
+                continue;
+            }
+            batch.remove(message);
+            try {
+                handleMessage(message, header);
+            } catch (Throwable t) {
+                log.error("failed processing message " + message + " with " + header, t);
+            }
+        }
+
+        //the proposes and finals generated by the whole batch are sent together
+        flushControlMessages();
+
+        if (!batch.isEmpty()) {
+            up_prot.up(batch);
+        }
+    }
+
     @Override
     public void deliver(Message message) {
         message.setDest(localAddress);
@@ -143,34 +161,17 @@ public class TOA extends Protocol implements DeliveryProtocol {
         //basis behavior: drop leavers message (as senders)
         List<Address> leavers = View.leftMembers(oldView, view);
         deliverManager.removeLeavers(leavers);
+        controlBundler.removeLeavers(leavers);
 
         //basis behavior: avoid waiting for the acks
         Collection<MessageID> pendingSentMessages = senderManager.getPendingMessageIDs();
         for (MessageID messageID : pendingSentMessages) {
             long finalSequenceNumber = senderManager.removeLeavers(messageID, leavers);
             if (finalSequenceNumber != SenderManager.NOT_READY) {
-                ToaHeader finalHeader = ToaHeader.createNewHeader(ToaHeader.FINAL_MESSAGE,messageID);
-                finalHeader.setSequencerNumber(finalSequenceNumber);
-                Message finalMessage = new Message().src(localAddress).putHeader(this.id,finalHeader)
-                  .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
-
-                Set<Address> destinations = senderManager.getDestination(messageID);
-                if (destinations.contains(localAddress)) {
-                    destinations.remove(localAddress);
-                }
-
-                if (log.isTraceEnabled()) {
-                    log.trace("Message " + messageID + " is ready to be deliver. Final sequencer number is " +
-                            finalSequenceNumber);
-                }
-
-                send(destinations,finalMessage, false);
-                //returns true if we are in destination set
-                if (senderManager.markSent(messageID)) {
-                    deliverManager.markReadyToDeliver(messageID, finalSequenceNumber);
-                }
+                sendFinalSequenceNumber(messageID, finalSequenceNumber);
             }
         }
+        flushControlMessages();
         // TODO: Future work: How to add fault tolerance? (simple and efficient)
     }
 
@@ -262,11 +263,68 @@ public class TOA extends Protocol implements DeliveryProtocol {
                 }
                 Message cpy = msg.copy();
                 cpy.setDest(address);
+                if (bundle_control_messages) {
+                    piggybackControlEntries(cpy, address);
+                }
                 down_prot.down(new Event(Event.MSG,cpy));
             }
         }
     }
 
+    private void handleMessage(Message message, ToaHeader header) {
+        if (header.hasControlEntries()) {
+            handleControlEntries(message.getSrc(), header.getControlEntries());
+        }
+
+        switch (header.getType()) {
+            case ToaHeader.DATA_MESSAGE:
+                handleDataMessage(message, header);
+                break;
+            case ToaHeader.PROPOSE_MESSAGE:
+                handleSequenceNumberPropose(message.getSrc(), header.getMessageID(), header.getSequencerNumber());
+                break;
+            case ToaHeader.FINAL_MESSAGE:
+                handleFinalSequenceNumber(header.getMessageID(), header.getSequencerNumber());
+                break;
+            case ToaHeader.SINGLE_DESTINATION_MESSAGE:
+                if (log.isTraceEnabled()) {
+                    log.trace("Received message " + message + " with SINGLE_DESTINATION header. delivering...");
+                }
+                deliverManager.deliverSingleDestinationMessage(message);
+                break;
+            case ToaHeader.CONTROL_MESSAGE:
+                //the control entries were already handled
+                break;
+            default:
+                throw new IllegalStateException("Unknown header type received " + header);
+        }
+    }
+
+    private void handleControlEntries(Address from, List<ToaHeader.ControlEntry> entries) {
+        if (log.isTraceEnabled()) {
+            log.trace("Received " + entries.size() + " control entries from " + from + ": " + entries);
+        }
+        Map<MessageID, Long> finalSequenceNumbers = null;
+        for (ToaHeader.ControlEntry entry : entries) {
+            switch (entry.getType()) {
+                case ToaHeader.PROPOSE_MESSAGE:
+                    handleSequenceNumberPropose(from, entry.getMessageID(), entry.getSequenceNumber());
+                    break;
+                case ToaHeader.FINAL_MESSAGE:
+                    if (finalSequenceNumbers == null) {
+                        finalSequenceNumbers = new LinkedHashMap<MessageID, Long>();
+                    }
+                    finalSequenceNumbers.put(entry.getMessageID(), entry.getSequenceNumber());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown control entry type received " + entry);
+            }
+        }
+        if (finalSequenceNumbers != null) {
+            handleFinalSequenceNumbers(finalSequenceNumbers);
+        }
+    }
+
     private void handleDataMessage(Message message, ToaHeader header) {
         long startTime = statsCollector.now();
         long duration = -1;
@@ -283,15 +341,19 @@ public class TOA extends Protocol implements DeliveryProtocol {
                         myProposeSequenceNumber);
             }
 
-            //create a new message and send it back
-            ToaHeader newHeader = ToaHeader.createNewHeader(ToaHeader.PROPOSE_MESSAGE,messageID);
-            newHeader.setSequencerNumber(myProposeSequenceNumber);
+            if (bundle_control_messages) {
+                //sent back later, together with the other proposes for the same sender
+                controlBundler.add(messageID.getAddress(), ToaHeader.PROPOSE_MESSAGE, messageID, myProposeSequenceNumber);
+            } else {
+                //create a new message and send it back
+                ToaHeader newHeader = ToaHeader.createNewHeader(ToaHeader.PROPOSE_MESSAGE,messageID);
+                newHeader.setSequencerNumber(myProposeSequenceNumber);
 
-            Message proposeMessage = new Message().src(localAddress).dest(messageID.getAddress())
-              .putHeader(this.id, newHeader).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+                Message proposeMessage = new Message().src(localAddress).dest(messageID.getAddress())
+                  .putHeader(this.id, newHeader).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
 
-            //multicastSenderThread.addUnicastMessage(proposeMessage);
-            down_prot.down(new Event(Event.MSG, proposeMessage));
+                down_prot.down(new Event(Event.MSG, proposeMessage));
+            }
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
             logException("Exception caught while processing the data message " + header.getMessageID(), e);
@@ -300,77 +362,162 @@ public class TOA extends Protocol implements DeliveryProtocol {
         }
     }
 
-    private void handleSequenceNumberPropose(Address from, ToaHeader header) {
+    private void handleSequenceNumberPropose(Address from, MessageID messageID, long sequenceNumber) {
         long startTime = statsCollector.now();
         long duration = -1;
         boolean lastProposeReceived = false;
 
-        boolean trace = log.isTraceEnabled();
         try {
-            MessageID messageID = header.getMessageID();
-            if (trace) {
-                log.trace("Received the proposed sequence number message with " + header + " from " +
-                        from);
+            if (log.isTraceEnabled()) {
+                log.trace("Received the proposed sequence number " + sequenceNumber + " for " + messageID +
+                        " from " + from);
             }
 
-            sequenceNumberManager.update(header.getSequencerNumber());
-            long finalSequenceNumber = senderManager.addPropose(messageID, from,
-                    header.getSequencerNumber());
+            sequenceNumberManager.update(sequenceNumber);
+            long finalSequenceNumber = senderManager.addPropose(messageID, from, sequenceNumber);
 
             if (finalSequenceNumber != SenderManager.NOT_READY) {
                 lastProposeReceived = true;
+                sendFinalSequenceNumber(messageID, finalSequenceNumber);
+            }
 
-                ToaHeader finalHeader = ToaHeader.createNewHeader(ToaHeader.FINAL_MESSAGE,messageID);
-                finalHeader.setSequencerNumber(finalSequenceNumber);
+            duration = statsCollector.now() - startTime;
+        } catch (Exception e) {
+            logException("Exception caught while processing the propose sequence number for " + messageID, e);
+        } finally {
+            statsCollector.addProposeSequenceNumberDuration(duration, lastProposeReceived);
+        }
+    }
 
-                Message finalMessage = new Message().src(localAddress).putHeader(this.id, finalHeader)
-                  .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+    private void sendFinalSequenceNumber(MessageID messageID, long finalSequenceNumber) {
+        Set<Address> destinations = senderManager.getDestination(messageID);
+        if (destinations.contains(localAddress)) {
+            destinations.remove(localAddress);
+        }
 
-                Set<Address> destinations = senderManager.getDestination(messageID);
-                if (destinations.contains(localAddress)) {
-                    destinations.remove(localAddress);
-                }
+        if (log.isTraceEnabled()) {
+            log.trace("Message " + messageID + " is ready to be deliver. Final sequencer number is " +
+                    finalSequenceNumber);
+        }
 
-                if (trace) {
-                    log.trace("Message " + messageID + " is ready to be deliver. Final sequencer number is " +
-                            finalSequenceNumber);
-                }
+        if (bundle_control_messages) {
+            for (Address destination : destinations) {
+                controlBundler.add(destination, ToaHeader.FINAL_MESSAGE, messageID, finalSequenceNumber);
+            }
+        } else {
+            ToaHeader finalHeader = ToaHeader.createNewHeader(ToaHeader.FINAL_MESSAGE,messageID);
+            finalHeader.setSequencerNumber(finalSequenceNumber);
 
-                send(destinations,finalMessage, false);
-                //returns true if we are in destination set
-                if (senderManager.markSent(messageID)) {
-                    deliverManager.markReadyToDeliver(messageID, finalSequenceNumber);
-                }
+            Message finalMessage = new Message().src(localAddress).putHeader(this.id, finalHeader)
+              .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+
+            send(destinations,finalMessage, false);
+        }
+        //returns true if we are in destination set
+        if (senderManager.markSent(messageID)) {
+            deliverManager.markReadyToDeliver(messageID, finalSequenceNumber);
+        }
+    }
+
+    private void handleFinalSequenceNumber(MessageID messageID, long finalSequenceNumber) {
+        long startTime = statsCollector.now();
+        long duration = -1;
+
+        try {
+            if (log.isTraceEnabled()) {
+                log.trace("Received the final sequence number " + finalSequenceNumber + " for " + messageID);
             }
 
+            sequenceNumberManager.update(finalSequenceNumber);
+            deliverManager.markReadyToDeliver(messageID, finalSequenceNumber);
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
-            logException("Exception caught while processing the propose sequence number for " + header.getMessageID(), e);
+            logException("Exception caught while processing the final sequence number for " + messageID, e);
         } finally {
-            statsCollector.addProposeSequenceNumberDuration(duration, lastProposeReceived);
+            statsCollector.addFinalSequenceNumberDuration(duration);
         }
     }
 
-    private void handleFinalSequenceNumber(ToaHeader header) {
+    private void handleFinalSequenceNumbers(Map<MessageID, Long> finalSequenceNumbers) {
         long startTime = statsCollector.now();
         long duration = -1;
 
         try {
-            MessageID messageID = header.getMessageID();
             if (log.isTraceEnabled()) {
-                log.trace("Received the final sequence number message with " + header);
+                log.trace("Received the final sequence numbers " + finalSequenceNumbers);
             }
 
-            sequenceNumberManager.update(header.getSequencerNumber());
-            deliverManager.markReadyToDeliver(messageID, header.getSequencerNumber());
+            for (long finalSequenceNumber : finalSequenceNumbers.values()) {
+                sequenceNumberManager.update(finalSequenceNumber);
+            }
+            //marks all of them with a single wake-up of the delivery thread
+            deliverManager.markReadyToDeliver(finalSequenceNumbers);
             duration = statsCollector.now() - startTime;
         } catch (Exception e) {
-            logException("Exception caught while processing the final sequence number for " + header.getMessageID(), e);
+            logException("Exception caught while processing the final sequence numbers for " +
+                    finalSequenceNumbers.keySet(), e);
         } finally {
-            statsCollector.addFinalSequenceNumberDuration(duration);
+            int size = finalSequenceNumbers.size();
+            for (int i = 0; i < size; i++) {
+                statsCollector.addFinalSequenceNumberDuration(duration < 0 ? duration : duration / size);
+            }
+        }
+    }
+
+    private void piggybackControlEntries(Message message, Address destination) {
+        ToaHeader header = (ToaHeader) message.getHeader(this.id);
+        if (header == null || header.getType() != ToaHeader.DATA_MESSAGE || !controlBundler.hasPending(destination)) {
+            return;
+        }
+        List<ToaHeader.ControlEntry> entries = controlBundler.drain(destination, max_control_entries);
+        if (entries.isEmpty()) {
+            return;
+        }
+        //the header is shared by all the copies, so the piggybacked entries need a header of their own
+        ToaHeader newHeader = header.copy();
+        newHeader.addControlEntries(entries);
+        message.putHeader(this.id, newHeader);
+        statsCollector.addPiggybackedControlEntries(entries.size());
+    }
+
+    /**
+     * Sends all the pending proposes and finals: one control message per destination (or more if there are more than
+     * max_control_entries pending)
+     */
+    private void flushControlMessages() {
+        if (!bundle_control_messages) {
+            return;
+        }
+        for (Address destination : controlBundler.getDestinations()) {
+            List<ToaHeader.ControlEntry> entries;
+            while (!(entries = controlBundler.drain(destination, max_control_entries)).isEmpty()) {
+                sendControlMessage(destination, entries);
+            }
         }
     }
 
+    private void sendControlMessage(Address destination, List<ToaHeader.ControlEntry> entries) {
+        ToaHeader header;
+        if (entries.size() == 1) {
+            //no need for the bundling overhead
+            ToaHeader.ControlEntry entry = entries.get(0);
+            header = ToaHeader.createNewHeader(entry.getType(), entry.getMessageID());
+            header.setSequencerNumber(entry.getSequenceNumber());
+        } else {
+            header = ToaHeader.createControlHeader(entries);
+        }
+
+        Message message = new Message().src(localAddress).dest(destination).putHeader(this.id, header)
+          .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL, Message.Flag.DONT_BUNDLE);
+
+        if (log.isTraceEnabled()) {
+            log.trace("Sending " + entries.size() + " control entries to " + destination);
+        }
+
+        down_prot.down(new Event(Event.MSG, message));
+        statsCollector.addControlMessageSent(entries.size());
+    }
+
     private void logException(String msg, Exception e) {
         if (log.isDebugEnabled()) {
             log.debug(msg, e);
@@ -466,4 +613,31 @@ public class TOA extends Protocol implements DeliveryProtocol {
     public double getAvgNumberOfUnicastSentPerAnycast() {
         return statsCollector.getAvgNumberOfUnicastSentPerAnycast();
     }
+
+    @ManagedAttribute(description = "The number of control messages (carrying proposes and finals) sent", writable = false)
+    public int getNumberOfControlMessagesSent() {
+        return statsCollector.getNumberOfControlMessagesSent();
+    }
+
+    @ManagedAttribute(description = "The number of proposes and finals sent, in control messages or piggybacked on " +
+            "data messages", writable = false)
+    public int getNumberOfControlEntriesSent() {
+        return statsCollector.getNumberOfControlEntriesSent();
+    }
+
+    @ManagedAttribute(description = "The number of proposes and finals piggybacked on data messages", writable = false)
+    public int getNumberOfPiggybackedControlEntries() {
+        return statsCollector.getNumberOfPiggybackedControlEntries();
+    }
+
+    @ManagedAttribute(description = "The average number of proposes and finals per control message", writable = false)
+    public double getAvgControlEntriesPerControlMessage() {
+        return statsCollector.getAvgControlEntriesPerControlMessage();
+    }
+
+    @ManagedAttribute(description = "The reduction (in percent) of the number of control messages sent, compared to " +
+            "sending one message per propose and per final", writable = false)
+    public double getControlMessageReduction() {
+        return statsCollector.getControlMessageReduction();
+    }
 }
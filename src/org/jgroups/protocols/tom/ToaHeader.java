@@ -3,12 +3,14 @@ package org.jgroups.protocols.tom;
 import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.Header;
+import org.jgroups.util.Streamable;
 import org.jgroups.util.Util;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * The header for the Total Order Anycast (TOA) protocol
@@ -23,11 +25,13 @@ public class ToaHeader extends Header {
     public static final byte PROPOSE_MESSAGE             = 1 << 1;
     public static final byte FINAL_MESSAGE               = 1 << 2;
     public static final byte SINGLE_DESTINATION_MESSAGE  = 1 << 3;
+    public static final byte CONTROL_MESSAGE             = 1 << 4; // carries only bundled proposes and finals
 
     private byte type = 0;
     private MessageID messageID; //address and sequence number
     private long sequencerNumber;
     private Collection<Address> destinations= new ArrayList<Address>();
+    private List<ControlEntry> controlEntries; // bundled or piggybacked proposes and finals, may be null
 
     public ToaHeader() {
         messageID = new MessageID();
@@ -64,10 +68,47 @@ public class ToaHeader extends Header {
         return type;
     }
 
+    public List<ControlEntry> getControlEntries() {
+        return controlEntries;
+    }
+
+    public boolean hasControlEntries() {
+        return controlEntries != null && !controlEntries.isEmpty();
+    }
+
+    public void addControlEntries(Collection<ControlEntry> entries) {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        if (controlEntries == null) {
+            controlEntries = new ArrayList<ControlEntry>(entries.size());
+        }
+        controlEntries.addAll(entries);
+    }
+
+    /**
+     * Creates a copy of this header, sharing the message ID and the destinations but not the control entries. Used
+     * to piggyback proposes and finals on the per-destination copies of a data message
+     */
+    public ToaHeader copy() {
+        ToaHeader header = new ToaHeader();
+        header.type = type;
+        header.messageID = messageID;
+        header.sequencerNumber = sequencerNumber;
+        header.destinations = destinations;
+        return header;
+    }
+
     @Override
     public int size() {
-        return (int) (Global.BYTE_SIZE  + messageID.serializedSize() + Util.size(sequencerNumber) +
-                Util.size(destinations));
+        int size = (int) (Global.BYTE_SIZE  + messageID.serializedSize() + Util.size(sequencerNumber) +
+                Util.size(destinations)) + Global.SHORT_SIZE;
+        if (controlEntries != null) {
+            for (ControlEntry entry : controlEntries) {
+                size += entry.serializedSize();
+            }
+        }
+        return size;
     }
 
     @Override
@@ -76,6 +117,12 @@ public class ToaHeader extends Header {
         messageID.writeTo(out);
         Util.writeLong(sequencerNumber, out);
         Util.writeAddresses(destinations, out);
+        out.writeShort(controlEntries == null ? 0 : controlEntries.size());
+        if (controlEntries != null) {
+            for (ControlEntry entry : controlEntries) {
+                entry.writeTo(out);
+            }
+        }
     }
 
     @Override
@@ -84,6 +131,15 @@ public class ToaHeader extends Header {
         messageID.readFrom(in);
         sequencerNumber = Util.readLong(in);
         destinations= (Collection<Address>) Util.readAddresses(in, ArrayList.class);
+        int numberOfEntries = in.readShort();
+        if (numberOfEntries > 0) {
+            controlEntries = new ArrayList<ControlEntry>(numberOfEntries);
+            for (int i = 0; i < numberOfEntries; i++) {
+                ControlEntry entry = new ControlEntry();
+                entry.readFrom(in);
+                controlEntries.add(entry);
+            }
+        }
     }
 
     @Override
@@ -93,8 +149,11 @@ public class ToaHeader extends Header {
                 .append("type=").append(type2String(type))
                 .append(", message_id=").append(messageID)
                 .append(", sequence_number=").append(sequencerNumber)
-                .append(", destinations=").append(destinations)
-                .append("]");
+                .append(", destinations=").append(destinations);
+        if (hasControlEntries()) {
+            sb.append(", control_entries=").append(controlEntries);
+        }
+        sb.append("]");
         return sb.toString();
     }
 
@@ -104,6 +163,7 @@ public class ToaHeader extends Header {
             case PROPOSE_MESSAGE: return "PROPOSE_MESSAGE";
             case FINAL_MESSAGE: return "FINAL_MESSAGE";
             case SINGLE_DESTINATION_MESSAGE: return "SINGLE_DESTINATION_MESSAGE";
+            case CONTROL_MESSAGE: return "CONTROL_MESSAGE";
             default: return "UNKNOWN";
         }
     }
@@ -118,6 +178,13 @@ public class ToaHeader extends Header {
         return header;
     }
 
+    public static ToaHeader createControlHeader(Collection<ControlEntry> entries) {
+        ToaHeader header = new ToaHeader();
+        header.setType(CONTROL_MESSAGE);
+        header.addControlEntries(entries);
+        return header;
+    }
+
    public static ToaHeader createSingleDestinationHeader() {      
       ToaHeader header = new ToaHeader();
       header.setType(SINGLE_DESTINATION_MESSAGE);      
@@ -131,5 +198,59 @@ public class ToaHeader extends Header {
     private void setMessageID(MessageID messageID) {
         this.messageID = messageID;
     }
-}
 
+    /**
+     * A propose or final sequence number for a message, bundled with others into a single control message or
+     * piggybacked on a data message
+     */
+    public static class ControlEntry implements Streamable {
+        private byte type; // PROPOSE_MESSAGE or FINAL_MESSAGE
+        private MessageID messageID;
+        private long sequenceNumber;
+
+        public ControlEntry() {
+        }
+
+        public ControlEntry(byte type, MessageID messageID, long sequenceNumber) {
+            this.type = type;
+            this.messageID = messageID;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public MessageID getMessageID() {
+            return messageID;
+        }
+
+        public long getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public int serializedSize() {
+            return Global.BYTE_SIZE + messageID.serializedSize() + Util.size(sequenceNumber);
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeByte(type);
+            messageID.writeTo(out);
+            Util.writeLong(sequenceNumber, out);
+        }
+
+        @Override
+        public void readFrom(DataInput in) throws Exception {
+            type = in.readByte();
+            messageID = new MessageID();
+            messageID.readFrom(in);
+            sequenceNumber = Util.readLong(in);
+        }
+
+        @Override
+        public String toString() {
+            return type2String(type) + "(" + messageID + ", " + sequenceNumber + ")";
+        }
+    }
+}
@@ -0,0 +1,914 @@
+package org.jgroups.stack;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.jmx.JmxConfigurator;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.protocols.PingData;
+import org.jgroups.util.ByteBufferInputStream;
+import org.jgroups.util.ByteBufferOutputStream;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadFactory;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+
+import javax.management.MBeanServer;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link GossipRouter} based on NIO: instead of a thread per client connection, a fixed number of event loops
+ * (a selector thread each) serve all connections, and an acceptor thread assigns new connections to the event loops
+ * round-robin. The wire protocol is the same as that of {@link GossipRouter}, so {@link RouterStub} (TUNNEL, TCPGOSSIP)
+ * clients can use either router.<p/>
+ * The routing table is sharded by group: every group has its own copy-on-write map of members, so lookups never
+ * lock, and joins or leaves only lock the group they change. A message to a group is serialized once and the same
+ * (read-only) buffer is queued to all members.<p/>
+ * Every connection has a queue of frames to be sent, which is only written by the event loop owning the connection.
+ * Frames are forwarded in batches: an event loop handles all requests received in a select round before flushing the
+ * queues, and a flush writes all queued frames (up to max_write_batch) with one gathering write. A slow client
+ * doesn't block anyone: when its socket's send buffer is full, the event loop registers interest in OP_WRITE and
+ * continues; frames exceeding max_queued_bytes are dropped (and retransmitted by the protocols above TUNNEL).
+ * @since 3.5
+ */
+public class NioGossipRouter {
+    public static final int PORT=GossipRouter.PORT;
+
+    @ManagedAttribute(description="server port on which the GossipRouter accepts client connections", writable=true)
+    protected int port;
+
+    @ManagedAttribute(description="address to which the GossipRouter should bind", writable=true, name="bind_address")
+    protected String bind_addr_str;
+
+    @ManagedAttribute(description="time (in msecs) until idle connections are closed. 0 disables expiry", writable=true)
+    protected long expiry_time;
+
+    @Property(description="Number of event loops (selector threads). 0 uses the number of cores")
+    protected int event_loops;
+
+    @Property(description="The max queue size of backlogged connections")
+    protected int backlog=1000;
+
+    @Property(description="Time (in ms) for setting SO_LINGER on sockets returned from accept(). 0 means do not set SO_LINGER")
+    protected long linger_timeout=2000L;
+
+    @Property(description="Initial size (in bytes) of the receive buffer of a connection; grows for bigger requests")
+    protected int recv_buf_size=65536;
+
+    @Property(description="Max number of bytes queued for sending to a single connection. Messages exceeding " +
+      "the limit are dropped. 0 disables the limit")
+    protected long max_queued_bytes=10000000;
+
+    @Property(description="Max number of frames written by a single (gathering) write")
+    protected int max_write_batch=128;
+
+    @Property(description="Whether to discard messages sent to self")
+    protected boolean discard_loopbacks;
+
+    /** Maps group names to their members. Groups are added on the first CONNECT and removed with the last member */
+    protected final ConcurrentMap<String,Group> groups=new ConcurrentHashMap<String,Group>();
+
+    /** Physical address(es) associated with a logical address. Used mainly by TCPGOSSIP */
+    protected final ConcurrentMap<Address,Set<PhysicalAddress>> address_mappings=new ConcurrentHashMap<Address,Set<PhysicalAddress>>();
+
+    protected final AtomicBoolean     running=new AtomicBoolean(false);
+    protected ServerSocketChannel     srv_channel;
+    protected Thread                  acceptor;
+    protected EventLoop[]             loops;
+    protected final AtomicInteger     next_loop=new AtomicInteger();
+    protected Timer                   timer;
+    protected ThreadFactory           thread_factory=new DefaultThreadFactory("gossip", true, true);
+    protected final boolean           jmx;
+    protected boolean                 registered;
+    protected final Log               log=LogFactory.getLog(getClass());
+
+    // stats
+    protected final AtomicLong        num_msgs_received=new AtomicLong();
+    protected final AtomicLong        num_msgs_forwarded=new AtomicLong();
+    protected final AtomicLong        num_msgs_dropped=new AtomicLong();
+    protected final AtomicLong        num_bytes_received=new AtomicLong();
+    protected final AtomicLong        num_bytes_sent=new AtomicLong();
+    protected final AtomicLong        num_frames_sent=new AtomicLong();
+    protected final AtomicLong        num_writes=new AtomicLong();
+    protected volatile long           stats_start=System.currentTimeMillis();
+
+
+    public NioGossipRouter() {
+        this(PORT);
+    }
+
+    public NioGossipRouter(int port) {
+        this(port, null);
+    }
+
+    public NioGossipRouter(int port, String bind_addr) {
+        this(port, bind_addr, false);
+    }
+
+    public NioGossipRouter(int port, String bind_addr, boolean jmx) {
+        this.port=port;
+        this.bind_addr_str=bind_addr;
+        this.jmx=jmx;
+    }
+
+    public int              getPort()                        {return port;}
+    public NioGossipRouter  setPort(int port)                {this.port=port; return this;}
+    public String           getBindAddress()                 {return bind_addr_str;}
+    public NioGossipRouter  setBindAddress(String addr)      {this.bind_addr_str=addr; return this;}
+    public long             getExpiryTime()                  {return expiry_time;}
+    public NioGossipRouter  setExpiryTime(long time)         {this.expiry_time=time; return this;}
+    public int              getEventLoops()                  {return event_loops;}
+    public NioGossipRouter  setEventLoops(int num)           {this.event_loops=num; return this;}
+    public int              getBacklog()                     {return backlog;}
+    public NioGossipRouter  setBacklog(int backlog)          {this.backlog=backlog; return this;}
+    public long             getLingerTimeout()               {return linger_timeout;}
+    public NioGossipRouter  setLingerTimeout(long timeout)   {this.linger_timeout=timeout; return this;}
+    public int              getRecvBufSize()                 {return recv_buf_size;}
+    public NioGossipRouter  setRecvBufSize(int size)         {this.recv_buf_size=size; return this;}
+    public long             getMaxQueuedBytes()              {return max_queued_bytes;}
+    public NioGossipRouter  setMaxQueuedBytes(long max)      {this.max_queued_bytes=max; return this;}
+    public int              getMaxWriteBatch()               {return max_write_batch;}
+    public NioGossipRouter  setMaxWriteBatch(int max)        {this.max_write_batch=max; return this;}
+    public boolean          isDiscardLoopbacks()             {return discard_loopbacks;}
+    public NioGossipRouter  setDiscardLoopbacks(boolean flag){this.discard_loopbacks=flag; return this;}
+
+    @ManagedAttribute(description="operational status", name="running")
+    public boolean isRunning() {return running.get();}
+
+    @ManagedAttribute(description="Number of groups")
+    public int getNumGroups() {return groups.size();}
+
+    @ManagedAttribute(description="Number of open client connections")
+    public int getNumConnections() {
+        int retval=0;
+        EventLoop[] tmp=loops;
+        if(tmp != null)
+            for(EventLoop loop: tmp)
+                retval+=loop.num_conns.get();
+        return retval;
+    }
+
+    @ManagedAttribute(description="Number of messages received from clients")
+    public long getNumMessagesReceived()  {return num_msgs_received.get();}
+
+    @ManagedAttribute(description="Number of messages queued for sending to clients; a message to a group of N " +
+      "members counts N times")
+    public long getNumMessagesForwarded() {return num_msgs_forwarded.get();}
+
+    @ManagedAttribute(description="Number of messages dropped because a client's send queue was full")
+    public long getNumMessagesDropped()   {return num_msgs_dropped.get();}
+
+    @ManagedAttribute(description="Number of bytes received from clients")
+    public long getNumBytesReceived()     {return num_bytes_received.get();}
+
+    @ManagedAttribute(description="Number of bytes sent to clients")
+    public long getNumBytesSent()         {return num_bytes_sent.get();}
+
+    @ManagedAttribute(description="Number of (gathering) writes to client sockets")
+    public long getNumWrites()            {return num_writes.get();}
+
+    @ManagedAttribute(description="Average number of frames sent per write")
+    public double getAvgFramesPerWrite() {
+        long writes=num_writes.get();
+        return writes > 0? num_frames_sent.get() / (double)writes : 0;
+    }
+
+    @ManagedAttribute(description="Messages received per second since the start or the last reset of the stats")
+    public double getMessagesReceivedPerSec()  {return perSec(num_msgs_received.get());}
+
+    @ManagedAttribute(description="Messages forwarded per second since the start or the last reset of the stats")
+    public double getMessagesForwardedPerSec() {return perSec(num_msgs_forwarded.get());}
+
+    @ManagedAttribute(description="Bytes sent per second since the start or the last reset of the stats")
+    public double getBytesSentPerSec()         {return perSec(num_bytes_sent.get());}
+
+    @ManagedOperation(description="Resets all stats")
+    public void resetStats() {
+        for(AtomicLong l: Arrays.asList(num_msgs_received, num_msgs_forwarded, num_msgs_dropped, num_bytes_received,
+                                        num_bytes_sent, num_frames_sent, num_writes))
+            l.set(0);
+        stats_start=System.currentTimeMillis();
+    }
+
+    @ManagedOperation(description="Prints the stats")
+    public String printStats() {
+        return String.format("connections=%d groups=%d received=%d msgs (%.0f msgs/s) forwarded=%d msgs (%.0f msgs/s, " +
+                               "%.2f MB/s) dropped=%d avg frames/write=%.1f",
+                             getNumConnections(), getNumGroups(), getNumMessagesReceived(), getMessagesReceivedPerSec(),
+                             getNumMessagesForwarded(), getMessagesForwardedPerSec(), getBytesSentPerSec() / 1000000.0,
+                             getNumMessagesDropped(), getAvgFramesPerWrite());
+    }
+
+
+    public void start() throws Exception {
+        if(!running.compareAndSet(false, true))
+            throw new Exception("Router already started.");
+        if(jmx && !registered) {
+            MBeanServer server=Util.getMBeanServer();
+            JmxConfigurator.register(this, server, "jgroups:name=NioGossipRouter");
+            registered=true;
+        }
+        InetAddress bind_addr=bind_addr_str != null? InetAddress.getByName(bind_addr_str) : null;
+        srv_channel=ServerSocketChannel.open();
+        srv_channel.socket().setReuseAddress(true);
+        srv_channel.socket().bind(new InetSocketAddress(bind_addr, port), backlog);
+
+        int num_loops=event_loops > 0? event_loops : Runtime.getRuntime().availableProcessors();
+        loops=new EventLoop[num_loops];
+        for(int i=0; i < loops.length; i++) {
+            loops[i]=new EventLoop();
+            loops[i].start(i);
+        }
+        acceptor=thread_factory.newThread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "gossip-acceptor");
+        acceptor.start();
+
+        if(expiry_time > 0) {
+            timer=new Timer(true);
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    sweep();
+                }
+            }, expiry_time, expiry_time);
+        }
+        resetStats();
+        if(log.isDebugEnabled())
+            log.debug("router started on " + srv_channel.socket().getLocalSocketAddress() + " with " + num_loops +
+                        " event loops");
+    }
+
+    public void stop() {
+        if(!running.compareAndSet(true, false))
+            return;
+        if(timer != null)
+            timer.cancel();
+        closeChannel(srv_channel);
+        if(acceptor != null)
+            acceptor.interrupt();
+        for(EventLoop loop: loops)
+            loop.stop();
+        groups.clear();
+        address_mappings.clear();
+        if(log.isDebugEnabled())
+            log.debug("router stopped");
+    }
+
+    @ManagedOperation(description="Closes all connections and clears the routing table (leaves the server socket open)")
+    public void clear() {
+        for(Group group: groups.values())
+            for(Connection conn: group.members.values())
+                conn.close(false);
+        groups.clear();
+    }
+
+    @ManagedOperation(description="dumps the contents of the routing table")
+    public String dumpRoutingTable() {
+        if(groups.isEmpty())
+            return "empty routing table";
+        StringBuilder sb=new StringBuilder();
+        for(Group group: groups.values()) {
+            if(sb.length() > 0)
+                sb.append("\n");
+            sb.append(group.name).append(": ").append(Util.printListWithDelimiter(group.members.keySet(), ", "));
+        }
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="dumps the mappings between logical and physical addresses")
+    public String dumpAddressMappings() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,Set<PhysicalAddress>> entry: address_mappings.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        return sb.toString();
+    }
+
+
+    protected void acceptLoop() {
+        while(running.get()) {
+            SocketChannel ch=null;
+            try {
+                ch=srv_channel.accept();
+                Socket sock=ch.socket();
+                if(linger_timeout > 0)
+                    sock.setSoLinger(true, Math.max(1, (int)(linger_timeout / 1000)));
+                sock.setTcpNoDelay(true);
+                ch.configureBlocking(false);
+                EventLoop loop=loops[(next_loop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                if(log.isDebugEnabled())
+                    log.debug("accepted connection from " + sock.getRemoteSocketAddress());
+                loop.register(new Connection(ch, loop));
+            }
+            catch(ClosedChannelException closed) {
+                break;
+            }
+            catch(IOException e) {
+                if(running.get()) {
+                    log.error("failure handling connection from " + ch, e);
+                    closeChannel(ch);
+                }
+            }
+        }
+    }
+
+    /** Closes connections which haven't received a request for more than expiry_time ms */
+    protected void sweep() {
+        long now=System.currentTimeMillis();
+        for(Group group: groups.values())
+            for(Connection conn: group.members.values())
+                if(now - conn.timestamp > expiry_time)
+                    conn.close(false);
+    }
+
+
+    /** Handles a request from a client. Called by the event loop owning conn */
+    protected void handleRequest(Connection conn, GossipData req) throws Exception {
+        conn.timestamp=System.currentTimeMillis();
+        if(log.isTraceEnabled())
+            log.trace(conn + " received " + req);
+        switch(req.getType()) {
+            case GossipRouter.MESSAGE:
+                if(req.buffer == null || req.buffer.length == 0) {
+                    if(log.isWarnEnabled())
+                        log.warn(conn + " received null message");
+                    break;
+                }
+                num_msgs_received.incrementAndGet();
+                route(conn, req.getGroup(), req.getAddress(), req.buffer);
+                break;
+            case GossipRouter.CONNECT:
+                handleConnect(conn, req);
+                break;
+            case GossipRouter.GOSSIP_GET:
+                handleGossipGet(conn, req.getGroup());
+                break;
+            case GossipRouter.DISCONNECT:
+                removeMember(req.getGroup(), req.getAddress(), conn);
+                conn.send(marshal(new GossipData(GossipRouter.DISCONNECT_OK)), true);
+                break;
+            case GossipRouter.PING: // no response is expected
+                break;
+            case GossipRouter.CLOSE:
+                conn.close(false);
+                break;
+        }
+    }
+
+    protected void handleConnect(Connection conn, GossipData req) throws Exception {
+        String group=req.getGroup();
+        Address addr=req.getAddress();
+        if(group == null || addr == null) {
+            conn.send(status(GossipRouter.OP_FAIL), true);
+            return;
+        }
+        Group existing=groups.get(group);
+        Connection old=existing != null? existing.members.get(addr) : null;
+        if(old != null && old != conn) {
+            if(log.isDebugEnabled())
+                log.debug("found old connection " + old + " for " + addr + ", closing it");
+            old.close(false);
+        }
+
+        if(req.getLogicalName() != null && addr instanceof UUID)
+            UUID.add(addr, req.getLogicalName());
+        if(req.getPhysicalAddresses() != null) {
+            Set<PhysicalAddress> physical_addrs=address_mappings.get(addr);
+            if(physical_addrs == null) {
+                Set<PhysicalAddress> tmp=address_mappings.putIfAbsent(addr, physical_addrs=new CopyOnWriteArraySet<PhysicalAddress>());
+                if(tmp != null)
+                    physical_addrs=tmp;
+            }
+            physical_addrs.addAll(req.getPhysicalAddresses());
+        }
+        // queue the status before adding the member, so it's sent before any message to the new member
+        conn.send(status(GossipRouter.CONNECT_OK), true);
+        conn.registrations.put(addr, group);
+        addMember(group, addr, conn);
+        if(log.isDebugEnabled())
+            log.debug(conn + " connection handshake completed, added " + addr + " to group " + group);
+    }
+
+    protected void handleGossipGet(Connection conn, String group) throws Exception {
+        Group g=group != null? groups.get(group) : null;
+        Map<Address,Connection> mbrs=g != null? g.members : Collections.<Address,Connection>emptyMap();
+        ByteBufferOutputStream out=new ByteBufferOutputStream(Global.SHORT_SIZE + mbrs.size() * 64);
+        out.writeShort(mbrs.size());
+        for(Address logical_addr: mbrs.keySet()) {
+            Set<PhysicalAddress> physical_addrs=address_mappings.get(logical_addr);
+            PingData rsp=new PingData(logical_addr, null, true, UUID.get(logical_addr),
+                                      physical_addrs != null? new ArrayList<PhysicalAddress>(physical_addrs) : null);
+            rsp.writeTo(out);
+        }
+        ByteBuffer buf=out.getByteBuffer();
+        buf.flip();
+        conn.send(buf, true);
+    }
+
+    /**
+     * Forwards a message to dest, or to all members of group if dest is null. The message is serialized once, and
+     * the same buffer (duplicated for the positions) is queued to all targets
+     */
+    protected void route(Connection sender, String group, Address dest, byte[] msg) throws Exception {
+        Group g=group != null? groups.get(group) : null;
+        if(g == null) {
+            if(log.isTraceEnabled())
+                log.trace("group " + group + " not found, dropping message to " + dest);
+            return;
+        }
+        if(dest != null) {
+            Connection target=g.members.get(dest);
+            if(target == null) {
+                if(log.isTraceEnabled())
+                    log.trace("cannot find " + dest + " in group " + group);
+                return;
+            }
+            if(target.send(marshal(new GossipData(GossipRouter.MESSAGE, null, dest, msg)), false))
+                num_msgs_forwarded.incrementAndGet();
+            return;
+        }
+        ByteBuffer frame=marshal(new GossipData(GossipRouter.MESSAGE, null, null, msg));
+        for(Connection target: g.members.values()) {
+            if(discard_loopbacks && target == sender)
+                continue;
+            if(target.send(frame.duplicate(), false))
+                num_msgs_forwarded.incrementAndGet();
+        }
+    }
+
+    protected void addMember(String group, Address addr, Connection conn) {
+        for(;;) {
+            Group g=groups.get(group);
+            if(g == null) {
+                Group tmp=groups.putIfAbsent(group, g=new Group(group));
+                if(tmp != null)
+                    g=tmp;
+            }
+            if(g.add(addr, conn))
+                return;
+            // g was removed concurrently (its last member left): retry with a new group
+        }
+    }
+
+    /** Removes addr from group if it is still mapped to conn (a new connection for addr might have replaced conn) */
+    protected void removeMember(String group, Address addr, Connection conn) {
+        conn.registrations.remove(addr);
+        Group g=group != null? groups.get(group) : null;
+        if(g == null || !g.remove(addr, conn))
+            return;
+        if(log.isTraceEnabled())
+            log.trace("removed " + addr + " from group " + group);
+        address_mappings.remove(addr);
+        UUID.remove(addr);
+    }
+
+    /** Sends a SUSPECT for each address of a connection that was closed abnormally to the members of its groups */
+    protected void sendSuspects(Map<Address,String> registrations) {
+        for(Map.Entry<Address,String> entry: registrations.entrySet()) {
+            Group g=groups.get(entry.getValue());
+            if(g == null)
+                continue;
+            try {
+                ByteBufferOutputStream out=new ByteBufferOutputStream(64);
+                new GossipData(GossipRouter.SUSPECT).writeTo(out);
+                Util.writeAddress(entry.getKey(), out);
+                ByteBuffer frame=out.getByteBuffer();
+                frame.flip();
+                for(Connection conn: g.members.values())
+                    conn.send(frame.duplicate(), true);
+            }
+            catch(Exception e) {
+                log.error("failed sending SUSPECT(" + entry.getKey() + ")", e);
+            }
+        }
+    }
+
+    protected double perSec(long value) {
+        long time=System.currentTimeMillis() - stats_start;
+        return time > 0? value / (time / 1000.0) : 0;
+    }
+
+    protected static ByteBuffer marshal(GossipData data) throws Exception {
+        ByteBufferOutputStream out=new ByteBufferOutputStream(data.size());
+        data.writeTo(out);
+        ByteBuffer buf=out.getByteBuffer();
+        buf.flip();
+        return buf;
+    }
+
+    protected static void closeChannel(java.nio.channels.Channel ch) {
+        try {
+            if(ch != null)
+                ch.close();
+        }
+        catch(IOException ignored) {
+        }
+    }
+
+    protected static ByteBuffer status(byte status) {
+        ByteBuffer buf=ByteBuffer.allocate(1).put(status);
+        buf.flip();
+        return buf;
+    }
+
+
+    /** The members of a group. The map is replaced on every change, so readers never need to lock */
+    protected class Group {
+        protected final String                           name;
+        protected volatile Map<Address,Connection>       members=Collections.emptyMap();
+        protected boolean                                removed; // guarded by this
+
+        public Group(String name) {
+            this.name=name;
+        }
+
+        /** Returns false if the group has been removed from the routing table, and must not be used anymore */
+        protected synchronized boolean add(Address addr, Connection conn) {
+            if(removed)
+                return false;
+            Map<Address,Connection> tmp=new HashMap<Address,Connection>(members);
+            tmp.put(addr, conn);
+            members=tmp;
+            return true;
+        }
+
+        protected synchronized boolean remove(Address addr, Connection conn) {
+            if(members.get(addr) != conn)
+                return false;
+            Map<Address,Connection> tmp=new HashMap<Address,Connection>(members);
+            tmp.remove(addr);
+            members=tmp;
+            if(tmp.isEmpty()) {
+                removed=true;
+                groups.remove(name, this);
+            }
+            return true;
+        }
+    }
+
+
+    /**
+     * A selector thread which reads the requests of its connections and writes their send queues. A connection is
+     * only read and written by the event loop it was assigned to, other threads only add to its send queue
+     */
+    protected class EventLoop implements Runnable {
+        protected final Selector                          selector;
+        protected final Queue<Connection>                 registrations=new ConcurrentLinkedQueue<Connection>();
+        /** Connections with frames to be written */
+        protected final Queue<Connection>                 flush_queue=new ConcurrentLinkedQueue<Connection>();
+        protected final AtomicInteger                     num_conns=new AtomicInteger();
+        protected final ByteBufferInputStream             in=new ByteBufferInputStream(ByteBuffer.allocate(0));
+        protected Thread                                  thread;
+        protected volatile boolean                        running=true;
+
+        public EventLoop() throws IOException {
+            selector=Selector.open();
+        }
+
+        protected void start(int index) {
+            thread=thread_factory.newThread(this, "gossip-loop-" + index);
+            thread.start();
+        }
+
+        protected void stop() {
+            running=false;
+            selector.wakeup();
+            try {
+                thread.join(2000);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void register(Connection conn) {
+            registrations.add(conn);
+            selector.wakeup();
+        }
+
+        /** Schedules conn to be flushed by this loop; wakes up the selector unless called by this loop */
+        protected void scheduleFlush(Connection conn) {
+            flush_queue.add(conn);
+            if(Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+
+        public void run() {
+            while(running) {
+                try {
+                    selector.select();
+                    Connection conn;
+                    while((conn=registrations.poll()) != null) {
+                        try {
+                            conn.key=conn.channel.register(selector, SelectionKey.OP_READ, conn);
+                        }
+                        catch(ClosedChannelException closed) {
+                            conn.close(false);
+                        }
+                    }
+                    Set<SelectionKey> keys=selector.selectedKeys();
+                    for(SelectionKey key: keys) {
+                        conn=(Connection)key.attachment();
+                        try {
+                            if(!key.isValid())
+                                continue;
+                            if(key.isReadable())
+                                conn.read();
+                            if(key.isValid() && key.isWritable())
+                                conn.flush();
+                        }
+                        catch(Exception e) {
+                            if(log.isDebugEnabled())
+                                log.debug(conn + " failed: " + e);
+                            conn.close(true);
+                        }
+                    }
+                    keys.clear();
+                    // the requests of this round have been handled: write the queued frames
+                    while((conn=flush_queue.poll()) != null) {
+                        try {
+                            conn.flush();
+                        }
+                        catch(Exception e) {
+                            if(log.isDebugEnabled())
+                                log.debug(conn + " failed: " + e);
+                            conn.close(true);
+                        }
+                    }
+                }
+                catch(Throwable t) {
+                    if(running)
+                        log.error("failure in event loop", t);
+                }
+            }
+            for(SelectionKey key: selector.keys())
+                ((Connection)key.attachment()).close(false);
+            Connection conn;
+            while((conn=registrations.poll()) != null)
+                conn.close(false);
+            try {
+                selector.close();
+            }
+            catch(IOException ignored) {
+            }
+        }
+    }
+
+
+    /** A client connection. Reads and writes are done by the owning event loop only */
+    protected class Connection {
+        protected final SocketChannel                     channel;
+        protected final EventLoop                         loop;
+        protected SelectionKey                            key;
+        protected ByteBuffer                              recv_buf=ByteBuffer.allocate(recv_buf_size);
+        /** Frames to be sent, added by any thread */
+        protected final Queue<ByteBuffer>                 send_queue=new ConcurrentLinkedQueue<ByteBuffer>();
+        protected final AtomicLong                        queued_bytes=new AtomicLong();
+        /** Set when the connection is in the flush queue of its event loop, or waits for OP_WRITE */
+        protected final AtomicBoolean                     flush_pending=new AtomicBoolean();
+        /** Frames polled from the send queue but not yet (fully) written */
+        protected final ByteBuffer[]                      write_batch=new ByteBuffer[Math.max(1, max_write_batch)];
+        protected int                                     write_index, write_size;
+        /** The logical addresses registered by this connection, and their groups */
+        protected final ConcurrentMap<Address,String>     registrations=new ConcurrentHashMap<Address,String>();
+        protected final AtomicBoolean                     closed=new AtomicBoolean();
+        protected volatile long                           timestamp=System.currentTimeMillis();
+
+        public Connection(SocketChannel channel, EventLoop loop) {
+            this.channel=channel;
+            this.loop=loop;
+            loop.num_conns.incrementAndGet();
+        }
+
+        /**
+         * Queues a frame to be sent by the owning event loop
+         * @param frame The frame, which must not be modified anymore
+         * @param force Queue the frame even when max_queued_bytes is exceeded (used for responses to requests)
+         * @return True if the frame was queued, false if it was dropped
+         */
+        protected boolean send(ByteBuffer frame, boolean force) {
+            if(closed.get())
+                return false;
+            int size=frame.remaining();
+            if(!force && max_queued_bytes > 0 && queued_bytes.get() + size > max_queued_bytes) {
+                num_msgs_dropped.incrementAndGet();
+                return false;
+            }
+            queued_bytes.addAndGet(size);
+            send_queue.add(frame);
+            if(flush_pending.compareAndSet(false, true))
+                loop.scheduleFlush(this);
+            return true;
+        }
+
+        /** Reads from the channel and handles all complete requests */
+        protected void read() throws Exception {
+            int num=channel.read(recv_buf);
+            if(num < 0) {
+                close(true);
+                return;
+            }
+            num_bytes_received.addAndGet(num);
+            recv_buf.flip();
+            ByteBufferInputStream in=loop.in.reset(recv_buf);
+            for(;;) {
+                int pos=recv_buf.position();
+                GossipData req=new GossipData();
+                try {
+                    req.readFrom(in);
+                }
+                catch(EOFException incomplete) {
+                    recv_buf.position(pos);
+                    break;
+                }
+                handleRequest(this, req);
+                if(closed.get())
+                    return;
+            }
+            if(recv_buf.position() == 0 && recv_buf.limit() == recv_buf.capacity()) { // request bigger than the buffer
+                ByteBuffer tmp=ByteBuffer.allocate(recv_buf.capacity() * 2);
+                tmp.put(recv_buf);
+                recv_buf=tmp;
+            }
+            else
+                recv_buf.compact();
+        }
+
+        /**
+         * Writes as many queued frames as the socket accepts, in batches of up to max_write_batch frames per
+         * gathering write. Registers interest in OP_WRITE when the socket's send buffer is full
+         */
+        protected void flush() throws IOException {
+            if(closed.get())
+                return;
+            for(;;) {
+                if(write_index == write_size) {
+                    write_index=write_size=0;
+                    ByteBuffer frame;
+                    while(write_size < write_batch.length && (frame=send_queue.poll()) != null)
+                        write_batch[write_size++]=frame;
+                    if(write_size == 0) {
+                        flush_pending.set(false);
+                        // a frame might have been added after the queue was found empty, but before the flag was reset
+                        if(send_queue.isEmpty() || !flush_pending.compareAndSet(false, true)) {
+                            setWriteInterest(false);
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                long written=channel.write(write_batch, write_index, write_size - write_index);
+                num_writes.incrementAndGet();
+                num_bytes_sent.addAndGet(written);
+                queued_bytes.addAndGet(-written);
+                int frames=0;
+                while(write_index < write_size && !write_batch[write_index].hasRemaining()) {
+                    write_batch[write_index++]=null;
+                    frames++;
+                }
+                num_frames_sent.addAndGet(frames);
+                if(write_index < write_size) { // the socket's send buffer is full: continue when writable
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+        }
+
+        protected void setWriteInterest(boolean flag) {
+            if(key != null && key.isValid()) {
+                int ops=flag? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                if(key.interestOps() != ops)
+                    key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Closes the connection and removes its addresses from the routing table
+         * @param abnormal True if the connection was torn (rather than closed by the client or the router): the
+         *                 members of its groups are sent a SUSPECT for each of its addresses
+         */
+        protected void close(boolean abnormal) {
+            if(!closed.compareAndSet(false, true))
+                return;
+            if(log.isDebugEnabled())
+                log.debug(this + " is being closed");
+            closeChannel(channel);
+            loop.num_conns.decrementAndGet();
+            Map<Address,String> regs=new HashMap<Address,String>(registrations);
+            for(Map.Entry<Address,String> entry: regs.entrySet())
+                removeMember(entry.getValue(), entry.getKey(), this);
+            send_queue.clear();
+            if(abnormal)
+                sendSuspects(regs);
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder("Connection[peer: ").append(channel.socket().getInetAddress());
+            if(!registrations.isEmpty())
+                sb.append(", logical_addrs: ").append(Util.printListWithDelimiter(registrations.keySet(), ", "));
+            return sb.append("]").toString();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int port=PORT, backlog=0, event_loops=0;
+        long so_linger=-1, expiry_time=60000;
+        String bind_addr=null;
+        boolean jmx=true;
+
+        for(int i=0; i < args.length; i++) {
+            String arg=args[i];
+            if("-port".equals(arg)) {
+                port=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-bindaddress".equals(arg) || "-bind_addr".equals(arg)) {
+                bind_addr=args[++i];
+                continue;
+            }
+            if("-backlog".equals(arg)) {
+                backlog=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-expiry".equals(arg)) {
+                expiry_time=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-jmx".equals(arg)) {
+                jmx=Boolean.valueOf(args[++i]);
+                continue;
+            }
+            if("-solinger".equals(arg)) {
+                so_linger=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-event_loops".equals(arg)) {
+                event_loops=Integer.parseInt(args[++i]);
+                continue;
+            }
+            help();
+            return;
+        }
+        System.out.println("NioGossipRouter is starting. CTRL-C to exit JVM");
+        final NioGossipRouter router=new NioGossipRouter(port, bind_addr, jmx);
+        if(backlog > 0)
+            router.setBacklog(backlog);
+        if(so_linger >= 0)
+            router.setLingerTimeout(so_linger);
+        if(expiry_time > 0)
+            router.setExpiryTime(expiry_time);
+        router.setEventLoops(event_loops);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                router.stop();
+            }
+        });
+        router.start();
+        System.out.println("NioGossipRouter started at " + new Date() + ", listening on " +
+                             router.srv_channel.socket().getLocalSocketAddress() + " with " + router.loops.length +
+                             " event loops");
+    }
+
+    static void help() {
+        System.out.println();
+        System.out.println("NioGossipRouter [-port <port>] [-bind_addr <address>] [options]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println();
+        System.out.println("    -backlog <backlog>    - Max queue size of backlogged connections. Must be");
+        System.out.println("                            greater than zero or the default of 1000 will be");
+        System.out.println("                            used.");
+        System.out.println();
+        System.out.println("    -jmx <true|false>     - Expose attributes and operations via JMX.");
+        System.out.println();
+        System.out.println("    -solinger <msecs>     - Time for setting SO_LINGER on connections. 0");
+        System.out.println("                            means do not set SO_LINGER.");
+        System.out.println();
+        System.out.println("    -expiry <msecs>       - Time for closing idle connections. 0");
+        System.out.println("                            means don't expire.");
+        System.out.println();
+        System.out.println("    -event_loops <num>    - Number of event loops (selector threads). 0 means");
+        System.out.println("                            one per core.");
+        System.out.println();
+    }
+}
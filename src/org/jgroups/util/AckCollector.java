@@ -3,34 +3,33 @@ package org.jgroups.util;
 import org.jgroups.Address;
 import org.jgroups.TimeoutException;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
 
 /**
- * Collects acks from a number of nodes, waits for all acks. Can also be time bounded
+ * Collects acks from a number of nodes, waits for all acks. Can also be time bounded.<p/>
+ * Missing acks and suspected members are kept in hash sets, so acking a member is O(1) even in large views.
  * @author Bela Ban
  */
 public class AckCollector {
     /** List of members from whom we haven't received an ACK yet */
-    protected final List<Address>     missing_acks;
+    protected final Set<Address>      missing_acks;
     protected final Promise<Boolean>  all_acks_received=new Promise<Boolean>();
-    protected final List<Address>     suspected_mbrs=new ArrayList<Address>(5);
+    protected final Set<Address>      suspected_mbrs=new LinkedHashSet<Address>(5);
     protected int                     expected_acks;
 
 
     public AckCollector() {
-        missing_acks=new ArrayList<Address>();
+        missing_acks=new LinkedHashSet<Address>();
         expected_acks=0;
     }
 
     public AckCollector(Collection<Address> members) {
-        missing_acks=new ArrayList<Address>(members != null? members.size() : 10);
+        missing_acks=new LinkedHashSet<Address>(members != null? members.size() : 10);
         addAll(members);
     }
 
     public AckCollector(Address ... members) {
-        missing_acks=new ArrayList<Address>(members != null? members.length : 10);
+        missing_acks=new LinkedHashSet<Address>(members != null? members.length : 10);
         addAll(members);
     }
 
@@ -64,13 +63,14 @@ public class AckCollector {
 
     public synchronized void suspect(Address member) {
         if(member == null) return;
-        if(!suspected_mbrs.contains(member))
-            suspected_mbrs.add(member);
+        suspected_mbrs.add(member);
         ack(member);
     }
 
     public boolean retainAll(Collection<Address> members) {
         if(members == null) return false;
+        if(!(members instanceof Set))
+            members=new HashSet<Address>(members);
         boolean retval=false;
         synchronized(this) {
             suspected_mbrs.retainAll(members);
@@ -110,7 +110,7 @@ public class AckCollector {
         if(members == null)
             return;
         for(Address member: members)
-            if(member != null && !missing_acks.contains(member))
+            if(member != null)
                 missing_acks.add(member);
         expected_acks=missing_acks.size();
     }
@@ -119,7 +119,7 @@ public class AckCollector {
         if(members == null)
             return;
         for(Address member: members)
-            if(member != null && !missing_acks.contains(member))
+            if(member != null)
                 missing_acks.add(member);
         expected_acks=missing_acks.size();
     }
@@ -0,0 +1,148 @@
+package org.jgroups.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataInput} which reads from a heap or direct {@link ByteBuffer}, e.g. the buffer a message was received into.
+ * Reads the format written by {@link java.io.DataOutputStream} and {@link ByteBufferOutputStream}. Not synchronized;
+ * an instance can be reused for a different buffer with {@link #reset(ByteBuffer)}.
+ * @since 3.5
+ */
+public class ByteBufferInputStream implements DataInput {
+    protected ByteBuffer buf;
+
+
+    public ByteBufferInputStream(ByteBuffer buf) {
+        this.buf=buf;
+    }
+
+    public ByteBufferInputStream(byte[] buf, int offset, int length) {
+        this(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    public ByteBuffer getByteBuffer() {return buf;}
+
+    public int        position()      {return buf.position();}
+    public int        remaining()     {return buf.remaining();}
+
+    public ByteBufferInputStream reset(ByteBuffer buf) {
+        this.buf=buf;
+        return this;
+    }
+
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        checkRemaining(len);
+        buf.get(b, off, len);
+    }
+
+    public int skipBytes(int n) {
+        int skip=Math.max(0, Math.min(n, buf.remaining()));
+        buf.position(buf.position() + skip);
+        return skip;
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        try {
+            return buf.get();
+        }
+        catch(BufferUnderflowException ex) {
+            throw new EOFException();
+        }
+    }
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+        checkRemaining(2);
+        return buf.getShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    public char readChar() throws IOException {
+        checkRemaining(2);
+        return buf.getChar();
+    }
+
+    public int readInt() throws IOException {
+        checkRemaining(4);
+        return buf.getInt();
+    }
+
+    public long readLong() throws IOException {
+        checkRemaining(8);
+        return buf.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        checkRemaining(4);
+        return buf.getFloat();
+    }
+
+    public double readDouble() throws IOException {
+        checkRemaining(8);
+        return buf.getDouble();
+    }
+
+    /** Reads bytes up to (excluding) the next '\n', '\r' or "\r\n", the same as {@link DataInputStream#readLine()} */
+    public String readLine() throws IOException {
+        if(!buf.hasRemaining())
+            return null;
+        StringBuilder sb=new StringBuilder();
+        while(buf.hasRemaining()) {
+            int c=buf.get() & 0xFF;
+            if(c == '\n')
+                break;
+            if(c == '\r') {
+                if(buf.hasRemaining() && buf.get(buf.position()) == '\n')
+                    buf.get();
+                break;
+            }
+            sb.append((char)c);
+        }
+        return sb.toString();
+    }
+
+    public String readUTF() throws IOException {
+        return DataInputStream.readUTF(this);
+    }
+
+    /** Reads a long written by {@link ByteBufferOutputStream#writeVarLong(long)} */
+    public long readVarLong() throws IOException {
+        long retval=0;
+        for(int shift=0; shift < 64; shift+=7) {
+            byte b=readByte();
+            retval|=(long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return retval;
+        }
+        throw new IOException("malformed variable-length long");
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " (" + (buf.isDirect()? "direct" : "heap") + ", pos=" + buf.position() +
+          ", lim=" + buf.limit() + ")";
+    }
+
+    protected void checkRemaining(int len) throws EOFException {
+        if(buf.remaining() < len)
+            throw new EOFException("needed " + len + " bytes, but only " + buf.remaining() + " are remaining");
+    }
+}
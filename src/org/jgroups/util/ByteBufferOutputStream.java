@@ -0,0 +1,198 @@
+package org.jgroups.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link DataOutput} which writes to a heap or direct {@link ByteBuffer}. Primitives are written with bulk puts, and
+ * the buffer grows as needed. Unlike {@link java.io.DataOutputStream}, this class is not synchronized; instances are
+ * meant to be reused by a single thread (or under a lock) after {@link #reset()}.<p/>
+ * The format is the same as that of {@link java.io.DataOutputStream}, so the output can be read by a
+ * {@link java.io.DataInputStream} or a {@link ByteBufferInputStream}.
+ * @since 3.5
+ */
+public class ByteBufferOutputStream implements DataOutput {
+    protected ByteBuffer buf;
+
+
+    /** Creates a stream backed by a heap buffer */
+    public ByteBufferOutputStream(int capacity) {
+        this(capacity, false);
+    }
+
+    public ByteBufferOutputStream(int capacity, boolean direct) {
+        this(direct? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+    }
+
+    /** Writes to buf, starting at its position. If buf is too small, it is replaced with a bigger copy */
+    public ByteBufferOutputStream(ByteBuffer buf) {
+        this.buf=buf;
+    }
+
+    /** Returns the underlying buffer; its position is the number of bytes written */
+    public ByteBuffer getByteBuffer()  {return buf;}
+
+    public int      position()         {return buf.position();}
+    public int      size()             {return buf.position();}
+    public boolean  isDirect()         {return buf.isDirect();}
+
+    /**
+     * Returns the bytes written so far. This is a reference to the underlying array if the buffer is a heap buffer,
+     * and a copy otherwise
+     */
+    public Buffer getBuffer() {
+        if(buf.hasArray())
+            return new Buffer(buf.array(), buf.arrayOffset(), buf.position());
+        byte[] tmp=new byte[buf.position()];
+        ByteBuffer copy=buf.duplicate();
+        copy.flip();
+        copy.get(tmp);
+        return new Buffer(tmp);
+    }
+
+    /** Sets the position back to 0, so the buffer can be reused */
+    public ByteBufferOutputStream reset() {
+        buf.clear();
+        return this;
+    }
+
+    public void write(int b) throws IOException {
+        ensureCapacity(1);
+        buf.put((byte)b);
+    }
+
+    public void write(byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureCapacity(len);
+        buf.put(b, off, len);
+    }
+
+    /** Writes the remaining bytes of src */
+    public void write(ByteBuffer src) throws IOException {
+        ensureCapacity(src.remaining());
+        buf.put(src);
+    }
+
+    public void writeBoolean(boolean v) throws IOException {
+        write(v? 1 : 0);
+    }
+
+    public void writeByte(int v) throws IOException {
+        write(v);
+    }
+
+    public void writeShort(int v) throws IOException {
+        ensureCapacity(2);
+        buf.putShort((short)v);
+    }
+
+    public void writeChar(int v) throws IOException {
+        ensureCapacity(2);
+        buf.putChar((char)v);
+    }
+
+    public void writeInt(int v) throws IOException {
+        ensureCapacity(4);
+        buf.putInt(v);
+    }
+
+    public void writeLong(long v) throws IOException {
+        ensureCapacity(8);
+        buf.putLong(v);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        ensureCapacity(4);
+        buf.putFloat(v);
+    }
+
+    public void writeDouble(double v) throws IOException {
+        ensureCapacity(8);
+        buf.putDouble(v);
+    }
+
+    public void writeBytes(String s) throws IOException {
+        int len=s.length();
+        ensureCapacity(len);
+        for(int i=0; i < len; i++)
+            buf.put((byte)s.charAt(i));
+    }
+
+    public void writeChars(String s) throws IOException {
+        int len=s.length();
+        ensureCapacity(len * 2);
+        for(int i=0; i < len; i++)
+            buf.putChar(s.charAt(i));
+    }
+
+    /** Writes s in modified UTF-8, the same as {@link java.io.DataOutputStream#writeUTF(String)} */
+    public void writeUTF(String s) throws IOException {
+        int len=s.length(), utf_len=0;
+        for(int i=0; i < len; i++) {
+            char c=s.charAt(i);
+            utf_len+=c >= 0x0001 && c <= 0x007F? 1 : c > 0x07FF? 3 : 2;
+        }
+        if(utf_len > 65535)
+            throw new UTFDataFormatException("encoded string too long: " + utf_len + " bytes");
+        ensureCapacity(utf_len + 2);
+        buf.putShort((short)utf_len);
+        for(int i=0; i < len; i++) {
+            char c=s.charAt(i);
+            if(c >= 0x0001 && c <= 0x007F)
+                buf.put((byte)c);
+            else if(c > 0x07FF) {
+                buf.put((byte)(0xE0 | ((c >> 12) & 0x0F)));
+                buf.put((byte)(0x80 | ((c >>  6) & 0x3F)));
+                buf.put((byte)(0x80 | (c & 0x3F)));
+            }
+            else {
+                buf.put((byte)(0xC0 | ((c >>  6) & 0x1F)));
+                buf.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Writes a long as a variable-length quantity: 7 bits per byte, least significant group first, with the high bit
+     * set on all but the last byte. Small non-negative values take fewer than 8 bytes, negative values take 10
+     */
+    public void writeVarLong(long v) throws IOException {
+        ensureCapacity(varLongSize(v));
+        while((v & ~0x7FL) != 0) {
+            buf.put((byte)((v & 0x7F) | 0x80));
+            v>>>=7;
+        }
+        buf.put((byte)v);
+    }
+
+    /** Returns the number of bytes needed by {@link #writeVarLong(long)} */
+    public static int varLongSize(long v) {
+        int size=1;
+        while((v & ~0x7FL) != 0) {
+            v>>>=7;
+            size++;
+        }
+        return size;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + " (" + (buf.isDirect()? "direct" : "heap") + ", pos=" + buf.position() +
+          ", cap=" + buf.capacity() + ")";
+    }
+
+    /** Replaces the buffer with one that has at least space more bytes remaining, keeping its contents */
+    protected void ensureCapacity(int space) {
+        if(buf.remaining() >= space)
+            return;
+        int new_capacity=Math.max(buf.capacity() * 2, buf.position() + space);
+        ByteBuffer tmp=buf.isDirect()? ByteBuffer.allocateDirect(new_capacity) : ByteBuffer.allocate(new_capacity);
+        buf.flip();
+        tmp.put(buf);
+        buf=tmp;
+    }
+}
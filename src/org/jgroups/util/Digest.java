@@ -2,6 +2,7 @@ package org.jgroups.util;
 
 import org.jgroups.Address;
 import org.jgroups.Global;
+import org.jgroups.View;
 import org.jgroups.annotations.Immutable;
 
 import java.io.DataInput;
@@ -34,6 +35,8 @@ public class Digest implements Streamable, Iterable<Digest.Entry> {
     // so to get the HD seqno for member P at index i --> seqnos[i*2], to get the HR --> seqnos[i*2 +1]
     protected long[]    seqnos;
 
+    // Ranks of the members, shared with the view the members were taken from, or created on the first lookup
+    protected volatile MemberIndex index;
 
 
     /** Used for serialization */
@@ -54,11 +57,18 @@ public class Digest implements Streamable, Iterable<Digest.Entry> {
         this.members=members;
     }
 
+    /** Only used internally, don't use ! Refers to the members of the view and shares its index */
+    public Digest(View view) {
+        this(view.getMembersRaw());
+        this.index=view.getIndex();
+    }
+
     /** Only used for testing */
     public Digest(Digest digest) {
         if(digest == null)
             return;
         this.members=digest.members; // the members list is immutable
+        this.index=digest.index;
         this.seqnos=(digest instanceof MutableDigest || this instanceof MutableDigest)?
           Arrays.copyOf((digest).seqnos, digest.seqnos.length) : digest.seqnos;
         checkPostcondition();
@@ -86,12 +96,7 @@ public class Digest implements Streamable, Iterable<Digest.Entry> {
     }
 
     public boolean contains(Address mbr) {
-        if(mbr == null || members == null)
-            return false;
-        for(Address member: members)
-            if(member != null && member.equals(mbr))
-                return true;
-        return false;
+        return find(mbr) >= 0;
     }
 
     public boolean containsAll(Address ... members) {
@@ -134,7 +139,9 @@ public class Digest implements Streamable, Iterable<Digest.Entry> {
 
 
     public Digest copy() {
-        return new Digest(members, Arrays.copyOf(seqnos, seqnos.length));
+        Digest retval=new Digest(members, Arrays.copyOf(seqnos, seqnos.length));
+        retval.index=index;
+        return retval;
     }
 
     public void writeTo(DataOutput out) throws Exception {
@@ -215,12 +222,14 @@ public class Digest implements Streamable, Iterable<Digest.Entry> {
     protected int find(Address mbr) {
         if(mbr == null || members == null)
             return -1;
-        for(int i=0; i < members.length; i++) {
-            Address member=members[i];
-            if(member != null && member.equals(mbr))
-                return i;
-        }
-        return -1;
+        return index().indexOf(mbr);
+    }
+
+    protected MemberIndex index() {
+        MemberIndex tmp=index;
+        if(tmp == null || tmp.members() != members) // members are reassigned by readFrom()
+            index=tmp=new MemberIndex(members);
+        return tmp;
     }
 
 
@@ -0,0 +1,92 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (e.g. latencies in microseconds) with power-of-2 buckets: bucket 0 counts the
+ * value 0, and bucket i (i > 0) counts the values in range [2^(i-1) .. 2^i -1]. Adding a value increments a counter
+ * and doesn't allocate memory, so this can be used on hot paths. Percentiles are approximations: the upper bound of
+ * the bucket containing the percentile is returned.<p/>
+ * Instances are thread-safe; values can be added concurrently by different threads.
+ * @since  3.5
+ */
+public class Histogram {
+    protected static final int     NUM_BUCKETS=Long.SIZE + 1;
+    protected final AtomicLongArray buckets=new AtomicLongArray(NUM_BUCKETS);
+    protected final AtomicLong      count=new AtomicLong(0);
+    protected final AtomicLong      sum=new AtomicLong(0);
+    protected final AtomicLong      max=new AtomicLong(0);
+
+
+    /** Adds a value. Negative values are counted as 0 */
+    public void add(long value) {
+        if(value < 0)
+            value=0;
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for(;;) {
+            long current=max.get();
+            if(value <= current || max.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    public long   count()      {return count.get();}
+    public long   max()        {return max.get();}
+    public double average()    {long num=count.get(); return num > 0? sum.get() / (double)num : 0;}
+
+    /**
+     * Returns the (approximated) value below which the given percentage of values fall
+     * @param percentile The percentile, e.g. 99.9
+     * @return The upper bound of the bucket containing the percentile (but never more than the max value), or 0 if
+     * no values have been added
+     */
+    public long percentile(double percentile) {
+        long num=0;
+        for(int i=0; i < NUM_BUCKETS; i++)
+            num+=buckets.get(i);
+        if(num == 0)
+            return 0;
+        long threshold=(long)Math.ceil(num * Math.min(100.0, Math.max(0.0, percentile)) / 100.0), total=0;
+        for(int i=0; i < NUM_BUCKETS; i++) {
+            total+=buckets.get(i);
+            if(total >= threshold && total > 0)
+                return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i=0; i < NUM_BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /** Prints the non-empty buckets, one per line */
+    public String print() {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < NUM_BUCKETS; i++) {
+            long num=buckets.get(i);
+            if(num > 0)
+                sb.append(String.format("%d - %d: %d\n", i == 0? 0 : upperBound(i-1) + 1, upperBound(i), num));
+        }
+        return sb.toString();
+    }
+
+    public String toString() {
+        return String.format("count=%d avg=%.1f p50=%d p90=%d p99=%d p99.9=%d max=%d", count(), average(),
+                             percentile(50), percentile(90), percentile(99), percentile(99.9), max());
+    }
+
+    protected static int bucket(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    protected static long upperBound(int bucket) {
+        return bucket >= Long.SIZE? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
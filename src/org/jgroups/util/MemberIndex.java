@@ -0,0 +1,90 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.annotations.Immutable;
+
+/**
+ * An index of the ranks of the members of an array, e.g. the members of a {@link org.jgroups.View} or a
+ * {@link Digest}. The index is built once and the lookup of a member's rank is O(1) (open addressing with linear
+ * probing). For small arrays, where a linear scan is as fast as hashing, no hash table is created.<p/>
+ * The array must not be modified after the index has been created. Null elements are skipped; if a member occurs
+ * more than once, the rank of its first occurrence is returned.
+ * @since 3.5
+ */
+@Immutable
+public class MemberIndex {
+    /** Arrays of up to this size are scanned linearly */
+    protected static final int LINEAR_SCAN_MAX=8;
+
+    protected final Address[] members;
+
+    /** Slots of the hash table, containing rank+1 (0 is an empty slot). Null if the array is scanned linearly */
+    protected final int[]     table;
+
+
+    public MemberIndex(Address[] members) {
+        if(members == null)
+            throw new IllegalArgumentException("members is null");
+        this.members=members;
+        if(members.length <= LINEAR_SCAN_MAX) {
+            table=null;
+            return;
+        }
+        table=new int[Util.getNextHigherPowerOfTwo(members.length * 2)];
+        int mask=table.length - 1;
+        for(int i=0; i < members.length; i++) {
+            Address mbr=members[i];
+            if(mbr == null)
+                continue;
+            int slot=hash(mbr) & mask;
+            for(;;) {
+                int rank=table[slot];
+                if(rank == 0) {
+                    table[slot]=i+1;
+                    break;
+                }
+                if(mbr.equals(members[rank-1])) // duplicate: keep the first occurrence
+                    break;
+                slot=(slot+1) & mask;
+            }
+        }
+    }
+
+    public Address[] members() {return members;}
+    public int       size()    {return members.length;}
+
+    /** Returns the index of mbr in the array, or -1 if mbr is not a member */
+    public int indexOf(Address mbr) {
+        if(mbr == null)
+            return -1;
+        if(table == null) {
+            for(int i=0; i < members.length; i++) {
+                Address member=members[i];
+                if(member != null && member.equals(mbr))
+                    return i;
+            }
+            return -1;
+        }
+        int mask=table.length - 1;
+        for(int slot=hash(mbr) & mask;; slot=(slot+1) & mask) {
+            int rank=table[slot];
+            if(rank == 0)
+                return -1;
+            if(mbr.equals(members[rank-1]))
+                return rank-1;
+        }
+    }
+
+    public boolean contains(Address mbr) {
+        return indexOf(mbr) >= 0;
+    }
+
+    public String toString() {
+        return members.length + " members (" + (table != null? "hashed" : "linear") + ")";
+    }
+
+    protected static int hash(Address mbr) {
+        int h=mbr.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
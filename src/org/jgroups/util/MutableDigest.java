@@ -1,6 +1,7 @@
 package org.jgroups.util;
 
 import org.jgroups.Address;
+import org.jgroups.View;
 
 import java.util.Arrays;
 
@@ -15,6 +16,12 @@ public class MutableDigest extends Digest {
         super(members, createEmptyArray(members.length *2));
     }
 
+    /** Creates a digest for the members of view, sharing the view's index of the members */
+    public MutableDigest(View view) {
+        this(view.getMembersRaw());
+        this.index=view.getIndex();
+    }
+
 
     /** Only used for testing */
     public MutableDigest(Digest digest) {
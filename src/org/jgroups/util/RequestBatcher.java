@@ -0,0 +1,123 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects requests (or responses) added by multiple threads and passes them to a {@link Sender} in batches, one batch
+ * per destination.<p/>
+ * A thread calling {@link #send()} drains the queue, unless another thread is already draining it. Requests added while
+ * a batch is being sent accumulate in the queue and are sent with the next batch, so requests are batched under
+ * contention, but a single request is sent right away. The order in which requests are added is preserved per
+ * destination.<p/>
+ * A thread processing a number of requests can call {@link #hold()} to collect all responses it generates and
+ * send them in one batch per destination with {@link #release(boolean)}.
+ * @since 3.5
+ */
+public class RequestBatcher<T> {
+
+    public interface Sender<T> {
+        /** Sends a batch of requests to dest (null: to all members) */
+        void send(Address dest, List<T> requests);
+    }
+
+    protected final Sender<T>                                   sender;
+    protected final int                                         max_batch_size;
+    protected final ConcurrentLinkedQueue<Tuple<Address,T>>     queue=new ConcurrentLinkedQueue<Tuple<Address,T>>();
+    protected final AtomicBoolean                               sending=new AtomicBoolean(false);
+    protected volatile long                                     num_requests, num_batches;
+
+
+    /**
+     * Creates a batcher
+     * @param sender The sender of the batches
+     * @param max_batch_size The max number of requests drained from the queue in one go
+     */
+    public RequestBatcher(Sender<T> sender, int max_batch_size) {
+        this.sender=sender;
+        this.max_batch_size=Math.max(1, max_batch_size);
+    }
+
+    public int  size()                   {return queue.size();}
+    public long getNumRequests()         {return num_requests;}
+    public long getNumBatches()          {return num_batches;}
+
+    /** The average number of requests per batch */
+    public double getAverageBatchSize() {
+        long batches=num_batches;
+        return batches > 0? num_requests / (double)batches : 0;
+    }
+
+    public void resetStats() {num_requests=num_batches=0;}
+
+    /** Adds a request to the queue; it is sent by the next call to {@link #send()} (of any thread) */
+    public RequestBatcher<T> add(Address dest, T request) {
+        queue.add(new Tuple<Address,T>(dest, request));
+        return this;
+    }
+
+    /** Adds a request and sends it, possibly with other queued requests */
+    public void send(Address dest, T request) {
+        add(dest, request);
+        send();
+    }
+
+    /** Sends all queued requests, unless another thread is sending, in which case that thread will send them */
+    public void send() {
+        while(!queue.isEmpty() && sending.compareAndSet(false, true)) {
+            try {
+                drain();
+            }
+            finally {
+                sending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Prevents other threads from sending until {@link #release(boolean)} is called, so that all requests added in the
+     * meantime are sent as one batch per destination
+     * @return True if the hold was acquired, false if another thread is currently sending (it will send the requests)
+     */
+    public boolean hold() {
+        return sending.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases the hold and sends the queued requests
+     * @param held The value returned by {@link #hold()}
+     */
+    public void release(boolean held) {
+        if(held)
+            sending.set(false);
+        send();
+    }
+
+    protected void drain() {
+        Map<Address,List<T>> batches=new LinkedHashMap<Address,List<T>>();
+        int count=0;
+        Tuple<Address,T> tuple;
+        while(count < max_batch_size && (tuple=queue.poll()) != null) {
+            List<T> list=batches.get(tuple.getVal1());
+            if(list == null)
+                batches.put(tuple.getVal1(), list=new ArrayList<T>());
+            list.add(tuple.getVal2());
+            count++;
+        }
+        num_requests+=count;
+        num_batches+=batches.size();
+        for(Map.Entry<Address,List<T>> entry: batches.entrySet())
+            sender.send(entry.getKey(), entry.getValue());
+    }
+
+    public String toString() {
+        return String.format("%d queued, %d requests in %d batches (avg %.2f requests/batch)",
+                             size(), num_requests, num_batches, getAverageBatchSize());
+    }
+}
@@ -983,10 +983,9 @@ public class Util {
 
     private static Address readOtherAddress(DataInput in) throws Exception {
         short magic_number=in.readShort();
-        Class<?> cl=ClassConfigurator.get(magic_number);
-        if(cl == null)
+        Address addr=ClassConfigurator.create(magic_number);
+        if(addr == null)
             throw new RuntimeException("class for magic number " + magic_number + " not found");
-        Address addr=(Address)cl.newInstance();
         addr.readFrom(in);
         return addr;
     }
@@ -1147,16 +1146,16 @@ public class Util {
 
         if(use_magic_number) {
             short magic_number=in.readShort();
-            clazz=ClassConfigurator.get(magic_number);
-            if (clazz==null)
+            retval=ClassConfigurator.create(magic_number);
+            if (retval==null)
                 throw new ClassNotFoundException("Class for magic number "+magic_number+" cannot be found.");
         }
         else {
             classname=in.readUTF();
             clazz=ClassConfigurator.get(classname);
+            retval=(Streamable)clazz.newInstance();
         }
 
-        retval=(Streamable)clazz.newInstance();
         retval.readFrom(in);
         return retval;
     }
@@ -1566,6 +1565,25 @@ public class Util {
         return (long)((Math.random() * range) % range) + 1;
     }
 
+    /** Returns a 64 bit hash of an address, e.g. for consistent or rendezvous hashing. UUIDs use all of their bits */
+    public static long hash(Address addr) {
+        if(addr instanceof UUID) {
+            UUID uuid=(UUID)addr;
+            return mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+        }
+        return mix(addr.hashCode());
+    }
+
+    /** The finalizer of MurmurHash3 (fmix64): spreads the bits of a hashCode() over the entire 64 bit space */
+    public static long mix(long h) {
+        h^=h >>> 33;
+        h*=0xff51afd7ed558ccdL;
+        h^=h >>> 33;
+        h*=0xc4ceb9fe1a85ec53L;
+        h^=h >>> 33;
+        return h;
+    }
+
 
 
     /** Sleeps between floor and ceiling milliseconds, chosen randomly */
@@ -2567,13 +2585,7 @@ public class Util {
     public static int getRank(View view, Address addr) {
         if(view == null || addr == null)
             return 0;
-        List<Address> members=view.getMembers();
-        for(int i=0; i < members.size(); i++) {
-            Address mbr=members.get(i);
-            if(mbr.equals(addr))
-                return i+1;
-        }
-        return 0;
+        return view.getRank(addr) + 1;
     }
 
     public static int getRank(Collection<Address> members, Address addr) {
@@ -13,9 +13,11 @@ import org.testng.annotations.Test;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -184,6 +186,43 @@ public class ConnectionMapTest {
     }*/
 
 
+    /** Sends the same buffer to self and 2 peers; the peers' send queues share a single copy of the buffer */
+    public void testSendToAll() throws Exception {
+        int port3=ResourceManager.getNextTcpPorts(loopback_addr, 1).get(0);
+        Address addr3=new IpAddress(loopback_addr, port3);
+        final BlockingQueue<String> received=new LinkedBlockingQueue<String>();
+        TCPConnectionMap.Receiver receiver=new TCPConnectionMap.Receiver() {
+            public void receive(Address sender, byte[] data, int offset, int length) {
+                received.add(new String(data, offset, length));
+            }
+        };
+        ct1=createConnectionMap("ConnectionMapTest1", receiver, PORT1);
+        ct2=createConnectionMap("ConnectionMapTest2", receiver, PORT2);
+        TCPConnectionMap ct3=createConnectionMap("ConnectionMapTest3", receiver, port3);
+        try {
+            byte[] buf="xxhelloxx".getBytes();
+            ct1.sendToAll(Arrays.asList(addr1, addr2, addr3), buf, 2, 5);
+            Arrays.fill(buf, (byte)'x'); // the queues must have their own copy
+            for(int i=0; i < 3; i++) {
+                String msg=received.poll(10, TimeUnit.SECONDS);
+                assert "hello".equals(msg) : "received " + msg;
+            }
+            assert ct1.getNumConnections() == 2;
+        }
+        finally {
+            ct3.stop();
+        }
+    }
+
+    protected static TCPConnectionMap createConnectionMap(String name, TCPConnectionMap.Receiver r, int port) throws Exception {
+        TCPConnectionMap ct=new TCPConnectionMap(name, new DefaultThreadFactory("ConnectionMapTest", true),
+                                                 r, loopback_addr, null, 0, port, port, 60000, 120000);
+        ct.setUseSendQueues(true);
+        ct.setSendQueueSize(100);
+        ct.start();
+        return ct;
+    }
+
     private void _testStop(TCPConnectionMap table1, TCPConnectionMap table2) throws Exception {
         table1.send(addr1, data, 0, data.length); // send to self
         assert table1.getNumConnections() == 0;
@@ -0,0 +1,200 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.View;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests read-ahead, write-behind, positional reads and bulk transfers of {@link GridInputStream} and
+ * {@link GridOutputStream}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class GridFilesystemStreamTest {
+    protected ReplCache<String,byte[]>            data1, data2;
+    protected ReplCache<String,GridFile.Metadata> metadata1, metadata2;
+    protected GridFilesystem                      fs;
+    protected static final int    CHUNK_SIZE=1000;
+    protected static final String PROPS="SHARED_LOOPBACK:PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS:FRAG2";
+
+
+    @BeforeClass
+    protected void init() throws Exception {
+        data1=new ReplCache<String,byte[]>(PROPS, "GridFilesystemStreamTest-data");
+        data2=new ReplCache<String,byte[]>(PROPS, "GridFilesystemStreamTest-data");
+        metadata1=new ReplCache<String,GridFile.Metadata>(PROPS, "GridFilesystemStreamTest-metadata");
+        metadata2=new ReplCache<String,GridFile.Metadata>(PROPS, "GridFilesystemStreamTest-metadata");
+        List<ReplCache<String,?>> caches=Arrays.<ReplCache<String,?>>asList(data1, data2, metadata1, metadata2);
+        final CountDownLatch joined=new CountDownLatch(caches.size()); // chunks hash to different members after the join
+        for(ReplCache<String,?> cache: caches) {
+            cache.addMembershipListener(new ReceiverAdapter() {
+                public void viewAccepted(View view) {
+                    if(view.size() == 2)
+                        joined.countDown();
+                }
+            });
+            cache.start();
+        }
+        assert joined.await(10, TimeUnit.SECONDS);
+        fs=new GridFilesystem(data1, metadata1, (short)1, CHUNK_SIZE).setWindowSize(8);
+        assert fs.getFile("/streams").mkdirs();
+    }
+
+    @AfterClass
+    protected void cleanup() throws Exception {
+        fs.close();
+        for(ReplCache<String,?> cache: Arrays.<ReplCache<String,?>>asList(metadata2, metadata1, data2, data1))
+            cache.stop();
+    }
+
+
+    public void testWriteAndRead() throws Exception {
+        byte[] buf=createBuffer(CHUNK_SIZE * 25 + 123);
+        write("/streams/file1", buf, fs);
+        assert fs.getFile("/streams/file1").length() == buf.length;
+        InputStream in=fs.getInput("/streams/file1");
+        try {
+            byte[] tmp=new byte[buf.length + 100];
+            int len=0, num;
+            while((num=in.read(tmp, len, 777)) != -1) // reads across chunk boundaries
+                len+=num;
+            assert len == buf.length : "read " + len + " bytes";
+            for(int i=0; i < buf.length; i++)
+                assert tmp[i] == buf[i] : "mismatch at " + i;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /** A file written with window 1 (chunks written and read one by one) can be read ahead, and vice versa */
+    public void testCompatibility() throws Exception {
+        GridFilesystem old_fs=new GridFilesystem(data1, metadata1, (short)1, CHUNK_SIZE).setWindowSize(1);
+        try {
+            byte[] buf=createBuffer(CHUNK_SIZE * 10);
+            write("/streams/file2", buf, old_fs);
+            assert Arrays.equals(read("/streams/file2", fs), buf);
+            write("/streams/file3", buf, fs);
+            assert Arrays.equals(read("/streams/file3", old_fs), buf);
+        }
+        finally {
+            old_fs.close();
+        }
+    }
+
+    /** The default transfer pool is bounded and shut down by close() */
+    public void testClose() throws Exception {
+        GridFilesystem tmp=new GridFilesystem(data1, metadata1, (short)1, CHUNK_SIZE).setMaxTransferThreads(2);
+        ThreadPoolExecutor pool=(ThreadPoolExecutor)tmp.getTransferPool();
+        assert pool.getMaximumPoolSize() == 2;
+        byte[] buf=createBuffer(CHUNK_SIZE * 5);
+        write("/streams/file6", buf, tmp);
+        assert Arrays.equals(read("/streams/file6", tmp), buf);
+        tmp.close();
+        assert pool.isShutdown();
+    }
+
+    public void testPositionalReadAndSkip() throws Exception {
+        byte[] buf=createBuffer(CHUNK_SIZE * 20 + 10);
+        write("/streams/file4", buf, fs);
+        GridInputStream in=(GridInputStream)fs.getInput("/streams/file4");
+        try {
+            byte[] tmp=new byte[CHUNK_SIZE * 3];
+            int num=in.read(CHUNK_SIZE * 5 + 500, tmp, 0, tmp.length);
+            assert num == tmp.length;
+            assert Arrays.equals(tmp, Arrays.copyOfRange(buf, CHUNK_SIZE * 5 + 500, CHUNK_SIZE * 8 + 500));
+            num=in.read(buf.length - 5, tmp, 0, tmp.length);
+            assert num == 5;
+            assert in.read(buf.length, tmp, 0, tmp.length) == -1;
+
+            // positional reads don't change the position of the stream
+            assert in.read() == buf[0];
+            assert in.skip(CHUNK_SIZE * 12 + 10) == CHUNK_SIZE * 12 + 10;
+            assert (byte)in.read() == buf[CHUNK_SIZE * 12 + 11];
+            assert in.skip(10) == 10;
+            assert (byte)in.read() == buf[CHUNK_SIZE * 12 + 22];
+            assert in.skip(buf.length) == buf.length - (CHUNK_SIZE * 12 + 23);
+            assert in.read() == -1;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    public void testCopyToAndFromLocal() throws Exception {
+        byte[] buf=createBuffer(CHUNK_SIZE * 50 + 1);
+        File src=File.createTempFile("GridFilesystemStreamTest", ".src"), dst=File.createTempFile("GridFilesystemStreamTest", ".dst");
+        try {
+            FileOutputStream out=new FileOutputStream(src);
+            out.write(buf);
+            out.close();
+            assert fs.copyFromLocal(src, "/streams/file5") == buf.length;
+            assert fs.getFile("/streams/file5").length() == buf.length;
+            assert fs.copyToLocal("/streams/file5", dst) == buf.length;
+            assert dst.length() == buf.length;
+            byte[] tmp=new byte[buf.length];
+            FileInputStream in=new FileInputStream(dst);
+            try {
+                int len=0, num;
+                while(len < tmp.length && (num=in.read(tmp, len, tmp.length - len)) != -1)
+                    len+=num;
+            }
+            finally {
+                in.close();
+            }
+            assert Arrays.equals(tmp, buf);
+        }
+        finally {
+            src.delete();
+            dst.delete();
+        }
+    }
+
+
+    protected static void write(String path, byte[] buf, GridFilesystem fs) throws Exception {
+        OutputStream out=fs.getOutput(path);
+        try {
+            for(int i=0; i < buf.length; i+=333) // writes across chunk boundaries
+                out.write(buf, i, Math.min(333, buf.length - i));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    protected static byte[] read(String path, GridFilesystem fs) throws Exception {
+        InputStream in=fs.getInput(path);
+        try {
+            byte[] tmp=new byte[(int)fs.getFile(path).length()];
+            int len=0, num;
+            while(len < tmp.length && (num=in.read(tmp, len, tmp.length - len)) != -1)
+                len+=num;
+            assert in.read() == -1;
+            return tmp;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    protected static byte[] createBuffer(int size) {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)(i * 31 + i / 256);
+        return buf;
+    }
+}
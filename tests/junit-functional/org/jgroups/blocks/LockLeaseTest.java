@@ -0,0 +1,179 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.locking.LockService;
+import org.jgroups.protocols.CENTRAL_LOCK;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Tests the leasing of locks by CENTRAL_LOCK (use_leases=true)
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class LockLeaseTest {
+    protected JChannel    a, b, c;
+    protected LockService s1, s2, s3;
+    protected static final String LOCK="lease-lock";
+
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        s1=new LockService(a);
+        a.connect("LockLeaseTest");
+        b=createChannel("B");
+        s2=new LockService(b);
+        b.connect("LockLeaseTest");
+        c=createChannel("C");
+        s3=new LockService(c);
+        c.connect("LockLeaseTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        Util.close(c, b, a);
+    }
+
+
+    public void testLocalReacquisition() {
+        Lock lock=s2.getLock(LOCK);
+        for(int i=0; i < 10; i++) {
+            lock.lock();
+            lock.unlock();
+        }
+        assert s2.getNumRemoteAcquisitions() == 1 : "remote: " + s2.getNumRemoteAcquisitions();
+        assert s2.getNumLocalAcquisitions() == 9 : "local: " + s2.getNumLocalAcquisitions();
+        assert getProtocol(b).getNumLeases() == 1;
+    }
+
+    /** An idle lease is revoked when a different member requests the lock */
+    public void testRevocationOfIdleLease() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+
+        Lock lock2=s3.getLock(LOCK);
+        assert lock2.tryLock(5000, TimeUnit.MILLISECONDS);
+        assert getProtocol(b).getNumRevokedLeases() == 1 && getProtocol(b).getNumLeases() == 0;
+
+        // B has to get the lock from the coordinator again, which revokes C's lease
+        final CountDownLatch acquired=new CountDownLatch(1);
+        Thread t=lockInThread(s2, acquired);
+        assert !acquired.await(500, TimeUnit.MILLISECONDS) : "B must not get the lock while C holds it";
+        lock2.unlock();
+        assert acquired.await(5000, TimeUnit.MILLISECONDS);
+        t.join();
+        assert s2.getNumRemoteAcquisitions() == 2;
+    }
+
+    /** A lease revoked while the lock is held is released when the lock is unlocked */
+    public void testRevocationWhileHeld() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        final CountDownLatch acquired=new CountDownLatch(1);
+        Thread t=lockInThread(s3, acquired);
+        assert !acquired.await(500, TimeUnit.MILLISECONDS);
+        for(int i=0; i < 50 && getProtocol(b).getNumRevokedLeases() == 0; i++)
+            Util.sleep(100);
+        assert getProtocol(b).getNumRevokedLeases() == 1;
+        lock.unlock();
+        assert acquired.await(5000, TimeUnit.MILLISECONDS);
+        t.join();
+        assert getProtocol(b).getNumLeases() == 0;
+    }
+
+    /** Threads of the member holding the lease get the lock from the lease, one after the other */
+    public void testLocalWaiters() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        final CountDownLatch acquired=new CountDownLatch(1);
+        Thread t=lockInThread(s2, acquired);
+        assert !acquired.await(500, TimeUnit.MILLISECONDS);
+        lock.unlock();
+        assert acquired.await(5000, TimeUnit.MILLISECONDS);
+        t.join();
+        assert s2.getNumRemoteAcquisitions() == 1 && s2.getNumLocalAcquisitions() == 1;
+    }
+
+    /** tryLock() fails on a lock leased by a different member, but the lease is revoked */
+    public void testTryLockOfLeasedLock() throws Exception {
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        Lock lock2=s3.getLock(LOCK);
+        assert !lock2.tryLock();
+        for(int i=0; i < 50 && getProtocol(b).getNumLeases() > 0; i++)
+            Util.sleep(100);
+        assert lock2.tryLock();
+        lock2.unlock();
+    }
+
+    /** Many threads on different members increment a non-atomic counter under the lock */
+    public void testMutualExclusion() throws Exception {
+        final int[] counter={0};
+        final AtomicBoolean in_lock=new AtomicBoolean();
+        final int num_increments=200;
+        LockService[] services={s1, s2, s3, s2, s3, s2};
+        Thread[] threads=new Thread[services.length];
+        for(int i=0; i < threads.length; i++) {
+            final Lock lock=services[i].getLock(LOCK);
+            threads[i]=new Thread() {
+                public void run() {
+                    for(int j=0; j < num_increments; j++) {
+                        lock.lock();
+                        try {
+                            assert in_lock.compareAndSet(false, true) : "lock held by more than one thread";
+                            counter[0]++;
+                            in_lock.set(false);
+                        }
+                        finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join(60000);
+        assert counter[0] == threads.length * num_increments : "counter: " + counter[0];
+        long local=s1.getNumLocalAcquisitions() + s2.getNumLocalAcquisitions() + s3.getNumLocalAcquisitions();
+        long remote=s1.getNumRemoteAcquisitions() + s2.getNumRemoteAcquisitions() + s3.getNumRemoteAcquisitions();
+        System.out.println("local acquisitions: " + local + ", remote acquisitions: " + remote);
+        assert local + remote == counter[0];
+    }
+
+
+    protected static Thread lockInThread(final LockService service, final CountDownLatch acquired) {
+        Thread t=new Thread() {
+            public void run() {
+                Lock lock=service.getLock(LOCK);
+                lock.lock();
+                acquired.countDown();
+                lock.unlock();
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    protected static CENTRAL_LOCK getProtocol(JChannel ch) {
+        return (CENTRAL_LOCK)ch.getProtocolStack().findProtocol(CENTRAL_LOCK.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack(new CENTRAL_LOCK().setUseLeases(true));
+        return new JChannel(stack).name(name);
+    }
+}
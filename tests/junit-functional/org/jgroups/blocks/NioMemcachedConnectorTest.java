@@ -0,0 +1,227 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.View;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link NioMemcachedConnector} with the text and the binary protocol
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class NioMemcachedConnectorTest {
+    protected PartitionedHashMap<String,byte[]> c1, c2;
+    protected NioMemcachedConnector             connector;
+    protected static final String PROPS="SHARED_LOOPBACK:PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS:FRAG2";
+
+
+    @BeforeClass
+    protected void init() throws Exception {
+        c1=new PartitionedHashMap<String,byte[]>(PROPS, "NioMemcachedConnectorTest");
+        c2=new PartitionedHashMap<String,byte[]>(PROPS, "NioMemcachedConnectorTest");
+        CountDownLatch joined=new CountDownLatch(2); // keys hash to different members only after the join
+        start(c1, joined);
+        start(c2, joined);
+        assert joined.await(10, TimeUnit.SECONDS);
+        connector=new NioMemcachedConnector(InetAddress.getByName("127.0.0.1"), 0, c1).setNumSelectors(2);
+        connector.start();
+    }
+
+    @AfterClass
+    protected void cleanup() throws Exception {
+        connector.stop();
+        c2.stop();
+        c1.stop();
+    }
+
+
+    /** Pipelined text requests */
+    public void testTextProtocol() throws Exception {
+        Socket sock=connect();
+        try {
+            write(sock, "set a 0 0 3\r\nabc\r\nset b 0 0 2 noreply\r\nxy\r\nget a b c\r\ndelete b\r\nget b\r\nfoo\r\n");
+            String expected="STORED\r\nVALUE a 0 3\r\nabc\r\nVALUE b 0 2\r\nxy\r\nEND\r\nDELETED\r\nEND\r\nERROR\r\n";
+            byte[] rsp=new byte[expected.length()];
+            new DataInputStream(sock.getInputStream()).readFully(rsp);
+            assert new String(rsp).equals(expected) : new String(rsp);
+        }
+        finally {
+            Util.close(sock);
+        }
+    }
+
+    /** A binary multi-get: the GETKQs are answered only for hits and the NOOP terminates the response */
+    public void testBinaryMultiGet() throws Exception {
+        Socket sock=connect();
+        try {
+            OutputStream out=sock.getOutputStream();
+            int num_keys=20;
+            for(int i=0; i < num_keys; i++)
+                out.write(binaryRequest(NioMemcachedConnector.SETQ, "key-" + i, new byte[8], ("val-" + i).getBytes(), i));
+            long multi_gets=connector.getNumMultiGets();
+            for(int i=0; i < num_keys + 5; i++)
+                out.write(binaryRequest(NioMemcachedConnector.GETKQ, "key-" + i, null, null, i));
+            out.write(binaryRequest(NioMemcachedConnector.NOOP, null, null, null, 1000));
+            out.flush();
+
+            List<String[]> rsps=readBinaryResponses(sock.getInputStream(), num_keys + 1);
+            for(int i=0; i < num_keys; i++) {
+                String[] rsp=rsps.get(i);
+                assert rsp[0].equals("0") && rsp[1].equals("key-" + i) && rsp[2].equals("val-" + i) : rsp[1] + "=" + rsp[2];
+            }
+            assert rsps.get(num_keys)[3].equals("1000") : "the last response should be the NOOP";
+            assert connector.getNumMultiGets() > multi_gets;
+
+            out.write(binaryRequest(NioMemcachedConnector.GET, "key-100", null, null, 1));
+            out.write(binaryRequest((byte)0x2b, null, null, null, 2));
+            out.flush();
+            rsps=readBinaryResponses(sock.getInputStream(), 2);
+            assert rsps.get(0)[0].equals(String.valueOf(NioMemcachedConnector.KEY_NOT_FOUND));
+            assert rsps.get(1)[0].equals(String.valueOf(NioMemcachedConnector.UNKNOWN_COMMAND));
+        }
+        finally {
+            Util.close(sock);
+        }
+    }
+
+    /** A value which is larger than the initial read buffer and the socket buffers */
+    public void testLargeValue() throws Exception {
+        Socket sock=connect();
+        try {
+            byte[] val=new byte[500000];
+            for(int i=0; i < val.length; i++)
+                val[i]=(byte)i;
+            OutputStream out=sock.getOutputStream();
+            out.write(binaryRequest(NioMemcachedConnector.SET, "large", new byte[8], val, 1));
+            out.write(binaryRequest(NioMemcachedConnector.GET, "large", null, null, 2));
+            out.flush();
+            DataInputStream in=new DataInputStream(sock.getInputStream());
+            readBinaryResponses(in, 1);
+            byte[] header=new byte[24];
+            in.readFully(header);
+            ByteBuffer buf=ByteBuffer.wrap(header);
+            assert buf.getShort(6) == 0 && buf.getInt(8) == val.length + 4 : "status=" + buf.getShort(6) + ", len=" + buf.getInt(8);
+            in.readFully(new byte[4]); // flags
+            byte[] tmp=new byte[val.length];
+            in.readFully(tmp);
+            for(int i=0; i < val.length; i++)
+                assert tmp[i] == val[i];
+        }
+        finally {
+            Util.close(sock);
+        }
+    }
+
+    /** A client which sends requests but doesn't read the responses must not make the connector queue all responses */
+    public void testMaxPendingBytes() throws Exception {
+        long old_max=connector.getMaxPendingBytes();
+        connector.setMaxPendingBytes(64 * 1024);
+        Socket sock=connect();
+        try {
+            int num_gets=5000, size=10000;
+            OutputStream out=sock.getOutputStream();
+            out.write(binaryRequest(NioMemcachedConnector.SET, "pending", new byte[8], new byte[size], 1));
+            for(int i=0; i < num_gets; i++)
+                out.write(binaryRequest(NioMemcachedConnector.GET, "pending", null, null, i));
+            out.flush();
+
+            long pending=-1;
+            for(int i=0; i < 50 && pending != connector.getNumPendingBytes(); i++) { // wait until no more are queued
+                pending=connector.getNumPendingBytes();
+                Util.sleep(200);
+            }
+            System.out.println("pending bytes: " + pending + " (" + num_gets * (long)size + " bytes requested)");
+            // at most one batch of responses (header, flags and value) is queued after the limit has been exceeded
+            long max=64 * 1024 + NioMemcachedConnector.MAX_BATCH * (size + 28L);
+            assert pending <= max : "the responses of all requests were queued: " + pending;
+
+            // reading the responses resumes the reading of requests
+            DataInputStream in=new DataInputStream(sock.getInputStream());
+            readBinaryResponses(in, 1);
+            byte[] header=new byte[24], body=new byte[size + 4];
+            for(int i=0; i < num_gets; i++) {
+                in.readFully(header);
+                ByteBuffer buf=ByteBuffer.wrap(header);
+                assert buf.getShort(6) == 0 && buf.getInt(8) == body.length && buf.getInt(12) == i;
+                in.readFully(body);
+            }
+            assert connector.getNumPendingBytes() == 0;
+        }
+        finally {
+            Util.close(sock);
+            connector.setMaxPendingBytes(old_max);
+        }
+    }
+
+
+    protected static void start(PartitionedHashMap<String,byte[]> cache, final CountDownLatch joined) throws Exception {
+        cache.addMembershipListener(new ReceiverAdapter() {
+            public void viewAccepted(View view) {
+                if(view.size() == 2)
+                    joined.countDown();
+            }
+        });
+        cache.start();
+    }
+
+    protected Socket connect() throws Exception {
+        Socket sock=new Socket(connector.getLocalAddress().getAddress(), connector.getLocalAddress().getPort());
+        sock.setSoTimeout(10000);
+        return sock;
+    }
+
+    protected static void write(Socket sock, String s) throws Exception {
+        sock.getOutputStream().write(s.getBytes());
+        sock.getOutputStream().flush();
+    }
+
+    protected static byte[] binaryRequest(byte opcode, String key, byte[] extras, byte[] val, int opaque) {
+        int key_len=key != null? key.length() : 0, extras_len=extras != null? extras.length : 0,
+          val_len=val != null? val.length : 0;
+        ByteBuffer buf=ByteBuffer.allocate(24 + key_len + extras_len + val_len);
+        buf.put((byte)0x80).put(opcode).putShort((short)key_len).put((byte)extras_len).put((byte)0).putShort((short)0)
+          .putInt(key_len + extras_len + val_len).putInt(opaque).putLong(0);
+        if(extras != null)
+            buf.put(extras);
+        if(key != null)
+            buf.put(key.getBytes());
+        if(val != null)
+            buf.put(val);
+        return buf.array();
+    }
+
+    /** Reads num responses, each as status, key, value and opaque */
+    protected static List<String[]> readBinaryResponses(InputStream input, int num) throws Exception {
+        DataInputStream in=new DataInputStream(input);
+        List<String[]> rsps=new ArrayList<String[]>(num);
+        for(int i=0; i < num; i++) {
+            byte[] header=new byte[24];
+            in.readFully(header);
+            ByteBuffer buf=ByteBuffer.wrap(header);
+            assert buf.get(0) == (byte)0x81;
+            int key_len=buf.getShort(2), extras_len=buf.get(4), body_len=buf.getInt(8);
+            in.readFully(new byte[extras_len]);
+            byte[] key=new byte[key_len], val=new byte[body_len - key_len - extras_len];
+            in.readFully(key);
+            in.readFully(val);
+            rsps.add(new String[]{String.valueOf(buf.getShort(6)), new String(key), new String(val),
+              String.valueOf(buf.getInt(12))});
+        }
+        return rsps;
+    }
+}
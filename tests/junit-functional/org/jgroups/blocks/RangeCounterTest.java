@@ -0,0 +1,123 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.atomic.CounterService;
+import org.jgroups.blocks.atomic.RangeCounter;
+import org.jgroups.protocols.COUNTER;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests the range counters of {@link CounterService}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class RangeCounterTest {
+    protected JChannel       a, b, c;
+    protected CounterService s1, s2, s3;
+    protected static final String NAME="id-generator";
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        s1=new CounterService(a);
+        a.connect("RangeCounterTest");
+        b=createChannel("B");
+        s2=new CounterService(b);
+        b.connect("RangeCounterTest");
+        c=createChannel("C");
+        s3=new CounterService(c);
+        c.connect("RangeCounterTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        Util.close(c, b, a);
+    }
+
+
+    public void testReservation() {
+        RangeCounter c1=s2.getOrCreateRangeCounter(NAME, 0, 100);
+        for(int i=1; i <= 100; i++)
+            assert c1.incrementAndGet() == i;
+        assert getProtocol(b).getNumRangeReservations() == 1;
+        assert c1.get() == 100;
+
+        RangeCounter c2=s3.getOrCreateRangeCounter(NAME, 0, 100);
+        assert c2.incrementAndGet() == 101;
+        assert c1.incrementAndGet() == 201;
+        assert c1.addAndGet(10) == 211;
+        assert c1.addAndGet(500) == 800; // larger than the range: reserves exactly 500 values
+        assert s1.getOrCreateCounter(NAME, 0).get() == 800;
+        try {
+            c1.addAndGet(-1);
+            assert false : "adding a negative delta should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    public void testUniqueValues() throws Exception {
+        final Set<Long> values=Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+        final int num_values=5000;
+        Thread[] threads=new Thread[6];
+        CounterService[] services={s1, s2, s3};
+        for(int i=0; i < threads.length; i++) {
+            final RangeCounter counter=services[i % services.length].getOrCreateRangeCounter(NAME, 0, 100);
+            threads[i]=new Thread() {
+                public void run() {
+                    for(int j=0; j < num_values; j++) {
+                        long val=counter.incrementAndGet();
+                        assert values.add(val) : "duplicate value " + val;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        assert values.size() == threads.length * num_values : "values: " + values.size();
+    }
+
+    /** The new coordinator has to fetch the end of the ranges reserved by the other members */
+    public void testCoordinatorCrash() throws Exception {
+        RangeCounter c1=s2.getOrCreateRangeCounter(NAME, 0, 1000), c2=s3.getOrCreateRangeCounter(NAME, 0, 1000);
+        Set<Long> values=new HashSet<Long>();
+        for(int i=0; i < 10; i++) {
+            assert values.add(c1.incrementAndGet());
+            assert values.add(c2.incrementAndGet());
+        }
+        Util.close(a);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, b, c);
+
+        RangeCounter c3=s2.getOrCreateRangeCounter(NAME, 0, 1000);
+        for(int i=0; i < 2000; i++) {
+            long val=c3.incrementAndGet();
+            assert values.add(val) : "duplicate value " + val;
+        }
+        for(int i=0; i < 1000; i++)
+            assert values.add(c2.incrementAndGet());
+        assert values.size() == 3020;
+    }
+
+
+    protected static COUNTER getProtocol(JChannel ch) {
+        return (COUNTER)ch.getProtocolStack().findProtocol(COUNTER.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack(new COUNTER());
+        return new JChannel(stack).name(name);
+    }
+}
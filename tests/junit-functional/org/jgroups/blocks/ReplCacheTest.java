@@ -0,0 +1,214 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.View;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the bulk operations {@link ReplCache#putAll(Map, short, long, boolean)} and {@link ReplCache#getAll(java.util.Collection)}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ReplCacheTest {
+    protected ReplCache<String,String>  a, b, c;
+    protected List<ReplCache<String,String>> caches;
+    protected static final String PROPS="SHARED_LOOPBACK:PING:pbcast.NAKACK2:UNICAST3:pbcast.STABLE:pbcast.GMS:FRAG2";
+
+
+    @BeforeClass
+    protected void init() throws Exception {
+        a=new ReplCache<String,String>(PROPS, "ReplCacheTest");
+        b=new ReplCache<String,String>(PROPS, "ReplCacheTest");
+        c=new ReplCache<String,String>(PROPS, "ReplCacheTest");
+        caches=Arrays.asList(a, b, c);
+        final CountDownLatch joined=new CountDownLatch(caches.size());
+        for(ReplCache<String,String> cache: caches) {
+            cache.setMigrateData(false);
+            cache.setCallTimeout(5000);
+            cache.addMembershipListener(new ReceiverAdapter() {
+                public void viewAccepted(View view) {
+                    if(view.size() == 3)
+                        joined.countDown();
+                }
+            });
+            cache.start();
+        }
+        assert joined.await(10, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    protected void cleanup() throws Exception {
+        for(ReplCache<String,String> cache: Arrays.asList(c, b, a))
+            cache.stop();
+    }
+
+    @AfterMethod
+    protected void clear() {
+        for(ReplCache<String,String> cache: caches) {
+            cache.setBroadcastGets(true);
+            cache.setDefaultReplicationCount((short)1);
+            cache.setL1Cache(null);
+            cache.getL2Cache().getInternalMap().clear();
+        }
+    }
+
+
+    public void testPutAllWithMixedReplicationCounts() throws Exception {
+        Map<String,String> map1=createMap("one-", 20), map2=createMap("two-", 20), map_all=createMap("all-", 5);
+        a.putAll(map1, (short)1, 0, true);
+        b.putAll(map2, (short)2, 0, true);
+        c.putAll(map_all, (short)-1, 0, true);
+
+        checkOwners(map1, (short)1);
+        checkOwners(map2, (short)2);
+        checkOwners(map_all, (short)-1);
+
+        Map<String,String> all=new HashMap<String,String>(map1);
+        all.putAll(map2);
+        all.putAll(map_all);
+        for(ReplCache<String,String> cache: caches) {
+            for(boolean broadcast: new boolean[]{true, false}) {
+                cache.setBroadcastGets(broadcast);
+                Map<String,String> retval=cache.getAll(all.keySet());
+                System.out.println(cache.getLocalAddress() + ": getAll() returned " + retval.size() + " entries");
+                assert retval.equals(all) : cache.getLocalAddress() + ": " + retval;
+            }
+        }
+    }
+
+    /** Keys which are missing on one of the owners must be returned by the other owner */
+    public void testGetAllWithKeysMissingOnSomeOwners() throws Exception {
+        Map<String,String> map=createMap("key-", 30);
+        a.putAll(map, (short)2, 0, true);
+        checkOwners(map, (short)2);
+
+        for(String key: map.keySet())
+            find(owners(key, (short)2).get(0))._remove(key);
+
+        for(ReplCache<String,String> cache: caches) {
+            Map<String,String> retval=cache.getAll(map.keySet());
+            assert retval.equals(map) : cache.getLocalAddress() + ": " + retval;
+
+            // with the default replication count of 1, only the first owner is asked, and it doesn't have the keys
+            cache.setBroadcastGets(false);
+            retval=cache.getAll(map.keySet());
+            for(Map.Entry<String,String> entry: retval.entrySet())
+                assert entry.getValue().equals(map.get(entry.getKey()));
+
+            cache.setDefaultReplicationCount((short)2);
+            retval=cache.getAll(map.keySet());
+            System.out.println(cache.getLocalAddress() + ": getAll() returned " + retval.size() + " entries");
+            assert retval.equals(map) : cache.getLocalAddress() + ": " + retval;
+        }
+    }
+
+    /** Keys which are stored on a member which is not the hashed owner are only found with broadcast_gets */
+    public void testGetAllWithBroadcastGets() throws Exception {
+        Map<String,String> map=createMap("bcast-", 30);
+        Map<String,String> expected=new HashMap<String,String>();
+        for(Map.Entry<String,String> entry: map.entrySet()) {
+            Address owner=owners(entry.getKey(), (short)1).get(0);
+            if(owner.equals(a.getLocalAddress()))
+                continue; // we need a third member which is neither the owner nor the caller (A)
+            ReplCache<String,String> holder=owner.equals(b.getLocalAddress())? c : b;
+            holder._put(entry.getKey(), entry.getValue(), (short)1, 0, true);
+            expected.put(entry.getKey(), entry.getValue());
+        }
+        assert !expected.isEmpty();
+        System.out.println(expected.size() + " keys are stored on a member other than their owner");
+
+        a.setBroadcastGets(false);
+        Map<String,String> retval=a.getAll(expected.keySet());
+        assert retval.isEmpty() : "without broadcast_gets, only the owners should be asked: " + retval;
+
+        a.setBroadcastGets(true);
+        retval=a.getAll(expected.keySet());
+        System.out.println("getAll() with broadcast_gets returned " + retval.size() + " entries");
+        assert retval.equals(expected) : retval;
+    }
+
+    /** A key for which we're the only owner, but which is stored on another member, has to be fetched from all nodes */
+    public void testGetWithLocalOwner() throws Exception {
+        String key=null;
+        for(int i=1; key == null; i++)
+            if(owners("local-" + i, (short)1).get(0).equals(a.getLocalAddress()))
+                key="local-" + i;
+        b._put(key, "val", (short)1, 0, true);
+        a.setBroadcastGets(false);
+        assert "val".equals(a.get(key));
+        assert a.getAll(Arrays.asList(key)).get(key).equals("val");
+    }
+
+    /** putAll() has to evict the keys from the L1 caches of the members which don't store them */
+    public void testPutAllEvictsL1Caches() throws Exception {
+        for(ReplCache<String,String> cache: caches)
+            cache.setL1Cache(new Cache<String,String>());
+        Map<String,String> map=createMap("l1-", 20);
+        a.putAll(map, (short)1, 0, true);
+        for(ReplCache<String,String> cache: caches)
+            for(String key: map.keySet()) {
+                assert map.get(key).equals(cache.get(key));
+                assert cache.getL1Cache().get(key) != null : key + " is not in the L1 cache of " + cache.getLocalAddress();
+            }
+
+        Map<String,String> new_map=new HashMap<String,String>();
+        for(String key: map.keySet())
+            new_map.put(key, "new-" + map.get(key));
+        b.putAll(new_map, (short)1, 0, true);
+        for(ReplCache<String,String> cache: caches)
+            for(String key: new_map.keySet()) {
+                String val=cache.get(key);
+                assert new_map.get(key).equals(val) : cache.getLocalAddress() + ": " + key + "=" + val;
+            }
+    }
+
+
+    /** Checks that every key is stored by exactly the members picked by the hash function */
+    protected void checkOwners(Map<String,String> map, short repl_count) {
+        for(Map.Entry<String,String> entry: map.entrySet()) {
+            List<Address> owners=repl_count == -1? null : owners(entry.getKey(), repl_count);
+            for(ReplCache<String,String> cache: caches) {
+                ReplCache.Value<String> val=cache.getL2Cache().get(entry.getKey());
+                boolean owner=owners == null || owners.contains(cache.getLocalAddress());
+                if(owner) {
+                    assert val != null : entry.getKey() + " is missing on " + cache.getLocalAddress();
+                    assert val.getVal().equals(entry.getValue());
+                    assert val.getReplicationCount() == repl_count;
+                }
+                else
+                    assert val == null : entry.getKey() + " should not be stored on " + cache.getLocalAddress();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected List<Address> owners(String key, short repl_count) {
+        return a.getHashFunction().hash(key, repl_count);
+    }
+
+    protected ReplCache<String,String> find(Address addr) {
+        for(ReplCache<String,String> cache: caches)
+            if(cache.getLocalAddress().equals(addr))
+                return cache;
+        throw new IllegalArgumentException(addr + " not found");
+    }
+
+    protected static Map<String,String> createMap(String prefix, int num) {
+        Map<String,String> map=new HashMap<String,String>(num);
+        for(int i=1; i <= num; i++)
+            map.put(prefix + i, "val-" + i);
+        return map;
+    }
+}
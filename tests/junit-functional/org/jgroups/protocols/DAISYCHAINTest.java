@@ -0,0 +1,141 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests relaying of multicasts by {@link DAISYCHAIN} in ring and tree mode
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class DAISYCHAINTest {
+    protected static final int NUM=7, NUM_MSGS=20;
+    protected JChannel[]       channels;
+    protected MyReceiver[]     receivers;
+
+
+    @AfterMethod
+    protected void cleanup() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public void testTree() throws Exception {
+        createChannels("tree", 2, 0);
+        send(channels[0], channels[3]);
+        checkReceived(channels[0], channels[3]);
+        int forwarded=0;
+        for(JChannel ch: channels)
+            forwarded+=getProtocol(ch).msgs_forwarded;
+        // every message reaches the NUM-1 other members once; the root sends 2 copies, its children the others
+        assert forwarded >= 2 * NUM_MSGS * (NUM - 1 - 2) : "forwarded=" + forwarded;
+    }
+
+    public void testRing() throws Exception {
+        createChannels("ring", 1, 0);
+        send(channels[1], channels[5]);
+        checkReceived(channels[1], channels[5]);
+        int forwarded=0;
+        for(JChannel ch: channels)
+            forwarded+=getProtocol(ch).msgs_forwarded;
+        assert forwarded >= 2 * NUM_MSGS * (NUM - 2) : "forwarded=" + forwarded;
+    }
+
+    /** Below min_members, multicasts are sent directly by the transport */
+    public void testMinMembers() throws Exception {
+        createChannels("tree", 2, NUM + 1);
+        send(channels[0]);
+        for(MyReceiver r: receivers)
+            waitForMessages(r, NUM_MSGS);
+        for(JChannel ch: channels)
+            assert getProtocol(ch).msgs_forwarded == 0 && getProtocol(ch).msgs_sent == 0;
+    }
+
+
+    protected void send(JChannel ... senders) throws Exception {
+        for(JChannel sender: senders)
+            for(int i=1; i <= NUM_MSGS; i++)
+                sender.send(null, sender.getName() + ":" + i);
+    }
+
+    protected void checkReceived(JChannel ... senders) {
+        for(MyReceiver r: receivers) {
+            waitForMessages(r, senders.length * NUM_MSGS);
+            List<String> msgs=r.list();
+            // messages from the same sender need to be received in order and without duplicates
+            for(JChannel sender: senders) {
+                List<Integer> seqnos=new ArrayList<Integer>();
+                for(String msg: msgs) {
+                    String[] tmp=msg.split(":");
+                    if(tmp[0].equals(sender.getName()))
+                        seqnos.add(Integer.valueOf(tmp[1]));
+                }
+                assert seqnos.size() == NUM_MSGS : r + ": " + seqnos;
+                for(int i=0; i < seqnos.size(); i++)
+                    assert seqnos.get(i) == i+1 : r + ": " + seqnos;
+            }
+        }
+    }
+
+    protected static void waitForMessages(MyReceiver r, int expected) {
+        for(int i=0; i < 50 && r.size() < expected; i++)
+            Util.sleep(100);
+        assert r.size() == expected : r + " received " + r.size() + " messages, but expected " + expected + ": " + r.list();
+    }
+
+    protected void createChannels(String mode, int fanout, int min_members) throws Exception {
+        channels=new JChannel[NUM];
+        receivers=new MyReceiver[NUM];
+        for(int i=0; i < NUM; i++) {
+            Protocol[] stack={
+              new SHARED_LOOPBACK(),
+              new DAISYCHAIN().setMode(mode).setFanout(fanout).setMinMembers(min_members),
+              new PING().timeout(1000),
+              new NAKACK2(),
+              new UNICAST3(),
+              new STABLE(),
+              new GMS()
+            };
+            channels[i]=new JChannel(stack).name("A" + i);
+            channels[i].setReceiver(receivers[i]=new MyReceiver("A" + i));
+            channels[i].connect("DAISYCHAINTest");
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+        for(JChannel ch: channels)
+            getProtocol(ch).resetStats();
+    }
+
+    protected static DAISYCHAIN getProtocol(JChannel ch) {
+        return (DAISYCHAIN)ch.getProtocolStack().findProtocol(DAISYCHAIN.class);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final String       name;
+        protected final List<String> msgs=Collections.synchronizedList(new ArrayList<String>());
+
+        public MyReceiver(String name) {this.name=name;}
+
+        public void receive(Message msg) {
+            msgs.add((String)msg.getObject());
+        }
+
+        public int          size()     {return msgs.size();}
+        public List<String> list()     {return new ArrayList<String>(msgs);}
+        public String       toString() {return name;}
+    }
+}
@@ -0,0 +1,180 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests ENCRYPT with AES/GCM (per-message IV) and with parallel encryption/decryption using the cipher pool
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ENCRYPT_GCM_Test {
+    protected static final short  ENCRYPT_ID=ClassConfigurator.getProtocolId(ENCRYPT.class);
+    protected static final String GCM="AES/GCM/NoPadding";
+
+
+    public void testUniqueIVs() throws Exception {
+        ENCRYPT sender=create(GCM);
+        Queue<Message> sent=captureDown(sender);
+        sender.down(new Event(Event.MSG, new Message(null, null, "hello")));
+        sender.down(new Event(Event.MSG, new Message(null, null, "hello")));
+
+        Message m1=sent.poll(), m2=sent.poll();
+        byte[] iv1=((ENCRYPT.EncryptHeader)m1.getHeader(ENCRYPT_ID)).iv, iv2=((ENCRYPT.EncryptHeader)m2.getHeader(ENCRYPT_ID)).iv;
+        assert iv1 != null && iv2 != null && !Arrays.equals(iv1, iv2);
+        assert !Arrays.equals(m1.getBuffer(), m2.getBuffer()) : "same plaintext must not result in the same ciphertext";
+
+        ENCRYPT receiver=create(GCM);
+        Queue<Message> received=captureUp(receiver);
+        receiver.up(new Event(Event.MSG, m1));
+        receiver.up(new Event(Event.MSG, m2));
+        assert received.size() == 2;
+        for(Message msg: received)
+            assert msg.getObject().equals("hello");
+    }
+
+    /** GCM authenticates the ciphertext, so a modified message has to be dropped */
+    public void testTamperedMessageIsDropped() throws Exception {
+        ENCRYPT sender=create(GCM), receiver=create(GCM);
+        Queue<Message> sent=captureDown(sender), received=captureUp(receiver);
+        sender.down(new Event(Event.MSG, new Message(null, null, "hello world")));
+        Message msg=sent.poll();
+        msg.getRawBuffer()[msg.getOffset() + 3]^=1;
+        receiver.up(new Event(Event.MSG, msg));
+        assert received.isEmpty();
+    }
+
+    public void testEncryptEntireMessage() throws Exception {
+        ENCRYPT sender=create(GCM), receiver=create(GCM);
+        sender.setValue("encrypt_entire_message", true);
+        receiver.setValue("encrypt_entire_message", true);
+        Queue<Message> sent=captureDown(sender), received=captureUp(receiver);
+        Address src=Util.createRandomAddress("A");
+        sender.down(new Event(Event.MSG, new Message(null, src, "hello").setFlag(Message.Flag.OOB)));
+        receiver.up(new Event(Event.MSG, sent.poll()));
+        Message msg=received.poll();
+        assert msg.getObject().equals("hello") && msg.getSrc().equals(src) && msg.isFlagSet(Message.Flag.OOB);
+    }
+
+    public void testBatchDecryption() throws Exception {
+        for(String algorithm: new String[]{GCM, "AES/CBC/PKCS5Padding", "AES"}) {
+            ENCRYPT sender=create(algorithm), receiver=create(algorithm);
+            Queue<Message> sent=captureDown(sender);
+            final List<MessageBatch> batches=new ArrayList<MessageBatch>();
+            receiver.setUpProtocol(new Protocol() {
+                public void up(MessageBatch batch) {batches.add(batch);}
+            });
+
+            for(int i=1; i <= 10; i++)
+                sender.down(new Event(Event.MSG, new Message(null, null, i)));
+            MessageBatch batch=new MessageBatch(null, null, "cluster", true, new ArrayList<Message>(sent));
+            receiver.up(batch);
+            assert batches.size() == 1;
+            int i=1;
+            for(Message msg: batches.get(0))
+                assert msg.getObject().equals(i++) : algorithm + ": " + msg.getObject() + " != " + (i-1);
+            assert i == 11;
+        }
+    }
+
+    /** Encrypts and decrypts from many threads at the same time; this would fail if ciphers were shared */
+    public void testConcurrentEncryption() throws Exception {
+        final ENCRYPT sender=create(GCM), receiver=create(GCM);
+        sender.cipher_pool_size=receiver.cipher_pool_size=4;
+        sender.init(); receiver.init();
+        final Queue<Message> sent=captureDown(sender), received=captureUp(receiver);
+        final int num_threads=10, num_msgs=1000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[num_threads];
+        for(int i=0; i < threads.length; i++) {
+            final int id=i;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < num_msgs; j++)
+                            sender.down(new Event(Event.MSG, new Message(null, null, id + "-" + j)));
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        assert sent.size() == num_threads * num_msgs;
+
+        final Collection<Message> list=new ArrayList<Message>(sent);
+        final Iterator<Message> it=list.iterator();
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    for(;;) {
+                        Message msg;
+                        synchronized(it) {
+                            if(!it.hasNext())
+                                return;
+                            msg=it.next();
+                        }
+                        receiver.up(new Event(Event.MSG, msg));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        assert received.size() == num_threads * num_msgs : "received " + received.size() + " messages";
+        Set<Object> payloads=new HashSet<Object>();
+        for(Message msg: received)
+            payloads.add(msg.getObject());
+        assert payloads.size() == num_threads * num_msgs;
+    }
+
+
+    protected static ENCRYPT create(String algorithm) throws Exception {
+        ENCRYPT encrypt=new ENCRYPT();
+        encrypt.keyStoreName="defaultStore.keystore";
+        encrypt.symAlgorithm=algorithm;
+        encrypt.init();
+        return encrypt;
+    }
+
+    protected static Queue<Message> captureDown(ENCRYPT encrypt) {
+        final Queue<Message> queue=new ConcurrentLinkedQueue<Message>();
+        encrypt.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {
+                if(evt.getType() == Event.MSG)
+                    queue.add((Message)evt.getArg());
+                return null;
+            }
+        });
+        return queue;
+    }
+
+    protected static Queue<Message> captureUp(ENCRYPT encrypt) {
+        final Queue<Message> queue=new ConcurrentLinkedQueue<Message>();
+        encrypt.setUpProtocol(new Protocol() {
+            public Object up(Event evt) {
+                if(evt.getType() == Event.MSG)
+                    queue.add((Message)evt.getArg());
+                return null;
+            }
+        });
+        return queue;
+    }
+}
@@ -0,0 +1,148 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests failure detection with {@link FD_SWIM}. Crashes are simulated by discarding all traffic of a member
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class FD_SWIMTest {
+    protected static final int NUM=5;
+    protected JChannel[]       channels;
+
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        channels=new JChannel[NUM];
+        for(int i=0; i < NUM; i++) {
+            Protocol[] stack={
+              new SHARED_LOOPBACK(),
+              new DISCARD(),
+              new PING().timeout(1000),
+              new FD_SWIM().setInterval(200).setPingTimeout(80).setSuspectTimeout(1000),
+              new NAKACK2(),
+              new UNICAST3(),
+              new STABLE(),
+              new GMS()
+            };
+            channels[i]=new JChannel(stack).name(String.valueOf((char)('A' + i)));
+            channels[i].connect("FD_SWIMTest");
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public void testCrashedMemberIsExcluded() throws Exception {
+        crash(channels[3]);
+        waitForViewWithout(channels[3].getAddress(), channels[0], channels[1], channels[2], channels[4]);
+        for(JChannel ch: Arrays.asList(channels[0], channels[1], channels[2], channels[4]))
+            assert getProtocol(ch).getNumPingsSent() > 0;
+    }
+
+    /** The first member which isn't confirmed as dead (B) takes over when the coordinator crashes */
+    public void testCrashedCoordinator() throws Exception {
+        crash(channels[0]);
+        waitForViewWithout(channels[0].getAddress(), channels[1], channels[2], channels[3], channels[4]);
+        assert channels[1].getView().getMembers().get(0).equals(channels[1].getAddress());
+        assert getProtocol(channels[1]).getNumSuspectEvents() > 0;
+    }
+
+    /**
+     * The coordinator (A) and D crash: D can be confirmed while A is still the first non-confirmed member, so B has
+     * to suspect D (again) once it has become the first non-confirmed member
+     */
+    public void testCrashedCoordinatorAndMember() throws Exception {
+        crash(channels[0]);
+        crash(channels[3]);
+        waitForViewWithout(Arrays.asList(channels[0].getAddress(), channels[3].getAddress()),
+                           channels[1], channels[2], channels[4]);
+        assert channels[1].getView().getMembers().get(0).equals(channels[1].getAddress());
+        assert getProtocol(channels[1]).getNumSuspectEvents() > 0;
+    }
+
+    /** A member which is unreachable for less than suspect_timeout refutes the suspicion and stays in the view */
+    public void testRefutation() throws Exception {
+        DISCARD discard=(DISCARD)channels[2].getProtocolStack().findProtocol(DISCARD.class);
+        discard.setDiscardAll(true);
+        Util.sleep(600);
+        discard.setDiscardAll(false);
+
+        FD_SWIM fd=getProtocol(channels[2]);
+        for(int i=0; i < 20 && fd.getNumRefutations() == 0; i++)
+            Util.sleep(100);
+        assert fd.getNumRefutations() > 0;
+        assert fd.getIncarnation() > 0;
+
+        Util.sleep(1500); // longer than suspect_timeout
+        for(JChannel ch: channels) {
+            assert ch.getView().size() == NUM : ch.getAddress() + ": " + ch.getView();
+            assert getProtocol(ch).getConfirmedMembers().equals("[]") : getProtocol(ch).getConfirmedMembers();
+        }
+    }
+
+    public void testHeaderSerialization() throws Exception {
+        FD_SWIM.SwimHeader hdr=new FD_SWIM.SwimHeader(FD_SWIM.SwimHeader.ACK, 322649, channels[1].getAddress(),
+                                                      channels[2].getAddress());
+        hdr.updates=Arrays.asList(new FD_SWIM.Update(FD_SWIM.Update.SUSPECT, channels[3].getAddress(), 2),
+                                  new FD_SWIM.Update(FD_SWIM.Update.ALIVE, channels[4].getAddress(), 5));
+        byte[] buf=Util.streamableToByteBuffer(hdr);
+        assert buf.length == hdr.size() : "size()=" + hdr.size() + ", serialized size=" + buf.length;
+        FD_SWIM.SwimHeader copy=(FD_SWIM.SwimHeader)Util.streamableFromByteBuffer(FD_SWIM.SwimHeader.class, buf);
+        assert copy.getType() == FD_SWIM.SwimHeader.ACK && copy.getSeqno() == 322649;
+        assert copy.toString().equals(hdr.toString()) : copy + " != " + hdr;
+    }
+
+
+    protected static void crash(JChannel ch) {
+        ((DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(true);
+    }
+
+    protected static void waitForViewWithout(Address crashed, JChannel ... chs) {
+        waitForViewWithout(Collections.singletonList(crashed), chs);
+    }
+
+    protected static void waitForViewWithout(List<Address> crashed, JChannel ... chs) {
+        for(int i=0; i < 50; i++) {
+            boolean done=true;
+            for(JChannel ch: chs) {
+                View view=ch.getView();
+                if(view.size() != chs.length || !Collections.disjoint(view.getMembers(), crashed))
+                    done=false;
+            }
+            if(done)
+                break;
+            Util.sleep(200);
+        }
+        for(JChannel ch: chs) {
+            View view=ch.getView();
+            System.out.println(ch.getAddress() + ": " + view);
+            assert view.size() == chs.length && Collections.disjoint(view.getMembers(), crashed) : ch.getAddress() + ": " + view;
+        }
+    }
+
+    protected static FD_SWIM getProtocol(JChannel ch) {
+        return (FD_SWIM)ch.getProtocolStack().findProtocol(FD_SWIM.class);
+    }
+}
@@ -0,0 +1,100 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that messages to members whose physical addresses are not in the cache are queued and sent when the
+ * addresses have been fetched (TP.async_addr_resolution), and that the missing addresses are fetched together
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class AddressResolutionTest {
+    protected static final int NUM_MSGS=20;
+    protected JChannel         a, b, c;
+    protected MyReceiver       rb, rc;
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        b.setReceiver(rb=new MyReceiver());
+        c.setReceiver(rc=new MyReceiver());
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        Util.close(c, b, a);
+    }
+
+
+    public void testMissingAddressesAreFetchedTogether() throws Exception {
+        TP transport=a.getProtocolStack().getTransport();
+        transport.clearLogicalAddressCache();
+        long lookups=transport.getNumAddressLookups();
+
+        for(int i=0; i < NUM_MSGS; i++) {
+            a.send(b.getAddress(), i);
+            a.send(c.getAddress(), i);
+        }
+        for(int i=0; i < 20 && (rb.count() < NUM_MSGS || rc.count() < NUM_MSGS); i++)
+            Util.sleep(500);
+        System.out.println("B received " + rb.count() + " msgs, C received " + rc.count() + " msgs, lookups: " +
+                             (transport.getNumAddressLookups() - lookups));
+        assert rb.count() == NUM_MSGS && rc.count() == NUM_MSGS;
+        assert transport.getNumPendingMessages() == 0;
+        assert transport.getNumAddressLookups() - lookups == 1
+          : "expected 1 lookup, but got " + (transport.getNumAddressLookups() - lookups);
+    }
+
+
+    /** Messages to an unknown member are dropped only after the last lookup had who_has_cache_timeout ms to return */
+    public void testMessagesToUnknownMemberAreDroppedAfterLookups() throws Exception {
+        TP transport=a.getProtocolStack().getTransport();
+        transport.setValue("physical_addr_max_fetch_attempts", 2);
+        long lookups=transport.getNumAddressLookups();
+        Address unknown=Util.createRandomAddress("X");
+        a.send(new Message(unknown, "hello").setFlag(Message.Flag.NO_RELIABILITY)); // no retransmissions by UNICAST3
+
+        Util.sleep(1000);
+        assert transport.getNumPendingMessages() == 1 : "message was dropped before the lookup could return";
+        for(int i=0; i < 20 && transport.getNumPendingMessages() > 0; i++)
+            Util.sleep(500);
+        System.out.println("lookups: " + (transport.getNumAddressLookups() - lookups));
+        assert transport.getNumPendingMessages() == 0;
+        assert transport.getNumAddressLookups() - lookups == 2
+          : "expected 2 lookups, but got " + (transport.getNumAddressLookups() - lookups);
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        JChannel ch=new JChannel(new UDP(),
+                                 new PING().setValue("timeout", 1000).setValue("num_initial_members", 3),
+                                 new NAKACK2(),
+                                 new UNICAST3(),
+                                 new GMS().setValue("print_local_addr", false)).name(name);
+        ch.connect("AddressResolutionTest");
+        return ch;
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final AtomicInteger count=new AtomicInteger();
+
+        public int  count()                {return count.get();}
+        public void receive(Message msg)   {count.incrementAndGet();}
+    }
+}
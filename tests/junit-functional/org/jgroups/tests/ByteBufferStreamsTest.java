@@ -0,0 +1,152 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.ByteBufferInputStream;
+import org.jgroups.util.ByteBufferOutputStream;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link ByteBufferOutputStream} and {@link ByteBufferInputStream}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ByteBufferStreamsTest {
+    protected static final short TP_ID=100;
+    protected static final String UTF="hello w\u00f6rld \u20ac \u0000 \ud834\udd1e";
+
+    public void testCompatibilityWithDataOutputStream() throws Exception {
+        for(boolean direct: new boolean[]{false, true}) {
+            ByteBufferOutputStream out=new ByteBufferOutputStream(1, direct);
+            write(out);
+            ByteArrayOutputStream expected=new ByteArrayOutputStream();
+            write(new DataOutputStream(expected));
+
+            Buffer buf=out.getBuffer();
+            assert buf.getLength() == expected.size() : "length is " + buf.getLength() + ", expected " + expected.size();
+            assert java.util.Arrays.equals(buf.copy().getBuf(), expected.toByteArray());
+            assert out.isDirect() == direct;
+
+            read(new DataInputStream(new ByteArrayInputStream(buf.getBuf(), buf.getOffset(), buf.getLength())));
+            ByteBuffer bb=out.getByteBuffer();
+            bb.flip();
+            ByteBufferInputStream in=new ByteBufferInputStream(bb);
+            read(in);
+            assert in.remaining() == 0;
+        }
+    }
+
+    public void testVarLong() throws Exception {
+        long[] values={0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        ByteBufferOutputStream out=new ByteBufferOutputStream(8);
+        int expected_size=0;
+        for(long val: values) {
+            out.writeVarLong(val);
+            expected_size+=ByteBufferOutputStream.varLongSize(val);
+        }
+        assert out.size() == expected_size;
+        assert ByteBufferOutputStream.varLongSize(127) == 1 && ByteBufferOutputStream.varLongSize(128) == 2;
+        assert ByteBufferOutputStream.varLongSize(-1) == 10;
+
+        Buffer buf=out.getBuffer();
+        ByteBufferInputStream in=new ByteBufferInputStream(buf.getBuf(), buf.getOffset(), buf.getLength());
+        for(long val: values) {
+            long tmp=in.readVarLong();
+            assert tmp == val : "read " + tmp + ", expected " + val;
+        }
+    }
+
+    public void testReset() throws Exception {
+        ByteBufferOutputStream out=new ByteBufferOutputStream(16);
+        out.writeLong(322649);
+        out.writeLong(1);
+        out.writeLong(2); // grows the buffer
+        out.reset();
+        assert out.size() == 0;
+        out.writeInt(5);
+        assert out.size() == 4;
+        assert new ByteBufferInputStream(out.getBuffer().getBuf(), 0, 4).readInt() == 5;
+    }
+
+    public void testEOF() throws Exception {
+        ByteBufferInputStream in=new ByteBufferInputStream(new byte[]{1,2,3}, 0, 3);
+        assert in.readByte() == 1;
+        try {
+            in.readInt();
+            assert false : "reading past the end of the buffer should have thrown an EOFException";
+        }
+        catch(EOFException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+        assert in.skipBytes(10) == 2;
+    }
+
+    public void testMessageList() throws Exception {
+        Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+        List<Message> msgs=new ArrayList<Message>();
+        for(int i=1; i <= 10; i++)
+            msgs.add(new Message(b, a, i).putHeader(TP_ID, new TpHeader("cluster")));
+
+        ByteBufferOutputStream out=new ByteBufferOutputStream(64, true);
+        TP.writeMessageList(b, a, "cluster", msgs, out, false, TP_ID);
+        ByteBuffer buf=out.getByteBuffer();
+        buf.flip();
+        ByteBufferInputStream in=new ByteBufferInputStream(buf);
+        assert in.readShort() > 0; // version
+        in.readByte();             // flags
+
+        List<Message> list=TP.readMessageList(in, TP_ID);
+        assert list.size() == msgs.size();
+        for(int i=0; i < list.size(); i++) {
+            Message msg=list.get(i);
+            assert msg.getObject().equals(i + 1);
+            assert msg.getSrc().equals(a) && msg.getDest().equals(b);
+            assert msg.getHeader(TP_ID) != null;
+        }
+    }
+
+
+    protected static void write(DataOutput out) throws IOException {
+        out.writeBoolean(true);
+        out.writeByte(-5);
+        out.writeShort(-322);
+        out.writeChar('\u20ac');
+        out.writeInt(322649);
+        out.writeLong(Long.MIN_VALUE + 1);
+        out.writeFloat(3.14f);
+        out.writeDouble(-2.71);
+        out.write(new byte[]{1, 2, 3, 4, 5}, 1, 3);
+        out.writeUTF(UTF);
+        out.writeUTF("");
+        out.writeChars("ab");
+        out.writeBytes("cd\n");
+    }
+
+    protected static void read(DataInput in) throws IOException {
+        assert in.readBoolean();
+        assert in.readByte() == -5;
+        assert in.readShort() == -322;
+        assert in.readChar() == '\u20ac';
+        assert in.readInt() == 322649;
+        assert in.readLong() == Long.MIN_VALUE + 1;
+        assert in.readFloat() == 3.14f;
+        assert in.readDouble() == -2.71;
+        byte[] tmp=new byte[3];
+        in.readFully(tmp);
+        assert tmp[0] == 2 && tmp[2] == 4;
+        assert in.readUTF().equals(UTF);
+        assert in.readUTF().isEmpty();
+        assert in.readChar() == 'a' && in.readChar() == 'b';
+        assert in.readUnsignedByte() == 'c' && in.readUnsignedByte() == 'd' && in.readByte() == '\n';
+    }
+}
@@ -0,0 +1,96 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.Header;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.lang.reflect.Modifier;
+
+/**
+ * Tests the factories of {@link ClassConfigurator}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ClassConfiguratorTest {
+    protected static final short MAGIC=2010;
+
+    /** The factories have to create instances of exactly the class registered under their magic number */
+    public void testBuiltinFactories() throws Exception {
+        int num_factories=0;
+        for(short magic=0; magic < 150; magic++) {
+            Class<?> clazz=ClassConfigurator.get(magic);
+            if(clazz == null || ClassConfigurator.getFactory(magic) == null)
+                continue;
+            Object obj=ClassConfigurator.create(magic);
+            assert obj.getClass() == clazz : "factory for " + magic + " created " + obj.getClass() + " instead of " + clazz;
+            num_factories++;
+        }
+        System.out.println("built-in factories: " + num_factories);
+        assert ClassConfigurator.getFactory(ClassConfigurator.getMagicNumber(TpHeader.class)) != null;
+    }
+
+    /** Every concrete class in jg-magic-map.xml with a no-arg constructor (of any visibility) has to get a factory */
+    public void testFactoriesAreCreatedFromMagicMap() throws Exception {
+        for(short magic=0; magic < 150; magic++) {
+            Class<?> clazz=ClassConfigurator.get(magic);
+            if(clazz == null || Modifier.isAbstract(clazz.getModifiers()))
+                continue;
+            boolean has_ctor=true;
+            try {
+                clazz.getDeclaredConstructor();
+            }
+            catch(NoSuchMethodException ex) {
+                has_ctor=false;
+            }
+            assert has_ctor == (ClassConfigurator.getFactory(magic) != null) : clazz + " (" + magic + ")";
+        }
+        Class<?> clazz=Class.forName("org.jgroups.protocols.SCOPE$ScopeHeader");
+        assert ClassConfigurator.create(ClassConfigurator.getMagicNumber(clazz)).getClass() == clazz;
+    }
+
+    public void testUserDefinedFactory() throws Exception {
+        final int[] count={0};
+        ClassConfigurator.add(MAGIC, MyHeader.class, new ClassConfigurator.ObjectFactory<MyHeader>() {
+            public MyHeader create() {
+                count[0]++;
+                return new MyHeader();
+            }
+        });
+        assert ClassConfigurator.create(MAGIC) instanceof MyHeader;
+        assert count[0] == 1;
+
+        ClassConfigurator.setFactory(MAGIC, null);
+        assert ClassConfigurator.create(MAGIC) instanceof MyHeader;
+        assert count[0] == 1;
+        assert ClassConfigurator.create((short)(MAGIC + 1)) == null;
+    }
+
+    public void testSetFactoryForUnknownMagicNumber() {
+        try {
+            ClassConfigurator.setFactory((short)(MAGIC + 2), null);
+            assert false : "setting the factory of an unknown magic number should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    public void testReadGenericStreamable() throws Exception {
+        TpHeader hdr=new TpHeader("demo");
+        byte[] buf=Util.objectToByteBuffer(hdr); // uses writeGenericStreamable()
+        TpHeader copy=(TpHeader)Util.objectFromByteBuffer(buf);
+        assert copy.channel_name.equals("demo");
+    }
+
+
+    public static class MyHeader extends Header {
+        public int  size()                                      {return 0;}
+        public void writeTo(DataOutput out) throws Exception   {}
+        public void readFrom(DataInput in) throws Exception    {}
+    }
+}
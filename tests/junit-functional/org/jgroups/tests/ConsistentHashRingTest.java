@@ -0,0 +1,125 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.blocks.ConsistentHashRing;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests {@link ConsistentHashRing}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ConsistentHashRingTest {
+    protected static final int NUM_KEYS=100000;
+
+    public void testEmptyRing() {
+        ConsistentHashRing<String> ring=new ConsistentHashRing<String>();
+        assert ring.owner("bla") == null;
+        assert ring.hash("bla", (short)2).isEmpty();
+    }
+
+    public void testBalance() {
+        List<Address> members=createMembers(10);
+        ConsistentHashRing<Integer> ring=new ConsistentHashRing<Integer>();
+        ring.installNodes(members);
+
+        Map<Address,Integer> counts=new HashMap<Address,Integer>();
+        for(int i=0; i < NUM_KEYS; i++) {
+            Address owner=ring.owner(i);
+            Integer count=counts.get(owner);
+            counts.put(owner, count == null? 1 : count + 1);
+        }
+        System.out.println("counts = " + counts);
+        assert counts.size() == members.size();
+        int expected=NUM_KEYS / members.size();
+        for(int count: counts.values())
+            assert count > expected * 0.7 && count < expected * 1.3 : "unbalanced: " + counts;
+    }
+
+    public void testOnlyKeysOfNewMemberMove() {
+        List<Address> members=createMembers(10);
+        ConsistentHashRing<Integer> before=new ConsistentHashRing<Integer>(), after=new ConsistentHashRing<Integer>();
+        before.installNodes(members);
+        Address joiner=Util.createRandomAddress("joiner");
+        List<Address> new_members=new ArrayList<Address>(members);
+        new_members.add(joiner);
+        after.installNodes(new_members);
+
+        int moved=0;
+        for(int i=0; i < NUM_KEYS; i++) {
+            Address old_owner=before.owner(i), new_owner=after.owner(i);
+            if(!old_owner.equals(new_owner)) {
+                assert new_owner.equals(joiner) : "key " + i + " moved from " + old_owner + " to " + new_owner;
+                moved++;
+            }
+        }
+        System.out.println("moved " + moved + " keys");
+        assert moved < NUM_KEYS / new_members.size() * 1.3;
+    }
+
+    public void testReplicas() {
+        List<Address> members=createMembers(5);
+        ConsistentHashRing<String> ring=new ConsistentHashRing<String>();
+        ring.installNodes(members);
+
+        for(int i=0; i < 1000; i++) {
+            String key="key-" + i;
+            List<Address> owners=ring.hash(key, (short)3);
+            assert owners.size() == 3;
+            assert new HashSet<Address>(owners).size() == 3 : "duplicate owners: " + owners;
+            assert owners.get(0).equals(ring.owner(key));
+            assert owners.equals(ring.hash(key, (short)3));
+        }
+
+        assert ring.hash("bla", (short)-1).size() == members.size();
+        assert ring.hash("bla", (short)10).size() == members.size();
+        assert ring.hash("bla", (short)-1).get(0).equals(ring.owner("bla"));
+    }
+
+    public void testReplicasOnLeave() {
+        List<Address> members=createMembers(8);
+        ConsistentHashRing<String> before=new ConsistentHashRing<String>(), after=new ConsistentHashRing<String>();
+        before.installNodes(members);
+        Address leaver=members.get(3);
+        List<Address> new_members=new ArrayList<Address>(members);
+        new_members.remove(leaver);
+        after.installNodes(new_members);
+
+        for(int i=0; i < 1000; i++) {
+            String key="key-" + i;
+            List<Address> old_owners=before.hash(key, (short)2), new_owners=after.hash(key, (short)2);
+            if(!old_owners.contains(leaver))
+                assert old_owners.equals(new_owners) : "owners of " + key + " changed from " + old_owners + " to " + new_owners;
+        }
+    }
+
+    public void testHashWithMembership() {
+        List<Address> members=createMembers(4);
+        ConsistentHashRing<String> ring=new ConsistentHashRing<String>();
+        ring.installNodes(members);
+        List<Address> subset=members.subList(1, 3), other=members.subList(0, 3);
+        ConsistentHashRing<String> subset_ring=new ConsistentHashRing<String>(), other_ring=new ConsistentHashRing<String>();
+        subset_ring.installNodes(subset);
+        other_ring.installNodes(other);
+        for(int i=0; i < 100; i++) {
+            // alternate between memberships: the ring created for the last membership must not be used for another one
+            String key="key-" + i;
+            Address owner=ring.hash(key, subset);
+            assert subset.contains(owner);
+            assert owner.equals(subset_ring.owner(key));
+            assert ring.hash(key, other).equals(other_ring.owner(key));
+            assert ring.hash(key, members).equals(ring.owner(key));
+        }
+    }
+
+    protected static List<Address> createMembers(int num) {
+        List<Address> members=new ArrayList<Address>(num);
+        for(int i=0; i < num; i++)
+            members.add(Util.createRandomAddress(String.valueOf((char)('A' + i))));
+        return members;
+    }
+}
@@ -0,0 +1,105 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.protocols.tom.DeliveryManagerImpl;
+import org.jgroups.protocols.tom.MessageID;
+import org.jgroups.util.Util;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the delivery order of {@link DeliveryManagerImpl} when messages are marked ready to deliver in batches
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class DeliveryManagerImplTest {
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+    protected DeliveryManagerImpl  mgr;
+    protected MessageID            id1, id2, id3;
+
+    @BeforeMethod
+    protected void setUp() {
+        mgr=new DeliveryManagerImpl();
+        id1=new MessageID(A, 1);
+        id2=new MessageID(B, 1);
+        id3=new MessageID(A, 2);
+        // proposed sequence numbers
+        mgr.addNewMessageToDeliver(id1, new Message(null, "m1"), 1);
+        mgr.addNewMessageToDeliver(id2, new Message(null, "m2"), 2);
+        mgr.addNewMessageToDeliver(id3, new Message(null, "m3"), 3);
+    }
+
+
+    public void testBatchedMarkOrdersByFinalSequenceNumber() throws Exception {
+        Map<MessageID,Long> final_seqnos=new LinkedHashMap<MessageID,Long>();
+        final_seqnos.put(id1, 10L);
+        final_seqnos.put(id2, 5L);
+        final_seqnos.put(id3, 7L);
+        mgr.markReadyToDeliver(final_seqnos);
+        List<String> delivered=deliver(3);
+        System.out.println("delivered: " + delivered);
+        assert delivered.equals(Arrays.asList("m2", "m3", "m1")) : delivered;
+    }
+
+    public void testBatchedMarkWaitsForUnmarkedMessage() throws Exception {
+        Map<MessageID,Long> final_seqnos=new LinkedHashMap<MessageID,Long>();
+        final_seqnos.put(id1, 4L);
+        final_seqnos.put(id3, 6L);
+        mgr.markReadyToDeliver(final_seqnos); // m2 (proposed seqno 2) is first and not ready: nothing is delivered
+
+        final List<String> delivered=new ArrayList<String>();
+        Thread deliverer=new Thread() {
+            public void run() {
+                try {
+                    delivered.addAll(deliver(3));
+                }
+                catch(InterruptedException e) {
+                }
+            }
+        };
+        deliverer.start();
+        Util.sleep(500);
+        assert delivered.isEmpty() : delivered;
+
+        mgr.markReadyToDeliver(id2, 5);
+        deliverer.join(10000);
+        System.out.println("delivered: " + delivered);
+        assert delivered.equals(Arrays.asList("m1", "m2", "m3")) : delivered;
+    }
+
+    /** A missing message ID must not prevent the other messages of the batch from being delivered */
+    public void testBatchedMarkWithUnknownMessageID() throws Exception {
+        Map<MessageID,Long> final_seqnos=new LinkedHashMap<MessageID,Long>();
+        final_seqnos.put(id1, 8L);
+        final_seqnos.put(new MessageID(B, 22), 9L);
+        final_seqnos.put(id2, 3L);
+        final_seqnos.put(id3, 4L);
+        try {
+            mgr.markReadyToDeliver(final_seqnos);
+            assert false : "markReadyToDeliver() should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("got exception as expected: " + ex);
+        }
+        List<String> delivered=deliver(3);
+        System.out.println("delivered: " + delivered);
+        assert delivered.equals(Arrays.asList("m2", "m3", "m1")) : delivered;
+    }
+
+
+    protected List<String> deliver(int num) throws InterruptedException {
+        List<String> retval=new ArrayList<String>();
+        while(retval.size() < num)
+            for(Message msg: mgr.getNextMessagesToDeliver())
+                retval.add((String)msg.getObject());
+        return retval;
+    }
+}
@@ -433,5 +433,25 @@ public class DigestTest {
 
     }
 
+    /** A digest created from a view shares the view's index; a large digest is looked up via a hash index */
+    public void testLargeDigest() throws Exception {
+        Address[] mbrs=new Address[1000];
+        for(int i=0; i < mbrs.length; i++)
+            mbrs[i]=Util.createRandomAddress(String.valueOf(i));
+        View view=View.create(mbrs[0], 1, mbrs);
+        MutableDigest digest=new MutableDigest(view);
+        for(int i=0; i < mbrs.length; i++)
+            digest.set(mbrs[i], i, i+1);
+        assert digest.allSet();
+        for(int i=0; i < mbrs.length; i++) {
+            long[] seqnos=digest.get(mbrs[i]);
+            assert seqnos[0] == i && seqnos[1] == i+1;
+        }
+        assert !digest.contains(a1) && digest.get(a1) == null;
 
+        Digest copy=(Digest)Util.streamableFromByteBuffer(Digest.class, Util.streamableToByteBuffer(digest));
+        assert copy.equals(digest);
+        for(int i=0; i < mbrs.length; i++)
+            assert copy.get(mbrs[i])[0] == i;
+    }
 }
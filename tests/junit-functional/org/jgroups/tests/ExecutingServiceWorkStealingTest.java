@@ -0,0 +1,183 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.executor.ExecutionCompletionService;
+import org.jgroups.blocks.executor.ExecutionRunner;
+import org.jgroups.blocks.executor.ExecutionService;
+import org.jgroups.protocols.CENTRAL_EXECUTOR;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the work stealing mode of {@link CENTRAL_EXECUTOR} (work_stealing=true)
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ExecutingServiceWorkStealingTest {
+    protected JChannel         a, b, c;
+    protected ExecutionService service;
+    protected final List<Thread> runners=new ArrayList<Thread>();
+
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        a.connect("ExecutingServiceWorkStealingTest");
+        b=createChannel("B");
+        b.connect("ExecutingServiceWorkStealingTest");
+        c=createChannel("C");
+        c.connect("ExecutingServiceWorkStealingTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        service=new ExecutionService(a);
+    }
+
+    @AfterMethod
+    protected void cleanup() throws Exception {
+        for(Thread runner: runners)
+            runner.interrupt();
+        for(Thread runner: runners)
+            runner.join(5000);
+        runners.clear();
+        Util.close(c, b, a);
+    }
+
+
+    /** The results of tasks run on all members are returned through the completion service */
+    public void testCompletionService() throws Exception {
+        startRunners(a, b, c);
+        ExecutionCompletionService<Integer> completion=new ExecutionCompletionService<Integer>(service);
+        int num_tasks=300;
+        for(int i=0; i < num_tasks; i++)
+            completion.submit(new Square(i));
+        Set<Integer> results=new HashSet<Integer>();
+        for(int i=0; i < num_tasks; i++) {
+            Future<Integer> future=completion.poll(10, TimeUnit.SECONDS);
+            assert future != null : "only " + i + " results received";
+            results.add(future.get());
+        }
+        for(int i=0; i < num_tasks; i++)
+            assert results.contains(i * i);
+        long sent=getProtocol(a).getNumTasksSent();
+        assert sent > 0 && getProtocol(a).getAverageBatchSize() >= 1;
+        System.out.println("tasks sent: " + sent + ", avg batch size: " + getProtocol(a).getAverageBatchSize());
+    }
+
+    /** Tasks hashed to members without consumers are stolen by the only member with a consumer */
+    public void testStealing() throws Exception {
+        startRunners(c);
+        List<Future<Integer>> futures=new ArrayList<Future<Integer>>();
+        for(int i=0; i < 60; i++)
+            futures.add(service.submit(new Square(i)));
+        for(int i=0; i < futures.size(); i++)
+            assert futures.get(i).get(10, TimeUnit.SECONDS) == i * i;
+        CENTRAL_EXECUTOR prot=getProtocol(c);
+        System.out.println("C stole " + prot.getNumTasksStolen() + " tasks with " + prot.getNumStealRequests() + " requests");
+        assert prot.getNumTasksStolen() > 0;
+        assert getProtocol(a).getNumTasksGiven() + getProtocol(b).getNumTasksGiven() == prot.getNumTasksStolen();
+        assert getProtocol(a).getNumQueuedTasks() == 0 && getProtocol(b).getNumQueuedTasks() == 0;
+    }
+
+    /** Idle members send fewer steal requests while there are no tasks, and steal again as soon as tasks arrive */
+    public void testStealBackoff() throws Exception {
+        startRunners(c);
+        CENTRAL_EXECUTOR prot=getProtocol(c);
+        Util.sleep(2000);
+        long requests=prot.getNumStealRequests();
+        System.out.println("C sent " + requests + " steal requests, backoff is " + prot.getStealBackoff() + " ms");
+        assert requests > 0 && requests < 15 : "a steal request every 50 ms would be ~40 requests: " + requests;
+        assert prot.getStealBackoff() > 50;
+
+        List<Future<Integer>> futures=new ArrayList<Future<Integer>>();
+        for(int i=0; i < 60; i++)
+            futures.add(service.submit(new Square(i)));
+        for(int i=0; i < futures.size(); i++)
+            assert futures.get(i).get(10, TimeUnit.SECONDS) == i * i;
+        assert prot.getNumTasksStolen() > 0;
+    }
+
+    /** cancel(true) removes a queued task from the queue of the member it was sent to and interrupts a running task */
+    public void testCancel() throws Exception {
+        startRunners(b);
+        Future<Integer> running=service.submit(new Sleeper(10000));
+        for(int i=0; i < 100 && getNumQueuedTasks() > 0; i++)
+            Util.sleep(100);
+        Util.sleep(500); // the only consumer is now running the sleeper
+
+        Sleeper.num_runs.set(0);
+        Future<Integer> queued=service.submit(new Sleeper(0));
+        Util.sleep(500);
+        assert getNumQueuedTasks() == 1;
+        assert queued.cancel(true);
+        for(int i=0; i < 50 && getNumQueuedTasks() > 0; i++)
+            Util.sleep(100);
+        assert getNumQueuedTasks() == 0;
+
+        assert running.cancel(true);
+        // the consumer is available again
+        assert service.submit(new Square(3)).get(10, TimeUnit.SECONDS) == 9;
+        assert Sleeper.num_runs.get() == 0 : "the cancelled task must not run";
+    }
+
+
+    protected int getNumQueuedTasks() {
+        return getProtocol(a).getNumQueuedTasks() + getProtocol(b).getNumQueuedTasks() + getProtocol(c).getNumQueuedTasks();
+    }
+
+    protected void startRunners(JChannel ... channels) {
+        for(JChannel ch: channels) {
+            Thread runner=new Thread(new ExecutionRunner(ch), "runner-" + ch.getName());
+            runners.add(runner);
+            runner.start();
+        }
+    }
+
+    protected static CENTRAL_EXECUTOR getProtocol(JChannel ch) {
+        return (CENTRAL_EXECUTOR)ch.getProtocolStack().findProtocol(CENTRAL_EXECUTOR.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        Protocol[] stack=Util.getTestStack(new CENTRAL_EXECUTOR().setWorkStealing(true));
+        return new JChannel(stack).name(name);
+    }
+
+
+    protected static class Square implements Callable<Integer>, Serializable {
+        private static final long serialVersionUID=-7441233393632536434L;
+        protected final int val;
+
+        public Square(int val) {this.val=val;}
+
+        public Integer call() {
+            return val * val;
+        }
+    }
+
+    protected static class Sleeper implements Callable<Integer>, Serializable {
+        private static final long serialVersionUID=5049163546377532312L;
+        protected static final AtomicInteger num_runs=new AtomicInteger(); // runs of sleepers with time 0
+        protected final long time;
+
+        public Sleeper(long time) {this.time=time;}
+
+        public Integer call() throws Exception {
+            if(time == 0)
+                num_runs.incrementAndGet();
+            Thread.sleep(time);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Histogram;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link Histogram}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class HistogramTest {
+
+    public void testEmpty() {
+        Histogram h=new Histogram();
+        assert h.count() == 0 && h.max() == 0;
+        assert h.average() == 0;
+        assert h.percentile(99) == 0;
+    }
+
+    public void testAdd() {
+        Histogram h=new Histogram();
+        for(int i=1; i <= 100; i++)
+            h.add(i);
+        System.out.println("h = " + h + "\n" + h.print());
+        assert h.count() == 100;
+        assert h.max() == 100;
+        assert h.average() == 50.5;
+        assert h.percentile(50) == 63;  // 50 is in bucket [32..63]
+        assert h.percentile(99) == 100; // bucket [64..127], but capped by max
+        assert h.percentile(0) == 1;
+    }
+
+    public void testZeroAndNegativeValues() {
+        Histogram h=new Histogram();
+        h.add(0);
+        h.add(-5);
+        h.add(1000);
+        assert h.count() == 3;
+        assert h.percentile(50) == 0;
+        assert h.percentile(100) == 1000;
+    }
+
+    public void testLargeValues() {
+        Histogram h=new Histogram();
+        h.add(Long.MAX_VALUE);
+        assert h.max() == Long.MAX_VALUE;
+        assert h.percentile(50) == Long.MAX_VALUE;
+    }
+
+    public void testReset() {
+        Histogram h=new Histogram();
+        for(int i=0; i < 10; i++)
+            h.add(i * 10);
+        h.reset();
+        assert h.count() == 0 && h.max() == 0 && h.percentile(90) == 0;
+        assert h.print().isEmpty();
+    }
+}
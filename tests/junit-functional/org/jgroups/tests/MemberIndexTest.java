@@ -0,0 +1,62 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.MemberIndex;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link MemberIndex}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class MemberIndexTest {
+
+    public void testSmall() {
+        Address[] mbrs=create(5);
+        MemberIndex index=new MemberIndex(mbrs);
+        for(int i=0; i < mbrs.length; i++)
+            assert index.indexOf(mbrs[i]) == i;
+        assert index.indexOf(Util.createRandomAddress("X")) == -1 && index.indexOf(null) == -1;
+    }
+
+    public void testLarge() {
+        Address[] mbrs=create(1000);
+        MemberIndex index=new MemberIndex(mbrs);
+        for(int i=0; i < mbrs.length; i++)
+            assert index.indexOf(mbrs[i]) == i;
+        for(int i=0; i < 1000; i++)
+            assert !index.contains(Util.createRandomAddress());
+    }
+
+    /** Addresses with the same hashcode end up in adjacent slots */
+    public void testCollisions() {
+        Address[] mbrs=new Address[50];
+        for(int i=0; i < mbrs.length; i++)
+            mbrs[i]=new UUID(((long)i << 32) | i, 0); // hashCode() is 0 for all of them
+        MemberIndex index=new MemberIndex(mbrs);
+        for(int i=0; i < mbrs.length; i++)
+            assert index.indexOf(mbrs[i]) == i;
+        assert mbrs[1].hashCode() == mbrs[2].hashCode();
+        assert index.indexOf(new UUID((50L << 32) | 50, 0)) == -1;
+    }
+
+    public void testNullsAndDuplicates() {
+        Address[] mbrs=create(20);
+        mbrs[3]=null;
+        mbrs[10]=mbrs[5];
+        MemberIndex index=new MemberIndex(mbrs);
+        assert index.indexOf(mbrs[5]) == 5;
+        assert index.indexOf(mbrs[19]) == 19;
+        assert index.indexOf(null) == -1;
+    }
+
+    protected static Address[] create(int num) {
+        Address[] mbrs=new Address[num];
+        for(int i=0; i < num; i++)
+            mbrs[i]=Util.createRandomAddress(String.valueOf(i));
+        return mbrs;
+    }
+}
@@ -0,0 +1,130 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.blocks.Cache;
+import org.jgroups.blocks.OffHeapMap;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.Map;
+
+/**
+ * Tests {@link OffHeapMap}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class OffHeapMapTest {
+
+    public void testPutGetRemove() {
+        OffHeapMap<String,String> map=new OffHeapMap<String,String>(1024, null, null);
+        assert map.put("name", "Bela") == null;
+        assert map.get("name").equals("Bela");
+        assert map.put("name", "Michelle").equals("Bela");
+        assert map.get("name").equals("Michelle");
+        assert map.putIfAbsent("name", "Nicole").equals("Michelle");
+        assert map.putIfAbsent("id", "322649") == null;
+        assert map.size() == 2;
+
+        assert !map.replace("name", "Bela", "Nicole");
+        assert map.replace("name", "Michelle", "Nicole");
+        assert map.replace("name", "Jeannette").equals("Nicole");
+        assert map.replace("bla", "Jeannette") == null;
+
+        assert !map.remove("name", "Bela");
+        assert map.remove("name", "Jeannette");
+        assert map.remove("id").equals("322649");
+        assert map.isEmpty();
+        assert map.getUsedBytes() == 0;
+    }
+
+    public void testFreedBlocksAreReused() {
+        OffHeapMap<Integer,byte[]> map=new OffHeapMap<Integer,byte[]>(64 * 1024, null, null);
+        for(int i=0; i < 100; i++)
+            map.put(i, new byte[500]);
+        long allocated=map.getAllocatedBytes();
+        for(int round=0; round < 10; round++)
+            for(int i=0; i < 100; i++)
+                map.put(i, new byte[500]);
+        assert map.getAllocatedBytes() == allocated : "allocated=" + map.getAllocatedBytes() + ", expected " + allocated;
+        assert map.getNumberOfArenas() == 1;
+    }
+
+    public void testValuesLargerThanArena() {
+        OffHeapMap<Integer,byte[]> map=new OffHeapMap<Integer,byte[]>(1024, null, null);
+        for(int i=0; i < 10; i++) {
+            byte[] val=new byte[3000];
+            val[i]=(byte)i;
+            map.put(i, val);
+        }
+        assert map.getNumberOfArenas() >= 10;
+        for(int i=0; i < 10; i++)
+            assert map.get(i)[i] == (byte)i;
+        map.clear();
+        assert map.isEmpty() && map.getUsedBytes() == 0;
+        map.put(1, new byte[100]);
+        assert map.get(1).length == 100;
+    }
+
+    public void testMemoryMappedArenas() throws Exception {
+        File dir=new File(System.getProperty("java.io.tmpdir"));
+        OffHeapMap<Integer,String> map=new OffHeapMap<Integer,String>(4096, dir, null);
+        for(int i=0; i < 1000; i++)
+            map.put(i, "value-" + i);
+        for(int i=0; i < 1000; i++)
+            assert map.get(i).equals("value-" + i);
+        assert map.getNumberOfArenas() > 1;
+        map.destroy();
+        assert map.isEmpty() && map.getNumberOfArenas() == 0;
+    }
+
+    public void testIteratorRemove() {
+        OffHeapMap<Integer,Integer> map=new OffHeapMap<Integer,Integer>(1024, null, null);
+        for(int i=0; i < 10; i++)
+            map.put(i, i);
+        int sum=0;
+        for(java.util.Iterator<Map.Entry<Integer,Integer>> it=map.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Integer,Integer> entry=it.next();
+            sum+=entry.getValue();
+            if(entry.getKey() % 2 == 0)
+                it.remove();
+        }
+        assert sum == 45;
+        assert map.size() == 5;
+    }
+
+    public void testRawStateTransfer() throws Exception {
+        OffHeapMap<String,Integer> src=new OffHeapMap<String,Integer>(1024, null, null);
+        for(int i=0; i < 500; i++)
+            src.put("key-" + i, i);
+        ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+        src.writeTo(new DataOutputStream(out_stream));
+        byte[] state=out_stream.toByteArray();
+
+        OffHeapMap<String,Integer> dst=new OffHeapMap<String,Integer>(1024, null, null);
+        assert dst.readFrom(new DataInputStream(new ByteArrayInputStream(state))) == 500;
+        assert dst.equals(src);
+
+        Map<String,Integer> copy=OffHeapMap.readEntries(new DataInputStream(new ByteArrayInputStream(state)), null);
+        assert copy.equals(src);
+    }
+
+    /** The insertion time has to survive serialization, or entries would never expire */
+    public void testCacheWithOffHeapMap() {
+        OffHeapMap<String,Cache.Value<String>> map=
+          new OffHeapMap<String,Cache.Value<String>>(1024, null, new Cache.ValueMarshaller());
+        Cache<String,String> cache=new Cache<String,String>(map);
+        try {
+            cache.put("name", "Bela", 0);
+            cache.put("id", "322649", 200);
+            long insertion_time=cache.getEntry("id").getInsertionTime();
+            Util.sleep(50);
+            assert cache.getEntry("id").getInsertionTime() == insertion_time;
+            assert cache.getEntry("id").getTimeout() == 200;
+            assert cache.get("name").equals("Bela");
+        }
+        finally {
+            cache.stop();
+        }
+    }
+}
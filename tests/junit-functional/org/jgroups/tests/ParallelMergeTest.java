@@ -0,0 +1,86 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests merging of many singleton subgroups with {@link MERGE3}'s parallel_merge enabled
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ParallelMergeTest {
+    protected static final int NUM=9;
+    protected JChannel[]       channels;
+
+
+    @BeforeMethod
+    void setUp() throws Exception {
+        channels=new JChannel[NUM];
+        for(int i=0; i < channels.length; i++)
+            channels[i]=createChannel(String.valueOf((char)('A' + i)));
+    }
+
+    @AfterMethod
+    void tearDown() throws Exception {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    public void testParallelMerge() throws Exception {
+        for(JChannel ch: channels)
+            assert ch.getView().size() == 1 : ch.getAddress() + "'s view: " + ch.getView();
+
+        for(JChannel ch: channels)
+            ((DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(false);
+
+        Util.waitUntilAllChannelsHaveSameSize(30000, 500, channels);
+        for(JChannel ch: channels)
+            System.out.println(ch.getAddress() + ": " + ch.getView());
+
+        JChannel coord=findChannel(channels[0].getView().getMembers().get(0).toString());
+        MERGE3 merge=(MERGE3)coord.getProtocolStack().findProtocol(MERGE3.class);
+        for(int i=0; i < 20 && merge.getTimeToConverge() == 0; i++)
+            Util.sleep(500);
+        System.out.println(coord.getAddress() + ": time_to_converge=" + merge.getTimeToConverge() +
+                             " ms, rounds_to_converge=" + merge.getRoundsToConverge());
+        assert merge.getTimeToConverge() > 0;
+        assert merge.getRoundsToConverge() > 0;
+    }
+
+
+    protected JChannel findChannel(String name) {
+        for(JChannel ch: channels)
+            if(ch.getName().equals(name))
+                return ch;
+        return null;
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        JChannel retval=new JChannel(new SHARED_LOOPBACK(),
+                                     new DISCARD().setValue("discard_all",true),
+                                     new PING().setValue("timeout",100),
+                                     new MERGE3().setParallelMerge(true).setMaxParticipantsInMerge(3)
+                                       .setValue("ergonomics",false).setValue("min_interval",500L)
+                                       .setValue("max_interval",1000L),
+                                     new NAKACK2().setValue("use_mcast_xmit",false)
+                                       .setValue("log_discard_msgs",false).setValue("log_not_found_msgs",false),
+                                     new UNICAST3(),
+                                     new GMS().setValue("print_local_addr",false)
+                                       .setValue("leave_timeout",100)
+                                       .setValue("merge_timeout",5000)
+                                       .setValue("log_view_warnings",false)
+                                       .setValue("view_ack_collection_timeout",50)
+                                       .setValue("log_collect_msgs",false))
+          .name(name);
+        retval.connect("ParallelMergeTest");
+        return retval;
+    }
+}
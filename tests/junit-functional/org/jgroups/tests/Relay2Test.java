@@ -9,15 +9,16 @@ import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.protocols.relay.Relayer;
+import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.protocols.relay.config.RelayConfig;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Various RELAY2-related tests
@@ -282,6 +283,136 @@ public class Relay2Test {
 
 
 
+    /**
+     * Tests that messages sent concurrently to another site are all relayed, and that the relayed messages are
+     * counted by the route
+     */
+    public void testConcurrentRelaying() throws Exception {
+        final int NUM_THREADS=4, NUM_MSGS=500;
+        MyReceiver rx=new MyReceiver();
+        a=createNode(LON, "A", LON_CLUSTER, null);
+        x=createNode(SFO, "X", SFO_CLUSTER, rx);
+        waitForBridgeView(2, 20000, 500, a, x);
+        waitUntilRoute(SFO, true, 20000, 500, a);
+        ((RELAY2)a.getProtocolStack().findProtocol(RELAY2.class)).maxRelayBatchSize(64000);
+        Relayer.Route route=getRoute(a, SFO);
+
+        final Address sm_sfo=new SiteMaster(SFO);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[NUM_THREADS];
+        for(int i=0; i < senders.length; i++) {
+            final int offset=i * NUM_MSGS;
+            senders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < NUM_MSGS; j++)
+                            a.send(sm_sfo, offset + j);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join();
+
+        List<Integer> list=rx.getList();
+        for(int i=0; i < 20 && list.size() < NUM_THREADS * NUM_MSGS; i++)
+            Util.sleep(500);
+        System.out.println("received " + list.size() + " msgs; route: " + route.printStats());
+        assert list.size() == NUM_THREADS * NUM_MSGS : "expected " + NUM_THREADS * NUM_MSGS + " msgs, but got " + list.size();
+        assert new HashSet<Integer>(list).size() == NUM_THREADS * NUM_MSGS;
+        assert route.numMessages() == NUM_THREADS * NUM_MSGS;
+        assert route.numBatches() > 0 && route.numBatches() <= route.numMessages();
+        assert route.queueSize() == 0;
+    }
+
+
+    /**
+     * Tests that the messages of a given sender are always relayed via the same of multiple site masters (in FIFO
+     * order), and that the senders are reassigned when a site master leaves
+     */
+    public void testSenderAffinity() throws Exception {
+        final int NUM_MSGS=100;
+        SenderReceiver rx=new SenderReceiver(), ry=new SenderReceiver();
+        a=createNode(LON, "A", LON_CLUSTER, null);
+        b=createNode(LON, "B", LON_CLUSTER, null);
+        c=createNode(LON, "C", LON_CLUSTER, null);
+        x=createNode(SFO, "X", null, rx);
+        y=createNode(SFO, "Y", null, ry);
+        for(JChannel ch: Arrays.asList(x, y)) {
+            ch.getProtocolStack().findProtocol(RELAY2.class).setValue("max_site_masters", 2);
+            ch.connect(SFO_CLUSTER);
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, x, y);
+        waitForBridgeView(3, 20000, 500, a, x, y);
+
+        JChannel[] senders={a, b, c};
+        final Address sm_sfo=new SiteMaster(SFO);
+        for(int i=1; i <= NUM_MSGS; i++)
+            for(JChannel sender: senders)
+                sender.send(sm_sfo, i);
+        waitForMessages(senders.length * NUM_MSGS, rx, ry);
+        System.out.println("X: " + rx + "\nY: " + ry + "\n" +
+                             ((RELAY2)a.getProtocolStack().findProtocol(RELAY2.class)).printRouteStats());
+        for(JChannel sender: senders) {
+            Address addr=sender.getAddress();
+            List<Integer> list_x=rx.get(addr), list_y=ry.get(addr);
+            assert list_x.isEmpty() || list_y.isEmpty() : addr + "'s messages were relayed to both site masters";
+            List<Integer> list=list_x.isEmpty()? list_y : list_x;
+            assert list.size() == NUM_MSGS : addr + ": expected " + NUM_MSGS + " msgs, but got " + list.size();
+            for(int i=0; i < list.size(); i++)
+                assert list.get(i) == i+1 : addr + "'s messages are not in order: " + list;
+        }
+
+        // all senders are reassigned to the remaining site master
+        Util.close(y);
+        waitForBridgeView(2, 20000, 500, a, x);
+        rx.clear();
+        ry.clear();
+        for(int i=1; i <= NUM_MSGS; i++)
+            for(JChannel sender: senders)
+                sender.send(sm_sfo, i);
+        waitForMessages(senders.length * NUM_MSGS, rx);
+        for(JChannel sender: senders)
+            assert rx.get(sender.getAddress()).size() == NUM_MSGS;
+    }
+
+
+    /** Tests that messages relayed in WAN mode are received in order, and are sent as compressed frames */
+    public void testWanMode() throws Exception {
+        final int NUM_MSGS=2000;
+        MyReceiver rx=new MyReceiver();
+        a=createNode(LON, "A", null, null);
+        x=createNode(SFO, "X", null, rx);
+        for(JChannel ch: Arrays.asList(a, x)) {
+            ((RELAY2)ch.getProtocolStack().findProtocol(RELAY2.class)).wanMode(true);
+            ch.connect(ch == a? LON_CLUSTER : SFO_CLUSTER);
+        }
+        waitForBridgeView(2, 20000, 500, a, x);
+        waitUntilRoute(SFO, true, 20000, 500, a);
+        Relayer.Route route=getRoute(a, SFO);
+
+        Address sm_sfo=new SiteMaster(SFO);
+        for(int i=0; i < NUM_MSGS; i++)
+            a.send(sm_sfo, i);
+        List<Integer> list=rx.getList();
+        for(int i=0; i < 20 && list.size() < NUM_MSGS; i++)
+            Util.sleep(500);
+        System.out.println("received " + list.size() + " msgs; route: " + route.printStats());
+        assert list.size() == NUM_MSGS : "expected " + NUM_MSGS + " msgs, but got " + list.size();
+        for(int i=0; i < NUM_MSGS; i++)
+            assert list.get(i) == i : "messages are not in order: " + list;
+        assert route.numMessages() == NUM_MSGS;
+        assert route.numSentBytes() > 0 && route.numSentBytes() < route.numBytes();
+    }
+
+
     protected JChannel createNode(String site_name, String node_name, String cluster_name,
                                   Receiver receiver) throws Exception {
         JChannel ch=new JChannel(new SHARED_LOOPBACK(),
@@ -382,6 +513,17 @@ public class Relay2Test {
         assert (route != null && present) || (route == null && !present);
     }
 
+    protected static void waitForMessages(int expected, SenderReceiver ... receivers) {
+        for(int i=0; i < 20; i++) {
+            int total=0;
+            for(SenderReceiver receiver: receivers)
+                total+=receiver.size();
+            if(total >= expected)
+                break;
+            Util.sleep(500);
+        }
+    }
+
     protected Relayer.Route getRoute(JChannel ch, String site_name) {
         RELAY2 relay=(RELAY2)ch.getProtocolStack().findProtocol(RELAY2.class);
         return relay.getRoute(site_name);
@@ -389,15 +531,43 @@ public class Relay2Test {
 
 
     protected static class MyReceiver extends ReceiverAdapter {
-        protected final List<Integer> list=new ArrayList<Integer>(5);
+        protected final List<Integer> list=Collections.synchronizedList(new ArrayList<Integer>(5));
 
         public List<Integer> getList()            {return list;}
         public void          clear()              {list.clear();}
 
         public void          receive(Message msg) {
             list.add((Integer)msg.getObject());
-            System.out.println("<-- " + msg.getObject());
         }
     }
 
+    /** Records the received messages by original sender */
+    protected static class SenderReceiver extends ReceiverAdapter {
+        protected final Map<Address,List<Integer>> msgs=new HashMap<Address,List<Integer>>();
+
+        public synchronized void receive(Message msg) {
+            UUID src=(UUID)msg.getSrc(); // a SiteUUID
+            Address sender=new UUID(src.getMostSignificantBits(), src.getLeastSignificantBits());
+            List<Integer> list=msgs.get(sender);
+            if(list == null)
+                msgs.put(sender, list=new ArrayList<Integer>());
+            list.add((Integer)msg.getObject());
+        }
+
+        public synchronized List<Integer> get(Address sender) {
+            List<Integer> list=msgs.get(sender);
+            return list != null? new ArrayList<Integer>(list) : new ArrayList<Integer>();
+        }
+
+        public synchronized int size() {
+            int retval=0;
+            for(List<Integer> list: msgs.values())
+                retval+=list.size();
+            return retval;
+        }
+
+        public synchronized void   clear()    {msgs.clear();}
+        public synchronized String toString() {return size() + " msgs from " + msgs.keySet();}
+    }
+
 }
@@ -0,0 +1,244 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.blocks.OffHeapMap;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.blocks.ReplicatedHashMap;
+import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests batching of updates and the streamed state transfer of {@link ReplicatedHashMap}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ReplicatedHashMapBatchingTest {
+    protected JChannel                             a, b;
+    protected ReplicatedHashMap<String,Integer>    map1, map2;
+
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        a=createChannel("A");
+        map1=new ReplicatedHashMap<String,Integer>(a);
+        a.connect("ReplicatedHashMapBatchingTest");
+        map1.start(5000);
+    }
+
+    @AfterMethod
+    protected void cleanup() {
+        if(map2 != null)
+            map2.stop();
+        map1.stop();
+        Util.close(b, a);
+    }
+
+
+    public void testBatching() throws Exception {
+        connectSecondMember(null);
+        map1.setBatchInterval(200);
+        for(int i=0; i < 10; i++)
+            for(int j=0; j < 100; j++)
+                map1.put("key-" + j, i);
+        waitForSize(100, map1, map2);
+        for(int j=0; j < 100; j++) {
+            assert map1.get("key-" + j) == 9;
+            assert map2.get("key-" + j) == 9;
+        }
+        System.out.println("batches: " + map1.getNumBatches() + ", batched puts: " + map1.getNumBatchedPuts() +
+                             ", coalesced puts: " + map1.getNumCoalescedPuts());
+        assert map1.getNumBatchedPuts() + map1.getNumCoalescedPuts() == 1000;
+        assert map1.getNumBatches() < 1000;
+    }
+
+    /** A remove() sends the pending batch first, so it isn't overtaken by the puts */
+    public void testRemoveAfterBatchedPuts() throws Exception {
+        connectSecondMember(null);
+        map1.setBatchInterval(10000);
+        map1.put("one", 1);
+        map1.put("two", 2);
+        assert map1.put("one", 11) == 1 : "put() should return the value of the pending put";
+        map1.remove("one");
+        waitForSize(1, map1, map2);
+        assert !map2.containsKey("one") && map2.get("two") == 2;
+        assert map1.getNumBatches() == 1 && map1.getNumCoalescedPuts() == 1;
+    }
+
+    public void testMaxBatchSize() throws Exception {
+        connectSecondMember(null);
+        map1.setBatchInterval(60000).setMaxBatchSize(10);
+        for(int i=0; i < 25; i++)
+            map1.put("key-" + i, i);
+        waitForSize(20, map1, map2);
+        assert map1.getNumBatches() == 2;
+        map1.flush();
+        waitForSize(25, map1, map2);
+    }
+
+    /** A batch sent with blocking updates must not block the transport's timer while waiting for the responses */
+    public void testBlockingFlushDoesNotBlockTimer() throws Exception {
+        connectSecondMember(null);
+        final CountDownLatch applying=new CountDownLatch(1), release=new CountDownLatch(1);
+        map2.addNotifier(new ReplicatedHashMap.Notification<String,Integer>() {
+            public void entrySet(String key, Integer value) {
+                applying.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS); // blocks the response to the batch
+                }
+                catch(InterruptedException e) {
+                }
+            }
+            public void entryRemoved(String key) {}
+            public void viewChange(View view, List<Address> mbrs_joined, List<Address> mbrs_left) {}
+            public void contentsSet(Map<String,Integer> new_entries) {}
+            public void contentsCleared() {}
+        });
+        map1.setBlockingUpdates(true);
+        map1.setBatchInterval(100);
+        map1.put("one", 1);
+        assert applying.await(10, TimeUnit.SECONDS) : "batch was not sent";
+
+        // the flusher is now blocked in the call; the timer must still run tasks
+        final CountDownLatch timer_ran=new CountDownLatch(1);
+        a.getProtocolStack().getTransport().getTimer().execute(new Runnable() {
+            public void run() {timer_ran.countDown();}
+        });
+        boolean ran=timer_ran.await(2, TimeUnit.SECONDS);
+        release.countDown();
+        assert ran : "timer task was not run while the batch was being sent";
+        waitForSize(1, map1, map2);
+    }
+
+    /** clear() must not overtake a batch which is being sent, or the batch would re-add the cleared entries */
+    public void testClearWaitsForBatchBeingSent() throws Exception {
+        connectSecondMember(null);
+        final CountDownLatch applying=new CountDownLatch(1), release=new CountDownLatch(1);
+        map2.addNotifier(new ReplicatedHashMap.Notification<String,Integer>() {
+            public void entrySet(String key, Integer value) {
+                applying.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e) {
+                }
+            }
+            public void entryRemoved(String key) {}
+            public void viewChange(View view, List<Address> mbrs_joined, List<Address> mbrs_left) {}
+            public void contentsSet(Map<String,Integer> new_entries) {}
+            public void contentsCleared() {}
+        });
+        map1.setBlockingUpdates(true);
+        map1.setBatchInterval(100);
+        map1.put("one", 1);
+        assert applying.await(10, TimeUnit.SECONDS) : "batch was not sent";
+
+        final CountDownLatch cleared=new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                map1.clear();
+                cleared.countDown();
+            }
+        }.start();
+        assert !cleared.await(500, TimeUnit.MILLISECONDS) : "clear() returned while the batch was being sent";
+        release.countDown();
+        assert cleared.await(10, TimeUnit.SECONDS);
+        waitForSize(0, map1, map2);
+    }
+
+    public void testStreamedStateTransfer() throws Exception {
+        for(int i=0; i < 1000; i++)
+            map1.put("key-" + i, i);
+        connectSecondMember(null);
+        assert map2.size() == 1000;
+        for(int i=0; i < 1000; i++)
+            assert map2.get("key-" + i) == i;
+    }
+
+    public void testStateTransferWithMarshaller() throws Exception {
+        Marshaller marshaller=new Marshaller();
+        map1.setStateMarshaller(marshaller);
+        for(int i=0; i < 100; i++)
+            map1.put("key-" + i, i);
+        connectSecondMember(marshaller);
+        assert map2.size() == 100;
+        for(int i=0; i < 100; i++)
+            assert map2.get("key-" + i) == i;
+        assert marshaller.marshalled.get() == 200 && marshaller.unmarshalled.get() == 200;
+    }
+
+    /** The serialized values of an OffHeapMap have to be deserialized with the state marshaller by an on-heap member */
+    public void testRawStateTransferToOnHeapMap() throws Exception {
+        map1.stop();
+        Util.close(a);
+        Marshaller marshaller=new Marshaller();
+        a=createChannel("A");
+        map1=new ReplicatedHashMap<String,Integer>(new OffHeapMap<String,Integer>(1024, null, marshaller), a)
+          .setStateMarshaller(marshaller);
+        a.connect("ReplicatedHashMapBatchingTest");
+        map1.start(5000);
+        for(int i=0; i < 100; i++)
+            map1.put("key-" + i, i);
+        connectSecondMember(marshaller);
+        assert map2.size() == 100;
+        for(int i=0; i < 100; i++)
+            assert map2.get("key-" + i) == i;
+    }
+
+
+    protected void connectSecondMember(RpcDispatcher.Marshaller marshaller) throws Exception {
+        b=createChannel("B");
+        map2=new ReplicatedHashMap<String,Integer>(b).setStateMarshaller(marshaller);
+        b.connect("ReplicatedHashMapBatchingTest");
+        map2.start(5000);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    protected static void waitForSize(int size, ReplicatedHashMap<?,?> ... maps) {
+        for(int i=0; i < 50; i++) {
+            boolean done=true;
+            for(ReplicatedHashMap<?,?> map: maps)
+                if(map.size() != size)
+                    done=false;
+            if(done)
+                return;
+            Util.sleep(200);
+        }
+        for(ReplicatedHashMap<?,?> map: maps)
+            assert map.size() == size : "expected " + size + " entries, but got " + map.size();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(Util.getTestStack(new STATE_TRANSFER())).name(name);
+    }
+
+
+    /** Writes strings and ints in a compact form */
+    protected static class Marshaller implements RpcDispatcher.Marshaller {
+        protected final AtomicInteger marshalled=new AtomicInteger(), unmarshalled=new AtomicInteger();
+
+        public Buffer objectToBuffer(Object obj) throws Exception {
+            marshalled.incrementAndGet();
+            byte[] buf=obj instanceof Integer? ("#" + obj).getBytes() : ((String)obj).getBytes();
+            return new Buffer(buf);
+        }
+
+        public Object objectFromBuffer(byte[] buf, int offset, int length) throws Exception {
+            unmarshalled.incrementAndGet();
+            String s=new String(buf, offset, length);
+            return s.startsWith("#")? Integer.valueOf(s.substring(1)) : s;
+        }
+    }
+}
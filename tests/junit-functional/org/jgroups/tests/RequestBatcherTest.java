@@ -0,0 +1,129 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.RequestBatcher;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests {@link RequestBatcher}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class RequestBatcherTest {
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B");
+
+
+    public void testSingleRequestIsSentImmediately() {
+        MySender sender=new MySender();
+        RequestBatcher<Integer> batcher=new RequestBatcher<Integer>(sender, 100);
+        batcher.send(A, 1);
+        assert sender.batches.size() == 1 && sender.batches.get(0).equals(Arrays.asList(1));
+        assert batcher.size() == 0 && batcher.getNumRequests() == 1 && batcher.getNumBatches() == 1;
+    }
+
+    public void testHoldAndRelease() {
+        MySender sender=new MySender();
+        RequestBatcher<Integer> batcher=new RequestBatcher<Integer>(sender, 100);
+        boolean held=batcher.hold();
+        assert held;
+        for(int i=1; i <= 5; i++) {
+            batcher.send(A, i);
+            batcher.send(B, i * 10);
+        }
+        assert sender.batches.isEmpty() && batcher.size() == 10;
+        batcher.release(held);
+        assert sender.batches.size() == 2;
+        assert sender.dests.get(0).equals(A) && sender.batches.get(0).equals(Arrays.asList(1,2,3,4,5));
+        assert sender.dests.get(1).equals(B) && sender.batches.get(1).equals(Arrays.asList(10,20,30,40,50));
+        assert batcher.getAverageBatchSize() == 5.0;
+    }
+
+    public void testNestedHold() {
+        MySender sender=new MySender();
+        RequestBatcher<Integer> batcher=new RequestBatcher<Integer>(sender, 100);
+        boolean outer=batcher.hold(), inner=batcher.hold();
+        assert outer && !inner;
+        batcher.send(A, 1);
+        batcher.release(inner);
+        assert sender.batches.isEmpty() : "the inner release must not send while the outer hold is in place";
+        batcher.release(outer);
+        assert sender.batches.size() == 1;
+    }
+
+    public void testMaxBatchSize() {
+        MySender sender=new MySender();
+        RequestBatcher<Integer> batcher=new RequestBatcher<Integer>(sender, 3);
+        boolean held=batcher.hold();
+        for(int i=1; i <= 7; i++)
+            batcher.send(A, i);
+        batcher.release(held);
+        assert sender.batches.size() == 3;
+        assert sender.batches.get(0).equals(Arrays.asList(1,2,3));
+        assert sender.batches.get(1).equals(Arrays.asList(4,5,6));
+        assert sender.batches.get(2).equals(Arrays.asList(7));
+    }
+
+    /** Requests sent concurrently are batched, none are lost and the order of each thread's requests is preserved */
+    public void testConcurrentSends() throws Exception {
+        final MySender sender=new MySender(true);
+        final RequestBatcher<Integer> batcher=new RequestBatcher<Integer>(sender, 100);
+        final int num_threads=10, num_requests=1000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[num_threads];
+        for(int i=0; i < threads.length; i++) {
+            final int id=i;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < num_requests; j++)
+                            batcher.send(A, id * num_requests + j);
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+
+        List<Integer> received=new ArrayList<Integer>();
+        for(List<Integer> batch: sender.batches)
+            received.addAll(batch);
+        assert received.size() == num_threads * num_requests : "received " + received.size() + " requests";
+        ConcurrentMap<Integer,Integer> last=new ConcurrentHashMap<Integer,Integer>();
+        for(int req: received) {
+            Integer prev=last.put(req / num_requests, req);
+            assert prev == null || prev < req : "request " + req + " received after " + prev;
+        }
+        System.out.println("batcher: " + batcher);
+        assert batcher.getNumBatches() < num_threads * num_requests : "requests should have been batched";
+    }
+
+
+    protected static class MySender implements RequestBatcher.Sender<Integer> {
+        protected final List<Address>       dests=new CopyOnWriteArrayList<Address>();
+        protected final List<List<Integer>> batches=new CopyOnWriteArrayList<List<Integer>>();
+        protected final boolean             slow;
+
+        public MySender() {this(false);}
+        public MySender(boolean slow) {this.slow=slow;}
+
+        public void send(Address dest, List<Integer> requests) {
+            dests.add(dest);
+            batches.add(requests);
+            if(slow) // simulates the cost of sending a message, so that requests of other threads queue up
+                Util.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.blocks.SizeBoundedCache;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link SizeBoundedCache}
+ * @since 3.5
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class SizeBoundedCacheTest {
+    protected static final int VALUE_SIZE=1000;
+    protected SizeBoundedCache<Integer,byte[]> cache;
+
+    @BeforeMethod
+    protected void setUp() {
+        cache=new SizeBoundedCache<Integer,byte[]>(100 * 1000);
+        cache.setSizer(new SizeBoundedCache.Sizer<Integer,byte[]>() {
+            public long size(Integer key, byte[] value) {return value.length;}
+        });
+    }
+
+    @AfterMethod
+    protected void tearDown() {
+        cache.stop();
+    }
+
+    public void testPutAndGet() {
+        cache.put(1, new byte[VALUE_SIZE], 0);
+        assert cache.get(1).length == VALUE_SIZE;
+        assert cache.get(2) == null;
+        assert cache.getHits() == 1 && cache.getMisses() == 1;
+        assert cache.getBytes() == VALUE_SIZE;
+
+        cache.put(1, new byte[VALUE_SIZE * 2], 0);
+        assert cache.getSize() == 1 && cache.getBytes() == VALUE_SIZE * 2;
+        assert cache.remove(1).length == VALUE_SIZE * 2;
+        assert cache.getSize() == 0 && cache.getBytes() == 0;
+    }
+
+    public void testMaxBytes() {
+        for(int i=0; i < 1000; i++) {
+            cache.put(i, new byte[VALUE_SIZE], 0);
+            assert cache.getBytes() <= cache.getMaxBytes() : "bytes=" + cache.getBytes();
+        }
+        System.out.println(cache.printSegments() + ", evictions=" + cache.getEvictions());
+        assert cache.getSize() <= 100;
+        assert cache.getSize() == cache.getInternalMap().size();
+        assert cache.getEvictions() >= 900;
+    }
+
+    public void testEntryLargerThanMaxBytes() {
+        assert cache.put(1, new byte[(int)cache.getMaxBytes() + 1], 0) == null;
+        assert cache.get(1) == null;
+        assert cache.getRejections() == 1;
+    }
+
+    /** Frequently accessed entries have to survive a scan of entries which are accessed only once */
+    public void testFrequentlyUsedEntriesSurviveScan() {
+        for(int i=0; i < 50; i++)
+            cache.put(i, new byte[VALUE_SIZE], 0);
+        for(int round=0; round < 5; round++)
+            for(int i=0; i < 50; i++)
+                assert cache.get(i) != null;
+
+        for(int i=1000; i < 10000; i++) {
+            cache.put(i, new byte[VALUE_SIZE], 0);
+            cache.get(i % 50);
+        }
+
+        int hits=0;
+        for(int i=0; i < 50; i++)
+            if(cache.get(i) != null)
+                hits++;
+        System.out.println("hits=" + hits + ", " + cache.printSegments());
+        assert hits == 50 : "only " + hits + " of the frequently used entries are still in the cache";
+    }
+
+    public void testExpiration() {
+        cache.enableReaping(100);
+        cache.put(1, new byte[VALUE_SIZE], 500);
+        cache.put(2, new byte[VALUE_SIZE], 0);
+        cache.put(3, new byte[VALUE_SIZE], -1);
+        assert cache.get(1) != null;
+        for(int i=0; i < 20 && cache.getSize() > 1; i++)
+            Util.sleep(100);
+        assert cache.getSize() == 1 : "size=" + cache.getSize();
+        assert cache.get(2) != null;
+        assert cache.getExpirations() == 2;
+        assert cache.getBytes() == VALUE_SIZE;
+    }
+
+    public void testExpirationOnGet() {
+        cache.put(1, new byte[VALUE_SIZE], 100);
+        Util.sleep(200);
+        assert cache.get(1) == null;
+        assert cache.getSize() == 0;
+        assert cache.getExpirations() == 1;
+    }
+}
@@ -10,6 +10,8 @@ import org.jgroups.protocols.pbcast.*;
 import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.protocols.relay.SiteUUID;
+import org.jgroups.protocols.tom.MessageID;
+import org.jgroups.protocols.tom.ToaHeader;
 import org.jgroups.stack.GossipData;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.util.*;
@@ -411,6 +413,25 @@ public class SizeTest {
                            new Address[]{members[4],members[5]},
                            new Address[]{Util.createRandomAddress("new-1"), Util.createRandomAddress("new-2")});
         _testSize(view);
+
+        // left members are marshalled as ranks in the reference view
+        view=View.create(members[0], 2, members);
+        View next=new DeltaView(new ViewId(members[0], 3), view, new Address[]{members[4], members[999]},
+                                new Address[]{Util.createRandomAddress("new-3")});
+        DeltaView dv=(DeltaView)_testSize(next);
+        assert dv.getLeftMembers() == null;
+        dv.resolveLeftMembers(view);
+        assert Arrays.equals(dv.getLeftMembers(), new Address[]{members[4], members[999]});
+        assert next.serializedSize() < new DeltaView(next.getViewId(), view.getViewId(), dv.getLeftMembers(),
+                                                     dv.getNewMembers()).serializedSize();
+        try {
+            dv=(DeltaView)_testSize(new DeltaView(new ViewId(members[0], 3), view, new Address[]{members[4]}, new Address[0]));
+            dv.resolveLeftMembers(View.create(members[0], 1, members));
+            assert false : "resolving the left members against a different view should have failed";
+        }
+        catch(IllegalStateException expected) {
+            System.out.println("caught exception as expected: " + expected);
+        }
     }
 
 
@@ -700,6 +721,27 @@ public class SizeTest {
     }
 
 
+    public static void testToaHeader() throws Exception {
+        Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+        ToaHeader hdr=ToaHeader.createNewHeader(ToaHeader.DATA_MESSAGE, new MessageID(a, 22));
+        hdr.setSequencerNumber(5);
+        hdr.addDestinations(Arrays.asList(a, b));
+        _testSize(hdr);
+
+        hdr=hdr.copy();
+        hdr.addControlEntries(Arrays.asList(new ToaHeader.ControlEntry(ToaHeader.PROPOSE_MESSAGE, new MessageID(b, 1), 7),
+                                            new ToaHeader.ControlEntry(ToaHeader.FINAL_MESSAGE, new MessageID(a, 3), 8)));
+        _testSize(hdr);
+
+        hdr=ToaHeader.createControlHeader(hdr.getControlEntries());
+        _testSize(hdr);
+        ToaHeader hdr2=(ToaHeader)Util.streamableFromByteBuffer(ToaHeader.class, Util.streamableToByteBuffer(hdr));
+        assert hdr2.getControlEntries().size() == 2;
+        assert hdr2.getControlEntries().get(1).getMessageID().equals(new MessageID(a, 3));
+        assert hdr2.getControlEntries().get(1).getSequenceNumber() == 8;
+    }
+
+
     public static void testEncryptHeader() throws Exception {
         ENCRYPT.EncryptHeader hdr=new ENCRYPT.EncryptHeader((short)1, null);
         _testSize(hdr);
@@ -172,6 +172,35 @@ public class ViewTest {
         Assert.assertEquals(members, mbrs);
     }
 
+    public void testGetRank() {
+        for(int i=0; i < members.size(); i++)
+            assert view.getRank(members.get(i)) == i;
+        assert view.getRank(i) == -1 && view.getRank(null) == -1;
+        assert view.getMembers().indexOf(d) == 3 && !view.getMembers().contains(i);
+    }
+
+    /** Large views look up members with a hash index */
+    public void testLargeView() throws Exception {
+        List<Address> mbrs=new ArrayList<Address>(1000);
+        for(int k=0; k < 1000; k++)
+            mbrs.add(Util.createRandomAddress(String.valueOf(k)));
+        View large=new View(mbrs.get(0), 1, mbrs);
+        for(int k=0; k < mbrs.size(); k++) {
+            assert large.getRank(mbrs.get(k)) == k;
+            assert large.containsMember(mbrs.get(k));
+            assert large.getMembers().contains(mbrs.get(k));
+        }
+        assert !large.containsMember(a) && large.getRank(a) == -1;
+
+        View copy=(View)Util.streamableFromByteBuffer(View.class, Util.streamableToByteBuffer(large));
+        assert copy.getIndex() != large.getIndex();
+        for(int k=0; k < mbrs.size(); k++)
+            assert copy.getRank(mbrs.get(k)) == k;
+
+        List<Address> tmp=(List<Address>)Util.objectFromByteBuffer(Util.objectToByteBuffer(large.getMembers()));
+        assert tmp instanceof ArrayList && tmp.equals(mbrs) : "the member list has to be serialized as a plain list";
+    }
+
     protected static String printDiff(Address[][] diff) {
         StringBuilder sb=new StringBuilder();
         Address[] joined=diff[0], left=diff[1];
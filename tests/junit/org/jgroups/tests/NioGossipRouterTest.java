@@ -0,0 +1,109 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.MERGE2;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.TUNNEL;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.NioGossipRouter;
+import org.jgroups.util.MyReceiver;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.StackType;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+
+/**
+ * Tests TUNNEL based clusters with {@link NioGossipRouter}
+ * @since 3.5
+ */
+@Test(groups={Global.STACK_INDEPENDENT,Global.GOSSIP_ROUTER},sequential=true)
+public class NioGossipRouterTest {
+    protected NioGossipRouter     router;
+    protected JChannel            a, b, c;
+    protected String              gossip_router_hosts;
+    protected InetAddress         bind_addr;
+
+    @BeforeMethod
+    protected void setUp() throws Exception {
+        String tmp=Util.getProperty(Global.BIND_ADDR);
+        if(tmp == null) {
+            StackType type=Util.getIpStackType();
+            tmp=type == StackType.IPv6? "::1" : "127.0.0.1";
+        }
+        bind_addr=InetAddress.getByName(tmp);
+        int port=ResourceManager.getNextTcpPort(bind_addr);
+        gossip_router_hosts=bind_addr.getHostAddress() + "[" + port + "]";
+        router=new NioGossipRouter(port, bind_addr.getHostAddress()).setEventLoops(2);
+        router.start();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    protected void tearDown() throws Exception {
+        Util.close(c,b,a);
+        router.stop();
+    }
+
+
+    public void testMessaging() throws Exception {
+        a=createTunnelChannel("A");
+        b=createTunnelChannel("B");
+        c=createTunnelChannel("C");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        assert router.getNumGroups() == 1;
+        assert router.getNumConnections() == 3;
+
+        MyReceiver<Integer> ra=new MyReceiver<Integer>(), rb=new MyReceiver<Integer>(), rc=new MyReceiver<Integer>();
+        a.setReceiver(ra); b.setReceiver(rb); c.setReceiver(rc);
+        for(int i=1; i <= 10; i++)
+            a.send(null, i);       // multicast
+        for(int i=1; i <= 10; i++)
+            b.send(c.getAddress(), i); // unicast
+
+        for(int i=0; i < 20 && (ra.size() < 10 || rb.size() < 10 || rc.size() < 20); i++)
+            Util.sleep(500);
+        System.out.println("A: " + ra.list() + "\nB: " + rb.list() + "\nC: " + rc.list());
+        assert ra.size() == 10 && rb.size() == 10 && rc.size() == 20;
+        System.out.println("router: " + router.printStats());
+        assert router.getNumMessagesForwarded() >= 40;
+        assert router.getNumMessagesDropped() == 0;
+    }
+
+    public void testMemberRemovedOnClose() throws Exception {
+        a=createTunnelChannel("A");
+        b=createTunnelChannel("B");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        System.out.println("routing table:\n" + router.dumpRoutingTable());
+        assert router.dumpRoutingTable().contains(b.getAddress().toString());
+
+        Util.close(b);
+        for(int i=0; i < 20 && router.getNumConnections() > 1; i++)
+            Util.sleep(500);
+        System.out.println("routing table:\n" + router.dumpRoutingTable());
+        assert router.getNumConnections() == 1;
+        assert !router.dumpRoutingTable().contains(String.valueOf(b.getAddress()));
+
+        Util.close(a);
+        for(int i=0; i < 20 && router.getNumGroups() > 0; i++)
+            Util.sleep(500);
+        assert router.getNumGroups() == 0 : router.dumpRoutingTable();
+    }
+
+
+    protected JChannel createTunnelChannel(String name) throws Exception {
+        TUNNEL tunnel=(TUNNEL)new TUNNEL().setValue("enable_bundling",false).setValue("bind_addr", bind_addr);
+        tunnel.setGossipRouterHosts(gossip_router_hosts);
+        JChannel ch=new JChannel(tunnel, new PING(), new MERGE2().setValue("min_interval",1000).setValue("max_interval",3000),
+                                 new NAKACK2().setValue("use_mcast_xmit", false), new UNICAST3(), new STABLE(),
+                                 new GMS().setValue("print_local_addr", false)).name(name);
+        ch.connect("NioGossipRouterTest");
+        return ch;
+    }
+}
@@ -72,6 +72,7 @@ public class GridFilesystemTest {
         fs=new GridFilesystem(data, metadata, default_repl_count, default_chunk_size);
         loop(fs);
 
+        fs.close();
         data.stop();
         metadata.stop();
     }
@@ -0,0 +1,117 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.JChannel;
+import org.jgroups.blocks.atomic.Counter;
+import org.jgroups.blocks.atomic.CounterService;
+import org.jgroups.blocks.atomic.RangeCounter;
+import org.jgroups.protocols.COUNTER;
+import org.jgroups.util.Util;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the throughput of {@link Counter#incrementAndGet()} of a regular counter (every increment is sent to the
+ * coordinator) with a range counter (see {@link CounterService#getOrCreateRangeCounter(String,long,long)}).<p/>
+ * Creates a number of members in the same JVM; the increments are done by the threads of the last member, which is
+ * not the coordinator. Uses an in-memory stack (SHARED_LOOPBACK) unless a config is passed with -props.
+ * @since 3.5
+ */
+public class CounterPerf {
+    protected String   props;
+    protected int      num_members=2;
+    protected int      num_threads=10;
+    protected int      num_increments=100000;
+    protected long     range_size=10000;
+    protected JChannel[] channels;
+
+
+    protected void start() throws Exception {
+        channels=new JChannel[num_members];
+        CounterService service=null;
+        try {
+            for(int i=0; i < channels.length; i++) {
+                channels[i]=props != null? new JChannel(props) : new JChannel(Util.getTestStack(new COUNTER()));
+                channels[i].name(String.valueOf((char)('A' + i)));
+                service=new CounterService(channels[i]);
+                channels[i].connect(CounterPerf.class.getSimpleName());
+            }
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+            System.out.println("view: " + channels[0].getView() + ", " + num_threads + " threads, " +
+                                 num_increments + " increments\n");
+
+            final Counter counter=service.getOrCreateCounter("regular", 0);
+            final RangeCounter range_counter=service.getOrCreateRangeCounter("range", 0, range_size);
+            run("regular", new Incrementer() {public long incrementAndGet() {return counter.incrementAndGet();}});
+            run("range  ", new Incrementer() {public long incrementAndGet() {return range_counter.incrementAndGet();}});
+        }
+        finally {
+            for(int i=channels.length-1; i >= 0; i--)
+                Util.close(channels[i]);
+        }
+    }
+
+    protected void run(String name, final Incrementer counter) throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        final int per_thread=num_increments / num_threads;
+        Thread[] threads=new Thread[num_threads];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < per_thread; j++)
+                            counter.incrementAndGet();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long start=System.nanoTime();
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        long time=System.nanoTime() - start;
+        int total=per_thread * num_threads;
+        System.out.println(String.format("%s: %d increments in %.2f ms: %.0f increments/sec, %.2f us/increment",
+                                         name, total, time / 1000000.0, total / (time / 1000000000.0),
+                                         time / 1000.0 / total));
+    }
+
+
+    protected interface Incrementer {
+        long incrementAndGet();
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        CounterPerf perf=new CounterPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-props")) {
+                perf.props=args[++i];
+                continue;
+            }
+            if(args[i].equals("-members")) {
+                perf.num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-threads")) {
+                perf.num_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-num")) {
+                perf.num_increments=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-range")) {
+                perf.range_size=Long.parseLong(args[++i]);
+                continue;
+            }
+            System.out.println("CounterPerf [-props <config>] [-members <members>] [-threads <threads>] " +
+                                 "[-num <increments>] [-range <range size>]");
+            return;
+        }
+        perf.start();
+    }
+}
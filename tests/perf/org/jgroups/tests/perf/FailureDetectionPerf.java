@@ -0,0 +1,189 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.*;
+import org.jgroups.protocols.DISCARD;
+import org.jgroups.protocols.FD_ALL;
+import org.jgroups.protocols.FD_SWIM;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Simulates a large cluster (1000 members by default) over {@link SHARED_LOOPBACK} in a single JVM and measures the
+ * failure detection load per member and the time to detect crashed members, with {@link FD_SWIM} or
+ * {@link FD_ALL}.<p/>
+ * The stacks only consist of SHARED_LOOPBACK, DISCARD and the failure detection protocol; the view is installed
+ * directly rather than through GMS, and all transports share a timer and thread pools, so that 1000 members don't
+ * need tens of thousands of threads. A crash is simulated by discarding all traffic of a member.
+ * @since 3.5
+ */
+public class FailureDetectionPerf {
+    protected int        num_members=1000;
+    protected String     protocol="swim";
+    protected long       interval=1000;
+    protected int        num_periods=10;
+    protected int        num_crashes=1;
+    protected JChannel[] channels;
+
+    protected final ConcurrentMap<Address,Long> detected=new ConcurrentHashMap<Address,Long>();
+
+
+    protected void start() throws Exception {
+        TimeScheduler timer=new TimeScheduler3(new DefaultThreadFactory("timer", true, true), 4, 20, 5000, 100000, "run");
+        ExecutorService pool=new ThreadPoolExecutor(8, 8, 5000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        ExecutorService oob_pool=new ThreadPoolExecutor(8, 8, 5000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        String cluster="FailureDetectionPerf-" + protocol;
+
+        System.out.println("creating " + num_members + " members with " + protocol + " (interval=" + interval + " ms)");
+        long start=System.currentTimeMillis();
+        channels=new JChannel[num_members];
+        List<Address> mbrs=new ArrayList<Address>(num_members);
+        for(int i=0; i < num_members; i++) {
+            SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+            transport.setValue("enable_diagnostics", false).setValue("bundler_type", "old")
+              .setValue("internal_thread_pool_enabled", false);
+            transport.setTimer(timer);
+            transport.setDefaultThreadPool(pool);
+            transport.setOOBThreadPool(oob_pool);
+            channels[i]=new JChannel(transport, new DISCARD(), createFailureDetector()).name(String.valueOf(i));
+            final Address addr;
+            channels[i].connect(cluster);
+            mbrs.add(addr=channels[i].getAddress());
+            channels[i].setReceiver(new ReceiverAdapter() {
+                public void suspect(Address suspected) {
+                    if(!isCrashed(addr))
+                        detected.putIfAbsent(suspected, System.currentTimeMillis());
+                }
+            });
+        }
+        View view=new View(mbrs.get(0), 1, mbrs);
+        for(JChannel ch: channels)
+            ch.down(new Event(Event.VIEW_CHANGE, view));
+        System.out.println("created and connected " + num_members + " members in " +
+                             (System.currentTimeMillis() - start) + " ms\n");
+
+        // 1. load: messages per member and period while all members are alive
+        Util.sleep(interval * 2);
+        for(JChannel ch: channels)
+            ch.getProtocolStack().getTransport().resetStats();
+        long load_start=System.currentTimeMillis();
+        Util.sleep(interval * num_periods);
+        long load_time=System.currentTimeMillis() - load_start, sent=0, received=0, bytes=0;
+        for(JChannel ch: channels) {
+            sent+=ch.getProtocolStack().getTransport().getNumMessagesSent();
+            received+=ch.getProtocolStack().getTransport().getNumMessagesReceived();
+            bytes+=ch.getProtocolStack().getTransport().getNumBytesSent();
+        }
+        double periods=load_time / (double)interval;
+        System.out.println(String.format("load: %.2f msgs sent, %.2f msgs received, %.0f bytes sent per member and period",
+                                         sent / periods / num_members, received / periods / num_members,
+                                         bytes / periods / num_members));
+
+        // live members suspected so far are false suspicions, e.g. because heartbeats couldn't be processed in time
+        System.out.println("live members suspected: " + detected.size());
+        detected.clear();
+
+        // 2. detection: crash members and wait until a SUSPECT event has been raised for all of them
+        List<Address> crashed=new ArrayList<Address>(num_crashes);
+        for(int i=0; i < num_crashes; i++) {
+            JChannel ch=channels[1 + i * (num_members / num_crashes)];
+            crashed.add(ch.getAddress());
+            ((DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(true);
+        }
+        long crash_time=System.currentTimeMillis(), all_confirmed=0;
+        System.out.println("\ncrashed " + crashed);
+        long max_wait=interval * 60;
+        while(System.currentTimeMillis() - crash_time < max_wait) {
+            if(detected.keySet().containsAll(crashed) && (all_confirmed > 0 || !protocol.equals("swim")))
+                break;
+            if(all_confirmed == 0 && protocol.equals("swim") && allConfirmed(crashed))
+                all_confirmed=System.currentTimeMillis();
+            Util.sleep(50);
+        }
+        for(Address addr: crashed) {
+            Long time=detected.get(addr);
+            System.out.println("  " + addr + ": " + (time != null? "suspected after " + (time - crash_time) + " ms" :
+              "not suspected after " + max_wait + " ms"));
+        }
+        if(all_confirmed > 0)
+            System.out.println("  all live members confirmed the crashes after " + (all_confirmed - crash_time) + " ms");
+
+        for(int i=channels.length-1; i >= 0; i--)
+            channels[i].close();
+        pool.shutdownNow();
+        oob_pool.shutdownNow();
+        timer.stop();
+    }
+
+    protected Protocol createFailureDetector() {
+        if(protocol.equals("swim"))
+            return new FD_SWIM().setInterval(interval).setPingTimeout(interval / 3).setSuspectTimeout(interval * 5);
+        FD_ALL fd=new FD_ALL();
+        fd.setInterval(interval);
+        fd.setTimeout(interval * 5);
+        fd.setTimeoutCheckInterval(interval);
+        return fd;
+    }
+
+    protected boolean isCrashed(Address addr) {
+        for(JChannel ch: channels) {
+            if(ch != null && addr.equals(ch.getAddress()))
+                return ((DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class)).isDiscardAll();
+        }
+        return false;
+    }
+
+    protected boolean allConfirmed(List<Address> crashed) {
+        for(JChannel ch: channels) {
+            if(crashed.contains(ch.getAddress()))
+                continue;
+            FD_SWIM fd=(FD_SWIM)ch.getProtocolStack().findProtocol(FD_SWIM.class);
+            for(Address addr: crashed)
+                if(!fd.isConfirmed(addr))
+                    return false;
+        }
+        return true;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        FailureDetectionPerf perf=new FailureDetectionPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-members")) {
+                perf.num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-protocol")) {
+                perf.protocol=args[++i];
+                continue;
+            }
+            if(args[i].equals("-interval")) {
+                perf.interval=Long.parseLong(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-periods")) {
+                perf.num_periods=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-crashes")) {
+                perf.num_crashes=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("FailureDetectionPerf [-members <num>] [-protocol swim|all] [-interval <ms>] " +
+                                 "[-periods <load measurement periods>] [-crashes <num>]");
+            return;
+        }
+        if(!perf.protocol.equals("swim") && !perf.protocol.equals("all")) {
+            System.err.println("protocol has to be \"swim\" or \"all\"");
+            return;
+        }
+        perf.start();
+    }
+}
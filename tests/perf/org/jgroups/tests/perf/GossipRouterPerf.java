@@ -0,0 +1,196 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.stack.GossipData;
+import org.jgroups.stack.GossipRouter;
+import org.jgroups.stack.NioGossipRouter;
+import org.jgroups.stack.RouterStub;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for {@link GossipRouter} and {@link NioGossipRouter}: a number of clients ({@link RouterStub}s, as used by
+ * TUNNEL) are connected to a local router and spread over a number of groups. Every client sends messages to random
+ * members of its group (or to the whole group with -multicast true) from its own thread, and has a thread reading the
+ * messages forwarded by the router. The time until all messages have been received and the throughput are printed.
+ * @since 3.5
+ */
+public class GossipRouterPerf {
+    protected boolean         nio=true;
+    protected int             event_loops;
+    protected int             num_clients=100;
+    protected int             num_groups=10;
+    protected int             num_msgs=1000; // per client
+    protected int             msg_size=1000;
+    protected boolean         multicast;
+    protected int             port=12001;
+
+    protected final AtomicLong received=new AtomicLong();
+
+
+    protected void start() throws Exception {
+        InetAddress bind_addr=InetAddress.getByName("127.0.0.1");
+        GossipRouter router=null;
+        NioGossipRouter nio_router=null;
+        if(nio) {
+            nio_router=new NioGossipRouter(port, bind_addr.getHostAddress()).setEventLoops(event_loops);
+            nio_router.start();
+        }
+        else {
+            router=new GossipRouter(port, bind_addr.getHostAddress());
+            router.start();
+        }
+
+        final RouterStub[] stubs=new RouterStub[num_clients];
+        final String[] group_names=new String[num_clients];
+        final Address[] addrs=new Address[num_clients];
+        int[] group_sizes=new int[num_groups];
+        for(int i=0; i < num_clients; i++) {
+            group_names[i]="group-" + i % num_groups;
+            group_sizes[i % num_groups]++;
+            addrs[i]=UUID.randomUUID();
+            stubs[i]=new RouterStub(bind_addr.getHostAddress(), port, bind_addr, null);
+            stubs[i].setSocketReadTimeout(0);
+            stubs[i].connect(group_names[i], addrs[i], String.valueOf(i), null);
+            final DataInputStream in=stubs[i].getInputStream();
+            Thread reader=new Thread("reader-" + i) {
+                public void run() {
+                    readLoop(in);
+                }
+            };
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        long expected=0;
+        for(int i=0; i < num_clients; i++)
+            expected+=multicast? num_msgs * (long)group_sizes[i % num_groups] : num_msgs;
+        System.out.println(String.format("%s router: %d clients in %d groups, each sending %d %s msgs of %d bytes",
+                                         nio? "NIO" : "classic", num_clients, num_groups, num_msgs,
+                                         multicast? "multicast" : "unicast", msg_size));
+
+        final byte[] payload=new byte[msg_size];
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[num_clients];
+        for(int i=0; i < senders.length; i++) {
+            final int index=i;
+            final List<Address> mbrs=new ArrayList<Address>();
+            for(int j=0; j < num_clients; j++)
+                if(group_names[j].equals(group_names[i]))
+                    mbrs.add(addrs[j]);
+            senders[i]=new Thread("sender-" + i) {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=0; j < num_msgs; j++) {
+                            Address dest=multicast? null : Util.pickRandomElement(mbrs);
+                            stubs[index].sendToMember(group_names[index], dest, payload, 0, payload.length);
+                        }
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+
+        long start=System.currentTimeMillis();
+        latch.countDown();
+        long last=0, last_progress=start;
+        while(received.get() < expected && System.currentTimeMillis() - last_progress < 10000) {
+            Util.sleep(10);
+            if(received.get() != last) {
+                last=received.get();
+                last_progress=System.currentTimeMillis();
+            }
+        }
+        long time=Math.max(1, System.currentTimeMillis() - start);
+        for(Thread sender: senders)
+            sender.join();
+
+        System.out.println(String.format("received %d of %d msgs in %d ms: %.0f msgs/s, %.2f MB/s",
+                                         received.get(), expected, time, received.get() / (time / 1000.0),
+                                         received.get() * msg_size / (time / 1000.0) / 1000000.0));
+        if(nio_router != null)
+            System.out.println("router: " + nio_router.printStats());
+
+        for(RouterStub stub: stubs)
+            stub.destroy();
+        if(router != null)
+            router.stop();
+        if(nio_router != null)
+            nio_router.stop();
+    }
+
+    protected void readLoop(DataInputStream in) {
+        for(;;) {
+            try {
+                GossipData data=new GossipData();
+                data.readFrom(in);
+                switch(data.getType()) {
+                    case GossipRouter.MESSAGE:
+                        received.incrementAndGet();
+                        break;
+                    case GossipRouter.SUSPECT:
+                        Util.readAddress(in);
+                        break;
+                }
+            }
+            catch(Exception e) {
+                break;
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        GossipRouterPerf perf=new GossipRouterPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-nio")) {
+                perf.nio=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-event_loops")) {
+                perf.event_loops=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-clients")) {
+                perf.num_clients=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-groups")) {
+                perf.num_groups=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-msgs")) {
+                perf.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-size")) {
+                perf.msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-multicast")) {
+                perf.multicast=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-port")) {
+                perf.port=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("GossipRouterPerf [-nio true|false] [-event_loops <num>] [-clients <num>] " +
+                                 "[-groups <num>] [-msgs <num per client>] [-size <bytes>] [-multicast true|false] " +
+                                 "[-port <port>]");
+            return;
+        }
+        perf.start();
+    }
+}
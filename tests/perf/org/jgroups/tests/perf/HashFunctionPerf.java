@@ -0,0 +1,127 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.blocks.ConsistentHashRing;
+import org.jgroups.blocks.ReplCache;
+import org.jgroups.util.Util;
+
+import java.util.*;
+
+/**
+ * Compares the hash functions of {@link ReplCache}: measures how evenly the keys are spread across the members, how
+ * many keys (and replicas) move when a member joins or leaves, and the lookup throughput.<p/>
+ * Runs locally; no cluster is needed.
+ * @since 3.5
+ */
+public class HashFunctionPerf {
+    protected int   num_keys=1000 * 1000;
+    protected int   num_members=20;
+    protected short repl_count=2;
+    protected int   virtual_nodes=ConsistentHashRing.DEFAULT_VIRTUAL_NODES;
+
+
+    protected void start() {
+        List<Address> members=new ArrayList<Address>(num_members);
+        for(int i=0; i < num_members; i++)
+            members.add(Util.createRandomAddress("node-" + i));
+        List<Address> after_join=new ArrayList<Address>(members);
+        after_join.add(Util.createRandomAddress("joiner"));
+        List<Address> after_leave=new ArrayList<Address>(members);
+        after_leave.remove(num_members / 2);
+
+        System.out.println("keys=" + num_keys + ", members=" + num_members + ", repl_count=" + repl_count +
+                             ", virtual nodes=" + virtual_nodes + "\n");
+        run("ConsistentHashFunction", new ReplCache.ConsistentHashFunction<Integer>(),
+            new ReplCache.ConsistentHashFunction<Integer>(), members, after_join, after_leave);
+        run("ConsistentHashRing", new ConsistentHashRing<Integer>(virtual_nodes),
+            new ConsistentHashRing<Integer>(virtual_nodes), members, after_join, after_leave);
+    }
+
+
+    protected void run(String name, ReplCache.HashFunction<Integer> func, ReplCache.HashFunction<Integer> other,
+                       List<Address> members, List<Address> after_join, List<Address> after_leave) {
+        func.installNodes(members);
+
+        // balance
+        Map<Address,Integer> counts=new HashMap<Address,Integer>();
+        for(Address mbr: members)
+            counts.put(mbr, 0);
+        for(int i=0; i < num_keys; i++) {
+            Address owner=func.hash(i, (short)1).get(0);
+            counts.put(owner, counts.get(owner) + 1);
+        }
+        int min=Integer.MAX_VALUE, max=0;
+        double avg=num_keys / (double)members.size(), variance=0;
+        for(int count: counts.values()) {
+            min=Math.min(min, count);
+            max=Math.max(max, count);
+            variance+=(count - avg) * (count - avg);
+        }
+        double stddev=Math.sqrt(variance / members.size());
+
+        // keys moved on a view change
+        other.installNodes(after_join);
+        int[] moved_on_join=moved(func, other);
+        other.installNodes(after_leave);
+        int[] moved_on_leave=moved(func, other);
+
+        // lookups
+        long start=System.nanoTime();
+        for(int i=0; i < num_keys; i++)
+            func.hash(i, repl_count);
+        long time=System.nanoTime() - start;
+
+        System.out.println(name + ":\n" +
+                             String.format("  balance:         min=%d, max=%d, avg=%.0f, stddev=%.2f (%.2f%%), max/avg=%.2f\n",
+                                           min, max, avg, stddev, stddev / avg * 100, max / avg) +
+                             String.format("  moved on join:   %d primaries (%.2f%%, ideal %.2f%%), %d replicas\n",
+                                           moved_on_join[0], moved_on_join[0] * 100.0 / num_keys,
+                                           100.0 / after_join.size(), moved_on_join[1]) +
+                             String.format("  moved on leave:  %d primaries (%.2f%%, ideal %.2f%%), %d replicas\n",
+                                           moved_on_leave[0], moved_on_leave[0] * 100.0 / num_keys,
+                                           100.0 / members.size(), moved_on_leave[1]) +
+                             String.format("  lookups:         %.2f ns/lookup (repl_count=%d)\n",
+                                           time / (double)num_keys, repl_count));
+    }
+
+    /** Returns the number of primaries and the number of replicas which changed owner */
+    protected int[] moved(ReplCache.HashFunction<Integer> before, ReplCache.HashFunction<Integer> after) {
+        int primaries=0, replicas=0;
+        for(int i=0; i < num_keys; i++) {
+            List<Address> old_owners=before.hash(i, repl_count), new_owners=after.hash(i, repl_count);
+            if(!old_owners.get(0).equals(new_owners.get(0)))
+                primaries++;
+            for(Address owner: new_owners)
+                if(!old_owners.contains(owner))
+                    replicas++;
+        }
+        return new int[]{primaries, replicas};
+    }
+
+
+    public static void main(String[] args) {
+        HashFunctionPerf perf=new HashFunctionPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-num_keys")) {
+                perf.num_keys=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-num_members")) {
+                perf.num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-repl_count")) {
+                perf.repl_count=Short.parseShort(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-virtual_nodes")) {
+                perf.virtual_nodes=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("HashFunctionPerf [-num_keys <keys>] [-num_members <members>] [-repl_count <count>] " +
+                                 "[-virtual_nodes <nodes>]");
+            return;
+        }
+        perf.start();
+    }
+}
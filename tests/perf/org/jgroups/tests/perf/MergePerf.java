@@ -0,0 +1,185 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long it takes to heal a cluster which is split into many partitions (30 partitions of 3 members by
+ * default), with and without {@link MERGE3}'s parallel_merge. The partitions are created by installing a view in
+ * the members of each partition while all traffic is discarded, then traffic is enabled and the time until all
+ * members have the full view is measured. The coordinator's time_to_converge and number of merge rounds, and the
+ * number of merge views installed are printed as well.<p/>
+ * All members run in the same JVM over {@link SHARED_LOOPBACK} and share a timer and thread pools; the thread pools
+ * have a thread per member, as merge requests and merge views block a thread per member until they're done.
+ * @since 3.5
+ */
+public class MergePerf {
+    protected int        num_partitions=30;
+    protected int        partition_size=3;
+    protected boolean    parallel_merge=true;
+    protected int        max_participants=5;
+    protected long       max_interval=3000;
+    protected JChannel[] channels;
+
+
+    protected void start() throws Exception {
+        int num_members=num_partitions * partition_size;
+        TimeScheduler timer=new TimeScheduler3(new DefaultThreadFactory("timer", true, true), 4, 20, 5000, 100000, "run");
+        // a coordinator installing a merge view blocks a regular thread while it waits for the view acks of its
+        // subgroup, and merge requests block an OOB thread while the digests are fetched, so every member needs one
+        ExecutorService pool=new ThreadPoolExecutor(num_members, num_members, 5000, TimeUnit.MILLISECONDS,
+                                                    new LinkedBlockingQueue<Runnable>());
+        ExecutorService oob_pool=new ThreadPoolExecutor(num_members, num_members, 5000, TimeUnit.MILLISECONDS,
+                                                        new LinkedBlockingQueue<Runnable>());
+        System.out.println(String.format("%d partitions of %d members, parallel_merge=%b, max_participants_in_merge=%d, " +
+                                           "max_interval=%d\n", num_partitions, partition_size, parallel_merge,
+                                         max_participants, max_interval));
+
+        channels=new JChannel[num_members];
+        for(int i=0; i < num_members; i++) {
+            SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+            transport.setValue("enable_diagnostics", false).setValue("internal_thread_pool_enabled", false);
+            transport.setTimer(timer);
+            transport.setDefaultThreadPool(pool);
+            transport.setOOBThreadPool(oob_pool);
+            MERGE3 merge=new MERGE3().setParallelMerge(parallel_merge).setMaxParticipantsInMerge(max_participants);
+            merge.setValue("ergonomics", false); // would raise max_participants_in_merge to 100
+            merge.setMinInterval(Math.min(1000, max_interval / 2));
+            merge.setMaxInterval(max_interval);
+            Protocol[] stack={
+              transport,
+              new DISCARD().setValue("discard_all", true),
+              new PING().timeout(1),
+              merge,
+              new NAKACK2().setValue("log_discard_msgs", false).setValue("log_not_found_msgs", false),
+              new UNICAST3(),
+              new GMS().setValue("print_local_addr", false).setValue("log_view_warnings", false)
+                .setValue("view_ack_collection_timeout", 2000L).setValue("log_collect_msgs", false)
+                .setValue("leave_timeout", 100L) // the members are closed one by one at the end
+            };
+            channels[i]=new JChannel(stack).name(String.valueOf(i));
+            channels[i].connect("MergePerf");
+        }
+
+        // create the partitions while all traffic is discarded
+        for(int i=0; i < num_partitions; i++)
+            createPartition(Arrays.copyOfRange(channels, i * partition_size, (i + 1) * partition_size));
+        for(JChannel ch: channels)
+            ch.getProtocolStack().getTransport().resetStats();
+        long[] num_views=new long[channels.length];
+        for(int i=0; i < channels.length; i++)
+            num_views[i]=((GMS)channels[i].getProtocolStack().findProtocol(GMS.class)).getNumberOfViews();
+
+        System.out.println("created " + num_partitions + " partitions, enabling traffic");
+        long start=System.currentTimeMillis();
+        for(JChannel ch: channels)
+            ((DISCARD)ch.getProtocolStack().findProtocol(DISCARD.class)).setDiscardAll(false);
+
+        long deadline=start + max_interval * 100;
+        while(!merged() && System.currentTimeMillis() < deadline)
+            Util.sleep(10);
+        long time=System.currentTimeMillis() - start;
+
+        if(merged()) {
+            long views=0, bytes=0;
+            for(int i=0; i < channels.length; i++) {
+                views+=((GMS)channels[i].getProtocolStack().findProtocol(GMS.class)).getNumberOfViews() - num_views[i];
+                bytes+=channels[i].getProtocolStack().getTransport().getNumBytesReceived();
+            }
+            JChannel coord=find(channels[0].getView().getMembers().get(0));
+            MERGE3 merge=(MERGE3)coord.getProtocolStack().findProtocol(MERGE3.class);
+            Util.sleep(max_interval * 4); // the coordinator computes time_to_converge on one of its next checks
+            System.out.println(String.format("all %d members merged after %d ms; %.1f views and %.0f bytes received " +
+                                               "per member (including INFO messages)",
+                                             num_members, time, views / (double)num_members, bytes / (double)num_members));
+            System.out.println(String.format("coordinator %s: time_to_converge=%d ms, rounds_to_converge=%d",
+                                             coord.getAddress(), merge.getTimeToConverge(), merge.getRoundsToConverge()));
+        }
+        else {
+            Map<View,Integer> views=new HashMap<View,Integer>();
+            for(JChannel ch: channels) {
+                Integer count=views.get(ch.getView());
+                views.put(ch.getView(), count == null? 1 : count + 1);
+            }
+            System.out.println("members didn't merge after " + time + " ms; " + views.size() + " different views");
+        }
+
+        for(int i=channels.length-1; i >= 0; i--)
+            channels[i].close();
+        pool.shutdownNow();
+        oob_pool.shutdownNow();
+        timer.stop();
+    }
+
+    protected boolean merged() {
+        for(JChannel ch: channels)
+            if(ch.getView().size() != channels.length)
+                return false;
+        return true;
+    }
+
+    protected JChannel find(Address addr) {
+        for(JChannel ch: channels)
+            if(addr.equals(ch.getAddress()))
+                return ch;
+        return null;
+    }
+
+    protected static void createPartition(JChannel ... partition) {
+        List<Address> members=new ArrayList<Address>(partition.length);
+        for(JChannel ch: partition)
+            members.add(ch.getAddress());
+        Collections.sort(members);
+        View view=new View(members.get(0), 2, members);
+        MutableDigest digest=new MutableDigest(view.getMembersRaw());
+        for(JChannel ch: partition) {
+            NAKACK2 nakack=(NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+            digest.merge(nakack.getDigest(ch.getAddress()));
+        }
+        for(JChannel ch: partition)
+            ((GMS)ch.getProtocolStack().findProtocol(GMS.class)).installView(view, digest);
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        MergePerf perf=new MergePerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-partitions")) {
+                perf.num_partitions=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-partition_size")) {
+                perf.partition_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-parallel_merge")) {
+                perf.parallel_merge=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-max_participants")) {
+                perf.max_participants=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-max_interval")) {
+                perf.max_interval=Long.parseLong(args[++i]);
+                continue;
+            }
+            System.out.println("MergePerf [-partitions <num>] [-partition_size <num>] [-parallel_merge true|false] " +
+                                 "[-max_participants <num>] [-max_interval <ms>]");
+            return;
+        }
+        perf.start();
+    }
+}
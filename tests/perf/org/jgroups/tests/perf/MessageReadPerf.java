@@ -0,0 +1,89 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.blocks.RequestCorrelator;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.FcHeader;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.ExposedByteArrayInputStream;
+import org.jgroups.util.Util;
+
+import java.io.DataInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures {@link Message#readFrom(java.io.DataInput)} of a message with a typical set of headers (TpHeader,
+ * NakAckHeader2, UNICAST3.Header, FcHeader and RequestCorrelator.Header), with the headers created by the factories
+ * registered in {@link ClassConfigurator} and with reflection.<p/>
+ * Runs locally; no cluster is needed.
+ * @since 3.5
+ */
+public class MessageReadPerf {
+    protected int num_reads=5 * 1000 * 1000;
+    protected int num_rounds=5;
+
+
+    protected void start() throws Exception {
+        Address dest=Util.createRandomAddress("B"), src=Util.createRandomAddress("A");
+        Message msg=new Message(dest, src, new byte[100])
+          .putHeader((short)1, new TpHeader("demo-cluster"))
+          .putHeader((short)2, NakAckHeader2.createMessageHeader(322649))
+          .putHeader((short)3, UNICAST3.Header.createDataHeader(322649, (short)1, false))
+          .putHeader((short)4, new FcHeader(FcHeader.REPLENISH))
+          .putHeader((short)5, new RequestCorrelator.Header(RequestCorrelator.Header.REQ, 1, true, (short)200));
+        byte[] buf=Util.streamableToByteBuffer(msg);
+        System.out.println("message: " + buf.length + " bytes, " + msg.getNumHeaders() + " headers\n");
+
+        Class<?>[] classes={TpHeader.class, NakAckHeader2.class, UNICAST3.Header.class, FcHeader.class,
+          RequestCorrelator.Header.class, src.getClass()};
+        Map<Short,ClassConfigurator.ObjectFactory<?>> factories=new HashMap<Short,ClassConfigurator.ObjectFactory<?>>();
+        for(Class<?> clazz: classes) {
+            short magic=ClassConfigurator.getMagicNumber(clazz);
+            factories.put(magic, ClassConfigurator.getFactory(magic));
+        }
+
+        for(int i=0; i < num_rounds; i++) {
+            read("factories ", buf);
+            for(short magic: factories.keySet())
+                ClassConfigurator.setFactory(magic, null);
+            read("reflection", buf);
+            for(Map.Entry<Short,ClassConfigurator.ObjectFactory<?>> entry: factories.entrySet())
+                ClassConfigurator.setFactory(entry.getKey(), entry.getValue());
+        }
+    }
+
+    protected void read(String name, byte[] buf) throws Exception {
+        int hash=0;
+        long start=System.nanoTime();
+        for(int i=0; i < num_reads; i++) {
+            Message msg=new Message(false);
+            msg.readFrom(new DataInputStream(new ExposedByteArrayInputStream(buf)));
+            hash+=msg.getLength();
+        }
+        long time=System.nanoTime() - start;
+        System.out.println(String.format("%s: %.2f ns/read, %.0f reads/sec (%d)", name,
+                                         time / (double)num_reads, num_reads / (time / 1000000000.0), hash));
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        MessageReadPerf perf=new MessageReadPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-num_reads")) {
+                perf.num_reads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-num_rounds")) {
+                perf.num_rounds=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("MessageReadPerf [-num_reads <reads>] [-num_rounds <rounds>]");
+            return;
+        }
+        perf.start();
+    }
+}
@@ -0,0 +1,172 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.DELAY;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.relay.RELAY2;
+import org.jgroups.protocols.relay.Relayer;
+import org.jgroups.protocols.relay.SiteMaster;
+import org.jgroups.protocols.relay.config.RelayConfig;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the throughput of relaying messages from site "lon" to site "sfo": a number of threads in the site master
+ * of lon send messages to the site master of sfo, which are relayed over the bridge. All members run in the same
+ * JVM over {@link SHARED_LOOPBACK}. The throughput and the stats of the route are printed, for comparing
+ * different values of max_relay_batch_size.<p/>
+ * With -rtt, {@link DELAY} is added to the bridge stacks to simulate a WAN link with the given round-trip time, e.g.
+ * to compare RELAY2's wan_mode (-wan true) with regular relaying. The payload is text-like, so it can be compressed.
+ * @since 3.5
+ */
+public class RelayPerf {
+    protected int              num_threads=8;
+    protected int              num_msgs=200000;
+    protected int              msg_size=100;
+    protected int              max_relay_batch_size=64000;
+    protected boolean          wan_mode;
+    protected int              rtt; // ms
+
+    protected static final String BRIDGE="global", LON="lon", SFO="sfo";
+
+
+    protected void start() throws Exception {
+        final AtomicInteger received=new AtomicInteger();
+        final CountDownLatch done=new CountDownLatch(1);
+        final JChannel a=createNode(LON, "A"), x=createNode(SFO, "X");
+        x.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                if(received.incrementAndGet() == num_msgs)
+                    done.countDown();
+            }
+        });
+        a.connect(LON + "-cluster");
+        x.connect(SFO + "-cluster");
+        RELAY2 relay=(RELAY2)a.getProtocolStack().findProtocol(RELAY2.class);
+        Relayer.Route route=null;
+        for(int i=0; i < 100 && (route=relay.getRoute(SFO)) == null; i++)
+            Util.sleep(100);
+        if(route == null)
+            throw new IllegalStateException("no route from " + LON + " to " + SFO);
+
+        System.out.println(String.format("%d threads sending %d msgs of %d bytes, max_relay_batch_size=%d, " +
+                                           "wan_mode=%b, rtt=%d ms", num_threads, num_msgs, msg_size,
+                                         max_relay_batch_size, wan_mode, rtt));
+        final Address target=new SiteMaster(SFO);
+        final byte[] payload=new byte[msg_size];
+        for(int i=0; i < payload.length; i++)
+            payload[i]=(byte)('a' + Util.random(16) - 1);
+        final AtomicInteger sent=new AtomicInteger();
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] senders=new Thread[num_threads];
+        for(int i=0; i < senders.length; i++) {
+            senders[i]=new Thread("sender-" + i) {
+                public void run() {
+                    try {
+                        latch.await();
+                        while(sent.incrementAndGet() <= num_msgs)
+                            a.send(new Message(target, payload));
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders[i].start();
+        }
+        long start=System.currentTimeMillis();
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join();
+        done.await();
+        long time=System.currentTimeMillis() - start;
+        System.out.println(String.format("received %d msgs in %d ms: %.0f msgs/s\nroute %s",
+                                         received.get(), time, received.get() / (time / 1000.0), route.printStats()));
+        Util.close(x, a);
+    }
+
+    protected JChannel createNode(String site_name, String node_name) throws Exception {
+        RELAY2 relay=new RELAY2().site(site_name).asyncRelayCreation(false).maxRelayBatchSize(max_relay_batch_size)
+          .wanMode(wan_mode);
+        for(String site: new String[]{LON, SFO}) {
+            RelayConfig.SiteConfig cfg=new RelayConfig.SiteConfig(site);
+            cfg.addBridge(new RelayConfig.ProgrammaticBridgeConfig(BRIDGE, createBridgeStack()));
+            relay.addSite(site, cfg);
+        }
+        Protocol[] stack=createStack();
+        Protocol[] tmp=new Protocol[stack.length + 1];
+        System.arraycopy(stack, 0, tmp, 0, stack.length);
+        tmp[stack.length]=relay;
+        return new JChannel(tmp).name(node_name);
+    }
+
+    /** The bridge stack delays every message sent by half the round-trip time */
+    protected Protocol[] createBridgeStack() {
+        Protocol[] stack=createStack();
+        if(rtt <= 0)
+            return stack;
+        DELAY delay=new DELAY();
+        delay.setOutDelay(rtt / 2);
+        delay.setConstantDelay(true);
+        Protocol[] tmp=new Protocol[stack.length + 1];
+        tmp[0]=stack[0];
+        tmp[1]=delay;
+        System.arraycopy(stack, 1, tmp, 2, stack.length - 1);
+        return tmp;
+    }
+
+    protected static Protocol[] createStack() {
+        return new Protocol[]{
+          new SHARED_LOOPBACK(),
+          new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+          new NAKACK2(),
+          new UNICAST3(),
+          new GMS().setValue("print_local_addr", false)
+        };
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        RelayPerf perf=new RelayPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-threads")) {
+                perf.num_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-msgs")) {
+                perf.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-size")) {
+                perf.msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-max_relay_batch_size")) {
+                perf.max_relay_batch_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-wan")) {
+                perf.wan_mode=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-rtt")) {
+                perf.rtt=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("RelayPerf [-threads <num>] [-msgs <num>] [-size <bytes>] [-max_relay_batch_size <bytes>] " +
+                                 "[-wan true|false] [-rtt <ms>]");
+            return;
+        }
+        perf.start();
+    }
+}
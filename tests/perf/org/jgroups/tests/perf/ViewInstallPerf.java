@@ -0,0 +1,254 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.TimeScheduler3;
+import org.jgroups.util.Util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Measures the latency of view installation during a rolling restart of a large cluster: for each cluster size
+ * (100, 500 and 1000 members by default), a number of members join concurrently, and then leave concurrently again.
+ * The latency is the time until all members have installed the view including (or excluding) the restarted members.
+ * The number of view changes and the bytes received per member (mostly VIEW messages) are printed as well.<p/>
+ * All members run in the same JVM over {@link SHARED_LOOPBACK} and share a timer and thread pools. Only the
+ * coordinator multicasts and STABLE is not part of the stack, so that the retransmission tables of 1000 members fit
+ * into a moderately sized heap.
+ * @since 3.5
+ */
+public class ViewInstallPerf {
+    protected int[]                   sizes={100, 500, 1000};
+    protected int                     num_joiners=50;
+    protected boolean                 view_bundling=true;
+    protected int                     max_bundling_requests=100;
+    protected boolean                 use_delta_views=true;
+
+    protected SharedTimer             timer;
+    protected ExecutorService         pool, oob_pool, connector;
+    protected Executor                shared_pool, shared_oob_pool;
+
+
+    protected void start() throws Exception {
+        timer=new SharedTimer();
+        pool=new ThreadPoolExecutor(8, 8, 5000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        oob_pool=new ThreadPoolExecutor(8, 8, 5000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        // a transport shuts down its thread pools when closed, unless they are plain executors
+        shared_pool=new Executor() {
+            public void execute(Runnable command) {pool.execute(command);}
+        };
+        shared_oob_pool=new Executor() {
+            public void execute(Runnable command) {oob_pool.execute(command);}
+        };
+        connector=Executors.newFixedThreadPool(num_joiners, new DefaultThreadFactory("connector", true, true));
+        try {
+            System.out.println(String.format("view_bundling=%b, max_bundling_requests=%d, use_delta_views=%b\n",
+                                             view_bundling, max_bundling_requests, use_delta_views));
+            for(int size: sizes)
+                run(size);
+        }
+        finally {
+            connector.shutdownNow();
+            pool.shutdownNow();
+            oob_pool.shutdownNow();
+            timer.destroy();
+        }
+    }
+
+    protected void run(int num_members) throws Exception {
+        String cluster="ViewInstallPerf-" + num_members;
+        JChannel[] members=new JChannel[num_members];
+        long start=System.currentTimeMillis();
+        members[0]=create("m0");
+        members[0].connect(cluster);
+        JChannel[] others=new JChannel[num_members-1];
+        connect(cluster, others, 1);
+        System.arraycopy(others, 0, members, 1, others.length);
+        waitForViewSize(num_members, start, members);
+        System.out.println(num_members + " members: cluster formed in " + (System.currentTimeMillis() - start) + " ms");
+
+        JChannel[] joiners=new JChannel[num_joiners];
+        JChannel[] all=new JChannel[num_members + num_joiners];
+        System.arraycopy(members, 0, all, 0, num_members);
+        GMS coord_gms=(GMS)members[0].getProtocolStack().findProtocol(GMS.class);
+
+        // 1. join: the restarted members join concurrently
+        resetStats(members);
+        long num_views=coord_gms.getNumberOfViews();
+        start=System.currentTimeMillis();
+        connect(cluster, joiners, num_members);
+        System.arraycopy(joiners, 0, all, num_members, num_joiners);
+        long[] times=waitForViewSize(all.length, start, all);
+        print("join", num_joiners, times, coord_gms.getNumberOfViews() - num_views, members);
+
+        // 2. leave: the restarted members leave concurrently
+        resetStats(members);
+        num_views=coord_gms.getNumberOfViews();
+        start=System.currentTimeMillis();
+        close(joiners);
+        times=waitForViewSize(num_members, start, members);
+        print("leave", num_joiners, times, coord_gms.getNumberOfViews() - num_views, members);
+        System.out.println();
+
+        close(Arrays.copyOfRange(members, 1, members.length));
+        members[0].close();
+    }
+
+    protected void close(JChannel ... channels) throws InterruptedException {
+        final CountDownLatch latch=new CountDownLatch(channels.length);
+        for(final JChannel ch: channels) {
+            connector.execute(new Runnable() {
+                public void run() {
+                    ch.close();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+    }
+
+    /** Creates channels.length new members and connects them concurrently, num_joiners at a time */
+    protected void connect(final String cluster, JChannel[] channels, int offset) throws Exception {
+        List<Future<?>> futures=new ArrayList<Future<?>>(channels.length);
+        for(int i=0; i < channels.length; i++) {
+            final JChannel ch=channels[i]=create("m" + (offset + i));
+            futures.add(connector.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    ch.connect(cluster);
+                    return null;
+                }
+            }));
+        }
+        for(Future<?> future: futures)
+            future.get();
+    }
+
+    protected JChannel create(String name) throws Exception {
+        SHARED_LOOPBACK transport=new SHARED_LOOPBACK();
+        transport.setValue("enable_diagnostics", false).setValue("bundler_type", "old")
+          .setValue("internal_thread_pool_enabled", false);
+        transport.setTimer(timer);
+        transport.setDefaultThreadPool(shared_pool);
+        transport.setOOBThreadPool(shared_oob_pool);
+        GMS gms=new GMS();
+        gms.setViewBundling(view_bundling);
+        gms.setMaxBundlingRequests(max_bundling_requests);
+        gms.setJoinTimeout(30000);
+        gms.setValue("use_delta_views", use_delta_views).setValue("print_local_addr", false)
+          .setValue("view_ack_collection_timeout", 20000L);
+        Protocol[] stack={
+          transport,
+          new PING().timeout(10000),
+          new NAKACK2(),
+          new UNICAST3(),
+          gms
+        };
+        return new JChannel(stack).name(name);
+    }
+
+    protected static void resetStats(JChannel ... channels) {
+        for(JChannel ch: channels)
+            ch.getProtocolStack().getTransport().resetStats();
+    }
+
+    protected static void print(String phase, int num, long[] times, long views, JChannel ... members) {
+        long bytes=0, msgs=0;
+        for(JChannel ch: members) {
+            TP transport=ch.getProtocolStack().getTransport();
+            bytes+=transport.getNumBytesReceived();
+            msgs+=transport.getNumMessagesReceived();
+        }
+        System.out.println(String.format("  %-5s of %d members: view installed after %d ms (median), %d ms (max), " +
+                                           "%d view(s), %.0f msgs and %.0f bytes received per existing member",
+                                         phase, num, times[times.length / 2], times[times.length - 1], views,
+                                         msgs / (double)members.length, bytes / (double)members.length));
+    }
+
+    /** Waits until all channels have a view of the given size and returns the sorted install times (ms after start) */
+    protected static long[] waitForViewSize(int size, long start, JChannel ... channels) throws TimeoutException {
+        long deadline=System.currentTimeMillis() + 120000;
+        long[] times=new long[channels.length];
+        for(;;) {
+            JChannel pending=null;
+            long now=System.currentTimeMillis();
+            for(int i=0; i < channels.length; i++) {
+                if(times[i] > 0)
+                    continue;
+                View view=channels[i].getView();
+                if(view != null && view.size() == size)
+                    times[i]=Math.max(1, now - start);
+                else if(pending == null)
+                    pending=channels[i];
+            }
+            if(pending == null) {
+                Arrays.sort(times);
+                return times;
+            }
+            if(now > deadline)
+                throw new TimeoutException(pending.getAddress() + " didn't install a view of " + size + " members: " +
+                                             pending.getView());
+            Util.sleep(1);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        // the logical name cache is shared by all members in this JVM; above max_elements, every addition scans it
+        if(System.getProperty(Global.UUID_CACHE_MAX_ELEMENTS) == null)
+            System.setProperty(Global.UUID_CACHE_MAX_ELEMENTS, "100000");
+        ViewInstallPerf perf=new ViewInstallPerf();
+        for(int i=0; i < args.length; i++) {
+            if(args[i].equals("-members")) {
+                String[] tmp=args[++i].split(",");
+                perf.sizes=new int[tmp.length];
+                for(int j=0; j < tmp.length; j++)
+                    perf.sizes[j]=Integer.parseInt(tmp[j].trim());
+                continue;
+            }
+            if(args[i].equals("-joiners")) {
+                perf.num_joiners=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-view_bundling")) {
+                perf.view_bundling=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-max_bundling_requests")) {
+                perf.max_bundling_requests=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if(args[i].equals("-use_delta_views")) {
+                perf.use_delta_views=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            System.out.println("ViewInstallPerf [-members <num>[,<num>...]] [-joiners <num>] [-view_bundling true|false] " +
+                                 "[-max_bundling_requests <num>] [-use_delta_views true|false]");
+            return;
+        }
+        perf.start();
+    }
+
+
+    /** A timer shared by all members, which isn't stopped when a member is closed */
+    protected static class SharedTimer extends TimeScheduler3 {
+        public SharedTimer() {
+            super(new DefaultThreadFactory("timer", true, true), 4, 20, 5000, 100000, "run");
+        }
+
+        public void stop() {}
+
+        public void destroy() {super.stop();}
+    }
+}